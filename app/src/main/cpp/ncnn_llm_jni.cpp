@@ -1,12 +1,16 @@
 #include <jni.h>
+#include <algorithm>
 #include <string>
 #include <thread>
 #include <atomic>
 #include <mutex>
 #include <exception>
+#include <cstdint>
 #include <cstring>
 #include <unordered_map>
+#include <vector>
 #include <functional>
+#include <memory>
 #include <dirent.h>
 #include <sys/stat.h>
 #include <android/log.h>
@@ -109,6 +113,11 @@ struct LocalLlmHandle {
 static std::mutex g_server_error_mu;
 static std::string g_last_server_error;
 
+// The model the OpenAI server runs, for NcnnLlmBridge.encodeWithServerModel. Weak, so a
+// tokenize call never keeps a stopped server's model alive past that call.
+static std::mutex g_server_model_mu;
+static std::weak_ptr<ncnn_llm_gpt> g_server_model;
+
 static void throw_runtime(JNIEnv* env, const std::string& msg) {
     jclass ex = env->FindClass("java/lang/RuntimeException");
     if (ex) {
@@ -215,13 +224,17 @@ Java_com_example_ncnn_1llm_1ctl_NcnnLlmBridge_startOpenAiServerWithWebRoot(
 
             McpState mcp = init_mcp(opt);
             __android_log_print(ANDROID_LOG_INFO, kTag, "Initializing model... useVulkan=%d", vulkan ? 1 : 0);
-            ncnn_llm_gpt model(opt.model_path, opt.use_vulkan);
+            auto model = std::make_shared<ncnn_llm_gpt>(opt.model_path, opt.use_vulkan);
+            {
+                std::lock_guard<std::mutex> lock(g_server_model_mu);
+                g_server_model = model;
+            }
             __android_log_print(ANDROID_LOG_INFO, kTag, "Model initialized, starting HTTP server on %d", server_port);
             std::vector<json> builtin_tools;
             std::unordered_map<std::string, std::function<json(const json&)>> builtin_router;
             std::mutex mcp_mutex;
 
-            run_openai_server(opt, model, builtin_tools, builtin_router, mcp, mcp_mutex);
+            run_openai_server(opt, *model, builtin_tools, builtin_router, mcp, mcp_mutex);
         } catch (const std::exception& e) {
             __android_log_print(ANDROID_LOG_ERROR, kTag, "Server init failed: %s", e.what());
             {
@@ -316,9 +329,7 @@ Java_com_example_ncnn_1llm_1ctl_NcnnLlmLocal_generate(
         return nullptr;
     }
 
-    const char* prompt_c = env->GetStringUTFChars(prompt, nullptr);
-    std::string prompt_s = prompt_c ? prompt_c : "";
-    env->ReleaseStringUTFChars(prompt, prompt_c);
+    std::string prompt_s = android_jstring_to_utf8(env, prompt);
 
     GenerateConfig cfg;
     cfg.max_new_tokens = (int)maxNewTokens > 0 ? (int)maxNewTokens : cfg.max_new_tokens;
@@ -349,3 +360,203 @@ Java_com_example_ncnn_1llm_1ctl_NcnnLlmLocal_generate(
         return nullptr;
     }
 }
+
+namespace {
+// Encodes with the model's tokenizer. BpeTokenizer::encode is const and guards its own piece
+// cache, so this does not take handle->mu and never waits for a running generate().
+static jintArray encode_to_java(JNIEnv* env, const ncnn_llm_gpt& model, jstring text) {
+    std::vector<int> ids = model.tokenizer().encode(android_jstring_to_utf8(env, text), false, false);
+    jintArray out = env->NewIntArray((jsize)ids.size());
+    if (out && !ids.empty()) {
+        env->SetIntArrayRegion(out, 0, (jsize)ids.size(), reinterpret_cast<const jint*>(ids.data()));
+    }
+    return out;
+}
+
+// UTF-16 end offset of every token of text, so Java can cut it at a token boundary from one
+// encoding instead of re-encoding shrinking substrings. Token bytes come from decoding each
+// id; a token that ends inside a character ends at that character's start.
+static jintArray token_ends_to_java(JNIEnv* env, const ncnn_llm_gpt& model, jstring text) {
+    const BpeTokenizer& tokenizer = model.tokenizer();
+    std::string utf8 = android_jstring_to_utf8(env, text);
+    std::vector<int> ids = tokenizer.encode(utf8, false, false);
+    // u16_before[b]: UTF-16 units before the character that holds byte b.
+    std::vector<jint> u16_before(utf8.size() + 1);
+    jint units = 0;
+    for (size_t b = 0; b < utf8.size();) {
+        const auto c = (unsigned char)utf8[b];
+        const size_t len = c < 0x80 ? 1 : c < 0xE0 ? 2 : c < 0xF0 ? 3 : 4;
+        for (size_t k = 0; k < len && b + k < utf8.size(); ++k) {
+            u16_before[b + k] = units;
+        }
+        b += len;
+        units += len == 4 ? 2 : 1;
+    }
+    u16_before[utf8.size()] = units;
+
+    std::vector<jint> ends(ids.size());
+    size_t bytes = 0;
+    for (size_t i = 0; i < ids.size(); ++i) {
+        bytes = std::min(utf8.size(), bytes + tokenizer.decode({ids[i]}, false).size());
+        ends[i] = u16_before[bytes];
+    }
+    if (!ends.empty()) {
+        // Decoded text may differ from the input in whitespace; the last token ends the text.
+        ends.back() = units;
+    }
+    jintArray out = env->NewIntArray((jsize)ends.size());
+    if (out && !ends.empty()) {
+        env->SetIntArrayRegion(out, 0, (jsize)ends.size(), ends.data());
+    }
+    return out;
+}
+
+// Null entries in texts stay null; returns null with a pending Java exception on failure.
+static jobjectArray encode_batch_to_java(JNIEnv* env, const ncnn_llm_gpt& model, jobjectArray texts) {
+    jclass int_array_class = env->FindClass("[I");
+    if (!int_array_class) {
+        return nullptr;
+    }
+    const jsize n = env->GetArrayLength(texts);
+    jobjectArray out = env->NewObjectArray(n, int_array_class, nullptr);
+    if (!out) {
+        return nullptr;
+    }
+    for (jsize i = 0; i < n; ++i) {
+        auto text = (jstring)env->GetObjectArrayElement(texts, i);
+        if (text == nullptr) {
+            continue;
+        }
+        jintArray ids = encode_to_java(env, model, text);
+        env->DeleteLocalRef(text);
+        if (!ids) {
+            return nullptr;
+        }
+        env->SetObjectArrayElement(out, i, ids);
+        env->DeleteLocalRef(ids);
+    }
+    return out;
+}
+}
+
+extern "C" JNIEXPORT jintArray JNICALL
+Java_com_example_ncnn_1llm_1ctl_NcnnLlmLocal_encode(JNIEnv* env, jclass clazz, jlong handlePtr, jstring text) {
+    (void)clazz;
+    auto* handle = reinterpret_cast<LocalLlmHandle*>((intptr_t)handlePtr);
+    if (!handle) {
+        throw_runtime(env, "handle is null");
+        return nullptr;
+    }
+    if (text == nullptr) {
+        throw_runtime(env, "text is null");
+        return nullptr;
+    }
+    try {
+        return encode_to_java(env, handle->model, text);
+    } catch (const std::exception& e) {
+        throw_runtime(env, std::string("encode failed: ") + e.what());
+        return nullptr;
+    } catch (...) {
+        throw_runtime(env, "encode failed: unknown error");
+        return nullptr;
+    }
+}
+
+extern "C" JNIEXPORT jintArray JNICALL
+Java_com_example_ncnn_1llm_1ctl_NcnnLlmLocal_tokenEnds(JNIEnv* env, jclass clazz, jlong handlePtr, jstring text) {
+    (void)clazz;
+    auto* handle = reinterpret_cast<LocalLlmHandle*>((intptr_t)handlePtr);
+    if (!handle) {
+        throw_runtime(env, "handle is null");
+        return nullptr;
+    }
+    if (text == nullptr) {
+        throw_runtime(env, "text is null");
+        return nullptr;
+    }
+    try {
+        return token_ends_to_java(env, handle->model, text);
+    } catch (const std::exception& e) {
+        throw_runtime(env, std::string("encode failed: ") + e.what());
+        return nullptr;
+    } catch (...) {
+        throw_runtime(env, "encode failed: unknown error");
+        return nullptr;
+    }
+}
+
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_example_ncnn_1llm_1ctl_NcnnLlmLocal_encodeBatch(JNIEnv* env, jclass clazz, jlong handlePtr, jobjectArray texts) {
+    (void)clazz;
+    auto* handle = reinterpret_cast<LocalLlmHandle*>((intptr_t)handlePtr);
+    if (!handle) {
+        throw_runtime(env, "handle is null");
+        return nullptr;
+    }
+    if (texts == nullptr) {
+        throw_runtime(env, "texts is null");
+        return nullptr;
+    }
+    try {
+        return encode_batch_to_java(env, handle->model, texts);
+    } catch (const std::exception& e) {
+        throw_runtime(env, std::string("encode failed: ") + e.what());
+        return nullptr;
+    } catch (...) {
+        throw_runtime(env, "encode failed: unknown error");
+        return nullptr;
+    }
+}
+
+extern "C" JNIEXPORT jobjectArray JNICALL
+Java_com_example_ncnn_1llm_1ctl_NcnnLlmBridge_encodeWithServerModel(JNIEnv* env, jclass clazz, jobjectArray texts) {
+    (void)clazz;
+    if (texts == nullptr) {
+        throw_runtime(env, "texts is null");
+        return nullptr;
+    }
+    std::shared_ptr<ncnn_llm_gpt> model;
+    {
+        std::lock_guard<std::mutex> lock(g_server_model_mu);
+        model = g_server_model.lock();
+    }
+    if (!model) {
+        // Server not started, still loading, or stopped: the caller estimates instead.
+        return nullptr;
+    }
+    try {
+        return encode_batch_to_java(env, *model, texts);
+    } catch (const std::exception& e) {
+        throw_runtime(env, std::string("encode failed: ") + e.what());
+        return nullptr;
+    } catch (...) {
+        throw_runtime(env, "encode failed: unknown error");
+        return nullptr;
+    }
+}
+
+extern "C" JNIEXPORT jintArray JNICALL
+Java_com_example_ncnn_1llm_1ctl_NcnnLlmBridge_tokenEndsWithServerModel(JNIEnv* env, jclass clazz, jstring text) {
+    (void)clazz;
+    if (text == nullptr) {
+        throw_runtime(env, "text is null");
+        return nullptr;
+    }
+    std::shared_ptr<ncnn_llm_gpt> model;
+    {
+        std::lock_guard<std::mutex> lock(g_server_model_mu);
+        model = g_server_model.lock();
+    }
+    if (!model) {
+        return nullptr;
+    }
+    try {
+        return token_ends_to_java(env, *model, text);
+    } catch (const std::exception& e) {
+        throw_runtime(env, std::string("encode failed: ") + e.what());
+        return nullptr;
+    } catch (...) {
+        throw_runtime(env, "encode failed: unknown error");
+        return nullptr;
+    }
+}
@@ -1,11 +1,10 @@
 package com.example.ncnn_llm_ctl;
 
 import android.accessibilityservice.AccessibilityService;
-import android.accessibilityservice.GestureDescription;
 import android.accessibilityservice.AccessibilityServiceInfo;
 import android.content.ClipData;
 import android.content.ClipboardManager;
-import android.graphics.Path;
+import android.graphics.Rect;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -31,12 +30,17 @@ import org.json.JSONObject;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AccessCtlService extends AccessibilityService {
 
     private static volatile AccessCtlService instance;
     private static final String LOCAL_SERVER_BASE_URL = "http://127.0.0.1:18080";
     private static final String DEFAULT_MODEL = "qwen3_0.6b";
+    /** Starts every line where {@link #getCurrentUiDump} left part of the tree out. */
+    public static final String DUMP_TRUNCATED = "...(截断:";
+    private static final long WAIT_RECHECK_MS = 1000;
+    private static final long SCROLL_SETTLE_MS = 800;
 
     private AccessibilityNodeInfo lastEditable;
     private WindowManager windowManager;
@@ -54,7 +58,17 @@ public class AccessCtlService extends AccessibilityService {
     private final StringBuilder overlayLlmBuffer = new StringBuilder();
     private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private final AtomicBoolean overlayChatInFlight = new AtomicBoolean(false);
+    // The overlay's running loop, cancelled when the service goes away.
+    private volatile AgentLoop overlayLoop;
+    private final AtomicLong windowStateSeq = new AtomicLong(0);
+    // Guarded by uiEventLock; bumped on every UI change event so waiters re-check their condition.
+    private final Object uiEventLock = new Object();
+    private long uiEventSeq;
+    private GestureEngine gestureEngine;
     private final List<JSONObject> overlayChatMessages = new ArrayList<>();
+    // Tool calls arrive on several threads (overlay loop, native server); one walker each.
+    private final ThreadLocal<AccessibilityTreeWalker<AccessibilityNodeInfo>> treeWalker =
+            ThreadLocal.withInitial(() -> new AccessibilityTreeWalker<>(AccessibilityTreeWalker.NODE_INFO));
 
     public static AccessCtlService getInstance() {
         return instance;
@@ -63,6 +77,7 @@ public class AccessCtlService extends AccessibilityService {
     @Override
     protected void onServiceConnected() {
         instance = this;
+        gestureEngine = new GestureEngine(this);
         try {
             AccessibilityServiceInfo info = getServiceInfo();
             if (info != null) {
@@ -81,6 +96,16 @@ public class AccessCtlService extends AccessibilityService {
             return;
         }
         int type = event.getEventType();
+        if (type == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+            windowStateSeq.incrementAndGet();
+        }
+        if (changesToolView(type, event.getPackageName(), getPackageName())) {
+            ToolResultCache.invalidate();
+            synchronized (uiEventLock) {
+                uiEventSeq++;
+                uiEventLock.notifyAll();
+            }
+        }
         if (type == AccessibilityEvent.TYPE_VIEW_FOCUSED
                 || type == AccessibilityEvent.TYPE_VIEW_CLICKED
                 || type == AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED) {
@@ -103,6 +128,10 @@ public class AccessCtlService extends AccessibilityService {
 
     @Override
     public void onDestroy() {
+        AgentLoop loop = overlayLoop;
+        if (loop != null) {
+            loop.cancel();
+        }
         if (lastEditable != null) {
             lastEditable.recycle();
             lastEditable = null;
@@ -147,13 +176,17 @@ public class AccessCtlService extends AccessibilityService {
     }
 
     private void trimOverlayBufferIfNeeded() {
-        // Keep last ~1200 chars to avoid UI lag.
+        // Keep last ~1200 chars to avoid UI lag. Display only, so chars are enough; this runs
+        // on the main thread and must not call into the tokenizer.
         int max = 1200;
         if (overlayLlmBuffer.length() <= max) {
             return;
         }
         int start = overlayLlmBuffer.length() - max;
-        overlayLlmBuffer.delete(0, Math.max(0, start));
+        if (Character.isLowSurrogate(overlayLlmBuffer.charAt(start))) {
+            start++;
+        }
+        overlayLlmBuffer.delete(0, start);
     }
 
     private void setOverlayTexts(String fixed, String body) {
@@ -175,14 +208,123 @@ public class AccessCtlService extends AccessibilityService {
     }
 
     public boolean clickAt(int x, int y) {
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
-            return false;
+        GestureEngine engine = gestureEngine;
+        return engine != null && engine.tap(x, y);
+    }
+
+    public boolean longPressAt(int x, int y, long durationMs) {
+        GestureEngine engine = gestureEngine;
+        return engine != null && engine.longPress(x, y, durationMs);
+    }
+
+    public boolean swipe(int x1, int y1, int x2, int y2, long durationMs) {
+        GestureEngine engine = gestureEngine;
+        return engine != null && engine.swipe(x1, y1, x2, y2, durationMs);
+    }
+
+    public boolean swipeDirection(String direction, long durationMs) {
+        GestureEngine engine = gestureEngine;
+        return engine != null && engine.swipeDirection(direction, null, durationMs);
+    }
+
+    /** Returns the on-screen center of the first node with {@code viewId}, or null. */
+    public int[] getViewCenter(String viewId) {
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root == null) {
+            return null;
+        }
+        List<AccessibilityNodeInfo> nodes = root.findAccessibilityNodeInfosByViewId(viewId);
+        root.recycle();
+        if (nodes == null || nodes.isEmpty()) {
+            return null;
+        }
+        int[] center = null;
+        Rect bounds = new Rect();
+        for (AccessibilityNodeInfo node : nodes) {
+            if (node == null) {
+                continue;
+            }
+            if (center == null && node.isVisibleToUser()) {
+                node.getBoundsInScreen(bounds);
+                if (!bounds.isEmpty()) {
+                    center = new int[] {bounds.centerX(), bounds.centerY()};
+                }
+            }
+            node.recycle();
+        }
+        return center;
+    }
+
+    /**
+     * Scrolls the main list in {@code direction} (finger direction) until a node matching
+     * {@code viewId}/{@code text} exists. Each page is a swipe gesture; when the gesture does
+     * not move the content, ACTION_SCROLL_FORWARD/BACKWARD is tried on the list instead.
+     * Whether the list moved is judged by its content hash, not by UI events, which other
+     * parts of the screen (clocks, banners) emit all the time.
+     * Returns the number of pages scrolled, or -1 if not found (end reached or limit hit).
+     */
+    public int scrollUntilVisible(String viewId, String text, String direction, int maxSwipes) {
+        if (hasNode(viewId, text)) {
+            return 0;
+        }
+        GestureEngine engine = gestureEngine;
+        if (engine == null) {
+            return -1;
+        }
+        for (int i = 1; i <= maxSwipes; i++) {
+            AccessibilityNodeInfo scrollable = engine.findScrollable(walker());
+            boolean moved;
+            try {
+                Rect area = null;
+                if (scrollable != null) {
+                    area = new Rect();
+                    scrollable.getBoundsInScreen(area);
+                }
+                String before = scrollState(scrollable);
+                long seq = currentUiEventSeq();
+                moved = engine.swipeDirection(direction, area, GestureEngine.SWIPE_MS)
+                        && settledAfter(seq, scrollable, before);
+                if (!moved && scrollable != null) {
+                    seq = currentUiEventSeq();
+                    moved = GestureEngine.scrollByAction(scrollable, direction)
+                            && settledAfter(seq, scrollable, before);
+                }
+            } finally {
+                if (scrollable != null) {
+                    scrollable.recycle();
+                }
+            }
+            if (hasNode(viewId, text)) {
+                return i;
+            }
+            if (!moved) {
+                return -1;
+            }
         }
-        Path path = new Path();
-        path.moveTo(x, y);
-        GestureDescription.StrokeDescription stroke = new GestureDescription.StrokeDescription(path, 0, 50);
-        GestureDescription gesture = new GestureDescription.Builder().addStroke(stroke).build();
-        return dispatchGesture(gesture, null, null);
+        return -1;
+    }
+
+    /** Content hash of the list being scrolled, or of the active window without one. */
+    private String scrollState(AccessibilityNodeInfo scrollable) {
+        if (scrollable != null) {
+            // A list that left the window has moved as far as we are concerned.
+            return scrollable.refresh() ? ScreenFingerprint.contentHash(scrollable, walker()) : "gone";
+        }
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root == null) {
+            return "";
+        }
+        try {
+            return ScreenFingerprint.contentHash(root, walker());
+        } finally {
+            root.recycle();
+        }
+    }
+
+    /** Waits for the scroll to produce an event (or the settle time), then compares content. */
+    private boolean settledAfter(long seq, AccessibilityNodeInfo scrollable, String before) {
+        waitForUiEvent(seq, SCROLL_SETTLE_MS);
+        return !before.equals(scrollState(scrollable));
     }
 
     public boolean inputText(String text) {
@@ -277,12 +419,66 @@ public class AccessCtlService extends AccessibilityService {
         return sb.toString();
     }
 
+    /** Fingerprint of the active (non-overlay) window; see {@link ScreenFingerprint}. */
+    public String getScreenFingerprint() {
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root == null) {
+            return "";
+        }
+        try {
+            CharSequence pkg = root.getPackageName();
+            if (isNoisyPackage(pkg == null ? "" : pkg.toString())) {
+                return "";
+            }
+            return ScreenFingerprint.compute(root, walker());
+        } finally {
+            root.recycle();
+        }
+    }
+
+    /** {@link ScreenFingerprint#contentHash} of the same window; "" where the fingerprint is. */
+    public String getScreenContentHash() {
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root == null) {
+            return "";
+        }
+        try {
+            CharSequence pkg = root.getPackageName();
+            if (isNoisyPackage(pkg == null ? "" : pkg.toString())) {
+                return "";
+            }
+            return ScreenFingerprint.contentHash(root, walker());
+        } finally {
+            root.recycle();
+        }
+    }
+
     private boolean isNoisyPackage(String pkg) {
+        return isNoisyPackage(pkg, getPackageName());
+    }
+
+    private static boolean isNoisyPackage(String pkg, String ownPackage) {
         if (TextUtils.isEmpty(pkg)) return false;
-        if (pkg.equals(getPackageName())) return true;
+        if (pkg.equals(ownPackage)) return true;
         return "com.android.systemui".equals(pkg);
     }
 
+    /**
+     * Whether an event can change what the tools see. Our own overlay (its log grows with
+     * every tool result and streamed token) and the status bar are left out of snapshots, so
+     * their updates must not flush {@link ToolResultCache} or wake {@code wait_for}.
+     */
+    static boolean changesToolView(int type, CharSequence pkg, String ownPackage) {
+        if (type != AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED
+                && type != AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED
+                && type != AccessibilityEvent.TYPE_WINDOWS_CHANGED
+                && type != AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED
+                && type != AccessibilityEvent.TYPE_VIEW_SCROLLED) {
+            return false;
+        }
+        return !isNoisyPackage(pkg == null ? "" : pkg.toString(), ownPackage);
+    }
+
     public boolean clickByViewId(String viewId) {
         AccessibilityNodeInfo root = getRootInActiveWindow();
         if (root == null) {
@@ -376,6 +572,113 @@ public class AccessCtlService extends AccessibilityService {
         return false;
     }
 
+    /** Incremented on every TYPE_WINDOW_STATE_CHANGED event; compare before/after an action. */
+    public long getWindowStateSeq() {
+        return windowStateSeq.get();
+    }
+
+    private long currentUiEventSeq() {
+        synchronized (uiEventLock) {
+            return uiEventSeq;
+        }
+    }
+
+    /** Waits until a UI change event arrives after {@code sinceSeq}; false on timeout. */
+    private boolean waitForUiEvent(long sinceSeq, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (uiEventLock) {
+            while (uiEventSeq == sinceSeq) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    uiEventLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    public boolean hasNode(String viewId, String text) {
+        AccessibilityNodeInfo root = getRootInActiveWindow();
+        if (root == null) {
+            return false;
+        }
+        List<AccessibilityNodeInfo> nodes = null;
+        try {
+            if (!TextUtils.isEmpty(viewId)) {
+                nodes = root.findAccessibilityNodeInfosByViewId(viewId);
+            } else if (!TextUtils.isEmpty(text)) {
+                nodes = root.findAccessibilityNodeInfosByText(text);
+            }
+        } finally {
+            root.recycle();
+        }
+        if (nodes == null) {
+            return false;
+        }
+        boolean found = !nodes.isEmpty();
+        for (AccessibilityNodeInfo node : nodes) {
+            if (node != null) {
+                node.recycle();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Blocks until the condition holds or {@code timeoutMs} elapses.
+     * With a view id/text: waits for the node to appear (or disappear when {@code gone}).
+     * With {@code sinceWindowSeq >= 0}: waits for a window state change after that sequence.
+     *
+     * The tree is only re-queried when {@link #onAccessibilityEvent} reports a UI change
+     * (plus a slow safety re-check), so waiting costs no binder calls while the screen is idle.
+     * Must not be called on the main thread, which delivers the events.
+     */
+    public boolean waitForCondition(String viewId, String text, boolean gone, long sinceWindowSeq, long timeoutMs) {
+        boolean wantNode = !TextUtils.isEmpty(viewId) || !TextUtils.isEmpty(text);
+        long deadline = System.currentTimeMillis() + Math.max(0L, timeoutMs);
+        boolean onMainThread = Looper.myLooper() == Looper.getMainLooper();
+        long seenSeq;
+        synchronized (uiEventLock) {
+            seenSeq = uiEventSeq;
+        }
+        while (true) {
+            boolean windowOk = sinceWindowSeq < 0 || windowStateSeq.get() > sinceWindowSeq;
+            boolean nodeOk = !wantNode || (hasNode(viewId, text) != gone);
+            if (windowOk && nodeOk) {
+                return true;
+            }
+            if (onMainThread) {
+                return false;
+            }
+            try {
+                synchronized (uiEventLock) {
+                    while (uiEventSeq == seenSeq) {
+                        long remaining = deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            return false;
+                        }
+                        long before = uiEventSeq;
+                        uiEventLock.wait(Math.min(remaining, WAIT_RECHECK_MS));
+                        if (uiEventSeq == before) {
+                            // Safety re-check: some apps change without emitting events.
+                            break;
+                        }
+                    }
+                    seenSeq = uiEventSeq;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
     public List<String> getGlobalActionNames() {
         return GlobalActionRegistry.getNames();
     }
@@ -571,243 +874,114 @@ public class AccessCtlService extends AccessibilityService {
             return;
         }
 
-        new Thread(() -> {
-            final JSONArray tools = JavaMcpTools.buildOpenAiTools();
-            final AccessibilityToolBridge toolBridge = new AccessibilityToolBridge();
-            final int maxSteps = 8;
-            boolean legacy = false;
+        runOverlayToolLoop(text, new AccessibilityToolBridge());
+    }
 
-            if (!legacy) {
-                try {
-                    runOverlayToolLoop(text, tools, toolBridge, maxSteps);
-                } catch (Exception e) {
-                    overlayChatInFlight.set(false);
-                    appendOverlayLogLine("[系统] 请求失败：" + e);
-                }
-                return;
-            }
-            StringBuilder reply = new StringBuilder();
-            final JSONArray[] toolHistoryHolder = new JSONArray[1];
-            try {
-                ChatClient.chatCompletionsStream(LOCAL_SERVER_BASE_URL, DEFAULT_MODEL, overlayChatMessages, new ChatClient.StreamListener() {
+    private void runOverlayToolLoop(String firstUserText, AccessibilityToolBridge toolBridge) {
+        // Exact counts from the server's model once it is loaded; ChatHistory estimates until then.
+        ChatHistory.setTokenCounter(ModelTokenizer.server().asTokenCounter());
+        AgentLoop loop = new AgentLoop.Builder(new AgentLoop.HttpTransport(LOCAL_SERVER_BASE_URL, DEFAULT_MODEL))
+                .toolExecutor(calls -> JavaMcpTools.executeToolCalls(calls, toolBridge))
+                .actionMemo(ActionMemo.get(this), toolBridge)
+                .timeBudgetMs(AgentLoop.APP_TIME_BUDGET_MS)
+                .tokenBudget(AgentLoop.APP_TOKEN_BUDGET)
+                .readiness(() -> {
+                    if (ChatClient.ping(LOCAL_SERVER_BASE_URL, 800)) {
+                        return true;
+                    }
+                    String nativeErr = "";
+                    try {
+                        nativeErr = NcnnLlmBridge.getLastServerError();
+                    } catch (Throwable ignore) {
+                    }
+                    appendOverlayLogLine("[系统] 本地模型服务未启动，请先在主界面点击“启动模型服务”。 " + nativeErr);
+                    return false;
+                })
+                .listener(new AgentLoop.Listener() {
                     @Override
-                    public void onDelta(String t) {
-                        if (TextUtils.isEmpty(t)) return;
-                        reply.append(t);
-                        appendOverlayLlmText(t);
+                    public void onMemoHit(int actions) {
+                        appendOverlayLogLine("[系统] 命中动作缓存，直接执行 " + actions + " 步");
                     }
 
                     @Override
-                    public void onToolTrace(String toolTrace) {
-                        String namesOnly = ToolTraceFormatter.toolNamesOnly(toolTrace);
-                        if (TextUtils.isEmpty(namesOnly)) return;
-                        appendOverlayLogLine("[工具] " + namesOnly);
+                    public void onMemoReplayFailed(int ran, int total) {
+                        appendOverlayLogLine("[系统] 缓存动作在第 " + ran + "/" + total + " 步失败，改用模型推理");
                     }
 
                     @Override
-                    public void onToolHistory(JSONArray toolHistory) {
-                        toolHistoryHolder[0] = toolHistory;
+                    public void onStepStart(int step) {
+                        appendOverlayLogLine("[系统] 请求中…（" + DEFAULT_MODEL + "）");
                     }
 
                     @Override
-                    public void onToolCalls(JSONArray toolCalls) {
+                    public void onDelta(String text) {
+                        appendOverlayLlmText(text);
                     }
 
                     @Override
-                    public void onFinishReason(String finishReason) {
+                    public void onToolTrace(String names) {
+                        appendOverlayLogLine("[工具] " + names);
                     }
 
                     @Override
-                    public void onDone() {
-                        try {
-                            appendToolHistoryToMessages(toolHistoryHolder[0], overlayChatMessages);
-                            JSONObject assistant = new JSONObject();
-                            assistant.put("role", "assistant");
-                            assistant.put("content", reply.toString());
-                            overlayChatMessages.add(assistant);
-                        } catch (Exception ignore) {
+                    public void onToolCalls(JSONArray toolCalls) {
+                        String names = JavaMcpTools.toolNamesOnly(toolCalls);
+                        if (!TextUtils.isEmpty(names)) {
+                            appendOverlayLogLine("[需要工具] " + names);
                         }
-                        overlayChatInFlight.set(false);
-                        appendOverlayLogLine("[系统] 完成");
                     }
 
                     @Override
-                    public void onError(String message) {
-                        overlayChatInFlight.set(false);
-                        appendOverlayLogLine("[系统] 流式请求失败：" + message);
+                    public void onToolResult(String name, JSONObject result) {
+                        appendOverlayLogLine("[工具结果] " + name + " ok=" + result.optBoolean("ok", false));
                     }
-                });
-            } catch (Exception e) {
-                overlayChatInFlight.set(false);
-                appendOverlayLogLine("[系统] 请求失败：" + e.getMessage());
-            }
-        }).start();
-    }
 
-    private void runOverlayToolLoop(String firstUserText,
-                                    JSONArray tools,
-                                    AccessibilityToolBridge toolBridge,
-                                    int maxSteps) throws Exception {
-        if (!ChatClient.ping(LOCAL_SERVER_BASE_URL, 800)) {
-            overlayChatInFlight.set(false);
-            String nativeErr = "";
-            try {
-                nativeErr = NcnnLlmBridge.getLastServerError();
-            } catch (Throwable ignore) {
-            }
-            appendOverlayLogLine("[系统] 本地模型服务未启动，请先在主界面点击“启动模型服务”。 " + nativeErr);
-            return;
-        }
-        for (int step = 0; step < maxSteps; step++) {
-            StringBuilder reply = new StringBuilder();
-            final JSONArray[] toolCallsHolder = new JSONArray[1];
-            final String[] errorHolder = new String[1];
-
-            appendOverlayLogLine("[系统] 请求中…（" + DEFAULT_MODEL + "）");
-            JSONArray toolsForThisRequest = (step == 0) ? tools : null;
-            ChatClient.chatCompletionsStream(
-                    LOCAL_SERVER_BASE_URL,
-                    DEFAULT_MODEL,
-                    overlayChatMessages,
-                    toolsForThisRequest,
-                    JavaMcpTools.TOOL_MODE_EMIT,
-                    new ChatClient.StreamListener() {
-                        @Override
-                        public void onDelta(String t) {
-                            if (TextUtils.isEmpty(t)) return;
-                            reply.append(t);
-                            appendOverlayLlmText(t);
-                        }
-
-                        @Override
-                        public void onToolTrace(String toolTrace) {
-                            String namesOnly = ToolTraceFormatter.toolNamesOnly(toolTrace);
-                            if (TextUtils.isEmpty(namesOnly)) return;
-                            appendOverlayLogLine("[工具] " + namesOnly);
-                        }
-
-                        @Override
-                        public void onToolHistory(JSONArray toolHistory) {
-                        }
-
-                        @Override
-                        public void onToolCalls(JSONArray toolCalls) {
-                            toolCallsHolder[0] = toolCalls;
-                            String names = JavaMcpTools.toolNamesOnly(toolCalls);
-                            if (!TextUtils.isEmpty(names)) {
-                                appendOverlayLogLine("[需要工具] " + names);
-                            }
-                        }
-
-                        @Override
-                        public void onFinishReason(String finishReason) {
-                        }
-
-                        @Override
-                        public void onDone() {
-                        }
-
-                        @Override
-                        public void onError(String message) {
-                            errorHolder[0] = message;
+                    @Override
+                    public void onStepEnd(int step) {
+                        clearOverlayLlmText();
+                        if (step == 0) {
+                            appendOverlayLogLine("[我] " + firstUserText);
                         }
-                    });
-
-            if (!TextUtils.isEmpty(errorHolder[0])) {
-                overlayChatInFlight.set(false);
-                appendOverlayLogLine("[系统] 请求失败：" + errorHolder[0]);
-                return;
-            }
-
-            JSONArray toolCalls = toolCallsHolder[0];
-            if (toolCalls != null && toolCalls.length() > 0) {
-                try {
-                    JSONObject assistant = new JSONObject();
-                    assistant.put("role", "assistant");
-                    assistant.put("content", reply.toString());
-                    assistant.put("tool_calls", toolCalls);
-                    overlayChatMessages.add(assistant);
-                } catch (Exception ignore) {
-                }
-
-                for (int i = 0; i < toolCalls.length(); i++) {
-                    JSONObject tc = toolCalls.optJSONObject(i);
-                    JSONObject result = JavaMcpTools.executeToolCall(tc, toolBridge);
-                    try {
-                        JSONObject toolMsg = new JSONObject();
-                        toolMsg.put("role", "tool");
-                        toolMsg.put("content", result.toString());
-                        overlayChatMessages.add(toolMsg);
-                    } catch (Exception ignore) {
+                        appendOverlayLogLine("[系统] 工具执行完成，继续推理…");
                     }
 
-                    String name = "";
-                    try {
-                        JSONObject fn = tc == null ? null : tc.optJSONObject("function");
-                        name = fn == null ? "" : fn.optString("name", "");
-                    } catch (Exception ignore) {
+                    @Override
+                    public void onFinished(AgentLoop.Outcome outcome) {
+                        overlayLoop = null;
+                        overlayChatInFlight.set(false);
+                        switch (outcome.stop) {
+                            case DONE:
+                                appendOverlayLogLine("[系统] 完成");
+                                break;
+                            case MEMO:
+                                appendOverlayLogLine("[系统] 完成（缓存）");
+                                break;
+                            case LOOP:
+                                appendOverlayLogLine("[系统] 检测到重复操作，已提前停止。");
+                                break;
+                            case NOT_READY:
+                                break;
+                            case TIME_BUDGET:
+                                appendOverlayLogLine("[系统] 超过时间预算，已停止。");
+                                break;
+                            case TOKEN_BUDGET:
+                                appendOverlayLogLine("[系统] 超过 token 预算，已停止。");
+                                break;
+                            case CANCELLED:
+                                appendOverlayLogLine("[系统] 已取消。");
+                                break;
+                            case ERROR:
+                                appendOverlayLogLine("[系统] 请求失败：" + outcome.error);
+                                break;
+                            default:
+                                appendOverlayLogLine("[系统] 超过最大工具循环次数，已停止。");
+                                break;
+                        }
                     }
-                    appendOverlayLogLine("[工具结果] " + name + " ok=" + result.optBoolean("ok", false));
-                }
-
-                clearOverlayLlmText();
-                if (step == 0) {
-                    appendOverlayLogLine("[我] " + firstUserText);
-                }
-                appendOverlayLogLine("[系统] 工具执行完成，继续推理…");
-                continue;
-            }
-
-            try {
-                JSONObject assistant = new JSONObject();
-                assistant.put("role", "assistant");
-                assistant.put("content", reply.toString());
-                overlayChatMessages.add(assistant);
-            } catch (Exception ignore) {
-            }
-
-            overlayChatInFlight.set(false);
-            appendOverlayLogLine("[系统] 完成");
-            return;
-        }
-
-        overlayChatInFlight.set(false);
-        appendOverlayLogLine("[系统] 超过最大工具循环次数，已停止。");
-    }
-
-    private static void appendToolHistoryToMessages(JSONArray toolHistory, List<JSONObject> messages) {
-        if (toolHistory == null || messages == null || toolHistory.length() == 0) {
-            return;
-        }
-        for (int i = 0; i < toolHistory.length(); i++) {
-            JSONObject item = toolHistory.optJSONObject(i);
-            if (item == null) continue;
-
-            String name = item.optString("name", "");
-            boolean ok = item.optBoolean("ok", false);
-            long costMs = item.optLong("cost_ms", -1L);
-            String error = item.optString("error", "");
-            String result = item.optString("result", "");
-
-            if (result.length() > 2000) {
-                result = result.substring(0, 2000) + "...(截断)";
-            }
-
-            StringBuilder content = new StringBuilder();
-            content.append("[工具结果] ").append(name);
-            content.append("\nok=").append(ok);
-            if (costMs >= 0) content.append(" cost_ms=").append(costMs);
-            if (!TextUtils.isEmpty(error)) content.append("\nerror=").append(error);
-            if (!TextUtils.isEmpty(result)) content.append("\n").append(result);
-
-            try {
-                JSONObject msg = new JSONObject();
-                msg.put("role", "system");
-                msg.put("content", content.toString());
-                messages.add(msg);
-            } catch (Exception ignore) {
-            }
-        }
+                })
+                .build();
+        overlayLoop = loop;
+        loop.start(overlayChatMessages, firstUserText);
     }
 
     private void removeOverlay() {
@@ -911,13 +1085,41 @@ public class AccessCtlService extends AccessibilityService {
         return false;
     }
 
+    private AccessibilityTreeWalker<AccessibilityNodeInfo> walker() {
+        return treeWalker.get();
+    }
+
     private void dumpNode(AccessibilityNodeInfo node, int depth, StringBuilder sb) {
         if (node == null) {
             return;
         }
+        AccessibilityTreeWalker<AccessibilityNodeInfo> w = walker();
+        w.walk(node, (n, d) -> {
+            appendNodeLine(n, depth + d, sb);
+            int hidden = d >= w.getMaxDepth() ? n.getChildCount() : 0;
+            if (hidden > 0) {
+                // Marked where it happens, so the model knows this subtree is incomplete.
+                appendIndent(depth + d + 1, sb);
+                sb.append(DUMP_TRUNCATED).append(" 深度超过 ").append(w.getMaxDepth())
+                        .append("，").append(hidden).append(" 个子节点未列出)\n");
+            }
+            return AccessibilityTreeWalker.Visitor.CONTINUE;
+        });
+        if (w.wasLastWalkTruncated() && w.getLastVisitedCount() >= w.getMaxNodes()) {
+            appendIndent(depth, sb);
+            sb.append(DUMP_TRUNCATED).append(" 已达 ").append(w.getMaxNodes())
+                    .append(" 个节点上限，其余节点未列出)\n");
+        }
+    }
+
+    private static void appendIndent(int depth, StringBuilder sb) {
         for (int i = 0; i < depth; i++) {
             sb.append("  ");
         }
+    }
+
+    private static void appendNodeLine(AccessibilityNodeInfo node, int depth, StringBuilder sb) {
+        appendIndent(depth, sb);
         sb.append(node.getClassName());
         if (node.getViewIdResourceName() != null) {
             sb.append(" id=").append(node.getViewIdResourceName());
@@ -931,53 +1133,13 @@ public class AccessCtlService extends AccessibilityService {
         sb.append(" clickable=").append(node.isClickable());
         sb.append(" enabled=").append(node.isEnabled());
         sb.append("\n");
-
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            if (child != null) {
-                dumpNode(child, depth + 1, sb);
-                child.recycle();
-            }
-        }
     }
 
     private AccessibilityNodeInfo findFocusedEditable(AccessibilityNodeInfo node) {
-        if (node == null) {
-            return null;
-        }
-        if (node.isEditable() && (node.isFocused() || node.isAccessibilityFocused())) {
-            return AccessibilityNodeInfo.obtain(node);
-        }
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            AccessibilityNodeInfo result = findFocusedEditable(child);
-            if (child != null) {
-                child.recycle();
-            }
-            if (result != null) {
-                return result;
-            }
-        }
-        return null;
+        return walker().findFirst(node, n -> n.isEditable() && (n.isFocused() || n.isAccessibilityFocused()));
     }
 
     private AccessibilityNodeInfo findFirstEditable(AccessibilityNodeInfo node) {
-        if (node == null) {
-            return null;
-        }
-        if (node.isEditable()) {
-            return AccessibilityNodeInfo.obtain(node);
-        }
-        for (int i = 0; i < node.getChildCount(); i++) {
-            AccessibilityNodeInfo child = node.getChild(i);
-            AccessibilityNodeInfo result = findFirstEditable(child);
-            if (child != null) {
-                child.recycle();
-            }
-            if (result != null) {
-                return result;
-            }
-        }
-        return null;
+        return walker().findFirst(node, AccessibilityNodeInfo::isEditable);
     }
 }
@@ -17,6 +17,22 @@ public final class AccessibilityToolBridge {
         return service.getCurrentUiDump();
     }
 
+    public String screenFingerprint() {
+        AccessCtlService service = AccessCtlService.getInstance();
+        if (service == null) {
+            return "";
+        }
+        return service.getScreenFingerprint();
+    }
+
+    public String screenContentHash() {
+        AccessCtlService service = AccessCtlService.getInstance();
+        if (service == null) {
+            return "";
+        }
+        return service.getScreenContentHash();
+    }
+
     public boolean globalActionByName(String name) {
         AccessCtlService service = AccessCtlService.getInstance();
         if (service == null) {
@@ -78,5 +94,71 @@ public final class AccessibilityToolBridge {
         }
         return service.setTextByViewId(viewId, text);
     }
-}
 
+    public long windowStateSeq() {
+        AccessCtlService service = AccessCtlService.getInstance();
+        if (service == null) {
+            return -1;
+        }
+        return service.getWindowStateSeq();
+    }
+
+    public boolean waitFor(String viewId, String text, boolean gone, long sinceWindowSeq, long timeoutMs) {
+        AccessCtlService service = AccessCtlService.getInstance();
+        if (service == null) {
+            return false;
+        }
+        return service.waitForCondition(viewId, text, gone, sinceWindowSeq, timeoutMs);
+    }
+
+    public boolean tap(int x, int y) {
+        AccessCtlService service = AccessCtlService.getInstance();
+        if (service == null) {
+            return false;
+        }
+        return service.clickAt(x, y);
+    }
+
+    public boolean longPress(String viewId, int x, int y, long durationMs) {
+        AccessCtlService service = AccessCtlService.getInstance();
+        if (service == null) {
+            return false;
+        }
+        if (!TextUtils.isEmpty(viewId)) {
+            int[] center = service.getViewCenter(viewId);
+            if (center == null) {
+                return false;
+            }
+            x = center[0];
+            y = center[1];
+        }
+        return service.longPressAt(x, y, durationMs);
+    }
+
+    public boolean swipe(int x1, int y1, int x2, int y2, long durationMs) {
+        AccessCtlService service = AccessCtlService.getInstance();
+        if (service == null) {
+            return false;
+        }
+        return service.swipe(x1, y1, x2, y2, durationMs);
+    }
+
+    public boolean swipeDirection(String direction, long durationMs) {
+        AccessCtlService service = AccessCtlService.getInstance();
+        if (service == null) {
+            return false;
+        }
+        return service.swipeDirection(direction, durationMs);
+    }
+
+    public int scrollUntilVisible(String viewId, String text, String direction, int maxSwipes) {
+        AccessCtlService service = AccessCtlService.getInstance();
+        if (service == null) {
+            return -1;
+        }
+        if (TextUtils.isEmpty(viewId) && TextUtils.isEmpty(text)) {
+            return -1;
+        }
+        return service.scrollUntilVisible(viewId, text, direction, maxSwipes);
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.ncnn_llm_ctl;
+
+import android.view.accessibility.AccessibilityNodeInfo;
+
+/**
+ * Iterative pre-order walker over an accessibility-like node tree.
+ *
+ * Uses an explicit stack instead of recursion so deep WebView/RecyclerView trees cannot
+ * overflow the thread stack, and releases every child node as soon as it has been visited.
+ * The stack arrays are kept between walks, so one walker per thread allocates nothing
+ * beyond the nodes the provider hands out. Not thread-safe and not re-entrant.
+ *
+ * Nodes are accessed through {@link NodeAdapter}, so the same walker can run against
+ * {@link AccessibilityNodeInfo} ({@link #NODE_INFO}) or a fake provider.
+ */
+public final class AccessibilityTreeWalker<N> {
+    public static final int DEFAULT_MAX_DEPTH = 64;
+    public static final int DEFAULT_MAX_NODES = 5000;
+
+    public interface NodeAdapter<N> {
+        int getChildCount(N node);
+
+        /** May return null; the returned node is owned (and released) by the walker. */
+        N getChild(N node, int index);
+
+        /** Returns an independent copy the caller may keep after the walk. */
+        N copy(N node);
+
+        void release(N node);
+    }
+
+    public interface Visitor<N> {
+        int CONTINUE = 0;
+        int SKIP_CHILDREN = 1;
+        int STOP = 2;
+
+        int visit(N node, int depth);
+    }
+
+    public interface Predicate<N> {
+        boolean test(N node);
+    }
+
+    public static final NodeAdapter<AccessibilityNodeInfo> NODE_INFO = new NodeAdapter<AccessibilityNodeInfo>() {
+        @Override
+        public int getChildCount(AccessibilityNodeInfo node) {
+            return node.getChildCount();
+        }
+
+        @Override
+        public AccessibilityNodeInfo getChild(AccessibilityNodeInfo node, int index) {
+            return node.getChild(index);
+        }
+
+        @Override
+        public AccessibilityNodeInfo copy(AccessibilityNodeInfo node) {
+            return AccessibilityNodeInfo.obtain(node);
+        }
+
+        @Override
+        public void release(AccessibilityNodeInfo node) {
+            node.recycle();
+        }
+    };
+
+    private final NodeAdapter<N> adapter;
+    private final int maxDepth;
+    private final int maxNodes;
+
+    private Object[] stackNodes = new Object[64];
+    private int[] stackDepths = new int[64];
+    private int stackSize;
+
+    private int lastVisited;
+    private boolean lastTruncated;
+
+    public AccessibilityTreeWalker(NodeAdapter<N> adapter) {
+        this(adapter, DEFAULT_MAX_DEPTH, DEFAULT_MAX_NODES);
+    }
+
+    public AccessibilityTreeWalker(NodeAdapter<N> adapter, int maxDepth, int maxNodes) {
+        if (adapter == null) {
+            throw new IllegalArgumentException("adapter is null");
+        }
+        this.adapter = adapter;
+        this.maxDepth = Math.max(0, maxDepth);
+        this.maxNodes = Math.max(1, maxNodes);
+    }
+
+    /**
+     * Visits {@code root} and its descendants in document order. The root itself is not
+     * released (the caller owns it). Returns the number of visited nodes.
+     */
+    public int walk(N root, Visitor<N> visitor) {
+        lastVisited = 0;
+        lastTruncated = false;
+        if (root == null || visitor == null) {
+            return 0;
+        }
+        stackSize = 0;
+        push(root, 0);
+        try {
+            while (stackSize > 0) {
+                stackSize--;
+                @SuppressWarnings("unchecked")
+                N node = (N) stackNodes[stackSize];
+                int depth = stackDepths[stackSize];
+                stackNodes[stackSize] = null;
+
+                if (lastVisited >= maxNodes) {
+                    lastTruncated = true;
+                    releaseOwned(node, root);
+                    break;
+                }
+                lastVisited++;
+
+                int verdict = visitor.visit(node, depth);
+                if (verdict == Visitor.STOP) {
+                    releaseOwned(node, root);
+                    break;
+                }
+                if (verdict != Visitor.SKIP_CHILDREN) {
+                    if (depth >= maxDepth) {
+                        if (adapter.getChildCount(node) > 0) {
+                            lastTruncated = true;
+                        }
+                    } else {
+                        pushChildren(node, depth + 1);
+                    }
+                }
+                releaseOwned(node, root);
+            }
+        } finally {
+            drain(root);
+        }
+        return lastVisited;
+    }
+
+    /**
+     * Returns a copy of the first node (pre-order) matching {@code predicate}, or null.
+     * The caller must release the returned node.
+     */
+    public N findFirst(N root, Predicate<N> predicate) {
+        if (predicate == null) {
+            return null;
+        }
+        final Object[] found = new Object[1];
+        walk(root, (node, depth) -> {
+            if (predicate.test(node)) {
+                found[0] = adapter.copy(node);
+                return Visitor.STOP;
+            }
+            return Visitor.CONTINUE;
+        });
+        @SuppressWarnings("unchecked")
+        N result = (N) found[0];
+        return result;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    public int getLastVisitedCount() {
+        return lastVisited;
+    }
+
+    /** True when the last walk hit the depth or node-count limit. */
+    public boolean wasLastWalkTruncated() {
+        return lastTruncated;
+    }
+
+    private void pushChildren(N node, int childDepth) {
+        int count = adapter.getChildCount(node);
+        if (count <= 0) {
+            return;
+        }
+        ensureCapacity(stackSize + count);
+        // Fetch in order, then reverse the slice so the first child is popped first.
+        int base = stackSize;
+        for (int i = 0; i < count; i++) {
+            N child = adapter.getChild(node, i);
+            if (child != null) {
+                stackNodes[stackSize] = child;
+                stackDepths[stackSize] = childDepth;
+                stackSize++;
+            }
+        }
+        for (int lo = base, hi = stackSize - 1; lo < hi; lo++, hi--) {
+            Object tmp = stackNodes[lo];
+            stackNodes[lo] = stackNodes[hi];
+            stackNodes[hi] = tmp;
+        }
+    }
+
+    private void push(N node, int depth) {
+        ensureCapacity(stackSize + 1);
+        stackNodes[stackSize] = node;
+        stackDepths[stackSize] = depth;
+        stackSize++;
+    }
+
+    private void ensureCapacity(int size) {
+        if (size <= stackNodes.length) {
+            return;
+        }
+        int cap = Math.max(size, stackNodes.length * 2);
+        stackNodes = java.util.Arrays.copyOf(stackNodes, cap);
+        stackDepths = java.util.Arrays.copyOf(stackDepths, cap);
+    }
+
+    private void releaseOwned(N node, N root) {
+        if (node != null && node != root) {
+            adapter.release(node);
+        }
+    }
+
+    private void drain(N root) {
+        while (stackSize > 0) {
+            stackSize--;
+            @SuppressWarnings("unchecked")
+            N node = (N) stackNodes[stackSize];
+            stackNodes[stackSize] = null;
+            releaseOwned(node, root);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package com.example.ncnn_llm_ctl;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Persistent cache of (screen fingerprint, goal) -> successful action sequence.
+ *
+ * A tool loop records its mutating tool calls and waits; when the loop ends with a final
+ * answer that does not report a failure, none of its calls failed and the screen was changed
+ * after the last look at it, the sequence is stored under the fingerprint of the screen it
+ * started from.
+ * A later run with the same goal on the same screen replays the actions directly and skips
+ * inference. A replay that fails evicts its entry, so stale sequences do not stick around.
+ */
+public final class ActionMemo {
+    private static final String TAG = "ActionMemo";
+    private static final String FILE_NAME = "action_memo.json";
+    private static final int MAX_ENTRIES = 200;
+    private static final int MAX_ACTIONS = 16;
+    // Phrases of a final answer that gives up or reports an error; such a run is not a recipe.
+    private static final String[] FAILURE_MARKERS = {
+            "无法", "不能", "未能", "失败", "抱歉", "找不到", "没有找到",
+            "cannot", "can't", "could not", "couldn't", "unable", "failed", "sorry",
+    };
+
+    private static volatile ActionMemo instance;
+
+    private final File file;
+    // Access-ordered for LRU eviction. Guarded by this.
+    private final LinkedHashMap<String, JSONArray> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    ActionMemo(File file) {
+        this.file = file;
+        load();
+    }
+
+    public static ActionMemo get(Context context) {
+        ActionMemo m = instance;
+        if (m != null) {
+            return m;
+        }
+        synchronized (ActionMemo.class) {
+            if (instance == null) {
+                instance = new ActionMemo(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+            }
+            return instance;
+        }
+    }
+
+    /** Returns a copy of the cached actions (tool_call objects), or null on a miss. */
+    public synchronized JSONArray lookup(String fingerprint, String goal) {
+        String key = key(fingerprint, goal);
+        if (key == null) {
+            return null;
+        }
+        JSONArray actions = entries.get(key);
+        if (actions == null) {
+            return null;
+        }
+        try {
+            return new JSONArray(actions.toString());
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public synchronized void remove(String fingerprint, String goal) {
+        String key = key(fingerprint, goal);
+        if (key != null && entries.remove(key) != null) {
+            save();
+        }
+    }
+
+    private synchronized void put(String key, JSONArray actions) {
+        entries.put(key, actions);
+        while (entries.size() > MAX_ENTRIES) {
+            Iterator<String> it = entries.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+        save();
+    }
+
+    public Recorder startRecording(String fingerprint, String goal) {
+        return new Recorder(key(fingerprint, goal));
+    }
+
+    /** What a {@link #replay} ran: the calls up to and including the first failure, with results. */
+    public static final class Replay {
+        public final boolean ok;
+        public final int total;
+        public final JSONArray calls;
+        public final List<JSONObject> results;
+
+        Replay(boolean ok, int total, JSONArray calls, List<JSONObject> results) {
+            this.ok = ok;
+            this.total = total;
+            this.calls = calls;
+            this.results = results;
+        }
+    }
+
+    /**
+     * Replays {@code actions} through {@link JavaMcpTools#executeToolCall}, stopping at the
+     * first failed step; on failure the entry is evicted. The steps that already ran have
+     * changed the screen, so the caller must tell the model about them.
+     */
+    public Replay replay(String fingerprint, String goal, JSONArray actions, AccessibilityToolBridge bridge) {
+        JSONArray calls = new JSONArray();
+        List<JSONObject> results = new ArrayList<>();
+        int total = actions == null ? 0 : actions.length();
+        for (int i = 0; i < total; i++) {
+            JSONObject call = actions.optJSONObject(i);
+            JSONObject result = JavaMcpTools.executeToolCall(call, bridge);
+            calls.put(call);
+            results.add(result);
+            if (!result.optBoolean("ok", false)) {
+                Log.w(TAG, "replay failed at step " + i + ": " + result.optString("error", "") + ", evicting");
+                remove(fingerprint, goal);
+                return new Replay(false, total, calls, results);
+            }
+        }
+        return new Replay(total > 0, total, calls, results);
+    }
+
+    /** Collects one loop's successful mutating calls. Not thread-safe; one per loop. */
+    public final class Recorder {
+        private final String key;
+        private final JSONArray actions = new JSONArray();
+        private boolean overflow;
+        private boolean failed;
+        // A UI-changing call succeeded after the last read; a run that only looked ends here.
+        private boolean changedSinceRead;
+
+        private Recorder(String key) {
+            this.key = key;
+        }
+
+        public void record(JSONObject toolCall, JSONObject result) {
+            if (key == null || toolCall == null || result == null || overflow) {
+                return;
+            }
+            if (!result.optBoolean("ok", false)) {
+                // The answer may rest on a workaround the model found after the failure, and
+                // the successful calls alone need not reproduce it.
+                failed = true;
+                return;
+            }
+            JSONObject fn = toolCall.optJSONObject("function");
+            String name = fn == null ? "" : fn.optString("name", "");
+            if (!isReplayable(name)) {
+                changedSinceRead = false;
+                return;
+            }
+            if (!"wait_for".equals(name)) {
+                changedSinceRead = true;
+            }
+            if (actions.length() >= MAX_ACTIONS) {
+                overflow = true;
+                return;
+            }
+            try {
+                JSONObject copyFn = new JSONObject();
+                copyFn.put("name", name);
+                JSONObject args = fn.optJSONObject("arguments");
+                copyFn.put("arguments", args == null ? new JSONObject() : new JSONObject(args.toString()));
+                JSONObject copy = new JSONObject();
+                copy.put("type", "function");
+                copy.put("function", copyFn);
+                actions.put(copy);
+            } catch (Exception ignore) {
+            }
+        }
+
+        /**
+         * Stores the recorded sequence; call when the loop ended with the final {@code answer}.
+         * Runs with any failed call, with no UI change after the last read, or whose answer
+         * reports a failure are not stored.
+         */
+        public void commit(String answer) {
+            if (key == null || overflow || failed || actions.length() == 0 || !changedSinceRead) {
+                return;
+            }
+            if (reportsFailure(answer)) {
+                Log.i(TAG, "memo skipped: answer reports a failure");
+                return;
+            }
+            put(key, actions);
+            Log.i(TAG, "memo stored actions=" + actions.length());
+        }
+    }
+
+    static boolean reportsFailure(String answer) {
+        if (TextUtils.isEmpty(answer)) {
+            return false;
+        }
+        String a = answer.toLowerCase(Locale.ROOT);
+        for (String marker : FAILURE_MARKERS) {
+            if (a.contains(marker)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mutating tools, plus wait_for: it is read-only but paces the sequence, and without it
+     * a replayed tap can land on a window that has not opened yet.
+     */
+    static boolean isReplayable(String name) {
+        if (TextUtils.isEmpty(name)) {
+            return false;
+        }
+        return "wait_for".equals(name) || !JavaMcpTools.isReadOnlyTool(name);
+    }
+
+    private static String key(String fingerprint, String goal) {
+        if (TextUtils.isEmpty(fingerprint) || goal == null) {
+            return null;
+        }
+        String g = goal.trim().replaceAll("\\s+", " ");
+        if (g.isEmpty()) {
+            return null;
+        }
+        return fingerprint + "|" + g;
+    }
+
+    private void load() {
+        if (!file.exists() || file.length() <= 0) {
+            return;
+        }
+        try {
+            byte[] data = new byte[(int) file.length()];
+            int read = 0;
+            try (FileInputStream in = new FileInputStream(file)) {
+                while (read < data.length) {
+                    int n = in.read(data, read, data.length - read);
+                    if (n < 0) break;
+                    read += n;
+                }
+            }
+            JSONObject json = new JSONObject(new String(data, 0, read, StandardCharsets.UTF_8));
+            JSONArray list = json.optJSONArray("entries");
+            if (list == null) {
+                return;
+            }
+            for (int i = 0; i < list.length(); i++) {
+                JSONObject e = list.optJSONObject(i);
+                if (e == null) continue;
+                String key = e.optString("key", "");
+                JSONArray actions = e.optJSONArray("actions");
+                if (!TextUtils.isEmpty(key) && actions != null) {
+                    entries.put(key, actions);
+                }
+            }
+            Log.i(TAG, "loaded entries=" + entries.size());
+        } catch (Exception e) {
+            Log.w(TAG, "load failed, starting empty: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    // Caller holds the lock.
+    private void save() {
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            JSONArray list = new JSONArray();
+            for (Map.Entry<String, JSONArray> e : entries.entrySet()) {
+                JSONObject item = new JSONObject();
+                item.put("key", e.getKey());
+                item.put("actions", e.getValue());
+                list.put(item);
+            }
+            JSONObject json = new JSONObject();
+            json.put("version", 1);
+            json.put("entries", list);
+            try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+                out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed: " + tmp.getAbsolutePath());
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "save failed: " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+}
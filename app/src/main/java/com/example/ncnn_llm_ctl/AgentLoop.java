@@ -0,0 +1,598 @@
+package com.example.ncnn_llm_ctl;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The model/tool loop behind the overlay and the main screen: ask the model, run the tool
+ * calls it emits, append the results, repeat until it answers in text or a budget (steps,
+ * wall time, tokens) runs out. Where the model comes from ({@link Transport}) and how tools
+ * run ({@link ToolExecutor}) are pluggable, so the loop can be driven by fakes; UIs follow
+ * it through {@link Listener}. Each run reports how its time split between model, tools and
+ * the loop itself. A {@link LoopDetector} watches for runs that repeat themselves: the model
+ * is told once, and a run that stays stuck ends early with {@link Stop#LOOP}.
+ *
+ * <pre>
+ * AgentLoop.Outcome o = new AgentLoop.Builder(new AgentLoop.HttpTransport(baseUrl, model))
+ *         .toolExecutor(calls -> JavaMcpTools.executeToolCalls(calls, bridge))
+ *         .listener(ui)
+ *         .build()
+ *         .run(messages, userText);
+ * </pre>
+ */
+public final class AgentLoop {
+    private static final String TAG = "AgentLoop";
+    public static final int DEFAULT_MAX_STEPS = 8;
+    /** Budgets the app's loops run with; the builder itself defaults to unlimited. */
+    public static final long APP_TIME_BUDGET_MS = 180_000;
+    public static final int APP_TOKEN_BUDGET = 40_000;
+
+    private static final AtomicInteger THREAD_SEQ = new AtomicInteger(1);
+    private static final ExecutorService LOOP_POOL = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "agent-loop-" + THREAD_SEQ.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    });
+
+    /** One model turn for {@code messages}; streams text to {@code listener} as it comes. */
+    public interface Transport {
+        Turn complete(List<JSONObject> messages, JSONArray tools, Listener listener) throws Exception;
+    }
+
+    /** Runs all tool calls of one turn; results in call order. */
+    public interface ToolExecutor {
+        JSONObject[] execute(JSONArray toolCalls) throws Exception;
+    }
+
+    /** Loop events, delivered on the loop thread. */
+    public interface Listener {
+        default void onMemoHit(int actions) {
+        }
+
+        /** {@code ran} of {@code total} cached steps ran, the last of them failed. */
+        default void onMemoReplayFailed(int ran, int total) {
+        }
+
+        default void onStepStart(int step) {
+        }
+
+        default void onDelta(String text) {
+        }
+
+        /** Names of tools the server ran itself (tool_trace). */
+        default void onToolTrace(String names) {
+        }
+
+        default void onToolCalls(JSONArray toolCalls) {
+        }
+
+        default void onToolResult(String name, JSONObject result) {
+        }
+
+        /**
+         * The run repeats itself (see {@link LoopDetector}). {@code stopping} false: {@code hint}
+         * goes to the model with this step's results; true: the run ends after this step.
+         */
+        default void onLoopDetected(boolean stopping, String hint) {
+        }
+
+        /** The step's tool results are in the history; another model turn follows. */
+        default void onStepEnd(int step) {
+        }
+
+        default void onFinished(Outcome outcome) {
+        }
+    }
+
+    public static final class Turn {
+        public final String content;
+        public final JSONArray toolCalls;
+
+        public Turn(String content, JSONArray toolCalls) {
+            this.content = content == null ? "" : content;
+            this.toolCalls = toolCalls;
+        }
+
+        boolean hasToolCalls() {
+            return toolCalls != null && toolCalls.length() > 0;
+        }
+    }
+
+    public enum Stop {
+        /** The model answered without tool calls. */
+        DONE,
+        /** A remembered action sequence was replayed; the model was not asked. */
+        MEMO,
+        MAX_STEPS,
+        TIME_BUDGET,
+        TOKEN_BUDGET,
+        /** The run kept repeating itself after a hint; it ended with a synthesized answer. */
+        LOOP,
+        /** The readiness check failed before the first request. */
+        NOT_READY,
+        CANCELLED,
+        ERROR
+    }
+
+    public static final class Outcome {
+        public final Stop stop;
+        public final String error;
+        public final int steps;
+        public final long totalMs;
+        public final long modelMs;
+        public final long toolMs;
+        public final int promptTokens;
+        public final int completionTokens;
+
+        Outcome(Stop stop, String error, int steps, long totalMs, long modelMs, long toolMs,
+                int promptTokens, int completionTokens) {
+            this.stop = stop;
+            this.error = error;
+            this.steps = steps;
+            this.totalMs = totalMs;
+            this.modelMs = modelMs;
+            this.toolMs = toolMs;
+            this.promptTokens = promptTokens;
+            this.completionTokens = completionTokens;
+        }
+
+        /** Time spent in the loop itself: history compaction, bookkeeping, listeners. */
+        public long overheadMs() {
+            return Math.max(0L, totalMs - modelMs - toolMs);
+        }
+
+        @Override
+        public String toString() {
+            return "stop=" + stop + " steps=" + steps + " totalMs=" + totalMs + " modelMs=" + modelMs
+                    + " toolMs=" + toolMs + " overheadMs=" + overheadMs()
+                    + " promptTokens=" + promptTokens + " completionTokens=" + completionTokens
+                    + (TextUtils.isEmpty(error) ? "" : " error=" + error);
+        }
+    }
+
+    public static final class Builder {
+        private final Transport transport;
+        private JSONArray tools;
+        private ToolExecutor executor;
+        private Listener listener;
+        private int maxSteps = DEFAULT_MAX_STEPS;
+        private long timeBudgetMs;
+        private int tokenBudget;
+        private int historyBudgetTokens = ChatHistory.DEFAULT_BUDGET_TOKENS;
+        private ActionMemo memo;
+        private AccessibilityToolBridge memoBridge;
+        private BooleanSupplier readiness;
+        private boolean loopDetection = true;
+
+        public Builder(Transport transport) {
+            this.transport = transport;
+        }
+
+        /** Tools offered every turn; defaults to {@link JavaMcpTools#buildOpenAiTools()}. */
+        public Builder tools(JSONArray tools) {
+            this.tools = tools;
+            return this;
+        }
+
+        /** Defaults to {@link JavaMcpTools#executeToolCalls} with a fresh bridge. */
+        public Builder toolExecutor(ToolExecutor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public Builder listener(Listener listener) {
+            this.listener = listener;
+            return this;
+        }
+
+        public Builder maxSteps(int maxSteps) {
+            this.maxSteps = Math.max(1, maxSteps);
+            return this;
+        }
+
+        /** Wall time after which no new model turn is started; 0 = unlimited. */
+        public Builder timeBudgetMs(long ms) {
+            this.timeBudgetMs = Math.max(0L, ms);
+            return this;
+        }
+
+        /** Prompt plus completion tokens over all turns after which the loop stops; 0 = unlimited. */
+        public Builder tokenBudget(int tokens) {
+            this.tokenBudget = Math.max(0, tokens);
+            return this;
+        }
+
+        /**
+         * Tokens the history is compacted to before every turn; defaults to the model context
+         * minus the reply reserve (see {@link ChatHistory#DEFAULT_BUDGET_TOKENS}).
+         */
+        public Builder historyBudgetTokens(int tokens) {
+            this.historyBudgetTokens = Math.max(1, tokens);
+            return this;
+        }
+
+        /** Replays a remembered sequence for the same screen and goal, and records new ones. */
+        public Builder actionMemo(ActionMemo memo, AccessibilityToolBridge bridge) {
+            this.memo = memo;
+            this.memoBridge = bridge;
+            return this;
+        }
+
+        /** Checked once before the first model request (after a memo miss). */
+        public Builder readiness(BooleanSupplier readiness) {
+            this.readiness = readiness;
+            return this;
+        }
+
+        /** Defaults to on; screen fingerprints come from the {@link #actionMemo} bridge if set. */
+        public Builder loopDetection(boolean enabled) {
+            this.loopDetection = enabled;
+            return this;
+        }
+
+        public AgentLoop build() {
+            if (transport == null) {
+                throw new IllegalArgumentException("transport is required");
+            }
+            return new AgentLoop(this);
+        }
+    }
+
+    private static final Listener NO_LISTENER = new Listener() {
+    };
+
+    private final Transport transport;
+    private final JSONArray tools;
+    private final ToolExecutor executor;
+    private final Listener listener;
+    private final int maxSteps;
+    private final long timeBudgetMs;
+    private final int tokenBudget;
+    private final int historyBudgetTokens;
+    private final ActionMemo memo;
+    private final AccessibilityToolBridge memoBridge;
+    private final BooleanSupplier readiness;
+    private final boolean loopDetection;
+    private final AccessibilityToolBridge screenBridge;
+    private volatile boolean cancelled;
+
+    private AgentLoop(Builder b) {
+        this.transport = b.transport;
+        this.tools = b.tools != null ? b.tools : JavaMcpTools.buildOpenAiTools();
+        if (b.executor != null) {
+            this.executor = b.executor;
+        } else {
+            AccessibilityToolBridge bridge = new AccessibilityToolBridge();
+            this.executor = calls -> JavaMcpTools.executeToolCalls(calls, bridge);
+        }
+        this.listener = b.listener != null ? b.listener : NO_LISTENER;
+        this.maxSteps = b.maxSteps;
+        this.timeBudgetMs = b.timeBudgetMs;
+        this.tokenBudget = b.tokenBudget;
+        this.historyBudgetTokens = b.historyBudgetTokens;
+        this.memo = b.memo;
+        this.memoBridge = b.memoBridge;
+        this.readiness = b.readiness;
+        this.loopDetection = b.loopDetection;
+        this.screenBridge = b.memoBridge != null ? b.memoBridge : new AccessibilityToolBridge();
+    }
+
+    /** Stops the loop before its next model turn. */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /** {@link #run} on the shared loop pool; the result also goes to {@link Listener#onFinished}. */
+    public Future<Outcome> start(List<JSONObject> messages, String goal) {
+        return LOOP_POOL.submit(() -> run(messages, goal));
+    }
+
+    /**
+     * Runs the loop on the calling thread, appending assistant and tool messages to
+     * {@code messages} (which must already end with the user's {@code goal}). Never throws;
+     * transport failures end with {@link Stop#ERROR}.
+     */
+    public Outcome run(List<JSONObject> messages, String goal) {
+        long t0 = System.currentTimeMillis();
+        long modelMs = 0;
+        long toolMs = 0;
+        int promptTokens = 0;
+        int completionTokens = 0;
+        int step = 0;
+        Stop stop = Stop.MAX_STEPS;
+        String error = null;
+        try {
+            LoopDetector detector = loopDetection ? new LoopDetector() : null;
+            ActionMemo.Recorder recorder = null;
+            if (memo != null && memoBridge != null) {
+                String fingerprint = memoBridge.screenFingerprint();
+                JSONArray cached = memo.lookup(fingerprint, goal);
+                if (cached != null) {
+                    listener.onMemoHit(cached.length());
+                    long tm = System.currentTimeMillis();
+                    ActionMemo.Replay replay = memo.replay(fingerprint, goal, cached, memoBridge);
+                    toolMs += System.currentTimeMillis() - tm;
+                    if (replay.ok) {
+                        addMessage(messages, "assistant", "已按缓存动作完成（" + cached.length() + " 步）。", null);
+                        return finish(Stop.MEMO, null, 0, t0, 0, toolMs, 0, 0);
+                    }
+                    listener.onMemoReplayFailed(replay.calls.length(), replay.total);
+                    addReplayedSteps(messages, replay);
+                    // The screen may have moved on; do not record under the original fingerprint.
+                    fingerprint = "";
+                }
+                recorder = memo.startRecording(fingerprint, goal);
+            }
+            if (readiness != null && !readiness.getAsBoolean()) {
+                return finish(Stop.NOT_READY, null, 0, t0, 0, toolMs, 0, 0);
+            }
+
+            for (; step < maxSteps; step++) {
+                if (cancelled || Thread.currentThread().isInterrupted()) {
+                    stop = Stop.CANCELLED;
+                    break;
+                }
+                if (timeBudgetMs > 0 && System.currentTimeMillis() - t0 >= timeBudgetMs) {
+                    stop = Stop.TIME_BUDGET;
+                    break;
+                }
+                if (tokenBudget > 0 && promptTokens + completionTokens >= tokenBudget) {
+                    stop = Stop.TOKEN_BUDGET;
+                    break;
+                }
+                listener.onStepStart(step);
+                promptTokens += ChatHistory.compact(messages, historyBudgetTokens);
+
+                long tm = System.currentTimeMillis();
+                Turn turn = transport.complete(messages, tools, listener);
+                modelMs += System.currentTimeMillis() - tm;
+                completionTokens += ChatHistory.countTokens(turn.content);
+                if (turn.hasToolCalls()) {
+                    // The model generated the call JSON too; a tool-only turn has empty content.
+                    completionTokens += ChatHistory.countTokens(turn.toolCalls.toString());
+                }
+
+                if (!turn.hasToolCalls()) {
+                    addMessage(messages, "assistant", turn.content, null);
+                    if (recorder != null) {
+                        recorder.commit(turn.content);
+                    }
+                    stop = Stop.DONE;
+                    step++;
+                    break;
+                }
+
+                addMessage(messages, "assistant", turn.content, turn.toolCalls);
+                long tt = System.currentTimeMillis();
+                // The screen the calls act on; counted as tool time, these are tree walks.
+                String fingerprint = detector != null ? screenBridge.screenFingerprint() : "";
+                String content = !fingerprint.isEmpty() ? screenBridge.screenContentHash() : "";
+                JSONObject[] results = execute(turn.toolCalls);
+                toolMs += System.currentTimeMillis() - tt;
+                LoopDetector.Verdict verdict = detector != null
+                        ? detector.check(fingerprint, content, turn.toolCalls, results) : LoopDetector.Verdict.NONE;
+                int last = turn.toolCalls.length() - 1;
+                for (int i = 0; i <= last; i++) {
+                    JSONObject tc = turn.toolCalls.optJSONObject(i);
+                    JSONObject result = i < results.length && results[i] != null ? results[i] : missingResult();
+                    if (i == last && verdict.action == LoopDetector.Action.HINT) {
+                        put(result, "loop_hint", verdict.hint);
+                    }
+                    if (recorder != null) {
+                        recorder.record(tc, result);
+                    }
+                    addMessage(messages, "tool", result.toString(), null);
+                    JSONObject fn = tc == null ? null : tc.optJSONObject("function");
+                    listener.onToolResult(fn == null ? "" : fn.optString("name", ""), result);
+                }
+                if (verdict.action != LoopDetector.Action.NONE) {
+                    Log.w(TAG, "loop detected step=" + step + " action=" + verdict.action + " hint=" + verdict.hint);
+                    listener.onLoopDetected(verdict.action == LoopDetector.Action.STOP, verdict.hint);
+                }
+                if (verdict.action == LoopDetector.Action.STOP) {
+                    // Close the history with an answer so the next user turn starts clean.
+                    addMessage(messages, "assistant", verdict.summary, null);
+                    listener.onDelta(verdict.summary);
+                    stop = Stop.LOOP;
+                    step++;
+                    break;
+                }
+                listener.onStepEnd(step);
+            }
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            stop = Stop.ERROR;
+            error = e.getMessage() != null ? e.getMessage() : e.toString();
+        }
+        return finish(stop, error, step, t0, modelMs, toolMs, promptTokens, completionTokens);
+    }
+
+    private Outcome finish(Stop stop, String error, int steps, long t0, long modelMs, long toolMs,
+                                  int promptTokens, int completionTokens) {
+        Outcome o = new Outcome(stop, error, steps, System.currentTimeMillis() - t0, modelMs, toolMs,
+                promptTokens, completionTokens);
+        Log.i(TAG, "loop finished " + o);
+        listener.onFinished(o);
+        return o;
+    }
+
+    /**
+     * Puts the steps a failed replay already ran into the history as a tool turn, so the
+     * model starts from the screen they left behind instead of redoing them.
+     */
+    private static void addReplayedSteps(List<JSONObject> messages, ActionMemo.Replay replay) {
+        int ran = replay.calls.length();
+        if (ran == 0) {
+            return;
+        }
+        addMessage(messages, "assistant", "", replay.calls);
+        for (int i = 0; i < ran; i++) {
+            JSONObject result = replay.results.get(i);
+            if (i == ran - 1) {
+                put(result, "replay_note", "These " + ran + " of " + replay.total + " steps were replayed from a"
+                        + " cached sequence for this goal and already ran; this last one failed. Continue from the"
+                        + " current screen without repeating the steps that succeeded.");
+            }
+            addMessage(messages, "tool", result.toString(), null);
+        }
+    }
+
+    /**
+     * Runs the well-formed calls of a turn through the executor. A call without a name or
+     * whose arguments are not a JSON object is not run: it gets a failed result, so the model
+     * sees what went wrong and the rest of the turn still happens. Arguments sent as a JSON
+     * string (the OpenAI wire format) are parsed in place first.
+     */
+    private JSONObject[] execute(JSONArray toolCalls) throws Exception {
+        int n = toolCalls.length();
+        JSONObject[] results = new JSONObject[n];
+        JSONArray valid = new JSONArray();
+        int[] validIndex = new int[n];
+        for (int i = 0; i < n; i++) {
+            String problem = normalize(toolCalls.optJSONObject(i));
+            if (problem == null) {
+                validIndex[valid.length()] = i;
+                valid.put(toolCalls.opt(i));
+                continue;
+            }
+            JSONObject fn = toolCalls.optJSONObject(i) == null ? null : toolCalls.optJSONObject(i).optJSONObject("function");
+            JSONObject r = new JSONObject();
+            put(r, "ok", false);
+            put(r, "name", fn == null ? "" : fn.optString("name", ""));
+            put(r, "error", "malformed tool call, not run: " + problem);
+            results[i] = r;
+        }
+        if (valid.length() > 0) {
+            JSONObject[] ran = executor.execute(valid);
+            for (int k = 0; k < valid.length(); k++) {
+                results[validIndex[k]] = ran != null && k < ran.length ? ran[k] : null;
+            }
+        }
+        return results;
+    }
+
+    /** Null when {@code tc} can run (after parsing string arguments), else what is wrong with it. */
+    private static String normalize(JSONObject tc) {
+        JSONObject fn = tc == null ? null : tc.optJSONObject("function");
+        if (fn == null || TextUtils.isEmpty(fn.optString("name", ""))) {
+            return "missing function name";
+        }
+        Object args = fn.opt("arguments");
+        if (args == null || args instanceof JSONObject) {
+            return null;
+        }
+        if (args instanceof String) {
+            String text = ((String) args).trim();
+            if (text.isEmpty()) {
+                put(fn, "arguments", new JSONObject());
+                return null;
+            }
+            try {
+                put(fn, "arguments", new JSONObject(text));
+                return null;
+            } catch (Exception e) {
+                return "arguments are not a JSON object (" + e.getMessage() + ")";
+            }
+        }
+        return "arguments are not a JSON object";
+    }
+
+    private static JSONObject missingResult() {
+        JSONObject r = new JSONObject();
+        put(r, "ok", false);
+        put(r, "error", "no result");
+        return r;
+    }
+
+    private static void addMessage(List<JSONObject> messages, String role, String content, JSONArray toolCalls) {
+        JSONObject m = new JSONObject();
+        put(m, "role", role);
+        put(m, "content", content);
+        if (toolCalls != null) {
+            put(m, "tool_calls", toolCalls);
+        }
+        messages.add(m);
+    }
+
+    private static void put(JSONObject obj, String key, Object value) {
+        try {
+            obj.put(key, value);
+        } catch (Exception ignore) {
+        }
+    }
+
+    /** The local OpenAI style server, streaming, with tool calls emitted back to the loop. */
+    public static final class HttpTransport implements Transport {
+        private final String baseUrl;
+        private final String model;
+
+        public HttpTransport(String baseUrl, String model) {
+            this.baseUrl = baseUrl;
+            this.model = model;
+        }
+
+        @Override
+        public Turn complete(List<JSONObject> messages, JSONArray tools, Listener listener) throws Exception {
+            StringBuilder reply = new StringBuilder();
+            JSONArray[] toolCalls = new JSONArray[1];
+            String[] error = new String[1];
+            ChatClient.chatCompletionsStream(baseUrl, model, messages, tools, JavaMcpTools.TOOL_MODE_EMIT,
+                    new ChatClient.StreamListener() {
+                        @Override
+                        public void onDelta(String text) {
+                            if (TextUtils.isEmpty(text)) return;
+                            reply.append(text);
+                            listener.onDelta(text);
+                        }
+
+                        @Override
+                        public void onToolTrace(String toolTrace) {
+                            String names = ToolTraceFormatter.toolNamesOnly(toolTrace);
+                            if (!TextUtils.isEmpty(names)) {
+                                listener.onToolTrace(names);
+                            }
+                        }
+
+                        @Override
+                        public void onToolHistory(JSONArray toolHistory) {
+                        }
+
+                        @Override
+                        public void onToolCalls(JSONArray calls) {
+                            toolCalls[0] = calls;
+                            listener.onToolCalls(calls);
+                        }
+
+                        @Override
+                        public void onFinishReason(String finishReason) {
+                        }
+
+                        @Override
+                        public void onDone() {
+                        }
+
+                        @Override
+                        public void onError(String message) {
+                            error[0] = message;
+                        }
+                    });
+            if (!TextUtils.isEmpty(error[0])) {
+                throw new IOException(error[0]);
+            }
+            return new Turn(reply.toString(), toolCalls[0]);
+        }
+    }
+}
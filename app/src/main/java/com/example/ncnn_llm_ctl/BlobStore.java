@@ -0,0 +1,239 @@
+package com.example.ncnn_llm_ctl;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Content-addressed store shared by all model dirs, keyed by SHA-256.
+ *
+ * Model files stay at their usual paths; identical content is shared by hard-linking the
+ * path and the blob to one inode. Where the filesystem refuses hard links the content moves
+ * into the store and the model path becomes a symlink; where both fail files are simply not
+ * shared. Blobs are kept while any model manifest references their hash.
+ */
+public final class BlobStore {
+    private static final String TAG = "BlobStore";
+    private static final String DIR_NAME = ".blobs";
+
+    private final File root;
+
+    private BlobStore(File root) {
+        this.root = root;
+    }
+
+    /** The store next to {@code modelDir} (in its parent, i.e. the models root). */
+    public static BlobStore forModelDir(File modelDir) {
+        File parent = modelDir.getAbsoluteFile().getParentFile();
+        return new BlobStore(new File(parent != null ? parent : modelDir, DIR_NAME));
+    }
+
+    File blobFile(String sha256) {
+        return new File(root, sha256.substring(0, 2) + "/" + sha256);
+    }
+
+    /** Returns the blob for {@code sha256} if present with {@code size} bytes, else null. */
+    public File find(String sha256, long size) {
+        if (sha256 == null || sha256.length() != 64) {
+            return null;
+        }
+        File blob = blobFile(sha256);
+        return blob.exists() && blob.length() == size ? blob : null;
+    }
+
+    /**
+     * Registers {@code file}, whose content hashes to {@code sha256}. If the blob already
+     * exists the file is replaced by a link to it (freeing the duplicate); otherwise the file
+     * becomes the blob. Returns false when nothing could be shared.
+     */
+    public boolean adopt(File file, String sha256) {
+        if (sha256 == null || sha256.length() != 64 || !file.exists()) {
+            return false;
+        }
+        File blob = blobFile(sha256);
+        try {
+            if (blob.exists()) {
+                if (blob.length() != file.length()) {
+                    Log.w(TAG, "Blob size mismatch for " + sha256 + ", leaving " + file.getName());
+                    return false;
+                }
+                if (sameInode(blob, file)) {
+                    return true;
+                }
+                return replaceWithLink(blob, file);
+            }
+            File dir = blob.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                return false;
+            }
+            try {
+                Os.link(file.getAbsolutePath(), blob.getAbsolutePath());
+                return true;
+            } catch (ErrnoException e) {
+                // No hard links here (e.g. FUSE); move the content and leave a symlink behind.
+                if (!file.renameTo(blob)) {
+                    return false;
+                }
+                try {
+                    Os.symlink(blob.getAbsolutePath(), file.getAbsolutePath());
+                    return true;
+                } catch (ErrnoException e2) {
+                    if (!blob.renameTo(file)) {
+                        Log.e(TAG, "Failed to restore " + file.getAbsolutePath() + " from " + blob.getAbsolutePath());
+                    }
+                    return false;
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "adopt failed for " + file.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Makes {@code out} carry the blob's content: hard link, symlink, or copy as a last resort. */
+    public boolean materialize(File blob, File out) {
+        File tmp = new File(out.getAbsolutePath() + ".lnk");
+        //noinspection ResultOfMethodCallIgnored
+        tmp.delete();
+        try {
+            try {
+                Os.link(blob.getAbsolutePath(), tmp.getAbsolutePath());
+            } catch (ErrnoException e) {
+                try {
+                    Os.symlink(blob.getAbsolutePath(), tmp.getAbsolutePath());
+                } catch (ErrnoException e2) {
+                    copy(blob, tmp);
+                }
+            }
+            if (!tmp.renameTo(out)) {
+                throw new IOException("rename failed: " + tmp.getAbsolutePath());
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "materialize failed for " + out.getName() + ": " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Deletes blobs that no model manifest under the models root references. Model paths that
+     * are hard links keep their data; symlinked paths are always referenced by their manifest.
+     */
+    public void prune() {
+        File modelsRoot = root.getParentFile();
+        File[] dirs = modelsRoot == null ? null : modelsRoot.listFiles();
+        File[] shards = root.listFiles();
+        if (dirs == null || shards == null) {
+            return;
+        }
+        Set<String> live = new HashSet<>();
+        for (File dir : dirs) {
+            File manifest = new File(dir, ModelManifest.FILE_NAME);
+            if (!dir.isDirectory() || !manifest.exists()) {
+                continue;
+            }
+            try {
+                JSONObject files = new JSONObject(readAll(manifest)).optJSONObject("files");
+                if (files == null) continue;
+                Iterator<String> it = files.keys();
+                while (it.hasNext()) {
+                    JSONObject e = files.optJSONObject(it.next());
+                    if (e != null) {
+                        live.add(e.optString("sha256", ""));
+                    }
+                }
+            } catch (Exception e) {
+                // An unreadable manifest might reference anything; keep every blob.
+                Log.w(TAG, "prune skipped, unreadable " + manifest.getAbsolutePath());
+                return;
+            }
+        }
+        int removed = 0;
+        for (File shard : shards) {
+            File[] blobs = shard.listFiles();
+            if (blobs == null) continue;
+            for (File blob : blobs) {
+                if (!live.contains(blob.getName()) && blob.delete()) {
+                    removed++;
+                }
+            }
+        }
+        if (removed > 0) {
+            Log.i(TAG, "Pruned " + removed + " unreferenced blobs");
+        }
+    }
+
+    private static boolean replaceWithLink(File blob, File file) throws IOException {
+        File tmp = new File(file.getAbsolutePath() + ".lnk");
+        //noinspection ResultOfMethodCallIgnored
+        tmp.delete();
+        try {
+            Os.link(blob.getAbsolutePath(), tmp.getAbsolutePath());
+        } catch (ErrnoException e) {
+            try {
+                Os.symlink(blob.getAbsolutePath(), tmp.getAbsolutePath());
+            } catch (ErrnoException e2) {
+                return false;
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("rename failed: " + tmp.getAbsolutePath());
+        }
+        Log.i(TAG, "Deduplicated " + file.getAbsolutePath() + " -> " + blob.getName());
+        return true;
+    }
+
+    private static boolean sameInode(File a, File b) {
+        try {
+            StructStat sa = Os.stat(a.getAbsolutePath());
+            StructStat sb = Os.stat(b.getAbsolutePath());
+            return sa.st_dev == sb.st_dev && sa.st_ino == sb.st_ino;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+    private static void copy(File src, File dst) throws IOException {
+        try (FileInputStream in = new FileInputStream(src);
+             FileOutputStream out = new FileOutputStream(dst, false)) {
+            FileChannel ic = in.getChannel();
+            FileChannel oc = out.getChannel();
+            long pos = 0;
+            long size = ic.size();
+            while (pos < size) {
+                pos += ic.transferTo(pos, size - pos, oc);
+            }
+            out.getFD().sync();
+        }
+    }
+
+    private static String readAll(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        int read = 0;
+        try (FileInputStream in = new FileInputStream(file)) {
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+        }
+        return new String(data, 0, read, StandardCharsets.UTF_8);
+    }
+}
@@ -31,6 +31,28 @@ public final class ChatClient {
         return s.substring(0, max) + "...(截断,len=" + s.length() + ")";
     }
 
+    /**
+     * Serializes {@code body} with {@code tools} appended as its last member. The tools JSON
+     * is spliced in as precomputed bytes instead of being re-serialized per request.
+     */
+    private static byte[] payload(JSONObject body, JSONArray tools) {
+        byte[] head = body.toString().getBytes(StandardCharsets.UTF_8);
+        if (tools == null) {
+            return head;
+        }
+        byte[] key = (body.length() > 0 ? ",\"tools\":" : "\"tools\":").getBytes(StandardCharsets.UTF_8);
+        byte[] toolsJson = JavaMcpTools.toolsJsonUtf8(tools);
+        // head ends with '}'; re-close after the tools member.
+        byte[] out = new byte[head.length - 1 + key.length + toolsJson.length + 1];
+        System.arraycopy(head, 0, out, 0, head.length - 1);
+        int pos = head.length - 1;
+        System.arraycopy(key, 0, out, pos, key.length);
+        pos += key.length;
+        System.arraycopy(toolsJson, 0, out, pos, toolsJson.length);
+        out[out.length - 1] = '}';
+        return out;
+    }
+
     private static String safeJson(Object o) {
         if (o == null) return "null";
         try {
@@ -121,9 +143,6 @@ public final class ChatClient {
             body.put("messages", new JSONArray(messages));
             body.put("stream", false);
             body.put("enable_thinking", false);
-            if (tools != null) {
-                body.put("tools", tools);
-            }
             if (!TextUtils.isEmpty(toolMode)) {
                 body.put("tool_mode", toolMode);
             }
@@ -137,7 +156,7 @@ public final class ChatClient {
                 + " toolMode=" + toolMode
                 + " body=" + truncate(body.toString(), LOG_BODY_MAX));
 
-        byte[] payload = body.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = payload(body, tools);
         HttpURLConnection conn = null;
         try {
             URL url = new URL(baseUrl + "/v1/chat/completions");
@@ -252,9 +271,6 @@ public final class ChatClient {
             body.put("messages", new JSONArray(messages));
             body.put("stream", true);
             body.put("enable_thinking", false);
-            if (tools != null) {
-                body.put("tools", tools);
-            }
             if (!TextUtils.isEmpty(toolMode)) {
                 body.put("tool_mode", toolMode);
             }
@@ -268,7 +284,7 @@ public final class ChatClient {
                 + " toolMode=" + toolMode
                 + " body=" + truncate(body.toString(), LOG_BODY_MAX));
 
-        byte[] payload = body.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = payload(body, tools);
         HttpURLConnection conn = null;
         try {
             URL url = new URL(baseUrl + "/v1/chat/completions");
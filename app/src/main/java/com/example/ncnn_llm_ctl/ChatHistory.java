@@ -0,0 +1,314 @@
+package com.example.ncnn_llm_ctl;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.List;
+
+/**
+ * Keeps a chat history within a token budget before it is sent again.
+ *
+ * UI dumps dominate long tool loops, and only the newest one describes the screen the model
+ * acts on. So every older dump is replaced by a one-line reference as soon as a newer one
+ * exists. If the history is still over budget, older tool results are shortened, and then
+ * whole turns are dropped oldest first. The system prompt, the latest user message and the
+ * latest dump are always kept in full. Tokens are counted with {@link #setTokenCounter}'s
+ * counter (the model's tokenizer when available), else estimated.
+ */
+public final class ChatHistory {
+    private static final String TAG = "ChatHistory";
+    /** Context window the app runs its models with; prefill beyond it is too slow on phones. */
+    public static final int MODEL_CONTEXT_TOKENS = 8192;
+    /** Kept free in the context for the model's reply. */
+    public static final int REPLY_RESERVE_TOKENS = 1024;
+    public static final int DEFAULT_BUDGET_TOKENS = MODEL_CONTEXT_TOKENS - REPLY_RESERVE_TOKENS;
+    private static final int MESSAGE_OVERHEAD_TOKENS = 4;
+    private static final int STALE_DUMP_HEAD_CHARS = 120;
+    private static final int OLD_RESULT_MAX_TOKENS = 100;
+    // Re-counting a cut rarely needs more; the result is then just a little short.
+    private static final int MAX_FIT_ROUNDS = 6;
+
+    public interface TokenCounter {
+        int count(String text);
+
+        /**
+         * UTF-16 end offset of each token of {@code text}, so a text can be cut at a token
+         * boundary from one encoding; null if unsupported, then cuts count shrinking substrings.
+         */
+        default int[] tokenEnds(String text) {
+            return null;
+        }
+    }
+
+    private static volatile TokenCounter counter;
+
+    private ChatHistory() {
+    }
+
+    public static void setTokenCounter(TokenCounter c) {
+        counter = c;
+    }
+
+    public static int countTokens(String text) {
+        if (TextUtils.isEmpty(text)) {
+            return 0;
+        }
+        TokenCounter c = counter;
+        if (c != null) {
+            try {
+                int n = c.count(text);
+                if (n >= 0) {
+                    return n;
+                }
+            } catch (Throwable t) {
+                Log.w(TAG, "token counter failed, estimating: " + t.getMessage());
+            }
+        }
+        return estimateTokens(text);
+    }
+
+    /** Rough BPE estimate: one token per CJK char, one per ~4 other chars. */
+    static int estimateTokens(String text) {
+        int cjk = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (ch >= 0x2e80) {
+                cjk++;
+            } else {
+                other++;
+            }
+        }
+        return cjk + (other + 3) / 4;
+    }
+
+    /** The longest head of {@code text} within {@code maxTokens}; {@code text} itself if it fits. */
+    public static String headWithinTokens(String text, int maxTokens) {
+        if (text == null) {
+            return "";
+        }
+        return text.substring(0, fit(text, maxTokens, true));
+    }
+
+    /** The longest tail of {@code text} within {@code maxTokens}; {@code text} itself if it fits. */
+    public static String tailWithinTokens(String text, int maxTokens) {
+        if (text == null) {
+            return "";
+        }
+        return text.substring(text.length() - fit(text, maxTokens, false));
+    }
+
+    /**
+     * Length in chars of the head (or tail) of {@code text} that fits {@code maxTokens}. With
+     * the counter's token offsets this is one encoding and a lookup. Otherwise each round
+     * shrinks the cut by the measured tokens-per-char, which is cheap for the estimate.
+     */
+    private static int fit(String text, int maxTokens, boolean head) {
+        int[] ends = tokenEnds(text);
+        if (ends != null) {
+            int n = ends.length;
+            if (n <= maxTokens) {
+                return text.length();
+            }
+            if (maxTokens <= 0) {
+                return 0;
+            }
+            return whole(text, head ? ends[maxTokens - 1] : text.length() - ends[n - maxTokens - 1], head);
+        }
+        int len = text.length();
+        int tokens = countTokens(text);
+        for (int round = 0; tokens > maxTokens && len > 0; round++) {
+            len = round < MAX_FIT_ROUNDS ? (int) ((long) len * maxTokens / tokens) * 19 / 20 : 0;
+            len = whole(text, len, head);
+            tokens = countTokens(head ? text.substring(0, len) : text.substring(text.length() - len));
+        }
+        return len;
+    }
+
+    /** Shortens a cut of {@code len} chars by one if it would split a surrogate pair. */
+    private static int whole(String text, int len, boolean head) {
+        if (len > 0 && len < text.length() && head && Character.isHighSurrogate(text.charAt(len - 1))) {
+            return len - 1;
+        }
+        if (len > 0 && len < text.length() && !head && Character.isLowSurrogate(text.charAt(text.length() - len))) {
+            return len - 1;
+        }
+        return len;
+    }
+
+    private static int[] tokenEnds(String text) {
+        TokenCounter c = counter;
+        if (c == null || text.isEmpty()) {
+            return null;
+        }
+        try {
+            int[] ends = c.tokenEnds(text);
+            return ends != null && (ends.length == 0 || ends[ends.length - 1] == text.length()) ? ends : null;
+        } catch (Throwable t) {
+            Log.w(TAG, "token offsets failed, counting instead: " + t.getMessage());
+            return null;
+        }
+    }
+
+    public static int countTokens(List<JSONObject> messages) {
+        int total = 0;
+        for (JSONObject m : messages) {
+            total += countTokens(m);
+        }
+        return total;
+    }
+
+    private static int countTokens(JSONObject message) {
+        if (message == null) {
+            return 0;
+        }
+        int n = MESSAGE_OVERHEAD_TOKENS + countTokens(message.optString("content", ""));
+        JSONArray toolCalls = message.optJSONArray("tool_calls");
+        if (toolCalls != null) {
+            n += countTokens(toolCalls.toString());
+        }
+        return n;
+    }
+
+    /** {@link #compact(List, int)} with DEFAULT_BUDGET_TOKENS. */
+    public static int compact(List<JSONObject> messages) {
+        return compact(messages, DEFAULT_BUDGET_TOKENS);
+    }
+
+    /**
+     * Compacts {@code messages} in place and returns its token count afterwards, which can
+     * still exceed {@code budgetTokens} when the parts that are always kept are larger.
+     */
+    public static int compact(List<JSONObject> messages, int budgetTokens) {
+        if (messages == null || messages.isEmpty()) {
+            return 0;
+        }
+        int before = countTokens(messages);
+        int latestDump = -1;
+        for (int i = messages.size() - 1; i >= 0 && latestDump < 0; i--) {
+            if (hasDump(messages.get(i))) {
+                latestDump = i;
+            }
+        }
+        // Superseded screens: always reduce to a reference.
+        for (int i = 0; i < latestDump; i++) {
+            stripDumps(messages.get(i));
+        }
+        int total = countTokens(messages);
+        int lastUser = lastIndexOfRole(messages, "user");
+        // Shorten old tool results, oldest first.
+        for (int i = 0; i < messages.size() && total > budgetTokens; i++) {
+            JSONObject m = messages.get(i);
+            if (i == latestDump || i >= lastUser || !"tool".equals(m.optString("role", ""))) {
+                continue;
+            }
+            String c = m.optString("content", "");
+            String head = headWithinTokens(c, OLD_RESULT_MAX_TOKENS);
+            if (head.length() < c.length()) {
+                int saved = countTokens(m);
+                put(m, "content", head + "...(已截断)");
+                total -= saved - countTokens(m);
+            }
+        }
+        // Drop whole turns (a user message up to the next one), oldest first.
+        int first = !messages.isEmpty() && "system".equals(messages.get(0).optString("role", "")) ? 1 : 0;
+        while (total > budgetTokens) {
+            lastUser = lastIndexOfRole(messages, "user");
+            if (first >= lastUser) {
+                break;
+            }
+            int end = first + 1;
+            while (end < lastUser && !"user".equals(messages.get(end).optString("role", ""))) {
+                end++;
+            }
+            for (int i = end - 1; i >= first; i--) {
+                total -= countTokens(messages.remove(i));
+            }
+        }
+        if (total != before) {
+            Log.i(TAG, "compacted history tokens " + before + " -> " + total + " messages=" + messages.size());
+        }
+        return total;
+    }
+
+    private static int lastIndexOfRole(List<JSONObject> messages, String role) {
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            if (role.equals(messages.get(i).optString("role", ""))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static JSONObject toolResult(JSONObject message) {
+        if (message == null || !"tool".equals(message.optString("role", ""))) {
+            return null;
+        }
+        String c = message.optString("content", "");
+        if (!c.startsWith("{")) {
+            return null;
+        }
+        try {
+            return new JSONObject(c);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static boolean hasDump(JSONObject message) {
+        JSONObject r = toolResult(message);
+        if (r == null) {
+            return false;
+        }
+        if (r.has("dump")) {
+            return true;
+        }
+        JSONArray steps = r.optJSONArray("steps");
+        for (int i = 0; steps != null && i < steps.length(); i++) {
+            JSONObject s = steps.optJSONObject(i);
+            if (s != null && s.has("dump")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Replaces every dump in a tool result message with a short reference. */
+    private static void stripDumps(JSONObject message) {
+        JSONObject r = toolResult(message);
+        if (r == null) {
+            return;
+        }
+        boolean changed = stripDump(r);
+        JSONArray steps = r.optJSONArray("steps");
+        for (int i = 0; steps != null && i < steps.length(); i++) {
+            JSONObject s = steps.optJSONObject(i);
+            if (s != null) {
+                changed |= stripDump(s);
+            }
+        }
+        if (changed) {
+            put(message, "content", r.toString());
+        }
+    }
+
+    private static boolean stripDump(JSONObject obj) {
+        String dump = obj.optString("dump", null);
+        if (dump == null || dump.startsWith("[旧屏幕")) {
+            return false;
+        }
+        String head = dump.length() > STALE_DUMP_HEAD_CHARS ? dump.substring(0, STALE_DUMP_HEAD_CHARS) : dump;
+        put(obj, "dump", "[旧屏幕，已被后续 dump_ui 取代，原长 " + dump.length() + " 字] " + head.replace('\n', ' '));
+        return true;
+    }
+
+    private static void put(JSONObject obj, String key, Object value) {
+        try {
+            obj.put(key, value);
+        } catch (Exception ignore) {
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.example.ncnn_llm_ctl;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Optional per-model chunk index ({@code model.chunks.json} on the mirror) used for delta
+ * updates:
+ *
+ * <pre>
+ * {"chunk_size": 4194304,
+ *  "files": {"decoder.bin": {"size": 123, "sha256": "...", "chunks": ["&lt;sha256&gt;", ...]}}}
+ * </pre>
+ *
+ * With it a file can be assembled from chunks already on disk (an older version in the
+ * same dir or the same file in a sibling model) and only the missing chunks are fetched by
+ * Range. Mirrors that do not publish the index simply get full downloads.
+ */
+final class ChunkIndex {
+    private static final String TAG = "ChunkIndex";
+    static final String FILE_NAME = "model.chunks.json";
+    private static final int MIN_CHUNK_SIZE = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    static final class FileChunks {
+        final long size;
+        final String sha256;
+        final int chunkSize;
+        final String[] chunks;
+
+        FileChunks(long size, String sha256, int chunkSize, String[] chunks) {
+            this.size = size;
+            this.sha256 = sha256;
+            this.chunkSize = chunkSize;
+            this.chunks = chunks;
+        }
+    }
+
+    private final Map<String, FileChunks> files;
+
+    private ChunkIndex(Map<String, FileChunks> files) {
+        this.files = files;
+    }
+
+    FileChunks get(String rel) {
+        return files.get(rel);
+    }
+
+    /** Fetches the index from the mirrors into {@code modelDir}; null when none is published. */
+    static ChunkIndex fetch(List<String> bases, File modelDir) {
+        File tmp = new File(modelDir, FILE_NAME + ".part");
+        try {
+            List<String> urls = new ArrayList<>();
+            for (String base : bases) {
+                urls.add(base + FILE_NAME);
+            }
+            RangedDownloader.Result r = RangedDownloader.fetch(urls, tmp, null, FILE_NAME, true);
+            if (r == null) {
+                return null;
+            }
+            ChunkIndex index = parse(tmp);
+            Log.i(TAG, "Chunk index loaded: files=" + index.files.size());
+            return index;
+        } catch (Exception e) {
+            Log.w(TAG, "No usable chunk index: " + e.getMessage());
+            return null;
+        } finally {
+            RangedDownloader.discard(tmp);
+        }
+    }
+
+    private static ChunkIndex parse(File file) throws Exception {
+        byte[] data = new byte[(int) file.length()];
+        int read = 0;
+        try (FileInputStream in = new FileInputStream(file)) {
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+        }
+        JSONObject json = new JSONObject(new String(data, 0, read, StandardCharsets.UTF_8));
+        int chunkSize = json.getInt("chunk_size");
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            throw new IOException("chunk_size too small: " + chunkSize);
+        }
+        Map<String, FileChunks> map = new HashMap<>();
+        JSONObject files = json.getJSONObject("files");
+        Iterator<String> it = files.keys();
+        while (it.hasNext()) {
+            String rel = it.next();
+            JSONObject f = files.getJSONObject(rel);
+            long size = f.getLong("size");
+            JSONArray arr = f.getJSONArray("chunks");
+            if (arr.length() != (int) ((size + chunkSize - 1) / chunkSize)) {
+                Log.w(TAG, "Chunk count mismatch for " + rel + ", ignoring entry");
+                continue;
+            }
+            String[] chunks = new String[arr.length()];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = arr.getString(i);
+            }
+            map.put(rel, new FileChunks(size, f.getString("sha256"), chunkSize, chunks));
+        }
+        return new ChunkIndex(map);
+    }
+
+    /**
+     * Builds {@code tmp} for {@code target}: chunks found in {@code basis} files are copied
+     * locally, the rest are fetched by Range from {@code urls} (falling through mirrors).
+     * The result is checked against the whole-file SHA-256. Returns the bytes fetched.
+     */
+    static long assemble(FileChunks target,
+                         List<File> basis,
+                         List<String> urls,
+                         File tmp,
+                         ModelDownloader.ProgressListener listener,
+                         String name) throws IOException {
+        Map<String, long[]> local = new HashMap<>();
+        List<RandomAccessFile> opened = new ArrayList<>();
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            for (int b = 0; b < basis.size(); b++) {
+                RandomAccessFile raf = new RandomAccessFile(basis.get(b), "r");
+                opened.add(raf);
+                indexChunks(raf.getChannel(), target.chunkSize, b, local);
+            }
+            RangedDownloader.preallocate(out, target.size);
+            FileChannel oc = out.getChannel();
+            long fetched = 0;
+            long reused = 0;
+            int i = 0;
+            while (i < target.chunks.length) {
+                long[] hit = local.get(target.chunks[i]);
+                long offset = (long) i * target.chunkSize;
+                if (hit != null) {
+                    FileChannel src = opened.get((int) hit[0]).getChannel();
+                    long len = chunkLength(target, i);
+                    long done = 0;
+                    while (done < len) {
+                        done += src.transferTo(hit[1] + done, len - done, oc.position(offset + done));
+                    }
+                    reused += len;
+                    i++;
+                    continue;
+                }
+                // Merge consecutive missing chunks into one Range request.
+                int j = i;
+                while (j + 1 < target.chunks.length && local.get(target.chunks[j + 1]) == null) {
+                    j++;
+                }
+                long end = (long) j * target.chunkSize + chunkLength(target, j) - 1;
+                fetched += fetchRange(urls, offset, end, oc);
+                i = j + 1;
+                if (listener != null) {
+                    listener.onProgress(name, fetched + reused, target.size, 0);
+                }
+            }
+            oc.force(false);
+            String actual = ModelManifest.sha256(tmp);
+            if (!actual.equals(target.sha256)) {
+                throw new IOException("Delta result sha256 " + actual + " != " + target.sha256);
+            }
+            Log.i(TAG, "Delta assembled " + name + " fetched=" + fetched + " reused=" + reused + " size=" + target.size);
+            return fetched;
+        } finally {
+            for (RandomAccessFile raf : opened) {
+                try {
+                    raf.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private static long chunkLength(FileChunks target, int i) {
+        return Math.min(target.chunkSize, target.size - (long) i * target.chunkSize);
+    }
+
+    /** Hashes {@code channel} in aligned chunks into {@code out}: hash -> {basisIndex, offset}. */
+    private static void indexChunks(FileChannel channel, int chunkSize, int basisIndex, Map<String, long[]> out) throws IOException {
+        MessageDigest digest = sha256();
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        long size = channel.size();
+        for (long off = 0; off < size; off += chunkSize) {
+            long len = Math.min(chunkSize, size - off);
+            long pos = off;
+            digest.reset();
+            while (pos < off + len) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), off + len - pos));
+                int n = channel.read(buf, pos);
+                if (n <= 0) {
+                    throw new IOException("Short read at " + pos);
+                }
+                digest.update(buf.array(), 0, n);
+                pos += n;
+            }
+            String h = ModelManifest.toHex(digest.digest());
+            if (!out.containsKey(h)) {
+                out.put(h, new long[] {basisIndex, off});
+            }
+        }
+    }
+
+    private static long fetchRange(List<String> urls, long start, long end, FileChannel out) throws IOException {
+        IOException last = null;
+        for (String url : urls) {
+            HttpURLConnection conn = RangedDownloader.open(url, start, end);
+            try {
+                int code = conn.getResponseCode();
+                if (code != 206) {
+                    throw new IOException("HTTP " + code + " for range " + start + "-" + end + " of " + url);
+                }
+                long pos = start;
+                try (ReadableByteChannel in = Channels.newChannel(conn.getInputStream())) {
+                    ByteBuffer buf;
+                    while (pos <= end && (buf = RangedDownloader.read(in, end + 1 - pos)) != null) {
+                        while (buf.hasRemaining()) {
+                            pos += out.write(buf, pos);
+                        }
+                    }
+                }
+                if (pos != end + 1) {
+                    throw new IOException("Range incomplete at " + pos + " expectedEnd=" + end);
+                }
+                return end + 1 - start;
+            } catch (IOException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                MirrorSelector.reportFailure(url);
+                last = e;
+            } finally {
+                conn.disconnect();
+            }
+        }
+        throw last != null ? last : new IOException("No source for range " + start + "-" + end);
+    }
+
+    private static MessageDigest sha256() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 unavailable", e);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.ncnn_llm_ctl;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Shared policy for model downloads: a global bandwidth cap (token bucket), pause/resume,
+ * rate-bounded progress callbacks, per-file timing metrics, and a JobScheduler mode that
+ * runs the download only under the given constraints.
+ *
+ * Every byte read by {@link RangedDownloader} and {@link ChunkIndex} passes through
+ * {@link #onBytes}, which is where pausing, throttling and interruption take effect.
+ */
+public final class DownloadScheduler {
+    private static final String TAG = "DownloadScheduler";
+    static final int JOB_ID = 0x6e636e6e;
+    static final int PREFETCH_JOB_ID = JOB_ID + 1;
+    static final String EXTRA_MODEL = "model";
+    static final String EXTRA_BANDWIDTH = "bandwidth_limit";
+
+    private static final long PROGRESS_MIN_INTERVAL_MS = 250;
+    private static final int MAX_METRICS = 64;
+
+    private static final Object LOCK = new Object();
+    // Guarded by LOCK.
+    private static boolean paused;
+    private static long bytesPerSec;
+    private static double tokens;
+    private static long lastRefillNs = System.nanoTime();
+    private static final ArrayDeque<JSONObject> METRICS = new ArrayDeque<>();
+
+    private DownloadScheduler() {
+    }
+
+    /** Caps the combined download rate; {@code <= 0} removes the cap. */
+    public static void setBandwidthLimit(long limitBytesPerSec) {
+        synchronized (LOCK) {
+            bytesPerSec = Math.max(0, limitBytesPerSec);
+            tokens = 0;
+            lastRefillNs = System.nanoTime();
+        }
+        Log.i(TAG, "bandwidth limit=" + (limitBytesPerSec > 0 ? limitBytesPerSec + " B/s" : "none"));
+    }
+
+    public static long getBandwidthLimit() {
+        synchronized (LOCK) {
+            return bytesPerSec;
+        }
+    }
+
+    /** Holds every download thread at its next read until {@link #resume()}. */
+    public static void pause() {
+        synchronized (LOCK) {
+            paused = true;
+        }
+        Log.i(TAG, "paused");
+    }
+
+    public static void resume() {
+        synchronized (LOCK) {
+            paused = false;
+            lastRefillNs = System.nanoTime();
+            LOCK.notifyAll();
+        }
+        Log.i(TAG, "resumed");
+    }
+
+    public static boolean isPaused() {
+        synchronized (LOCK) {
+            return paused;
+        }
+    }
+
+    /**
+     * Accounts {@code n} bytes just read. Blocks while paused and, when a cap is set, long
+     * enough to keep the combined rate under it. Throws when the thread is interrupted, so
+     * cancelling a download (e.g. a stopped job) unwinds through the normal failure path and
+     * keeps the resumable .part file.
+     */
+    static void onBytes(long n) throws IOException {
+        long sleepMs;
+        try {
+            synchronized (LOCK) {
+                while (paused) {
+                    LOCK.wait();
+                }
+                if (bytesPerSec <= 0) {
+                    sleepMs = 0;
+                } else {
+                    long now = System.nanoTime();
+                    // Allow at most a quarter second of burst.
+                    tokens = Math.min(bytesPerSec / 4.0, tokens + (now - lastRefillNs) * bytesPerSec / 1e9);
+                    lastRefillNs = now;
+                    tokens -= n;
+                    sleepMs = tokens < 0 ? (long) (-tokens * 1000 / bytesPerSec) : 0;
+                }
+            }
+            if (sleepMs > 0) {
+                Thread.sleep(sleepMs);
+            } else if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted", e);
+        }
+    }
+
+    /**
+     * Wraps {@code listener} so callbacks arrive at most every PROGRESS_MIN_INTERVAL_MS across
+     * all files. Final reports (speed 0) always pass so totals are never lost.
+     */
+    public static ModelDownloader.ProgressListener coalesce(ModelDownloader.ProgressListener listener) {
+        if (listener == null) {
+            return null;
+        }
+        final long[] last = new long[1];
+        return (file, downloaded, total, speed) -> {
+            long now = System.currentTimeMillis();
+            synchronized (last) {
+                if (speed != 0 && now - last[0] < PROGRESS_MIN_INTERVAL_MS) {
+                    return;
+                }
+                last[0] = now;
+            }
+            listener.onProgress(file, downloaded, total, speed);
+        };
+    }
+
+    /** Records one file's outcome; {@code how} is e.g. "download", "delta", "blob". */
+    static void recordFile(String name, String how, long bytes, long millis) {
+        JSONObject m = new JSONObject();
+        try {
+            m.put("file", name);
+            m.put("how", how);
+            m.put("bytes", bytes);
+            m.put("ms", millis);
+            m.put("bytesPerSec", bytes * 1000L / Math.max(1, millis));
+            m.put("at", System.currentTimeMillis());
+        } catch (Exception ignore) {
+        }
+        synchronized (LOCK) {
+            METRICS.addLast(m);
+            while (METRICS.size() > MAX_METRICS) {
+                METRICS.removeFirst();
+            }
+        }
+        Log.i(TAG, "file " + name + " how=" + how + " bytes=" + bytes + " ms=" + millis);
+    }
+
+    /** Most recent per-file metrics, oldest first. */
+    public static JSONArray metrics() {
+        synchronized (LOCK) {
+            JSONArray out = new JSONArray();
+            for (JSONObject m : METRICS) {
+                out.put(m);
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Schedules {@code modelName} to be downloaded in the background once the constraints
+     * hold. If they stop holding mid-way the job is stopped and retried later; the download
+     * resumes from its .part files.
+     */
+    public static boolean scheduleBackground(Context context,
+                                             String modelName,
+                                             boolean unmeteredOnly,
+                                             boolean chargingOnly,
+                                             long bandwidthLimit) {
+        return schedule(context, JOB_ID, modelName, unmeteredOnly, chargingOnly, bandwidthLimit);
+    }
+
+    /**
+     * Speculative background fetch of {@code modelName}: unmetered network and charging only,
+     * in its own job slot so it never replaces a download the user asked for.
+     */
+    static boolean schedulePrefetch(Context context, String modelName) {
+        return schedule(context, PREFETCH_JOB_ID, modelName, true, true, 0);
+    }
+
+    private static boolean schedule(Context context,
+                                    int jobId,
+                                    String modelName,
+                                    boolean unmeteredOnly,
+                                    boolean chargingOnly,
+                                    long bandwidthLimit) {
+        JobScheduler js = context.getSystemService(JobScheduler.class);
+        if (js == null) {
+            return false;
+        }
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(EXTRA_MODEL, modelName);
+        extras.putLong(EXTRA_BANDWIDTH, bandwidthLimit);
+        JobInfo job = new JobInfo.Builder(jobId, new ComponentName(context, ModelDownloadJobService.class))
+                .setRequiredNetworkType(unmeteredOnly ? JobInfo.NETWORK_TYPE_UNMETERED : JobInfo.NETWORK_TYPE_ANY)
+                .setRequiresCharging(chargingOnly)
+                .setBackoffCriteria(30_000, JobInfo.BACKOFF_POLICY_EXPONENTIAL)
+                .setExtras(extras)
+                .build();
+        int r = js.schedule(job);
+        Log.i(TAG, "schedule job=" + jobId + " model=" + modelName + " unmetered=" + unmeteredOnly
+                + " charging=" + chargingOnly + " result=" + r);
+        return r == JobScheduler.RESULT_SUCCESS;
+    }
+
+    public static void cancelBackground(Context context) {
+        JobScheduler js = context.getSystemService(JobScheduler.class);
+        if (js != null) {
+            js.cancel(JOB_ID);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.example.ncnn_llm_ctl;
+
+import android.accessibilityservice.AccessibilityService;
+import android.accessibilityservice.GestureDescription;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Gestures on top of {@link AccessibilityService#dispatchGesture}.
+ *
+ * Every gesture waits for its {@link AccessibilityService.GestureResultCallback} (completed or
+ * cancelled) instead of firing and forgetting, so callers know the stroke actually finished
+ * before they inspect the screen. On the main thread the callback cannot be awaited; there
+ * the dispatch result is returned as-is.
+ */
+public final class GestureEngine {
+    private static final String TAG = "GestureEngine";
+
+    public static final long TAP_MS = 50;
+    public static final long LONG_PRESS_MS = 800;
+    public static final long SWIPE_MS = 300;
+    public static final long FLING_MS = 80;
+    private static final long CALLBACK_SLACK_MS = 2000;
+    // Keep swipes away from the screen edges (system gesture areas).
+    private static final float EDGE_MARGIN = 0.15f;
+
+    public static final String UP = "up";
+    public static final String DOWN = "down";
+    public static final String LEFT = "left";
+    public static final String RIGHT = "right";
+
+    private final AccessibilityService service;
+
+    /** True for the finger directions {@link #swipeDirection} and {@link #scrollByAction} take. */
+    public static boolean isDirection(String direction) {
+        return UP.equals(direction) || DOWN.equals(direction) || LEFT.equals(direction) || RIGHT.equals(direction);
+    }
+
+    public GestureEngine(AccessibilityService service) {
+        this.service = service;
+    }
+
+    public boolean tap(int x, int y) {
+        return longPress(x, y, TAP_MS);
+    }
+
+    public boolean longPress(int x, int y, long durationMs) {
+        Path path = new Path();
+        path.moveTo(x, y);
+        return dispatch(new Path[] {path}, Math.max(1L, durationMs));
+    }
+
+    public boolean swipe(int x1, int y1, int x2, int y2, long durationMs) {
+        Path path = new Path();
+        path.moveTo(x1, y1);
+        path.lineTo(x2, y2);
+        return dispatch(new Path[] {path}, Math.max(1L, durationMs));
+    }
+
+    public boolean fling(int x1, int y1, int x2, int y2) {
+        return swipe(x1, y1, x2, y2, FLING_MS);
+    }
+
+    /**
+     * Swipes inside {@code area} (or the whole screen when null). {@code direction} is the
+     * finger direction, so "up" reveals content further down the list; anything but the four
+     * {@link #isDirection directions} fails without a gesture.
+     */
+    public boolean swipeDirection(String direction, Rect area, long durationMs) {
+        if (!isDirection(direction)) {
+            Log.w(TAG, "unknown swipe direction " + direction);
+            return false;
+        }
+        Rect r = area != null && !area.isEmpty() ? area : screenRect();
+        int dx = Math.round(r.width() * (0.5f - EDGE_MARGIN));
+        int dy = Math.round(r.height() * (0.5f - EDGE_MARGIN));
+        int cx = r.centerX();
+        int cy = r.centerY();
+        switch (direction) {
+            case DOWN:
+                return swipe(cx, cy - dy, cx, cy + dy, durationMs);
+            case LEFT:
+                return swipe(cx + dx, cy, cx - dx, cy, durationMs);
+            case RIGHT:
+                return swipe(cx - dx, cy, cx + dx, cy, durationMs);
+            default:
+                return swipe(cx, cy + dy, cx, cy - dy, durationMs);
+        }
+    }
+
+    /** Dispatches all paths as simultaneous strokes (e.g. two-finger pinch). */
+    public boolean dispatch(Path[] paths, long durationMs) {
+        if (paths == null || paths.length == 0) {
+            return false;
+        }
+        GestureDescription.Builder builder = new GestureDescription.Builder();
+        int max = Math.min(paths.length, GestureDescription.getMaxStrokeCount());
+        long duration = Math.min(durationMs, GestureDescription.getMaxGestureDuration());
+        for (int i = 0; i < max; i++) {
+            builder.addStroke(new GestureDescription.StrokeDescription(paths[i], 0, duration));
+        }
+        return dispatchAndWait(builder.build(), duration);
+    }
+
+    /**
+     * Returns the largest scrollable node in the active window (the main list in practice).
+     * Caller recycles the result.
+     */
+    public AccessibilityNodeInfo findScrollable(AccessibilityTreeWalker<AccessibilityNodeInfo> walker) {
+        AccessibilityNodeInfo root = service.getRootInActiveWindow();
+        if (root == null) {
+            return null;
+        }
+        final AccessibilityNodeInfo[] best = new AccessibilityNodeInfo[1];
+        final long[] bestArea = new long[] {-1};
+        final Rect bounds = new Rect();
+        try {
+            walker.walk(root, (node, depth) -> {
+                if (!node.isScrollable()) {
+                    return AccessibilityTreeWalker.Visitor.CONTINUE;
+                }
+                node.getBoundsInScreen(bounds);
+                long area = (long) bounds.width() * bounds.height();
+                if (area > bestArea[0]) {
+                    if (best[0] != null) {
+                        best[0].recycle();
+                    }
+                    best[0] = AccessibilityNodeInfo.obtain(node);
+                    bestArea[0] = area;
+                }
+                // Nested scrollables are rarely the main list; skip their subtree.
+                return AccessibilityTreeWalker.Visitor.SKIP_CHILDREN;
+            });
+        } finally {
+            root.recycle();
+        }
+        return best[0];
+    }
+
+    /**
+     * Scrolls {@code scrollable} one page via accessibility actions; used when gestures are
+     * unavailable or did not move the content.
+     */
+    public static boolean scrollByAction(AccessibilityNodeInfo scrollable, String direction) {
+        if (scrollable == null || !isDirection(direction)) {
+            return false;
+        }
+        // Finger "up"/"left" reveals later content.
+        boolean forward = UP.equals(direction) || LEFT.equals(direction);
+        return scrollable.performAction(forward
+                ? AccessibilityNodeInfo.ACTION_SCROLL_FORWARD
+                : AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD);
+    }
+
+    private boolean dispatchAndWait(GestureDescription gesture, long durationMs) {
+        boolean onMainThread = Looper.myLooper() == Looper.getMainLooper();
+        if (onMainThread) {
+            return service.dispatchGesture(gesture, null, null);
+        }
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicBoolean completed = new AtomicBoolean(false);
+        boolean dispatched = service.dispatchGesture(gesture, new AccessibilityService.GestureResultCallback() {
+            @Override
+            public void onCompleted(GestureDescription gestureDescription) {
+                completed.set(true);
+                latch.countDown();
+            }
+
+            @Override
+            public void onCancelled(GestureDescription gestureDescription) {
+                latch.countDown();
+            }
+        }, null);
+        if (!dispatched) {
+            Log.w(TAG, "dispatchGesture rejected");
+            return false;
+        }
+        try {
+            if (!latch.await(durationMs + CALLBACK_SLACK_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "gesture callback timeout durationMs=" + durationMs);
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (!completed.get()) {
+            Log.w(TAG, "gesture cancelled durationMs=" + durationMs);
+        }
+        return completed.get();
+    }
+
+    private Rect screenRect() {
+        DisplayMetrics dm = service.getResources().getDisplayMetrics();
+        return new Rect(0, 0, dm.widthPixels, dm.heightPixels);
+    }
+}
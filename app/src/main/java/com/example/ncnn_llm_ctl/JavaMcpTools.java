@@ -6,134 +6,327 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class JavaMcpTools {
     private static final String TAG = "JavaMcpTools";
     private static final String SYSTEM_MARKER = "[工具说明]";
+    private static final int MAX_ACTIONS = 16;
+    // Measured with the model's tokenizer. Half the history budget, so the latest screen still
+    // leaves room for the system prompt and the earlier turns.
+    static final int DUMP_MAX_TOKENS = ChatHistory.DEFAULT_BUDGET_TOKENS / 2;
+    private static final long DEFAULT_WAIT_TIMEOUT_MS = 3000;
+    private static final long MAX_WAIT_TIMEOUT_MS = 15000;
+    // A standalone wait_for this long after the last UI action no longer waits relative to it.
+    private static final long MUTATION_BASELINE_MAX_AGE_MS = 60000;
+    private static final int DEFAULT_MAX_SWIPES = 10;
+    private static final int MAX_SWIPES = 30;
+
+    private static final AtomicInteger THREAD_SEQ = new AtomicInteger(1);
+    private static final ExecutorService TOOL_POOL = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "tool-exec-" + THREAD_SEQ.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    });
 
     private JavaMcpTools() {
     }
 
     public static final String TOOL_MODE_EMIT = "emit";
 
+    /**
+     * The registered tools and everything derived from them, built once per registry change:
+     * the dispatch map, and a byte-identical tools array and system prompt for every request
+     * (which is what lets the server reuse its prompt prefix cache).
+     */
+    private static final class Schema {
+        final List<ToolSpec> specs;
+        final Map<String, ToolSpec> byName;
+        final JSONArray tools;
+        final byte[] toolsJsonUtf8;
+        final String systemPrompt;
+
+        Schema(List<ToolSpec> specs) {
+            this.specs = Collections.unmodifiableList(specs);
+            Map<String, ToolSpec> map = new HashMap<>();
+            JSONArray arr = new JSONArray();
+            for (ToolSpec s : specs) {
+                map.put(s.name, s);
+                arr.put(s.toOpenAi());
+            }
+            this.byName = Collections.unmodifiableMap(map);
+            this.tools = arr;
+            String json = tools.toString();
+            this.toolsJsonUtf8 = json.getBytes(StandardCharsets.UTF_8);
+            this.systemPrompt = systemPrompt(json);
+        }
+    }
+
+    private static final Object REGISTRY_LOCK = new Object();
+    // Window-state sequence from when the latest mutating call started, and when it ended.
+    // Guarded by MUTATION_LOCK.
+    private static final Object MUTATION_LOCK = new Object();
+    private static long lastMutationSeq = -1;
+    private static long lastMutationAt;
+    private static volatile Schema schema;
+
+    private static Schema schema() {
+        Schema s = schema;
+        if (s == null) {
+            synchronized (REGISTRY_LOCK) {
+                s = schema;
+                if (s == null) {
+                    s = new Schema(builtinTools());
+                    schema = s;
+                }
+            }
+        }
+        return s;
+    }
+
+    /** Adds {@code spec}, replacing any tool with the same name. */
+    public static void registerTool(ToolSpec spec) {
+        if (spec == null || TextUtils.isEmpty(spec.name) || spec.handler() == null) {
+            throw new IllegalArgumentException("tool needs a name and a handler");
+        }
+        synchronized (REGISTRY_LOCK) {
+            List<ToolSpec> specs = new ArrayList<>(schema().specs);
+            boolean replaced = false;
+            for (int i = 0; i < specs.size(); i++) {
+                if (spec.name.equals(specs.get(i).name)) {
+                    specs.set(i, spec);
+                    replaced = true;
+                }
+            }
+            if (!replaced) {
+                specs.add(spec);
+            }
+            schema = new Schema(specs);
+        }
+    }
+
+    public static boolean unregisterTool(String name) {
+        synchronized (REGISTRY_LOCK) {
+            List<ToolSpec> specs = new ArrayList<>(schema().specs);
+            boolean removed = false;
+            for (int i = specs.size() - 1; i >= 0; i--) {
+                if (specs.get(i).name.equals(name)) {
+                    specs.remove(i);
+                    removed = true;
+                }
+            }
+            if (removed) {
+                schema = new Schema(specs);
+            }
+            return removed;
+        }
+    }
+
+    /** The shared tools array; callers must not modify it. */
     public static JSONArray buildOpenAiTools() {
-        JSONArray tools = new JSONArray();
-
-        tools.put(functionTool(
-                "dump_ui",
-                "获取当前屏幕 UI 结构（系统/其他应用）",
-                params0()
-        ));
-
-        tools.put(functionTool(
-                "global_action",
-                "执行系统全局动作（返回/桌面/通知栏等）",
-                params1("name", "动作名称（中文，例如：返回、桌面、通知栏）")
-        ));
-
-        tools.put(functionTool(
-                "click_view_id",
-                "通过 viewIdResourceName 点击控件",
-                params1("view_id", "例如：com.xxx:id/btn_ok")
-        ));
-
-        tools.put(functionTool(
-                "set_text_view_id",
-                "通过 viewIdResourceName 向输入框设置文本",
-                params2("view_id", "例如：com.xxx:id/et_input", "text", "要输入的文本（允许为空字符串）")
-        ));
+        return schema().tools;
+    }
+
+    /**
+     * UTF-8 JSON of {@code tools}: the precomputed bytes for the shared array from
+     * {@link #buildOpenAiTools()}, otherwise a fresh serialization.
+     */
+    static byte[] toolsJsonUtf8(JSONArray tools) {
+        Schema s = schema();
+        return tools == s.tools ? s.toolsJsonUtf8 : tools.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Per-tool latency histograms: {name: {count, failures, avg_ms, max_ms, buckets}}. */
+    public static JSONObject toolStats() {
+        JSONObject out = new JSONObject();
+        for (ToolSpec s : schema().specs) {
+            put(out, s.name, s.latency.toJson());
+        }
+        return out;
+    }
+
+    private static List<ToolSpec> builtinTools() {
+        List<ToolSpec> tools = new ArrayList<>();
+
+        tools.add(new ToolSpec("dump_ui", "获取当前屏幕 UI 结构（系统/其他应用）")
+                .timeoutMs(10000)
+                .maxConcurrent(2)
+                .cacheable()
+                .handler(JavaMcpTools::dumpUi));
+
+        tools.add(new ToolSpec("global_action", "执行系统全局动作（返回/桌面/通知栏等）")
+                .string("name", "动作名称（中文，例如：返回、桌面、通知栏）", true)
+                .timeoutMs(5000)
+                .handler(JavaMcpTools::globalAction));
+
+        tools.add(new ToolSpec("click_view_id", "通过 viewIdResourceName 点击控件")
+                .string("view_id", "例如：com.xxx:id/btn_ok", true)
+                .timeoutMs(5000)
+                .handler(JavaMcpTools::clickViewId));
+
+        tools.add(new ToolSpec("set_text_view_id", "通过 viewIdResourceName 向输入框设置文本")
+                .string("view_id", "例如：com.xxx:id/et_input", true)
+                .string("text", "要输入的文本（允许为空字符串）", true)
+                .timeoutMs(5000)
+                .handler(JavaMcpTools::setTextViewId));
+
+        tools.add(new ToolSpec("tap", "按屏幕坐标点击")
+                .integer("x", "屏幕坐标 x（像素）", true)
+                .integer("y", "屏幕坐标 y（像素）", true)
+                .timeoutMs(5000)
+                .handler(JavaMcpTools::tap));
+
+        tools.add(new ToolSpec("long_press", "长按控件（view_id）或屏幕坐标（x, y）")
+                .string("view_id", "例如：com.xxx:id/item（优先于坐标）", false)
+                .integer("x", "屏幕坐标 x（像素）", false)
+                .integer("y", "屏幕坐标 y（像素）", false)
+                .integer("duration_ms", "持续时间（毫秒，默认 " + GestureEngine.LONG_PRESS_MS + "）", false)
+                .timeoutMs(10000)
+                .handler(JavaMcpTools::longPress));
+
+        tools.add(new ToolSpec("swipe", "滑动：给 direction（up/down/left/right，手指方向）或起止坐标 x1,y1,x2,y2；fling=true 为快速甩动")
+                .string("direction", "up / down / left / right（手指方向，up 查看下方内容）", false)
+                .integer("x1", "起点 x", false)
+                .integer("y1", "起点 y", false)
+                .integer("x2", "终点 x", false)
+                .integer("y2", "终点 y", false)
+                .integer("duration_ms", "持续时间（毫秒，默认 " + GestureEngine.SWIPE_MS + "）", false)
+                .bool("fling", "快速甩动")
+                .timeoutMs(10000)
+                .handler(JavaMcpTools::swipe));
+
+        tools.add(new ToolSpec("scroll_until_visible", "滚动主列表直到出现指定 view_id 或文本的控件（一次调用完成，不需要反复 dump_ui）")
+                .string("view_id", "目标控件 view_id", false)
+                .string("text", "目标控件文本（包含匹配）", false)
+                .string("direction", "手指方向，默认 up（向下翻）", false)
+                .integer("max_swipes", "最多滚动次数（默认 " + DEFAULT_MAX_SWIPES + "）", false)
+                .timeoutMs(60000)
+                .handler(JavaMcpTools::scrollUntilVisible));
+
+        tools.add(new ToolSpec("wait_for", "等待控件出现/消失或窗口切换（由无障碍事件驱动，不需要反复 dump_ui）")
+                .string("view_id", "等待该 view_id 的控件出现", false)
+                .string("text", "等待包含该文本的控件出现", false)
+                .bool("gone", "为 true 时改为等待控件消失")
+                .bool("window_change", "为 true 时等待窗口切换")
+                .integer("timeout_ms", "等待超时（毫秒，默认 " + DEFAULT_WAIT_TIMEOUT_MS + "）", false)
+                .timeoutMs(MAX_WAIT_TIMEOUT_MS + 5000)
+                .maxConcurrent(4)
+                .handler((args, bridge, out) -> runWaitFor(args, bridge, windowChangeBaseline(bridge), out)));
+
+        tools.add(new ToolSpec("run_actions", "一次执行多个动作（按顺序），每步可等待控件出现/消失或窗口切换，返回每步结果（多次 dump_ui 只返回最后一次的界面）")
+                .param("actions", actionsSchema(), true)
+                .bool("stop_on_error", "某步失败时是否停止（默认 true）")
+                .timeoutMs(MAX_ACTIONS * (MAX_WAIT_TIMEOUT_MS + 5000))
+                .handler(JavaMcpTools::runActions));
 
         return tools;
     }
 
+    /**
+     * Makes {@code messages} start with the tool system prompt. A tool prompt from before a
+     * registry change is replaced so the conversation matches the current tools.
+     */
     public static void ensureToolSystemMessage(List<JSONObject> messages) {
         if (messages == null) return;
         try {
+            String prompt = buildToolSystemPrompt();
             if (!messages.isEmpty()) {
                 JSONObject first = messages.get(0);
                 if (first != null && "system".equals(first.optString("role", ""))) {
                     String c = first.optString("content", "");
                     if (!TextUtils.isEmpty(c) && c.contains(SYSTEM_MARKER)) {
+                        if (!c.equals(prompt)) {
+                            put(first, "content", prompt);
+                        }
                         return;
                     }
                 }
             }
             JSONObject sys = new JSONObject();
             put(sys, "role", "system");
-            put(sys, "content", buildToolSystemPrompt());
+            put(sys, "content", prompt);
             messages.add(0, sys);
         } catch (Exception ignore) {
         }
     }
 
     public static String buildToolSystemPrompt() {
-        JSONArray tools = buildOpenAiTools();
+        return schema().systemPrompt;
+    }
+
+    private static String systemPrompt(String toolsJson) {
         StringBuilder sb = new StringBuilder();
         sb.append("You are a helpful assistant.\n");
         sb.append(SYSTEM_MARKER).append("\n");
         sb.append("你可以调用工具来完成任务。工具定义如下（OpenAI tools JSON）：\n");
         sb.append("<tools>\n");
-        sb.append(tools.toString());
+        sb.append(toolsJson);
         sb.append("\n</tools>\n");
         sb.append("当你需要调用工具时，请返回 tool_calls（而不是把工具调用写进普通文本）。\n");
         sb.append("优先用 click_view_id / set_text_view_id，通过 dump_ui 找到目标控件的 view_id。\n");
+        sb.append("已知多个步骤时，用 run_actions 一次提交，减少来回调用。\n");
+        sb.append("点击后需要等界面变化时，用 wait_for 等待，不要反复调用 dump_ui。\n");
         return sb.toString();
     }
 
-    private static JSONObject functionTool(String name, String description, JSONObject parameters) {
-        JSONObject fn = new JSONObject();
-        put(fn, "name", name);
-        put(fn, "description", description);
-        put(fn, "parameters", parameters);
+    private static JSONObject actionsSchema() {
+        JSONObject wait = new JSONObject();
+        put(wait, "type", "object");
+        put(wait, "properties", waitProperties());
 
-        JSONObject tool = new JSONObject();
-        put(tool, "type", "function");
-        put(tool, "function", fn);
-        return tool;
-    }
+        JSONObject item = new JSONObject();
+        put(item, "type", "object");
+        JSONObject itemProps = new JSONObject();
+        put(itemProps, "tool", stringProp("click_view_id / set_text_view_id / global_action / tap / swipe / scroll_until_visible / dump_ui"));
+        put(itemProps, "view_id", stringProp("click_view_id / set_text_view_id 的 view_id"));
+        put(itemProps, "text", stringProp("set_text_view_id 的文本"));
+        put(itemProps, "name", stringProp("global_action 的动作名称"));
+        put(itemProps, "wait", wait);
+        put(item, "properties", itemProps);
+        JSONArray itemReq = new JSONArray();
+        itemReq.put("tool");
+        put(item, "required", itemReq);
 
-    private static JSONObject params0() {
-        JSONObject p = new JSONObject();
-        put(p, "type", "object");
-        put(p, "properties", new JSONObject());
-        put(p, "required", new JSONArray());
-        return p;
+        JSONObject actions = new JSONObject();
+        put(actions, "type", "array");
+        put(actions, "description", "按顺序执行的动作列表（最多 " + MAX_ACTIONS + " 步）");
+        put(actions, "items", item);
+        return actions;
     }
 
-    private static JSONObject params1(String key, String desc) {
-        JSONObject p = new JSONObject();
-        put(p, "type", "object");
+    private static JSONObject waitProperties() {
         JSONObject props = new JSONObject();
-        JSONObject v = new JSONObject();
-        put(v, "type", "string");
-        put(v, "description", desc);
-        put(props, key, v);
-        put(p, "properties", props);
-        JSONArray req = new JSONArray();
-        req.put(key);
-        put(p, "required", req);
-        return p;
+        put(props, "view_id", stringProp("等待该 view_id 的控件出现"));
+        put(props, "text", stringProp("等待包含该文本的控件出现"));
+        put(props, "gone", typedProp("boolean", "为 true 时改为等待控件消失"));
+        put(props, "window_change", typedProp("boolean", "为 true 时等待窗口切换"));
+        put(props, "timeout_ms", typedProp("integer", "等待超时（毫秒，默认 " + DEFAULT_WAIT_TIMEOUT_MS + "）"));
+        return props;
     }
 
-    private static JSONObject params2(String key1, String desc1, String key2, String desc2) {
-        JSONObject p = new JSONObject();
-        put(p, "type", "object");
-        JSONObject props = new JSONObject();
-        JSONObject v1 = new JSONObject();
-        put(v1, "type", "string");
-        put(v1, "description", desc1);
-        put(props, key1, v1);
-        JSONObject v2 = new JSONObject();
-        put(v2, "type", "string");
-        put(v2, "description", desc2);
-        put(props, key2, v2);
-        put(p, "properties", props);
-        JSONArray req = new JSONArray();
-        req.put(key1);
-        req.put(key2);
-        put(p, "required", req);
-        return p;
+    private static JSONObject stringProp(String desc) {
+        return typedProp("string", desc);
+    }
+
+    private static JSONObject typedProp(String type, String desc) {
+        JSONObject v = new JSONObject();
+        put(v, "type", type);
+        put(v, "description", desc);
+        return v;
     }
 
     private static void put(JSONObject obj, String key, Object value) {
@@ -161,13 +354,19 @@ public final class JavaMcpTools {
         return sb.toString();
     }
 
+    /**
+     * Runs one tool call through the registry: argument check, result cache, the tool's
+     * concurrency limit and timeout, and its latency histogram. Never throws; failures come
+     * back as {@code {"ok": false, "error": ...}}.
+     */
     public static JSONObject executeToolCall(JSONObject toolCall, AccessibilityToolBridge bridge) {
         long t0 = System.currentTimeMillis();
+        String name = "";
         try {
             JSONObject fn = toolCall == null ? null : toolCall.optJSONObject("function");
-            String name = fn == null ? "" : fn.optString("name", "");
-            JSONObject args = fn == null ? null : fn.optJSONObject("arguments");
-            if (args == null) args = new JSONObject();
+            name = fn == null ? "" : fn.optString("name", "");
+            JSONObject parsed = fn == null ? null : fn.optJSONObject("arguments");
+            final JSONObject args = parsed != null ? parsed : new JSONObject();
 
             if (TextUtils.isEmpty(name)) {
                 return new JSONObject().put("ok", false).put("error", "missing tool name");
@@ -175,57 +374,36 @@ public final class JavaMcpTools {
             if (bridge == null) {
                 return new JSONObject().put("ok", false).put("error", "bridge is null").put("name", name);
             }
+            ToolSpec spec = schema().byName.get(name);
+            if (spec == null) {
+                return new JSONObject().put("ok", false).put("name", name)
+                        .put("error", "unknown tool: " + name).put("args", args);
+            }
+            String missing = spec.missingRequired(args);
+            if (missing != null) {
+                return new JSONObject().put("ok", false).put("name", name)
+                        .put("error", "missing required argument: " + missing);
+            }
 
-            JSONObject out = new JSONObject();
+            JSONObject out;
+            if (spec.isCacheable()) {
+                out = ToolResultCache.get(name, args, () -> runWithPolicy(spec, args, bridge));
+            } else if (spec.isReadOnly()) {
+                out = runWithPolicy(spec, args, bridge);
+            } else {
+                ToolResultCache.invalidate();
+                long seqBefore = bridge.windowStateSeq();
+                out = runWithPolicy(spec, args, bridge);
+                noteMutation(seqBefore);
+            }
             out.put("name", name);
-
-            switch (name) {
-                case "dump_ui": {
-                    String dump = bridge.dumpUi();
-                    boolean ok = !TextUtils.isEmpty(dump);
-                    out.put("ok", ok);
-                    if (ok) {
-                        out.put("dump", truncate(dump, 20000));
-                    } else {
-                        out.put("error", "empty dump (service disabled or no active window?)");
-                    }
-                    break;
-                }
-                case "global_action": {
-                    String actionName = args.optString("name", "");
-                    boolean ok = bridge.globalActionByName(actionName);
-                    out.put("ok", ok);
-                    out.put("action", actionName);
-                    if (!ok) out.put("error", "global action failed or unsupported");
-                    break;
-                }
-                case "click_view_id": {
-                    String viewId = args.optString("view_id", "");
-                    boolean ok = bridge.clickByViewId(viewId);
-                    out.put("ok", ok);
-                    out.put("view_id", viewId);
-                    if (!ok) out.put("error", "click failed (not found or not clickable)");
-                    break;
-                }
-                case "set_text_view_id": {
-                    String viewId = args.optString("view_id", "");
-                    String text = args.optString("text", "");
-                    boolean ok = bridge.setTextByViewId(viewId, text);
-                    out.put("ok", ok);
-                    out.put("view_id", viewId);
-                    out.put("text_len", text == null ? 0 : text.length());
-                    if (!ok) out.put("error", "setText failed (not found or not editable)");
-                    break;
-                }
-                default: {
-                    out.put("ok", false);
-                    out.put("error", "unknown tool: " + name);
-                    out.put("args", args);
-                }
+            long cost = System.currentTimeMillis() - t0;
+            out.put("cost_ms", cost);
+            boolean ok = out.optBoolean("ok", false);
+            spec.latency.record(cost, ok);
+            if (!ok) {
+                Log.w(TAG, "tool " + name + " failed: " + out.optString("error", "") + " costMs=" + cost);
             }
-
-            out.put("cost_ms", System.currentTimeMillis() - t0);
-            Log.i(TAG, "tool " + name + " ok=" + out.optBoolean("ok", false) + " costMs=" + out.optLong("cost_ms", -1));
             return out;
         } catch (Exception e) {
             JSONObject err = new JSONObject();
@@ -235,14 +413,395 @@ public final class JavaMcpTools {
                 err.put("cost_ms", System.currentTimeMillis() - t0);
             } catch (Exception ignore) {
             }
-            Log.e(TAG, "tool exception: " + e.getMessage(), e);
+            Log.e(TAG, "tool " + name + " exception: " + e.getMessage(), e);
+            return err;
+        }
+    }
+
+    /**
+     * Runs all tool calls of one assistant message and returns their results in call order.
+     * Read-only calls between two mutating calls run concurrently; each mutating call (and
+     * unknown tools) waits for everything before it and runs alone, so the model's ordering
+     * of UI changes is kept.
+     */
+    public static JSONObject[] executeToolCalls(JSONArray toolCalls, AccessibilityToolBridge bridge) {
+        int n = toolCalls == null ? 0 : toolCalls.length();
+        JSONObject[] results = new JSONObject[n];
+        List<Future<JSONObject>> batch = new ArrayList<>();
+        int batchStart = 0;
+        for (int i = 0; i <= n; i++) {
+            JSONObject tc = i < n ? toolCalls.optJSONObject(i) : null;
+            ToolSpec spec = i < n ? schema().byName.get(toolName(tc)) : null;
+            if (spec != null && spec.isReadOnly()) {
+                if (batch.isEmpty()) {
+                    batchStart = i;
+                }
+                batch.add(TOOL_POOL.submit(() -> executeToolCall(tc, bridge)));
+                continue;
+            }
+            for (int k = 0; k < batch.size(); k++) {
+                results[batchStart + k] = await(batch.get(k));
+            }
+            batch.clear();
+            if (i < n) {
+                results[i] = executeToolCall(tc, bridge);
+            }
+        }
+        return results;
+    }
+
+    /** Whether {@code name} is a registered tool that does not change the UI. */
+    static boolean isReadOnlyTool(String name) {
+        ToolSpec spec = schema().byName.get(name);
+        return spec != null && spec.isReadOnly();
+    }
+
+    private static String toolName(JSONObject toolCall) {
+        JSONObject fn = toolCall == null ? null : toolCall.optJSONObject("function");
+        return fn == null ? "" : fn.optString("name", "");
+    }
+
+    private static JSONObject await(Future<JSONObject> f) {
+        try {
+            return f.get();
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            f.cancel(true);
+            JSONObject err = new JSONObject();
+            put(err, "ok", false);
+            put(err, "error", "exception: " + e.getMessage());
             return err;
         }
     }
 
-    private static String truncate(String s, int maxLen) {
-        if (s == null) return "";
-        if (s.length() <= maxLen) return s;
-        return s.substring(0, maxLen) + "...(截断,len=" + s.length() + ")";
+    /**
+     * Runs {@code spec} on TOOL_POOL under its concurrency permit and timeout. The permit is
+     * held until the handler really returns, so a timed-out gesture cannot overlap the next.
+     */
+    private static JSONObject runWithPolicy(ToolSpec spec, JSONObject args, AccessibilityToolBridge bridge) throws Exception {
+        long timeoutMs = spec.timeoutMs();
+        Semaphore permits = spec.permits();
+        if (!permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS)) {
+            return new JSONObject().put("ok", false).put("error", "tool busy (" + timeoutMs + "ms)");
+        }
+        JSONObject out = new JSONObject();
+        Future<?> f;
+        try {
+            f = TOOL_POOL.submit(() -> {
+                try {
+                    spec.handler().run(args, bridge, out);
+                } finally {
+                    permits.release();
+                }
+                return null;
+            });
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        try {
+            f.get(timeoutMs, TimeUnit.MILLISECONDS);
+            return out;
+        } catch (TimeoutException e) {
+            f.cancel(true);
+            return new JSONObject().put("ok", false).put("error", "tool timeout (" + timeoutMs + "ms)");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+        } catch (InterruptedException e) {
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        }
+    }
+
+    /**
+     * One run_actions step: same handler, permit and histogram, on the caller's thread (the
+     * enclosing run_actions call carries the timeout).
+     */
+    private static void runInline(ToolSpec spec, JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception {
+        long t0 = System.currentTimeMillis();
+        String missing = spec.missingRequired(args);
+        if (missing != null) {
+            out.put("ok", false);
+            out.put("error", "missing required argument: " + missing);
+            return;
+        }
+        Semaphore permits = spec.permits();
+        if (!permits.tryAcquire(spec.timeoutMs(), TimeUnit.MILLISECONDS)) {
+            out.put("ok", false);
+            out.put("error", "tool busy (" + spec.timeoutMs() + "ms)");
+            return;
+        }
+        if (!spec.isReadOnly()) {
+            ToolResultCache.invalidate();
+        }
+        try {
+            spec.handler().run(args, bridge, out);
+        } finally {
+            permits.release();
+            spec.latency.record(System.currentTimeMillis() - t0, out.optBoolean("ok", false));
+        }
+    }
+
+    private static void dumpUi(JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception {
+        String dump = bridge.dumpUi();
+        boolean ok = !TextUtils.isEmpty(dump);
+        out.put("ok", ok);
+        if (ok) {
+            String head = ChatHistory.headWithinTokens(dump, DUMP_MAX_TOKENS);
+            out.put("dump", head.length() < dump.length() ? head + "...(截断,len=" + dump.length() + ")" : dump);
+            if (head.length() < dump.length() || dump.contains(AccessCtlService.DUMP_TRUNCATED)) {
+                out.put("truncated", true);
+            }
+        } else {
+            out.put("error", "empty dump (service disabled or no active window?)");
+        }
+    }
+
+    private static void globalAction(JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception {
+        String actionName = args.optString("name", "");
+        boolean ok = bridge.globalActionByName(actionName);
+        out.put("ok", ok);
+        out.put("action", actionName);
+        if (!ok) out.put("error", "global action failed or unsupported");
+    }
+
+    private static void clickViewId(JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception {
+        String viewId = args.optString("view_id", "");
+        boolean ok = bridge.clickByViewId(viewId);
+        out.put("ok", ok);
+        out.put("view_id", viewId);
+        if (!ok) out.put("error", "click failed (not found or not clickable)");
+    }
+
+    private static void setTextViewId(JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception {
+        String viewId = args.optString("view_id", "");
+        String text = args.optString("text", "");
+        boolean ok = bridge.setTextByViewId(viewId, text);
+        out.put("ok", ok);
+        out.put("view_id", viewId);
+        out.put("text_len", text == null ? 0 : text.length());
+        if (!ok) out.put("error", "setText failed (not found or not editable)");
+    }
+
+    private static void tap(JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception {
+        boolean ok = bridge.tap(args.optInt("x"), args.optInt("y"));
+        out.put("ok", ok);
+        if (!ok) out.put("error", "gesture failed or cancelled");
+    }
+
+    private static void longPress(JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception {
+        String viewId = args.optString("view_id", "");
+        if (TextUtils.isEmpty(viewId) && (!args.has("x") || !args.has("y"))) {
+            out.put("ok", false);
+            out.put("error", "need view_id or x/y");
+            return;
+        }
+        long durationMs = args.optLong("duration_ms", GestureEngine.LONG_PRESS_MS);
+        boolean ok = bridge.longPress(viewId, args.optInt("x"), args.optInt("y"), durationMs);
+        out.put("ok", ok);
+        if (!TextUtils.isEmpty(viewId)) out.put("view_id", viewId);
+        if (!ok) out.put("error", "long press failed (not found or gesture cancelled)");
+    }
+
+    /**
+     * Reads "direction" (default up) in lower case; on anything but up/down/left/right sets
+     * the error on {@code out} and returns null, so a typo never turns into some gesture.
+     */
+    private static String direction(JSONObject args, JSONObject out) throws Exception {
+        String direction = args.optString("direction", "");
+        direction = TextUtils.isEmpty(direction) ? GestureEngine.UP : direction.trim().toLowerCase(Locale.ROOT);
+        if (!GestureEngine.isDirection(direction)) {
+            out.put("ok", false);
+            out.put("error", "unknown direction: " + args.optString("direction", "") + " (use up/down/left/right)");
+            return null;
+        }
+        return direction;
+    }
+
+    private static void swipe(JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception {
+        boolean fling = args.optBoolean("fling", false);
+        long durationMs = args.optLong("duration_ms", fling ? GestureEngine.FLING_MS : GestureEngine.SWIPE_MS);
+        boolean ok;
+        if (!TextUtils.isEmpty(args.optString("direction", ""))) {
+            String direction = direction(args, out);
+            if (direction == null) {
+                return;
+            }
+            ok = bridge.swipeDirection(direction, durationMs);
+            out.put("direction", direction);
+        } else if (args.has("x1") && args.has("y1") && args.has("x2") && args.has("y2")) {
+            ok = bridge.swipe(args.optInt("x1"), args.optInt("y1"), args.optInt("x2"), args.optInt("y2"), durationMs);
+        } else {
+            out.put("ok", false);
+            out.put("error", "need direction or x1/y1/x2/y2");
+            return;
+        }
+        out.put("ok", ok);
+        if (!ok) out.put("error", "gesture failed or cancelled");
+    }
+
+    private static void scrollUntilVisible(JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception {
+        String viewId = args.optString("view_id", "");
+        String text = args.optString("text", "");
+        if (TextUtils.isEmpty(viewId) && TextUtils.isEmpty(text)) {
+            out.put("ok", false);
+            out.put("error", "need view_id or text");
+            return;
+        }
+        String direction = direction(args, out);
+        if (direction == null) {
+            return;
+        }
+        int maxSwipes = Math.min(MAX_SWIPES, Math.max(1, args.optInt("max_swipes", DEFAULT_MAX_SWIPES)));
+        int scrolls = bridge.scrollUntilVisible(viewId, text, direction, maxSwipes);
+        boolean ok = scrolls >= 0;
+        out.put("ok", ok);
+        if (ok) {
+            out.put("scrolls", scrolls);
+        } else {
+            out.put("error", "not found after scrolling (end of list or max_swipes=" + maxSwipes + ")");
+        }
+    }
+
+    private static void runActions(JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception {
+        JSONArray actions = args.optJSONArray("actions");
+        if (actions == null) {
+            // Some models emit the list as a JSON string.
+            String raw = args.optString("actions", "");
+            if (!TextUtils.isEmpty(raw)) {
+                try {
+                    actions = new JSONArray(raw);
+                } catch (Exception ignore) {
+                }
+            }
+        }
+        if (actions == null || actions.length() == 0) {
+            out.put("ok", false);
+            out.put("error", "actions is empty");
+            return;
+        }
+        if (actions.length() > MAX_ACTIONS) {
+            out.put("ok", false);
+            out.put("error", "too many actions: " + actions.length() + " > " + MAX_ACTIONS);
+            return;
+        }
+        boolean stopOnError = args.optBoolean("stop_on_error", true);
+
+        JSONArray steps = new JSONArray();
+        // Only the newest dump is returned; earlier ones describe screens that are gone.
+        JSONObject dumpStep = null;
+        boolean allOk = true;
+        for (int i = 0; i < actions.length(); i++) {
+            long stepT0 = System.currentTimeMillis();
+            JSONObject action = actions.optJSONObject(i);
+            String tool = action == null ? "" : action.optString("tool", "");
+            JSONObject step = new JSONObject();
+            step.put("i", i);
+            step.put("tool", tool);
+            if (action == null || TextUtils.isEmpty(tool) || "run_actions".equals(tool)) {
+                step.put("ok", false);
+                step.put("error", action == null ? "action is not an object" : "invalid tool: " + tool);
+            } else {
+                JSONObject wait = action.optJSONObject("wait");
+                long seqBefore = bridge.windowStateSeq();
+
+                JSONObject result = new JSONObject();
+                ToolSpec spec = schema().byName.get(tool);
+                if (spec == null) {
+                    result.put("ok", false);
+                    result.put("error", "unknown tool: " + tool);
+                } else {
+                    runInline(spec, action, bridge, result);
+                }
+                boolean ok = result.optBoolean("ok", false);
+                if (!ok) {
+                    step.put("error", result.optString("error", "failed"));
+                }
+                if (result.has("dump")) {
+                    if (dumpStep != null) {
+                        dumpStep.remove("dump");
+                        dumpStep.put("dump_superseded", true);
+                    }
+                    step.put("dump", result.opt("dump"));
+                    dumpStep = step;
+                }
+                if (ok && wait != null) {
+                    JSONObject waitOut = new JSONObject();
+                    runWaitFor(wait, bridge, seqBefore, waitOut);
+                    boolean waitOk = waitOut.optBoolean("ok", false);
+                    step.put("wait_ok", waitOk);
+                    if (!waitOk) {
+                        ok = false;
+                        step.put("error", waitOut.optString("error", "wait failed"));
+                    }
+                }
+                step.put("ok", ok);
+            }
+            step.put("ms", System.currentTimeMillis() - stepT0);
+            steps.put(step);
+
+            if (!step.optBoolean("ok", false)) {
+                allOk = false;
+                if (stopOnError) {
+                    break;
+                }
+            }
+        }
+        out.put("ok", allOk);
+        out.put("done", steps.length());
+        out.put("total", actions.length());
+        out.put("steps", steps);
+    }
+
+    private static void noteMutation(long seqBefore) {
+        synchronized (MUTATION_LOCK) {
+            lastMutationSeq = seqBefore;
+            lastMutationAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * What a standalone wait_for with window_change compares against: the sequence from
+     * before the latest mutating call, so a window change the click already caused (while
+     * the model was still deciding to wait) counts. Falls back to the current sequence when
+     * there was no recent action or the service restarted since.
+     */
+    private static long windowChangeBaseline(AccessibilityToolBridge bridge) {
+        long now = bridge.windowStateSeq();
+        synchronized (MUTATION_LOCK) {
+            if (lastMutationSeq < 0 || lastMutationSeq > now
+                    || System.currentTimeMillis() - lastMutationAt > MUTATION_BASELINE_MAX_AGE_MS) {
+                return now;
+            }
+            return lastMutationSeq;
+        }
+    }
+
+    /**
+     * Waits for the condition in {@code args}. {@code windowSeqBefore} is the window-state
+     * sequence captured before the triggering action (used when window_change is set).
+     */
+    private static void runWaitFor(JSONObject args, AccessibilityToolBridge bridge, long windowSeqBefore, JSONObject out) throws Exception {
+        String viewId = args.optString("view_id", "");
+        String text = args.optString("text", "");
+        boolean gone = args.optBoolean("gone", false);
+        boolean windowChange = args.optBoolean("window_change", false);
+        long timeoutMs = Math.min(MAX_WAIT_TIMEOUT_MS,
+                Math.max(0L, args.optLong("timeout_ms", DEFAULT_WAIT_TIMEOUT_MS)));
+        if (TextUtils.isEmpty(viewId) && TextUtils.isEmpty(text) && !windowChange) {
+            out.put("ok", false);
+            out.put("error", "need view_id, text or window_change");
+            return;
+        }
+        long sinceSeq = windowChange ? Math.max(0L, windowSeqBefore) : -1;
+        long t0 = System.currentTimeMillis();
+        boolean ok = bridge.waitFor(viewId, text, gone, sinceSeq, timeoutMs);
+        out.put("ok", ok);
+        out.put("waited_ms", System.currentTimeMillis() - t0);
+        if (!ok) out.put("error", "wait timeout (" + timeoutMs + "ms)");
     }
 }
@@ -0,0 +1,184 @@
+package com.example.ncnn_llm_ctl;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Notices an {@link AgentLoop} run going in circles, from the (tool, arguments, screen
+ * fingerprint) of every call in its last few steps:
+ * <ul>
+ *   <li>a call fails again with the same arguments on the same screen,</li>
+ *   <li>a step only re-reads a screen whose content (text, positions) is the same as when
+ *       it was last read and no call has changed the UI since,</li>
+ *   <li>two steps alternate (A, B, A, B) over the same screens.</li>
+ * </ul>
+ * The first time, the model gets a corrective hint with the tool results; if the run is
+ * still stuck after that, the loop ends with a synthesized answer instead of spending more
+ * model turns. One instance per run.
+ */
+final class LoopDetector {
+    private static final int WINDOW = 6;
+
+    enum Action {
+        NONE,
+        /** Pass {@link Verdict#hint} to the model and continue. */
+        HINT,
+        /** End the run with {@link Verdict#summary} as the answer. */
+        STOP
+    }
+
+    static final class Verdict {
+        static final Verdict NONE = new Verdict(Action.NONE, "", "");
+
+        final Action action;
+        /** For the model, English like the tool errors. */
+        final String hint;
+        /** For the user. */
+        final String summary;
+
+        Verdict(Action action, String hint, String summary) {
+            this.action = action;
+            this.hint = hint;
+            this.summary = summary;
+        }
+    }
+
+    private static final class StepRecord {
+        final String fingerprint;
+        final String content;
+        final String signature;
+        final Set<String> failed = new HashSet<>();
+        boolean readOnly = true;
+        boolean changedUi;
+
+        StepRecord(String fingerprint, String content, List<String> calls) {
+            this.fingerprint = fingerprint;
+            this.content = content;
+            this.signature = fingerprint + '\n' + String.join("\n", calls);
+        }
+    }
+
+    private final ArrayDeque<StepRecord> recent = new ArrayDeque<>();
+    private boolean hinted;
+
+    /**
+     * Records one step: its calls, their results (same order) and the fingerprint and
+     * {@link ScreenFingerprint#contentHash} of the screen they ran on. Without a fingerprint
+     * (no accessibility service, or the screen is our own) nothing is compared or recorded.
+     */
+    Verdict check(String fingerprint, String contentHash, JSONArray toolCalls, JSONObject[] results) {
+        String fp = fingerprint == null ? "" : fingerprint;
+        if (fp.isEmpty()) {
+            return Verdict.NONE;
+        }
+        int n = toolCalls == null ? 0 : toolCalls.length();
+        List<String> calls = new ArrayList<>(n);
+        List<String> names = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            JSONObject tc = toolCalls.optJSONObject(i);
+            JSONObject fn = tc == null ? null : tc.optJSONObject("function");
+            String name = fn == null ? "" : fn.optString("name", "");
+            Object args = fn == null ? null : fn.opt("arguments");
+            calls.add(name + ' ' + (args == null ? "{}" : args));
+            names.add(name);
+        }
+        StepRecord step = new StepRecord(fp, contentHash == null ? "" : contentHash, calls);
+        String failedCall = null;
+        String failedError = "";
+        for (int i = 0; i < n; i++) {
+            JSONObject r = results != null && i < results.length ? results[i] : null;
+            boolean ok = r != null && r.optBoolean("ok", false);
+            boolean readOnly = JavaMcpTools.isReadOnlyTool(names.get(i));
+            step.readOnly &= readOnly;
+            if (!ok) {
+                step.failed.add(calls.get(i));
+                if (failedCall == null && failedBefore(fp, calls.get(i))) {
+                    failedCall = names.get(i);
+                    failedError = r == null ? "" : r.optString("error", "");
+                }
+            } else if (!readOnly) {
+                step.changedUi = true;
+            }
+        }
+
+        Verdict v;
+        if (failedCall != null) {
+            v = verdict("The call " + failedCall + " with these arguments already failed on this screen (" + failedError
+                            + "). Do not repeat it: check the current screen and pick a different element or action,"
+                            + " or answer the user if the goal cannot be reached.",
+                    "操作未能完成：" + failedCall + " 多次失败" + (failedError.isEmpty() ? "。" : "（" + failedError + "）。"));
+        } else if (n > 0 && step.readOnly && rereadsUnchanged(step)) {
+            v = verdict("The screen has not changed since you last read it; that result is above."
+                            + " Act on it or answer the user instead of reading it again.",
+                    "操作未能完成：界面没有变化，已停止重复读取。");
+        } else if (alternates(step)) {
+            v = verdict("You are alternating between the same two steps without progress."
+                            + " Try a different approach or answer the user.",
+                    "操作未能完成：在相同的两步之间来回重复，已停止。");
+        } else {
+            v = Verdict.NONE;
+        }
+
+        recent.addLast(step);
+        if (recent.size() > WINDOW) {
+            recent.removeFirst();
+        }
+        return v;
+    }
+
+    private Verdict verdict(String hint, String summary) {
+        if (hinted) {
+            return new Verdict(Action.STOP, hint, summary);
+        }
+        hinted = true;
+        return new Verdict(Action.HINT, hint, summary);
+    }
+
+    private boolean failedBefore(String fingerprint, String call) {
+        for (StepRecord r : recent) {
+            if (r.fingerprint.equals(fingerprint) && r.failed.contains(call)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The same read-only step ran on this screen with the same content and no call has
+     * changed the UI since. An unknown content hash never counts as unchanged.
+     */
+    private boolean rereadsUnchanged(StepRecord step) {
+        if (step.content.isEmpty()) {
+            return false;
+        }
+        Iterator<StepRecord> it = recent.descendingIterator();
+        while (it.hasNext()) {
+            StepRecord r = it.next();
+            if (r.signature.equals(step.signature)) {
+                return r.content.equals(step.content);
+            }
+            if (r.changedUi) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private boolean alternates(StepRecord step) {
+        if (recent.size() < 3) {
+            return false;
+        }
+        Iterator<StepRecord> it = recent.descendingIterator();
+        String b = it.next().signature;
+        String a = it.next().signature;
+        String b2 = it.next().signature;
+        return step.signature.equals(a) && b.equals(b2) && !a.equals(b);
+    }
+}
@@ -23,7 +23,6 @@ import org.json.JSONArray;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MainActivity extends AppCompatActivity {
@@ -38,8 +37,12 @@ public class MainActivity extends AppCompatActivity {
     private EditText chatInput;
 
     private final List<JSONObject> chatMessages = new ArrayList<>();
+    // The chat's running loop; a new message or leaving the activity cancels it.
+    private volatile AgentLoop chatLoop;
     private final AtomicBoolean serverStarting = new AtomicBoolean(false);
     private boolean serverStarted = false;
+    // Files announced by ModelDownloader.FileListener during the current start; UI thread only.
+    private int filesReady = 0;
 
     private Button btnOpenSettings;
     private Button btnStartServer;
@@ -112,6 +115,15 @@ public class MainActivity extends AppCompatActivity {
         refreshAccessibilityButton();
     }
 
+    @Override
+    protected void onDestroy() {
+        AgentLoop loop = chatLoop;
+        if (loop != null) {
+            loop.cancel();
+        }
+        super.onDestroy();
+    }
+
     private void refreshAccessibilityButton() {
         if (btnOpenSettings == null) {
             return;
@@ -177,21 +189,48 @@ public class MainActivity extends AppCompatActivity {
         downloadProgress.setProgress(0);
         downloadStatus.setText("下载进度：0%");
         downloadSpeed.setText("下载速度：0 KB/s");
+        filesReady = 0;
 
         new Thread(() -> {
             try {
                 ModelDownloader.ProgressListener listener = (file, downloaded, total, speed) ->
                         runOnUiThread(() -> updateDownloadUi(file, downloaded, total, speed));
+                ModelDownloader.FileListener fileListener = (rel, file, remainingRequired) ->
+                        runOnUiThread(() -> filesReady++);
+
+                // Everything that does not need the model runs while it downloads.
+                java.util.concurrent.FutureTask<java.io.File> webRootTask = new java.util.concurrent.FutureTask<>(() -> {
+                    java.io.File root = WebAssetDeployer.ensureWebRoot(getApplicationContext());
+                    NcnnLlmBridge.registerAccessibilityToolBridge(new AccessibilityToolBridge());
+                    return root;
+                });
+                new Thread(webRootTask, "web-root").start();
+
+                ModelCatalog.Estimate est = ModelDownloader.estimateDownload(getApplicationContext(), modelName);
+                if (est != null && est.downloadBytes > 0) {
+                    if (!est.fits()) {
+                        throw new java.io.IOException("存储空间不足：需要 " + formatBytes(est.diskBytes)
+                                + "，可用 " + formatBytes(est.freeBytes));
+                    }
+                    String eta = est.etaMs > 0 ? "，预计 " + Math.max(1, est.etaMs / 1000) + " 秒" : "";
+                    runOnUiThread(() -> downloadStatus.setText("需下载 " + formatBytes(est.downloadBytes) + eta));
+                }
 
-                java.io.File modelDir = ModelDownloader.ensureModel(getApplicationContext(), modelName, listener);
+                java.io.File modelDir = ModelDownloader.ensureModel(getApplicationContext(), modelName, listener, fileListener);
                 Log.i(TAG, "Model ready at " + modelDir.getAbsolutePath());
                 runOnUiThread(() -> setDownloadViewsVisible(false));
 
-                java.io.File webRoot = WebAssetDeployer.ensureWebRoot(getApplicationContext());
+                java.io.File webRoot;
+                try {
+                    webRoot = webRootTask.get();
+                } catch (java.util.concurrent.ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : new Exception(cause);
+                }
                 Log.i(TAG, "Web root ready at " + webRoot.getAbsolutePath());
 
-                NcnnLlmBridge.registerAccessibilityToolBridge(new AccessibilityToolBridge());
-
+                // Encodings cached for a previously loaded model do not apply to this one.
+                ModelTokenizer.server().clear();
                 boolean ok = NcnnLlmBridge.startOpenAiServerWithWebRoot(
                         modelDir.getAbsolutePath(), 18080, false, webRoot.getAbsolutePath());
                 Log.i(TAG, "startOpenAiServer returned " + ok);
@@ -230,6 +269,9 @@ public class MainActivity extends AppCompatActivity {
                     }
                 }
 
+                if (ok) {
+                    ModelDownloader.prefetchLikelyNext(getApplicationContext(), modelName);
+                }
                 runOnUiThread(() -> {
                     if (ok) {
                         serverStarted = true;
@@ -287,303 +329,141 @@ public class MainActivity extends AppCompatActivity {
         final String modelNameFinal = modelName;
 
         appendChatLine("系统", "请求中…（" + modelNameFinal + "）");
-        new Thread(() -> {
-            try {
-                final JSONArray tools = JavaMcpTools.buildOpenAiTools();
-                final AccessibilityToolBridge toolBridge = new AccessibilityToolBridge();
-                final int maxSteps = 8;
-                boolean legacy = false;
-
-                if (legacy) {
-                final StringBuilder reply = new StringBuilder();
-                final boolean[] toolHeaderShown = new boolean[]{false};
-                final String[] basePrefixHolder = new String[1];
-                final JSONArray[] toolHistoryHolder = new JSONArray[1];
-                CountDownLatch latch = new CountDownLatch(1);
-                runOnUiThread(() -> {
-                    String base = outputText.getText() == null ? "" : outputText.getText().toString();
-                    if (!TextUtils.isEmpty(base) && base.charAt(base.length() - 1) != '\n') {
-                        base += "\n";
+        runToolLoop(modelNameFinal, text, new AccessibilityToolBridge());
+    }
+
+    /** Mirrors loop progress into the chat log and, when shown, the overlay. */
+    private void runToolLoop(String modelName, String firstUserText, AccessibilityToolBridge toolBridge) {
+        // Exact counts from the server's model once it is loaded; ChatHistory estimates until then.
+        ChatHistory.setTokenCounter(ModelTokenizer.server().asTokenCounter());
+        AgentLoop loop = new AgentLoop.Builder(new AgentLoop.HttpTransport(LOCAL_SERVER_BASE_URL, modelName))
+                .toolExecutor(calls -> JavaMcpTools.executeToolCalls(calls, toolBridge))
+                .actionMemo(ActionMemo.get(this), toolBridge)
+                .timeBudgetMs(AgentLoop.APP_TIME_BUDGET_MS)
+                .tokenBudget(AgentLoop.APP_TOKEN_BUDGET)
+                .readiness(() -> ensureServerRunningOrPrompt(modelName, 60000))
+                .listener(new AgentLoop.Listener() {
+                    private final StringBuilder reply = new StringBuilder();
+                    private String basePrefix = "";
+
+                    @Override
+                    public void onMemoHit(int actions) {
+                        runOnUiThread(() -> appendChatLine("系统", "命中动作缓存，直接执行 " + actions + " 步"));
                     }
-                    basePrefixHolder[0] = base + "[模型] ";
-                    outputText.setText(basePrefixHolder[0]);
-                    latch.countDown();
-                });
-                latch.await();
 
-                AccessCtlService service = AccessCtlService.getInstance();
-                if (service != null) {
-                    service.clearOverlayLlmText();
-                    service.appendOverlayLogLine("[我] " + text);
-                    service.appendOverlayLogLine("[系统] 请求中…（" + modelNameFinal + "）");
-                }
+                    @Override
+                    public void onMemoReplayFailed(int ran, int total) {
+                        runOnUiThread(() -> appendChatLine("系统", "缓存动作在第 " + ran + "/" + total + " 步失败，改用模型推理"));
+                    }
 
-                ChatClient.chatCompletionsStream(LOCAL_SERVER_BASE_URL, modelNameFinal, chatMessages, new ChatClient.StreamListener() {
                     @Override
-                    public void onDelta(String text) {
-                        if (TextUtils.isEmpty(text)) return;
-                        reply.append(text);
+                    public void onStepStart(int step) {
+                        reply.setLength(0);
+                        // Posted before any delta of this step, so the prefix is set first.
                         runOnUiThread(() -> {
-                            String basePrefix = basePrefixHolder[0] == null ? "" : basePrefixHolder[0];
-                            outputText.setText(basePrefix + reply);
+                            String base = outputText.getText() == null ? "" : outputText.getText().toString();
+                            if (!TextUtils.isEmpty(base) && base.charAt(base.length() - 1) != '\n') {
+                                base += "\n";
+                            }
+                            basePrefix = base + "[模型] ";
+                            outputText.setText(basePrefix);
                         });
-                        AccessCtlService s = AccessCtlService.getInstance();
-                        if (s != null) {
-                            s.appendOverlayLlmText(text);
+                        AccessCtlService service = AccessCtlService.getInstance();
+                        if (service != null) {
+                            service.clearOverlayLlmText();
+                            if (step == 0) {
+                                service.appendOverlayLogLine("[我] " + firstUserText);
+                            }
+                            service.appendOverlayLogLine("[系统] 请求中…（" + modelName + "）");
                         }
                     }
 
                     @Override
-                    public void onToolTrace(String toolTrace) {
-                        String namesOnly = ToolTraceFormatter.toolNamesOnly(toolTrace);
-                        if (TextUtils.isEmpty(namesOnly)) {
-                            return;
-                        }
-                        runOnUiThread(() -> {
-                            if (!toolHeaderShown[0]) {
-                                appendChatLine("工具调用", namesOnly);
-                                toolHeaderShown[0] = true;
-                            } else {
-                                appendChatLine("工具", namesOnly);
-                            }
-                        });
+                    public void onDelta(String text) {
+                        reply.append(text);
+                        String shown = reply.toString();
+                        runOnUiThread(() -> outputText.setText(basePrefix + shown));
                         AccessCtlService s = AccessCtlService.getInstance();
                         if (s != null) {
-                            s.appendOverlayLogLine("[工具] " + namesOnly);
+                            s.appendOverlayLlmText(text);
                         }
                     }
 
                     @Override
-                    public void onToolHistory(JSONArray toolHistory) {
-                        toolHistoryHolder[0] = toolHistory;
+                    public void onToolTrace(String names) {
+                        runOnUiThread(() -> appendChatLine("工具", names));
+                        overlayLog("[工具] " + names);
                     }
 
                     @Override
                     public void onToolCalls(JSONArray toolCalls) {
+                        String names = JavaMcpTools.toolNamesOnly(toolCalls);
+                        if (!TextUtils.isEmpty(names)) {
+                            runOnUiThread(() -> appendChatLine("需要调用工具", names));
+                            overlayLog("[需要工具] " + names);
+                        }
                     }
 
                     @Override
-                    public void onFinishReason(String finishReason) {
+                    public void onToolResult(String name, JSONObject result) {
+                        boolean ok = result.optBoolean("ok", false);
+                        runOnUiThread(() -> appendChatLine("工具结果", name + " ok=" + ok));
+                        overlayLog("[工具结果] " + name + " ok=" + ok);
                     }
 
                     @Override
-                    public void onDone() {
-                        appendToolHistoryToMessages(toolHistoryHolder[0], chatMessages);
-                        try {
-                            JSONObject assistant = new JSONObject();
-                            assistant.put("role", "assistant");
-                            assistant.put("content", reply.toString());
-                            chatMessages.add(assistant);
-                        } catch (Exception ignore) {
-                        }
-                        runOnUiThread(() -> appendChatLine("系统", "完成"));
-                        AccessCtlService s = AccessCtlService.getInstance();
-                        if (s != null) {
-                            s.appendOverlayLogLine("[系统] 完成");
-                        }
+                    public void onStepEnd(int step) {
+                        runOnUiThread(() -> appendChatLine("系统", "工具执行完成，继续推理…"));
                     }
 
                     @Override
-                    public void onError(String message) {
-                        runOnUiThread(() -> appendChatLine("系统", "流式请求失败：" + message));
-                        AccessCtlService s = AccessCtlService.getInstance();
-                        if (s != null) {
-                            s.appendOverlayLogLine("[系统] 流式请求失败：" + message);
+                    public void onFinished(AgentLoop.Outcome outcome) {
+                        String line;
+                        switch (outcome.stop) {
+                            case DONE:
+                                line = "完成";
+                                break;
+                            case MEMO:
+                                line = "完成（缓存）";
+                                break;
+                            case LOOP:
+                                line = "检测到重复操作，已提前停止。";
+                                break;
+                            case NOT_READY:
+                                return;
+                            case TIME_BUDGET:
+                                line = "超过时间预算，已停止。";
+                                break;
+                            case TOKEN_BUDGET:
+                                line = "超过 token 预算，已停止。";
+                                break;
+                            case CANCELLED:
+                                line = "已取消。";
+                                break;
+                            case ERROR:
+                                line = "请求失败：" + outcome.error;
+                                break;
+                            default:
+                                line = "超过最大工具循环次数，已停止。";
+                                break;
                         }
+                        runOnUiThread(() -> appendChatLine("系统", line));
+                        overlayLog("[系统] " + line);
                     }
-                });
-                } else {
-                    runToolLoop(modelNameFinal, text, tools, toolBridge, maxSteps);
-                }
-            } catch (Exception e) {
-                runOnUiThread(() -> appendChatLine("系统", "请求失败：" + e.getMessage()));
-                AccessCtlService s = AccessCtlService.getInstance();
-                if (s != null) {
-                    s.appendOverlayLogLine("[系统] 请求失败：" + e.getMessage());
-                }
-            }
-        }).start();
-    }
-
-    private void runToolLoop(String modelName,
-                             String firstUserText,
-                             JSONArray tools,
-                             AccessibilityToolBridge toolBridge,
-                             int maxSteps) throws Exception {
-        if (!ensureServerRunningOrPrompt(modelName, 60000)) {
-            return;
-        }
-        try {
-            for (int step = 0; step < maxSteps; step++) {
-            final StringBuilder reply = new StringBuilder();
-            final String[] basePrefixHolder = new String[1];
-            final JSONArray[] toolCallsHolder = new JSONArray[1];
-            final String[] errorHolder = new String[1];
-
-            CountDownLatch latch = new CountDownLatch(1);
-            runOnUiThread(() -> {
-                String base = outputText.getText() == null ? "" : outputText.getText().toString();
-                if (!TextUtils.isEmpty(base) && base.charAt(base.length() - 1) != '\n') {
-                    base += "\n";
-                }
-                basePrefixHolder[0] = base + "[模型] ";
-                outputText.setText(basePrefixHolder[0]);
-                latch.countDown();
-            });
-            latch.await();
-
-            AccessCtlService service = AccessCtlService.getInstance();
-            if (service != null) {
-                service.clearOverlayLlmText();
-                if (step == 0) {
-                    service.appendOverlayLogLine("[我] " + firstUserText);
-                }
-                service.appendOverlayLogLine("[系统] 请求中…（" + modelName + "）");
-            }
-
-            JSONArray toolsForThisRequest = (step == 0) ? tools : null;
-            ChatClient.chatCompletionsStream(
-                    LOCAL_SERVER_BASE_URL,
-                    modelName,
-                    chatMessages,
-                    toolsForThisRequest,
-                    JavaMcpTools.TOOL_MODE_EMIT,
-                    new ChatClient.StreamListener() {
-                        @Override
-                        public void onDelta(String text) {
-                            if (TextUtils.isEmpty(text)) return;
-                            reply.append(text);
-                            runOnUiThread(() -> {
-                                String basePrefix = basePrefixHolder[0] == null ? "" : basePrefixHolder[0];
-                                outputText.setText(basePrefix + reply);
-                            });
-                            AccessCtlService s = AccessCtlService.getInstance();
-                            if (s != null) {
-                                s.appendOverlayLlmText(text);
-                            }
-                        }
-
-                        @Override
-                        public void onToolTrace(String toolTrace) {
-                            String namesOnly = ToolTraceFormatter.toolNamesOnly(toolTrace);
-                            if (TextUtils.isEmpty(namesOnly)) return;
-                            runOnUiThread(() -> appendChatLine("工具", namesOnly));
-                            AccessCtlService s = AccessCtlService.getInstance();
-                            if (s != null) {
-                                s.appendOverlayLogLine("[工具] " + namesOnly);
-                            }
-                        }
-
-                        @Override
-                        public void onToolHistory(JSONArray toolHistory) {
-                        }
-
-                        @Override
-                        public void onToolCalls(JSONArray toolCalls) {
-                            toolCallsHolder[0] = toolCalls;
-                            String names = JavaMcpTools.toolNamesOnly(toolCalls);
-                            if (!TextUtils.isEmpty(names)) {
-                                runOnUiThread(() -> appendChatLine("需要调用工具", names));
-                                AccessCtlService s = AccessCtlService.getInstance();
-                                if (s != null) {
-                                    s.appendOverlayLogLine("[需要工具] " + names);
-                                }
-                            }
-                        }
-
-                        @Override
-                        public void onFinishReason(String finishReason) {
-                        }
-
-                        @Override
-                        public void onDone() {
-                        }
-
-                        @Override
-                        public void onError(String message) {
-                            errorHolder[0] = message;
-                        }
-                    });
-
-            if (!TextUtils.isEmpty(errorHolder[0])) {
-                runOnUiThread(() -> appendChatLine("系统", "请求失败：" + errorHolder[0]));
-                AccessCtlService s = AccessCtlService.getInstance();
-                if (s != null) {
-                    s.appendOverlayLogLine("[系统] 请求失败：" + errorHolder[0]);
-                }
-                return;
-            }
-
-            JSONArray toolCalls = toolCallsHolder[0];
-            if (toolCalls != null && toolCalls.length() > 0) {
-                try {
-                    JSONObject assistant = new JSONObject();
-                    assistant.put("role", "assistant");
-                    assistant.put("content", reply.toString());
-                    assistant.put("tool_calls", toolCalls);
-                    chatMessages.add(assistant);
-                } catch (Exception ignore) {
-                }
-
-                for (int i = 0; i < toolCalls.length(); i++) {
-                    JSONObject tc = toolCalls.optJSONObject(i);
-                    JSONObject result = JavaMcpTools.executeToolCall(tc, toolBridge);
-                    try {
-                        JSONObject toolMsg = new JSONObject();
-                        toolMsg.put("role", "tool");
-                        toolMsg.put("content", result.toString());
-                        chatMessages.add(toolMsg);
-                    } catch (Exception ignore) {
-                    }
-
-                    String name = "";
-                    try {
-                        JSONObject fn = tc == null ? null : tc.optJSONObject("function");
-                        name = fn == null ? "" : fn.optString("name", "");
-                    } catch (Exception ignore) {
-                    }
-                    final String nameFinal = name;
-                    final boolean ok = result.optBoolean("ok", false);
-                    runOnUiThread(() -> appendChatLine("工具结果", nameFinal + " ok=" + ok));
-                    AccessCtlService s = AccessCtlService.getInstance();
-                    if (s != null) {
-                        s.appendOverlayLogLine("[工具结果] " + nameFinal + " ok=" + ok);
-                    }
-                }
-
-                runOnUiThread(() -> appendChatLine("系统", "工具执行完成，继续推理…"));
-                continue;
-            }
-
-            try {
-                JSONObject assistant = new JSONObject();
-                assistant.put("role", "assistant");
-                assistant.put("content", reply.toString());
-                chatMessages.add(assistant);
-            } catch (Exception ignore) {
-            }
-
-            runOnUiThread(() -> appendChatLine("系统", "完成"));
-            AccessCtlService s = AccessCtlService.getInstance();
-            if (s != null) {
-                s.appendOverlayLogLine("[系统] 完成");
-            }
-            return;
+                })
+                .build();
+        AgentLoop previous = chatLoop;
+        if (previous != null) {
+            previous.cancel();
         }
+        chatLoop = loop;
+        loop.start(chatMessages, firstUserText);
+    }
 
-        runOnUiThread(() -> appendChatLine("系统", "超过最大工具循环次数，已停止。"));
+    private static void overlayLog(String line) {
         AccessCtlService s = AccessCtlService.getInstance();
         if (s != null) {
-            s.appendOverlayLogLine("[系统] 超过最大工具循环次数，已停止。");
-        }
-        } catch (Exception e) {
-            Log.e(TAG, "runToolLoop exception: " + e, e);
-            runOnUiThread(() -> appendChatLine("系统", "runToolLoop 异常: " + e));
-            AccessCtlService s = AccessCtlService.getInstance();
-            if (s != null) {
-                s.appendOverlayLogLine("[系统] runToolLoop 异常: " + e);
-            }
-            throw e;
+            s.appendOverlayLogLine(line);
         }
     }
 
@@ -628,43 +508,6 @@ public class MainActivity extends AppCompatActivity {
         return false;
     }
 
-    private void appendToolHistoryToMessages(JSONArray toolHistory, List<JSONObject> messages) {
-        if (toolHistory == null || toolHistory.length() == 0 || messages == null) {
-            return;
-        }
-        final int maxLen = 2000;
-        for (int i = 0; i < toolHistory.length(); i++) {
-            JSONObject item = toolHistory.optJSONObject(i);
-            if (item == null) continue;
-            String name = item.optString("name", "");
-            boolean ok = item.optBoolean("ok", false);
-            String error = item.optString("error", "");
-            Object result = item.opt("result");
-
-            StringBuilder sb = new StringBuilder();
-            sb.append("[工具结果] ").append(name).append('\n');
-            sb.append("ok=").append(ok);
-            if (!TextUtils.isEmpty(error)) {
-                sb.append(" error=").append(error);
-            }
-            if (result != null) {
-                String r = String.valueOf(result);
-                if (r.length() > maxLen) {
-                    r = r.substring(0, maxLen) + "...(truncated,len=" + r.length() + ")";
-                }
-                sb.append('\n').append(r);
-            }
-
-            try {
-                JSONObject msg = new JSONObject();
-                msg.put("role", "system");
-                msg.put("content", sb.toString());
-                messages.add(msg);
-            } catch (Exception ignore) {
-            }
-        }
-    }
-
     private void appendChatLine(String who, String text) {
         String prev = outputText.getText() == null ? "" : outputText.getText().toString();
         StringBuilder sb = new StringBuilder(prev);
@@ -737,10 +580,25 @@ public class MainActivity extends AppCompatActivity {
                 "nllb_600m"
         };
         android.widget.ArrayAdapter<String> adapter = new android.widget.ArrayAdapter<>(
-                this, android.R.layout.simple_spinner_item, models);
+                this, android.R.layout.simple_spinner_item,
+                new java.util.ArrayList<>(java.util.Arrays.asList(models)));
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         modelSpinner.setAdapter(adapter);
         modelSpinner.setSelection(0);
+
+        // Models published in the mirror catalog are appended once it is loaded.
+        new Thread(() -> {
+            java.util.List<ModelCatalog.Model> catalog = ModelCatalog.get(getApplicationContext(), false);
+            java.util.List<String> extra = new java.util.ArrayList<>();
+            for (ModelCatalog.Model m : catalog) {
+                if (!java.util.Arrays.asList(models).contains(m.name)) {
+                    extra.add(m.name);
+                }
+            }
+            if (!extra.isEmpty()) {
+                runOnUiThread(() -> adapter.addAll(extra));
+            }
+        }, "model-catalog").start();
     }
 
     private void updateDownloadUi(String file, long downloaded, long total, long speed) {
@@ -748,14 +606,26 @@ public class MainActivity extends AppCompatActivity {
             downloadProgress.setIndeterminate(false);
             int progress = (int) Math.min(1000, (downloaded * 1000L) / total);
             downloadProgress.setProgress(progress);
-            downloadStatus.setText("下载中：" + file + " " + (progress / 10.0f) + "%");
+            downloadStatus.setText("下载中：" + file + " " + (progress / 10.0f) + "%" + readySuffix());
         } else {
             downloadProgress.setIndeterminate(true);
-            downloadStatus.setText("下载中：" + file);
+            downloadStatus.setText("下载中：" + file + readySuffix());
         }
         downloadSpeed.setText("下载速度：" + formatSpeed(speed));
     }
 
+    private String readySuffix() {
+        return filesReady > 0 ? "（已就绪 " + filesReady + " 个文件）" : "";
+    }
+
+    private String formatBytes(long bytes) {
+        double mb = bytes / (1024.0 * 1024.0);
+        if (mb < 1024) {
+            return new DecimalFormat("0.0").format(mb) + " MB";
+        }
+        return new DecimalFormat("0.00").format(mb / 1024.0) + " GB";
+    }
+
     private String formatSpeed(long bytesPerSec) {
         if (bytesPerSec <= 0) {
             return "0 KB/s";
@@ -0,0 +1,272 @@
+package com.example.ncnn_llm_ctl;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the model mirror to download from.
+ *
+ * Mirrors come from the {@code model_mirrors} string array. Each mirror host keeps a small
+ * health record: smoothed latency and throughput plus consecutive failures. Those come from
+ * parallel probes and from every real transfer reported by {@link RangedDownloader}.
+ * Mirrors are ordered by the estimated time to fetch a reference chunk, and a mirror that
+ * keeps failing is pushed to the back for a cool-down period.
+ */
+public final class MirrorSelector {
+    private static final String TAG = "MirrorSelector";
+    public static final String DEFAULT_MIRROR = "https://mirrors.sdu.edu.cn/ncnn_modelzoo/";
+
+    private static final int PROBE_BYTES = 256 * 1024;
+    private static final int PROBE_TIMEOUT_MS = 3000;
+    private static final long PROBE_DEADLINE_MS = 5000;
+    private static final long PROBE_TTL_MS = 10 * 60 * 1000;
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    private static final double EWMA_ALPHA = 0.3;
+    // Score = estimated ms to fetch REF_BYTES; unknown mirrors assume the defaults below.
+    private static final double REF_BYTES = 8.0 * 1024 * 1024;
+    private static final double DEFAULT_LATENCY_MS = 500;
+    private static final double DEFAULT_BYTES_PER_SEC = 512 * 1024;
+    private static final int QUARANTINE_FAILURES = 3;
+    private static final long QUARANTINE_MS = 2 * 60 * 1000;
+
+    private static final ConcurrentHashMap<String, Health> HEALTH = new ConcurrentHashMap<>();
+    private static final AtomicInteger THREAD_SEQ = new AtomicInteger(1);
+    private static final ExecutorService PROBE_POOL = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "mirror-probe-" + THREAD_SEQ.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private MirrorSelector() {
+    }
+
+    /** Configured mirror base URLs (with trailing slash, deduplicated), never empty. */
+    public static List<String> configuredMirrors(Context context) {
+        LinkedHashSet<String> out = new LinkedHashSet<>();
+        try {
+            for (String m : context.getResources().getStringArray(R.array.model_mirrors)) {
+                if (m == null || m.trim().isEmpty()) continue;
+                String t = m.trim();
+                out.add(t.endsWith("/") ? t : t + "/");
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "model_mirrors unavailable: " + e.getMessage());
+        }
+        if (out.isEmpty()) {
+            out.add(DEFAULT_MIRROR);
+        }
+        return new ArrayList<>(out);
+    }
+
+    /**
+     * Probes {@code bases} in parallel (those not probed within PROBE_TTL_MS) by fetching up to
+     * PROBE_BYTES of {@code probeRel} from each, then returns them best first.
+     */
+    public static List<String> rank(List<String> bases, String probeRel) {
+        if (bases.size() <= 1) {
+            return new ArrayList<>(bases);
+        }
+        long now = System.currentTimeMillis();
+        List<Future<?>> probes = new ArrayList<>();
+        for (String base : bases) {
+            Health h = health(base);
+            if (h == null || now - h.probedAt < PROBE_TTL_MS) {
+                continue;
+            }
+            h.probedAt = now;
+            probes.add(PROBE_POOL.submit(() -> probe(base + probeRel)));
+        }
+        long deadline = now + PROBE_DEADLINE_MS;
+        for (Future<?> f : probes) {
+            try {
+                f.get(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                // Timed out or failed; probe() records failures itself.
+                f.cancel(true);
+            }
+        }
+        List<String> ranked = order(bases);
+        Log.i(TAG, "Mirror ranking: " + describe(ranked));
+        return ranked;
+    }
+
+    /** Orders {@code bases} by current health without any network I/O. */
+    public static List<String> order(List<String> bases) {
+        List<String> sorted = new ArrayList<>(bases);
+        if (sorted.size() <= 1) {
+            return sorted;
+        }
+        long now = System.currentTimeMillis();
+        final double[] scores = new double[sorted.size()];
+        for (int i = 0; i < sorted.size(); i++) {
+            Health h = health(sorted.get(i));
+            scores[i] = h == null ? Double.MAX_VALUE : h.score(now);
+        }
+        // Stable insertion sort: keeps configured order among equal scores.
+        for (int i = 1; i < sorted.size(); i++) {
+            String u = sorted.get(i);
+            double s = scores[i];
+            int j = i - 1;
+            while (j >= 0 && scores[j] > s) {
+                sorted.set(j + 1, sorted.get(j));
+                scores[j + 1] = scores[j];
+                j--;
+            }
+            sorted.set(j + 1, u);
+            scores[j + 1] = s;
+        }
+        return sorted;
+    }
+
+    /** Estimated ms to fetch {@code bytes} from the best of {@code bases}. */
+    public static long estimateMillis(List<String> bases, long bytes) {
+        long now = System.currentTimeMillis();
+        double best = Double.MAX_VALUE;
+        for (String base : bases) {
+            Health h = health(base);
+            if (h != null) {
+                best = Math.min(best, h.estimateMs(bytes, now));
+            }
+        }
+        return best == Double.MAX_VALUE ? -1 : (long) best;
+    }
+
+    /** Time to the first response from {@code url}'s mirror. */
+    static void reportLatency(String url, long ms) {
+        Health h = health(url);
+        if (h != null) {
+            h.onLatency(ms);
+        }
+    }
+
+    /** A completed body transfer of {@code bytes} in {@code ms} from {@code url}'s mirror. */
+    static void reportTransfer(String url, long bytes, long ms) {
+        Health h = health(url);
+        if (h != null) {
+            h.onTransfer(bytes, ms);
+        }
+    }
+
+    static void reportFailure(String url) {
+        Health h = health(url);
+        if (h != null) {
+            h.onFailure();
+        }
+    }
+
+    private static void probe(String url) {
+        HttpURLConnection conn = null;
+        long startMs = System.currentTimeMillis();
+        try {
+            conn = (HttpURLConnection) new URL(url).openConnection();
+            conn.setConnectTimeout(PROBE_TIMEOUT_MS);
+            conn.setReadTimeout(PROBE_TIMEOUT_MS);
+            conn.setInstanceFollowRedirects(true);
+            conn.setRequestProperty("Accept-Encoding", "identity");
+            conn.setRequestProperty("Range", "bytes=0-" + (PROBE_BYTES - 1));
+            int code = conn.getResponseCode();
+            long ttfb = System.currentTimeMillis() - startMs;
+            if (code < 200 || code >= 300) {
+                reportFailure(url);
+                return;
+            }
+            reportLatency(url, ttfb);
+            long bodyStart = System.currentTimeMillis();
+            long read = 0;
+            byte[] buf = new byte[16 * 1024];
+            try (InputStream in = conn.getInputStream()) {
+                int n;
+                while (read < PROBE_BYTES && (n = in.read(buf)) >= 0) {
+                    read += n;
+                }
+            }
+            reportTransfer(url, read, System.currentTimeMillis() - bodyStart);
+        } catch (Exception e) {
+            reportFailure(url);
+        } finally {
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private static String describe(List<String> bases) {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder();
+        for (String b : bases) {
+            Health h = health(b);
+            if (sb.length() > 0) sb.append(", ");
+            sb.append(b).append(" score=").append(h == null ? "?" : String.valueOf((long) h.score(now)));
+        }
+        return sb.toString();
+    }
+
+    /** Health record of {@code url}'s origin (scheme://host:port), or null for bad URLs. */
+    private static Health health(String url) {
+        String origin;
+        try {
+            URL u = new URL(url);
+            origin = u.getProtocol() + "://" + u.getAuthority();
+        } catch (Exception e) {
+            return null;
+        }
+        return HEALTH.computeIfAbsent(origin, k -> new Health());
+    }
+
+    private static final class Health {
+        volatile long probedAt;
+        private double latencyMs = -1;
+        private double bytesPerSec = -1;
+        private int failures;
+        private long lastFailureAt;
+
+        synchronized void onLatency(long ms) {
+            latencyMs = latencyMs < 0 ? ms : latencyMs + EWMA_ALPHA * (ms - latencyMs);
+            failures = 0;
+        }
+
+        synchronized void onTransfer(long bytes, long ms) {
+            failures = 0;
+            if (bytes < MIN_SAMPLE_BYTES) {
+                return;
+            }
+            double bps = bytes * 1000.0 / Math.max(1, ms);
+            bytesPerSec = bytesPerSec < 0 ? bps : bytesPerSec + EWMA_ALPHA * (bps - bytesPerSec);
+        }
+
+        synchronized void onFailure() {
+            failures++;
+            lastFailureAt = System.currentTimeMillis();
+        }
+
+        /** Estimated ms to fetch REF_BYTES; lower is better. */
+        synchronized double score(long now) {
+            if (failures >= QUARANTINE_FAILURES && now - lastFailureAt < QUARANTINE_MS) {
+                return Double.MAX_VALUE / 2;
+            }
+            return estimateMs(REF_BYTES, now) * (1 + failures);
+        }
+
+        synchronized double estimateMs(double bytes, long now) {
+            double lat = latencyMs >= 0 ? latencyMs : DEFAULT_LATENCY_MS;
+            double bps = bytesPerSec > 0 ? bytesPerSec : DEFAULT_BYTES_PER_SEC;
+            return lat + bytes * 1000.0 / bps;
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.example.ncnn_llm_ctl;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Index of the models a mirror offers ({@code catalog.json} at the mirror root), fetched in
+ * one request:
+ *
+ * <pre>
+ * {"models": [{"name": "qwen3_0.6b", "quantization": "fp16",
+ *              "files": {"model.json": {"size": 1234, "sha256": "..."}, ...}}]}
+ * </pre>
+ *
+ * The last copy is cached in {@code ncnn_models/catalog.cache.json} together with its
+ * ETag/Last-Modified and revalidated with a conditional GET once CATALOG_TTL_MS has passed,
+ * so a fresh catalog usually costs one 304. Offline, the cached copy is served as is.
+ * Mirrors that publish no catalog just leave it empty.
+ */
+public final class ModelCatalog {
+    private static final String TAG = "ModelCatalog";
+    static final String FILE_NAME = "catalog.json";
+    private static final String CACHE_NAME = "catalog.cache.json";
+    private static final long CATALOG_TTL_MS = 6L * 60 * 60 * 1000;
+    private static final int TIMEOUT_MS = 5000;
+    private static final int MAX_BYTES = 4 * 1024 * 1024;
+
+    public static final class FileInfo {
+        public final long size;
+        public final String sha256;
+
+        FileInfo(long size, String sha256) {
+            this.size = size;
+            this.sha256 = sha256;
+        }
+    }
+
+    public static final class Model {
+        public final String name;
+        public final String quantization;
+        /** rel path -> size/hash, in catalog order. */
+        public final Map<String, FileInfo> files;
+
+        Model(String name, String quantization, Map<String, FileInfo> files) {
+            this.name = name;
+            this.quantization = quantization;
+            this.files = Collections.unmodifiableMap(files);
+        }
+
+        public long totalBytes() {
+            long sum = 0;
+            for (FileInfo f : files.values()) {
+                sum += f.size;
+            }
+            return sum;
+        }
+    }
+
+    /** What fetching a model would take, from {@link ModelDownloader#estimateDownload}. */
+    public static final class Estimate {
+        public final long downloadBytes;
+        public final long diskBytes;
+        public final long freeBytes;
+        public final long etaMs;
+
+        Estimate(long downloadBytes, long diskBytes, long freeBytes, long etaMs) {
+            this.downloadBytes = downloadBytes;
+            this.diskBytes = diskBytes;
+            this.freeBytes = freeBytes;
+            this.etaMs = etaMs;
+        }
+
+        public boolean fits() {
+            return diskBytes <= freeBytes;
+        }
+    }
+
+    private static final class Snapshot {
+        final String url;
+        final String etag;
+        final String lastModified;
+        final long fetchedAt;
+        final JSONObject raw;
+        final List<Model> models;
+
+        Snapshot(String url, String etag, String lastModified, long fetchedAt, JSONObject raw, List<Model> models) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.fetchedAt = fetchedAt;
+            this.raw = raw;
+            this.models = models;
+        }
+    }
+
+    private static final Object LOCK = new Object();
+    // Guarded by LOCK.
+    private static Snapshot current;
+    private static boolean loaded;
+
+    private ModelCatalog() {
+    }
+
+    /**
+     * The catalog, revalidated against the mirrors when the cached copy is older than
+     * CATALOG_TTL_MS (or always with {@code refresh}). Does network I/O; never on the main
+     * thread. Empty when no mirror publishes a catalog and nothing is cached.
+     */
+    public static List<Model> get(Context context, boolean refresh) {
+        synchronized (LOCK) {
+            Snapshot s = loadCached(context);
+            if (!refresh && s != null && System.currentTimeMillis() - s.fetchedAt < CATALOG_TTL_MS) {
+                return s.models;
+            }
+            Snapshot fresh = fetch(context, s);
+            if (fresh != null) {
+                current = fresh;
+                save(context, fresh);
+                return fresh.models;
+            }
+            return s != null ? s.models : Collections.emptyList();
+        }
+    }
+
+    /** The cached catalog without any network I/O; empty if never fetched. */
+    public static List<Model> cached(Context context) {
+        synchronized (LOCK) {
+            Snapshot s = loadCached(context);
+            return s != null ? s.models : Collections.emptyList();
+        }
+    }
+
+    /** {@code name} from the catalog ({@link #get} semantics), or null. */
+    public static Model find(Context context, String name) {
+        return find(get(context, false), name);
+    }
+
+    static Model find(List<Model> models, String name) {
+        for (Model m : models) {
+            if (m.name.equals(name)) {
+                return m;
+            }
+        }
+        return null;
+    }
+
+    private static File cacheFile(Context context) {
+        File base = context.getExternalFilesDir(null);
+        return base == null ? null : new File(base, "ncnn_models/" + CACHE_NAME);
+    }
+
+    private static Snapshot loadCached(Context context) {
+        if (loaded) {
+            return current;
+        }
+        loaded = true;
+        File file = cacheFile(context);
+        if (file == null || !file.exists()) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(readAll(file));
+            JSONObject raw = json.getJSONObject("catalog");
+            current = new Snapshot(json.optString("url", ""), json.optString("etag", null),
+                    json.optString("lastModified", null), json.optLong("fetchedAt", 0), raw, parse(raw));
+        } catch (Exception e) {
+            Log.w(TAG, "Ignoring unreadable catalog cache: " + e.getMessage());
+        }
+        return current;
+    }
+
+    /**
+     * Fetches the catalog from the first mirror that has one. The mirror the cached copy came
+     * from gets If-None-Match/If-Modified-Since and may answer 304.
+     */
+    private static Snapshot fetch(Context context, Snapshot prev) {
+        long now = System.currentTimeMillis();
+        for (String mirror : MirrorSelector.order(MirrorSelector.configuredMirrors(context))) {
+            String url = mirror + FILE_NAME;
+            HttpURLConnection conn = null;
+            try {
+                conn = (HttpURLConnection) new URL(url).openConnection();
+                conn.setConnectTimeout(TIMEOUT_MS);
+                conn.setReadTimeout(TIMEOUT_MS);
+                conn.setInstanceFollowRedirects(true);
+                boolean conditional = prev != null && url.equals(prev.url);
+                if (conditional && !TextUtils.isEmpty(prev.etag)) {
+                    conn.setRequestProperty("If-None-Match", prev.etag);
+                }
+                if (conditional && !TextUtils.isEmpty(prev.lastModified)) {
+                    conn.setRequestProperty("If-Modified-Since", prev.lastModified);
+                }
+                int code = conn.getResponseCode();
+                if (code == 304 && conditional) {
+                    Log.i(TAG, "Catalog not modified: " + url);
+                    return new Snapshot(prev.url, prev.etag, prev.lastModified, now, prev.raw, prev.models);
+                }
+                if (code == 404) {
+                    continue;
+                }
+                if (code < 200 || code >= 300) {
+                    MirrorSelector.reportFailure(url);
+                    continue;
+                }
+                JSONObject raw = new JSONObject(readBody(conn));
+                List<Model> models = parse(raw);
+                Log.i(TAG, "Catalog fetched: " + url + " models=" + models.size());
+                return new Snapshot(url, conn.getHeaderField("ETag"), conn.getHeaderField("Last-Modified"), now, raw, models);
+            } catch (Exception e) {
+                Log.w(TAG, "Catalog fetch failed: " + url + " err=" + e.getMessage());
+            } finally {
+                if (conn != null) {
+                    conn.disconnect();
+                }
+            }
+        }
+        return null;
+    }
+
+    private static List<Model> parse(JSONObject raw) throws Exception {
+        List<Model> out = new ArrayList<>();
+        JSONArray models = raw.getJSONArray("models");
+        for (int i = 0; i < models.length(); i++) {
+            JSONObject m = models.getJSONObject(i);
+            String name = m.optString("name", "");
+            if (name.isEmpty()) continue;
+            Map<String, FileInfo> files = new LinkedHashMap<>();
+            JSONObject f = m.optJSONObject("files");
+            if (f != null) {
+                Iterator<String> it = f.keys();
+                while (it.hasNext()) {
+                    String rel = it.next();
+                    JSONObject e = f.getJSONObject(rel);
+                    files.put(rel, new FileInfo(e.optLong("size", -1), e.optString("sha256", "")));
+                }
+            }
+            out.add(new Model(name, m.optString("quantization", ""), files));
+        }
+        return Collections.unmodifiableList(out);
+    }
+
+    /** Writes the cache atomically (tmp, fsync, rename). */
+    private static void save(Context context, Snapshot s) {
+        File file = cacheFile(context);
+        if (file == null) {
+            return;
+        }
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            File dir = file.getParentFile();
+            if (dir != null && !dir.exists() && !dir.mkdirs()) {
+                throw new IOException("mkdirs failed: " + dir.getAbsolutePath());
+            }
+            JSONObject json = new JSONObject();
+            json.put("url", s.url);
+            json.put("etag", s.etag);
+            json.put("lastModified", s.lastModified);
+            json.put("fetchedAt", s.fetchedAt);
+            json.put("catalog", s.raw);
+            try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+                out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed: " + tmp.getAbsolutePath());
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "save failed: " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    private static String readBody(HttpURLConnection conn) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[16 * 1024];
+        try (InputStream in = conn.getInputStream()) {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+                if (out.size() > MAX_BYTES) {
+                    throw new IOException("catalog larger than " + MAX_BYTES + " bytes");
+                }
+            }
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String readAll(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        int read = 0;
+        try (FileInputStream in = new FileInputStream(file)) {
+            while (read < data.length) {
+                int n = in.read(data, read, data.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+        }
+        return new String(data, 0, read, StandardCharsets.UTF_8);
+    }
+}
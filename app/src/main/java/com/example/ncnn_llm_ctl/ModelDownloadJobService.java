@@ -0,0 +1,61 @@
+package com.example.ncnn_llm_ctl;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+
+/**
+ * Runs {@link ModelDownloader#ensureModel} for a job scheduled by
+ * {@link DownloadScheduler#scheduleBackground}. When the system stops the job (constraints
+ * lost) the worker is interrupted; the partial files stay resumable and the job is retried.
+ */
+public class ModelDownloadJobService extends JobService {
+    private static final String TAG = "ModelDownloadJob";
+
+    private volatile Thread worker;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        String modelName = params.getExtras().getString(DownloadScheduler.EXTRA_MODEL);
+        long limit = params.getExtras().getLong(DownloadScheduler.EXTRA_BANDWIDTH, 0);
+        if (modelName == null || modelName.trim().isEmpty()) {
+            return false;
+        }
+        Thread t = new Thread(() -> {
+            boolean reschedule = false;
+            long prevLimit = DownloadScheduler.getBandwidthLimit();
+            if (limit > 0) {
+                DownloadScheduler.setBandwidthLimit(limit);
+            }
+            try {
+                ModelDownloader.ensureModel(getApplicationContext(), modelName);
+                Log.i(TAG, "Background download done: " + modelName);
+            } catch (Exception e) {
+                reschedule = !Thread.currentThread().isInterrupted();
+                Log.w(TAG, "Background download failed: " + modelName + " err=" + e.getMessage());
+            } finally {
+                if (limit > 0) {
+                    DownloadScheduler.setBandwidthLimit(prevLimit);
+                }
+                worker = null;
+            }
+            if (!Thread.currentThread().isInterrupted()) {
+                jobFinished(params, reschedule);
+            }
+        }, "model-download-job");
+        t.setPriority(Thread.MIN_PRIORITY);
+        worker = t;
+        t.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        Thread t = worker;
+        if (t != null) {
+            Log.i(TAG, "Job stopped by the system, interrupting download");
+            t.interrupt();
+        }
+        return true;
+    }
+}
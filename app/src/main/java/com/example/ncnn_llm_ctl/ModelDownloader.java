@@ -1,29 +1,59 @@
 package com.example.ncnn_llm_ctl;
 
 import android.content.Context;
+import android.os.Process;
 import android.util.Log;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class ModelDownloader {
     private static final String TAG = "ModelDownloader";
-    private static final String DEFAULT_BASE_URL = "https://mirrors.sdu.edu.cn/ncnn_modelzoo/";
     private static final int CONNECT_TIMEOUT_MS = 15000;
     private static final int READ_TIMEOUT_MS = 30000;
+    private static final int MAX_PARALLEL_FILES = 3;
+    private static final long REVALIDATE_INTERVAL_MS = 24L * 60 * 60 * 1000;
+    // Optional common files some models expect but may not be listed in model.json.
+    private static final String[] OPTIONAL_FILES = new String[] {
+            "vocab.txt",
+            "vocab.json",
+            "tokenizer.json",
+            "tokenizer.model",
+            "merges.txt"
+    };
+    private static final Set<String> REVALIDATING = ConcurrentHashMap.newKeySet();
+    // Files up to this size that were already on disk are read once to warm the page cache.
+    private static final long PREWARM_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int MAX_DELTA_BASIS = 3;
+    private static final ExecutorService FILE_POOL = Executors.newFixedThreadPool(MAX_PARALLEL_FILES, r -> {
+        // Downloads must not compete with inference and the UI for CPU.
+        Thread t = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, "dl-file");
+        t.setDaemon(true);
+        return t;
+    });
 
     private ModelDownloader() {
     }
@@ -32,11 +62,36 @@ public final class ModelDownloader {
         void onProgress(String file, long downloadedBytes, long totalBytes, long speedBytesPerSec);
     }
 
+    /**
+     * Fired on a download thread as soon as one file is on disk and has passed the per-file
+     * checks. {@code remainingRequired} counts files from model.json still in flight; 0 means
+     * the last required byte has landed. Only files checked or fetched by this call are
+     * reported, so a warm start served from the ready record fires nothing.
+     */
+    public interface FileListener {
+        void onFileReady(String rel, File file, int remainingRequired);
+    }
+
     public static File ensureModel(Context context, String modelName) throws IOException {
         return ensureModel(context, modelName, null);
     }
 
     public static File ensureModel(Context context, String modelName, ProgressListener listener) throws IOException {
+        return ensureModel(context, modelName, listener, null);
+    }
+
+    /**
+     * Makes sure {@code modelName} is complete on disk and returns its dir. Downloads are
+     * pipelined: the largest file (the decoder weights) starts first so the critical path
+     * begins immediately, while the other workers fetch tokenizer files, .param files and the
+     * small nets; each of those is checked and announced to {@code fileListener} while the
+     * large .bin is still streaming.
+     */
+    public static File ensureModel(Context context,
+                                   String modelName,
+                                   ProgressListener rawListener,
+                                   FileListener fileListener) throws IOException {
+        ProgressListener listener = DownloadScheduler.coalesce(rawListener);
         if (context == null) {
             throw new IOException("Context is null");
         }
@@ -52,12 +107,38 @@ public final class ModelDownloader {
             throw new IOException("Failed to create model dir: " + modelDir.getAbsolutePath());
         }
 
-        String baseUrl = DEFAULT_BASE_URL + modelName + "/";
-        Log.i(TAG, "ensureModel modelName=" + modelName + " modelDir=" + modelDir.getAbsolutePath() + " baseUrl=" + baseUrl);
+        // Warm start: one stat per file against the last successful validation.
+        ModelReadyRecord ready = ModelReadyRecord.get(modelDir);
+        if (ready != null) {
+            if (ready.matchesDisk()) {
+                if (System.currentTimeMillis() - ready.validatedAt > REVALIDATE_INTERVAL_MS) {
+                    scheduleRevalidate(modelDir, modelName);
+                }
+                return modelDir;
+            }
+            Log.i(TAG, "Ready record stale, full check. modelDir=" + modelDir.getAbsolutePath());
+        }
+
+        List<String> mirrors = MirrorSelector.configuredMirrors(context);
+        Log.i(TAG, "ensureModel modelName=" + modelName + " modelDir=" + modelDir.getAbsolutePath() + " mirrors=" + mirrors);
+        List<String> bases = null;
 
+        ModelManifest manifest = ModelManifest.load(modelDir);
         File modelJson = new File(modelDir, "model.json");
+        // Anything below may rewrite files; the ready record is re-created once all pass.
+        ModelReadyRecord.invalidate(modelDir);
+        if (modelJson.exists() && manifest.contains("model.json")) {
+            String bad = manifest.verify("model.json", false);
+            if (bad != null) {
+                Log.w(TAG, "model.json does not match manifest (" + bad + "), will re-download");
+                //noinspection ResultOfMethodCallIgnored
+                modelJson.delete();
+                manifest.remove("model.json");
+            }
+        }
         if (!modelJson.exists() || modelJson.length() == 0) {
-            downloadUrlToFile(baseUrl + "model.json", modelJson, listener, "model.json");
+            bases = rankMirrors(mirrors, modelName);
+            downloadUrlToFile(urlsFor(bases, "model.json"), modelJson, listener, "model.json", manifest, false);
         }
 
         Set<String> files = new HashSet<>();
@@ -72,68 +153,530 @@ public final class ModelDownloader {
 
         String preCheck = checkFiles(modelDir, files);
         if (preCheck == null) {
+            preCheck = checkManifest(manifest, files);
+        }
+        if (preCheck == null) {
+            manifest.save();
+            markReady(modelDir, files);
             Log.i(TAG, "Model already complete, skip download. modelDir=" + modelDir.getAbsolutePath());
             logModelSummary(modelDir, files);
             return modelDir;
         }
         Log.w(TAG, "Model incomplete before download: " + preCheck);
 
-        long totalBytes = 0;
-        long downloadedBytes = 0;
-        for (String rel : files) {
-            File out = new File(modelDir, rel);
-            if (out.exists() && out.length() > 0) {
-                long localSize = out.length();
-                Long remoteSize = tryGetRemoteSize(baseUrl + rel);
-                if (remoteSize != null && remoteSize > 0 && localSize != remoteSize) {
-                    Log.w(TAG, "Size mismatch, will re-download: " + rel + " local=" + localSize + " remote=" + remoteSize);
+        final List<String> ranked = bases != null ? bases : rankMirrors(mirrors, modelName);
+        final ChunkIndex chunkIndex = ChunkIndex.fetch(ranked, modelDir);
+        final ModelCatalog.Model listing = ModelCatalog.find(context, modelName);
+        final BlobStore blobs = BlobStore.forModelDir(modelDir);
+        final AtomicInteger remaining = new AtomicInteger(files.size());
+        List<Callable<long[]>> tasks = new ArrayList<>();
+        final List<String> taskNames = new ArrayList<>();
+        for (String rel : pipelineOrder(files, manifest)) {
+            final String relFinal = rel;
+            taskNames.add(rel);
+            tasks.add(() -> {
+                long[] result = fetchRequired(modelDir, relFinal, ranked, listener, manifest, chunkIndex, listing, blobs);
+                fileDone(modelDir, relFinal, result == null, remaining.decrementAndGet(), fileListener);
+                return result;
+            });
+        }
+        // Optional tokenizer files share the pool; they are small and usually done early.
+        List<Callable<long[]>> optional = optionalTasks(modelDir, files, ranked, listener, manifest, remaining, fileListener);
+        tasks.addAll(1, optional);
+        for (int i = 0; i < optional.size(); i++) {
+            taskNames.add(1, "optional");
+        }
+        final long[] totals = new long[2];
+        try {
+            runParallel(tasks, (index, result) -> {
+                if (result == null) {
+                    return;
+                }
+                synchronized (totals) {
+                    if (result[1] > 0) {
+                        totals[0] += result[1];
+                    }
+                    totals[1] += result[0];
+                    if (listener != null) {
+                        listener.onProgress(taskNames.get(index), totals[1], totals[0], 0);
+                    }
+                }
+            });
+        } finally {
+            manifest.save();
+        }
+
+        // Final check: prevent native crash due to missing/empty files.
+        String finalCheck = checkModelLikelyRunnable(modelDir, files, modelName);
+        logModelSummary(modelDir, files);
+        if (finalCheck != null) {
+            Log.e(TAG, "Model still incomplete after download: " + finalCheck);
+            throw new IOException(finalCheck);
+        }
+        markReady(modelDir, files);
+        blobs.prune();
+
+        return modelDir;
+    }
+
+    /**
+     * Gets one required file, cheapest source first: the existing file, an identical blob
+     * (no network), a delta against older or sibling copies when the mirror publishes a
+     * chunk index, and finally a full download. Returns null when nothing was downloaded.
+     * Sizes and hashes come from the chunk index or else the catalog {@code listing}.
+     */
+    private static long[] fetchRequired(File modelDir,
+                                        String relFinal,
+                                        List<String> ranked,
+                                        ProgressListener listener,
+                                        ModelManifest manifest,
+                                        ChunkIndex index,
+                                        ModelCatalog.Model listing,
+                                        BlobStore blobs) throws IOException {
+        File out = new File(modelDir, relFinal);
+        // Re-ordered per file so earlier failures and measured speeds count.
+        List<String> urls = urlsFor(ranked, relFinal);
+        ChunkIndex.FileChunks chunks = index != null ? index.get(relFinal) : null;
+        ModelCatalog.FileInfo info = listing != null ? listing.files.get(relFinal) : null;
+        if (chunks != null) {
+            info = new ModelCatalog.FileInfo(chunks.size, chunks.sha256);
+        }
+        File old = null;
+        if (out.exists() && out.length() > 0) {
+            ModelManifest.Entry e = manifest.get(relFinal);
+            if (chunks != null && e != null && !e.sha256.equals(chunks.sha256)) {
+                // Outdated according to the mirror's index; keep it around as delta basis.
+                old = new File(out.getAbsolutePath() + ".old");
+                if (!out.renameTo(old)) {
+                    old = null;
                     //noinspection ResultOfMethodCallIgnored
                     out.delete();
-                } else {
-                    Log.i(TAG, "Skip existing file: " + rel + " size=" + localSize + (remoteSize != null ? " remote=" + remoteSize : ""));
-                    continue;
                 }
+                manifest.remove(relFinal);
+                Log.i(TAG, "Update available for " + relFinal + " sha256=" + chunks.sha256);
+            } else if (keepExisting(manifest, out, relFinal, urls.get(0), info)) {
+                return null;
             }
-            File parent = out.getParentFile();
+        }
+        File parent = out.getParentFile();
+        synchronized (ModelDownloader.class) {
             if (parent != null && !parent.exists() && !parent.mkdirs()) {
                 throw new IOException("Failed to create dir: " + parent.getAbsolutePath());
             }
-            long[] result = downloadUrlToFile(baseUrl + rel, out, listener, rel);
-            if (result[1] > 0) {
-                totalBytes += result[1];
+        }
+        try {
+            if (info != null) {
+                File blob = blobs.find(info.sha256, info.size);
+                if (blob != null && blobs.materialize(blob, out)) {
+                    manifest.put(relFinal, info.sha256);
+                    DownloadScheduler.recordFile(relFinal, "blob", 0, 0);
+                    Log.i(TAG, "Linked from blob store: " + relFinal + " size=" + info.size);
+                    return null;
+                }
+            }
+            if (chunks != null) {
+                List<File> basis = deltaBasis(modelDir, relFinal, old);
+                if (!basis.isEmpty()) {
+                    File tmp = new File(out.getAbsolutePath() + ".delta");
+                    long startMs = System.currentTimeMillis();
+                    try {
+                        long fetched = ChunkIndex.assemble(chunks, basis, urls, tmp, listener, relFinal);
+                        DownloadScheduler.recordFile(relFinal, "delta", fetched, System.currentTimeMillis() - startMs);
+                        if (!tmp.renameTo(out)) {
+                            throw new IOException("rename failed: " + tmp.getAbsolutePath());
+                        }
+                        manifest.put(relFinal, chunks.sha256);
+                        shareBlob(blobs, manifest, out, relFinal);
+                        return new long[] {chunks.size, chunks.size};
+                    } catch (IOException e) {
+                        Log.w(TAG, "Delta update failed for " + relFinal + ", full download: " + e.getMessage());
+                        //noinspection ResultOfMethodCallIgnored
+                        tmp.delete();
+                    }
+                }
             }
-            downloadedBytes += result[0];
-            if (listener != null) {
-                listener.onProgress(rel, downloadedBytes, totalBytes, 0);
+            long[] result = downloadUrlToFile(urls, out, listener, relFinal, manifest, false);
+            shareBlob(blobs, manifest, out, relFinal);
+            return result;
+        } finally {
+            if (old != null) {
+                //noinspection ResultOfMethodCallIgnored
+                old.delete();
             }
         }
+    }
 
-        // Optional common files some models expect but may not be listed in model.json.
-        String[] optional = new String[] {
-                "vocab.txt",
-                "vocab.json",
-                "tokenizer.json",
-                "tokenizer.model",
-                "merges.txt"
-        };
-        for (String rel : optional) {
+    /** Links {@code out} into the blob store; re-records it since linking may change the inode. */
+    private static void shareBlob(BlobStore blobs, ModelManifest manifest, File out, String rel) {
+        ModelManifest.Entry e = manifest.get(rel);
+        if (e != null && blobs.adopt(out, e.sha256)) {
+            manifest.put(rel, e.sha256);
+        }
+    }
+
+    /** Local files that may share chunks with {@code rel}: its previous version, then siblings. */
+    private static List<File> deltaBasis(File modelDir, String rel, File old) {
+        List<File> basis = new ArrayList<>();
+        if (old != null && old.exists()) {
+            basis.add(old);
+        }
+        File root = modelDir.getAbsoluteFile().getParentFile();
+        File[] siblings = root == null ? null : root.listFiles();
+        if (siblings != null) {
+            for (File dir : siblings) {
+                if (basis.size() >= MAX_DELTA_BASIS) break;
+                if (!dir.isDirectory() || dir.getName().startsWith(".") || dir.equals(modelDir.getAbsoluteFile())) {
+                    continue;
+                }
+                File f = new File(dir, rel);
+                if (f.isFile() && f.length() > 0) {
+                    basis.add(f);
+                }
+            }
+        }
+        return basis;
+    }
+
+    /**
+     * Submission order for the pool: the file expected to be largest first (it is the
+     * critical path), then small-to-large by kind so tokenizer, .param and the small nets
+     * land early. Sizes come from the manifest when known, otherwise from file names.
+     */
+    private static List<String> pipelineOrder(Set<String> files, ModelManifest manifest) {
+        List<String> order = new ArrayList<>(files);
+        String largest = null;
+        long largestSize = -1;
+        for (String rel : order) {
+            ModelManifest.Entry e = manifest.get(rel);
+            long size = e != null ? e.size : (rel.toLowerCase().endsWith(".bin") && rel.toLowerCase().contains("decoder") ? Long.MAX_VALUE : -1);
+            if (size > largestSize) {
+                largest = rel;
+                largestSize = size;
+            }
+        }
+        order.sort((a, b) -> Integer.compare(pipelineRank(a), pipelineRank(b)));
+        if (largest != null && largestSize > 0) {
+            order.remove(largest);
+            order.add(0, largest);
+        }
+        return order;
+    }
+
+    private static int pipelineRank(String rel) {
+        String lower = rel.toLowerCase();
+        if (lower.endsWith(".param")) return 1;
+        if (lower.endsWith(".bin")) return lower.contains("decoder") ? 3 : 2;
+        return 0;
+    }
+
+    /**
+     * Per-file checks right after a file lands, so a bad small file fails the whole run
+     * before the large .bin finishes. Files that were already on disk and are small are read
+     * once to pull them into the page cache ahead of the native load.
+     */
+    private static void fileDone(File modelDir, String rel, boolean fromDisk, int remaining, FileListener fileListener) throws IOException {
+        File f = new File(modelDir, rel);
+        if (!f.exists() || f.length() <= 0) {
+            throw new IOException("模型文件为空或缺失: " + rel);
+        }
+        String lower = rel.toLowerCase();
+        if (lower.endsWith(".param") || lower.endsWith(".bin")) {
+            String head = readHeadAsciiSafe(f, lower.endsWith(".param") ? 16 : 256);
+            if (lower.endsWith(".bin") && looksLikeHtmlOrError(head)) {
+                throw new IOException("Model .bin looks like HTML/text error: " + rel + " head=" + head);
+            }
+            if (lower.endsWith(".param") && head != null && !head.contains("7767517")) {
+                Log.w(TAG, "Param file header unexpected: file=" + rel + " head=\"" + head + "\"");
+            }
+        }
+        if (fromDisk && f.length() <= PREWARM_MAX_BYTES) {
+            prewarm(f);
+        }
+        Log.i(TAG, "File ready: " + rel + " size=" + f.length() + " remainingRequired=" + remaining);
+        if (fileListener != null) {
+            fileListener.onFileReady(rel, f, remaining);
+        }
+    }
+
+    private static void prewarm(File f) {
+        byte[] buf = new byte[256 * 1024];
+        try (FileInputStream in = new FileInputStream(f)) {
+            //noinspection StatementWithEmptyBody
+            while (in.read(buf) >= 0) {
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "prewarm failed: " + f.getName() + " " + e.getMessage());
+        }
+    }
+
+    /** Model base URLs on every configured mirror, best first (probes when stale). */
+    private static List<String> rankMirrors(List<String> mirrors, String modelName) {
+        List<String> bases = new ArrayList<>();
+        for (String m : mirrors) {
+            bases.add(m + modelName + "/");
+        }
+        return MirrorSelector.rank(bases, "model.json");
+    }
+
+    /** {@code rel} on each base, in the current health order. */
+    private static List<String> urlsFor(List<String> bases, String rel) {
+        List<String> urls = new ArrayList<>();
+        for (String base : MirrorSelector.order(bases)) {
+            urls.add(base + rel);
+        }
+        return urls;
+    }
+
+    /** Records the validated file set (plus manifest and present optional files) as ready. */
+    private static void markReady(File modelDir, Set<String> files) {
+        Set<String> rels = new HashSet<>(files);
+        rels.add(ModelManifest.FILE_NAME);
+        for (String rel : OPTIONAL_FILES) {
+            if (new File(modelDir, rel).exists()) {
+                rels.add(rel);
+            }
+        }
+        ModelReadyRecord.write(modelDir, rels);
+    }
+
+    /** Lazily re-runs the offline checks behind a ready record; see {@link #revalidate}. */
+    public static void revalidateInBackground(Context context, String modelName) {
+        File modelDir = context == null ? null : resolveModelDir(context, modelName);
+        if (modelDir != null) {
+            scheduleRevalidate(modelDir, modelName);
+        }
+    }
+
+    private static void scheduleRevalidate(File modelDir, String modelName) {
+        String key = modelDir.getAbsolutePath();
+        if (!REVALIDATING.add(key)) {
+            return;
+        }
+        FILE_POOL.execute(() -> {
+            try {
+                revalidate(modelDir, modelName);
+            } finally {
+                REVALIDATING.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Offline re-check of a model dir: model.json, the manifest (re-hashing files whose mtime
+     * moved) and the runnable checks. Refreshes the ready record on success; otherwise drops
+     * it so the next ensureModel takes the full path and repairs the model.
+     */
+    private static void revalidate(File modelDir, String modelName) {
+        long startMs = System.currentTimeMillis();
+        String problem;
+        Set<String> files = new HashSet<>();
+        ModelManifest manifest = ModelManifest.load(modelDir);
+        try {
+            collectFileRefs(new JSONObject(readAll(new File(modelDir, "model.json"))), files);
+            files.add("model.json");
+            problem = checkManifest(manifest, files);
+            if (problem == null) {
+                problem = checkModelLikelyRunnable(modelDir, files, modelName);
+            }
+        } catch (Exception e) {
+            problem = "model.json: " + e.getMessage();
+        }
+        if (problem != null) {
+            Log.w(TAG, "Revalidation failed, dropping ready record: " + problem);
+            ModelReadyRecord.invalidate(modelDir);
+            return;
+        }
+        manifest.save();
+        markReady(modelDir, files);
+        Log.i(TAG, "Revalidated " + modelDir.getAbsolutePath() + " costMs=" + (System.currentTimeMillis() - startMs));
+    }
+
+    private static List<Callable<long[]>> optionalTasks(File modelDir,
+                                                        Set<String> required,
+                                                        List<String> bases,
+                                                        ProgressListener listener,
+                                                        ModelManifest manifest,
+                                                        AtomicInteger remaining,
+                                                        FileListener fileListener) {
+        List<Callable<long[]>> optionalTasks = new ArrayList<>();
+        for (String rel : OPTIONAL_FILES) {
+            if (required.contains(rel)) {
+                continue;
+            }
             File out = new File(modelDir, rel);
-            if (out.exists() && out.length() > 0) {
+            if (out.exists() && out.length() > 0 && manifest.verify(rel, false) == null) {
                 Log.i(TAG, "Optional exists: " + rel + " size=" + out.length());
                 continue;
             }
-            tryDownloadOptional(baseUrl + rel, out, listener, rel);
+            optionalTasks.add(() -> {
+                boolean kept = out.exists() && out.length() > 0 && keepExisting(manifest, out, rel, null, null);
+                if (!kept) {
+                    downloadUrlToFile(urlsFor(bases, rel), out, listener, rel, manifest, true);
+                }
+                if (out.exists()) {
+                    fileDone(modelDir, rel, kept, remaining.get(), fileListener);
+                }
+                return null;
+            });
+        }
+        return optionalTasks;
+    }
+
+    /**
+     * Offline check of every expected file against the manifest (size + mtime, re-hashing
+     * files whose mtime moved). Returns null when all match.
+     */
+    private static String checkManifest(ModelManifest manifest, Set<String> files) {
+        for (String rel : files) {
+            String bad = manifest.verify(rel, false);
+            if (bad != null) {
+                return "清单校验未通过 " + rel + ": " + bad;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decides whether an existing file can be kept. Files in the manifest are checked
+     * offline; a mismatch deletes them. Files from before the manifest existed get a size
+     * check once, against {@code known} (catalog or chunk index) or else a HEAD to
+     * {@code url} (skipped when null), and are then adopted.
+     */
+    private static boolean keepExisting(ModelManifest manifest,
+                                        File out,
+                                        String rel,
+                                        String url,
+                                        ModelCatalog.FileInfo known) throws IOException {
+        if (manifest.contains(rel)) {
+            String bad = manifest.verify(rel, false);
+            if (bad == null) {
+                Log.i(TAG, "Skip existing file: " + rel + " size=" + out.length() + " (manifest)");
+                return true;
+            }
+            Log.w(TAG, "Manifest mismatch, will re-download: " + rel + " " + bad);
+            //noinspection ResultOfMethodCallIgnored
+            out.delete();
+            manifest.remove(rel);
+            return false;
+        }
+        long localSize = out.length();
+        Long remoteSize = known != null && known.size > 0 ? Long.valueOf(known.size)
+                : url != null ? tryGetRemoteSize(url) : null;
+        if (remoteSize != null && remoteSize > 0 && localSize != remoteSize) {
+            Log.w(TAG, "Size mismatch, will re-download: " + rel + " local=" + localSize + " remote=" + remoteSize);
+            //noinspection ResultOfMethodCallIgnored
+            out.delete();
+            return false;
+        }
+        manifest.put(rel, ModelManifest.sha256(out));
+        Log.i(TAG, "Adopted existing file into manifest: " + rel + " size=" + localSize + (remoteSize != null ? " remote=" + remoteSize : ""));
+        return true;
+    }
+
+    /**
+     * What {@code modelName} would cost to fetch now, from the cached catalog (no network):
+     * bytes still to download (files neither on disk with a matching hash nor in the blob
+     * store), the disk that needs, free space, and an ETA from mirror health. Null when the
+     * catalog does not list the model.
+     */
+    public static ModelCatalog.Estimate estimateDownload(Context context, String modelName) {
+        ModelCatalog.Model m = ModelCatalog.find(ModelCatalog.cached(context), modelName);
+        File modelDir = resolveModelDir(context, modelName);
+        if (m == null || modelDir == null) {
+            return null;
+        }
+        ModelManifest manifest = ModelManifest.load(modelDir);
+        BlobStore blobs = BlobStore.forModelDir(modelDir);
+        long missing = 0;
+        for (Map.Entry<String, ModelCatalog.FileInfo> f : m.files.entrySet()) {
+            ModelCatalog.FileInfo info = f.getValue();
+            ModelManifest.Entry e = manifest.get(f.getKey());
+            if (e != null && e.sha256.equals(info.sha256) && new File(modelDir, f.getKey()).length() == info.size) {
+                continue;
+            }
+            if (blobs.find(info.sha256, info.size) != null) {
+                continue;
+            }
+            missing += Math.max(0, info.size);
+        }
+        File probe = modelDir;
+        while (probe != null && !probe.exists()) {
+            probe = probe.getParentFile();
         }
+        long free = probe != null ? probe.getUsableSpace() : 0;
+        List<String> bases = new ArrayList<>();
+        for (String mirror : MirrorSelector.configuredMirrors(context)) {
+            bases.add(mirror + modelName + "/");
+        }
+        long eta = missing > 0 ? MirrorSelector.estimateMillis(bases, missing) : 0;
+        return new ModelCatalog.Estimate(missing, missing, free, eta);
+    }
 
-        // Final check: prevent native crash due to missing/empty files.
-        String finalCheck = checkModelLikelyRunnable(modelDir, files, modelName);
-        logModelSummary(modelDir, files);
-        if (finalCheck != null) {
-            Log.e(TAG, "Model still incomplete after download: " + finalCheck);
-            throw new IOException(finalCheck);
+    /**
+     * Schedules a background fetch (unmetered + charging) of the catalog model most likely
+     * to be picked after {@code currentModel}: the next one in catalog order that is not
+     * ready yet and leaves at least as much free space as it takes. Returns its name or null.
+     */
+    public static String prefetchLikelyNext(Context context, String currentModel) {
+        List<ModelCatalog.Model> models = ModelCatalog.cached(context);
+        int start = 0;
+        for (int i = 0; i < models.size(); i++) {
+            if (models.get(i).name.equals(currentModel)) {
+                start = i + 1;
+                break;
+            }
         }
+        for (int k = 0; k < models.size(); k++) {
+            String name = models.get((start + k) % models.size()).name;
+            if (name.equals(currentModel)) {
+                continue;
+            }
+            File dir = resolveModelDir(context, name);
+            if (dir == null || ModelReadyRecord.get(dir) != null) {
+                continue;
+            }
+            ModelCatalog.Estimate est = estimateDownload(context, name);
+            if (est == null || est.diskBytes * 2 > est.freeBytes) {
+                continue;
+            }
+            if (DownloadScheduler.schedulePrefetch(context, name)) {
+                Log.i(TAG, "Prefetch scheduled: " + name + " bytes=" + est.downloadBytes);
+                return name;
+            }
+            return null;
+        }
+        return null;
+    }
 
-        return modelDir;
+    /**
+     * Re-hashes every file recorded in the model's manifest. Returns null when all match,
+     * otherwise the first mismatch. Reads the whole model; run it off the main thread.
+     */
+    public static String verifyModel(Context context, String modelName) {
+        File modelDir = resolveModelDir(context, modelName);
+        if (modelDir == null || !modelDir.exists()) {
+            return "模型目录不存在";
+        }
+        ModelManifest manifest = ModelManifest.load(modelDir);
+        if (!manifest.contains("model.json")) {
+            return "缺少模型清单 " + ModelManifest.FILE_NAME;
+        }
+        Set<String> files = new HashSet<>();
+        try {
+            collectFileRefs(new JSONObject(readAll(new File(modelDir, "model.json"))), files);
+        } catch (Exception e) {
+            return "model.json 无法解析: " + e.getMessage();
+        }
+        files.add("model.json");
+        for (String rel : files) {
+            String bad = manifest.verify(rel, true);
+            if (bad != null) {
+                ModelReadyRecord.invalidate(modelDir);
+                return "校验失败 " + rel + ": " + bad;
+            }
+        }
+        manifest.save();
+        return null;
     }
 
     private static File resolveModelDir(Context context, String modelName) {
@@ -344,166 +887,110 @@ public final class ModelDownloader {
                 || lower.endsWith(".json");
     }
 
-    private static long[] downloadUrlToFile(String url, File out, ProgressListener listener, String name) throws IOException {
-        HttpURLConnection conn = null;
-        long total = -1;
-        long downloaded = 0;
+    /**
+     * Downloads {@code name} into {@code out} via a {@code .part} file that is renamed into
+     * place once complete and validated. For an {@code optional} file a 404 on every mirror
+     * returns null. A failed transfer keeps its resumable .part; a complete file that fails
+     * validation is dropped so the next attempt fetches it again.
+     */
+    private static long[] downloadUrlToFile(List<String> urls,
+                                            File out,
+                                            ProgressListener listener,
+                                            String name,
+                                            ModelManifest manifest,
+                                            boolean optional) throws IOException {
+        String kind = optional ? "Optional download" : "Download";
+        String url = urls.get(0);
+        long total;
+        long downloaded;
         long startMs = System.currentTimeMillis();
-        Log.i(TAG, "Download start: " + name + " url=" + url + " -> " + out.getAbsolutePath());
+        Log.i(TAG, kind + " start: " + name + " url=" + url + " -> " + out.getAbsolutePath());
         File tmp = new File(out.getAbsolutePath() + ".part");
+        boolean fetched = false;
         try {
-            conn = (HttpURLConnection) new URL(url).openConnection();
-            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
-            conn.setReadTimeout(READ_TIMEOUT_MS);
-            conn.setInstanceFollowRedirects(true);
-            int code = conn.getResponseCode();
-            if (code < 200 || code >= 300) {
-                throw new IOException("HTTP " + code + " for " + url);
-            }
-            Log.i(TAG, "HTTP " + code + " contentType=" + conn.getContentType() + " contentLen=" + conn.getContentLengthLong() + " finalUrl=" + conn.getURL());
-            total = conn.getContentLengthLong();
-            try (BufferedInputStream in = new BufferedInputStream(conn.getInputStream());
-                 BufferedOutputStream outStream = new BufferedOutputStream(new FileOutputStream(tmp))) {
-                byte[] buf = new byte[8192];
-                int n;
-                long lastTime = System.currentTimeMillis();
-                long lastBytes = 0;
-                while ((n = in.read(buf)) >= 0) {
-                    outStream.write(buf, 0, n);
-                    downloaded += n;
-                    if (listener != null) {
-                        long now = System.currentTimeMillis();
-                        if (now - lastTime >= 300) {
-                            long deltaBytes = downloaded - lastBytes;
-                            long speed = (deltaBytes * 1000L) / Math.max(1L, now - lastTime);
-                            listener.onProgress(name, downloaded, total, speed);
-                            lastTime = now;
-                            lastBytes = downloaded;
-                        }
-                    }
-                }
-                if (listener != null) {
-                    listener.onProgress(name, downloaded, total, 0);
-                }
+            RangedDownloader.Result result = RangedDownloader.fetch(urls, tmp, listener, name, optional);
+            if (result == null) {
+                Log.i(TAG, "Optional not found (404): " + name + " url=" + url);
+                RangedDownloader.discard(tmp);
+                return null;
             }
+            fetched = true;
+            downloaded = result.downloaded;
+            total = result.total;
             if (total > 0 && downloaded != total) {
-                throw new IOException("Download incomplete: " + name + " downloaded=" + downloaded + " expected=" + total);
+                throw new IOException(kind + " incomplete: " + name + " downloaded=" + downloaded + " expected=" + total);
             }
 
             if (name != null && name.toLowerCase().endsWith(".bin")) {
                 String head = readHeadAsciiSafe(tmp, 256);
                 if (looksLikeHtmlOrError(head)) {
-                    throw new IOException("Downloaded .bin looks like HTML/text error: " + name + " head=" + head);
+                    throw new IOException(kind + " .bin looks like HTML/text error: " + name + " head=" + head);
                 }
             }
 
+            // Same directory, so this is a metadata-only move; never fall back to copying GBs.
             if (!tmp.renameTo(out)) {
-                // fallback copy then delete
-                copyFile(tmp, out);
-                //noinspection ResultOfMethodCallIgnored
-                tmp.delete();
+                throw new IOException("rename failed: " + tmp.getAbsolutePath() + " -> " + out.getAbsolutePath());
             }
+            manifest.put(name, result.sha256);
         } catch (IOException e) {
-            // Clean up partial downloads.
-            if (tmp.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                tmp.delete();
+            if (fetched) {
+                RangedDownloader.discard(tmp);
             }
             if (out.exists() && out.length() == 0) {
                 //noinspection ResultOfMethodCallIgnored
                 out.delete();
             }
-            Log.e(TAG, "Download failed: " + name + " url=" + url + " err=" + e.getMessage());
+            Log.e(TAG, kind + " failed: " + name + " url=" + url + " err=" + e.getMessage()
+                    + (tmp.exists() ? " (kept " + tmp.length() + " bytes for resume)" : ""));
             throw e;
-        } finally {
-            if (conn != null) {
-                conn.disconnect();
-            }
         }
         long cost = Math.max(1, System.currentTimeMillis() - startMs);
-        Log.i(TAG, "Download done: " + name + " bytes=" + downloaded + "/" + total + " costMs=" + cost + " -> " + out.getAbsolutePath());
+        DownloadScheduler.recordFile(name, optional ? "optional" : "download", downloaded, cost);
+        Log.i(TAG, kind + " done: " + name + " bytes=" + downloaded + "/" + total + " costMs=" + cost + " -> " + out.getAbsolutePath());
         return new long[] {downloaded, total};
     }
 
-    private static void tryDownloadOptional(String url, File out, ProgressListener listener, String name) throws IOException {
-        HttpURLConnection conn = null;
-        File tmp = new File(out.getAbsolutePath() + ".part");
+    interface ResultCallback {
+        void onResult(int index, long[] result);
+    }
+
+    /**
+     * Runs download tasks on FILE_POOL, at most MAX_PARALLEL_FILES at a time. {@code callback}
+     * sees each result as it completes. The first failure cancels the rest and is rethrown.
+     */
+    private static void runParallel(List<Callable<long[]>> tasks, ResultCallback callback) throws IOException {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        ExecutorCompletionService<long[]> ecs = new ExecutorCompletionService<>(FILE_POOL);
+        Map<Future<long[]>, Integer> indices = new HashMap<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            indices.put(ecs.submit(tasks.get(i)), i);
+        }
         try {
-            conn = (HttpURLConnection) new URL(url).openConnection();
-            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
-            conn.setReadTimeout(READ_TIMEOUT_MS);
-            conn.setInstanceFollowRedirects(true);
-            int code = conn.getResponseCode();
-            if (code == 404) {
-                Log.i(TAG, "Optional not found (404): " + name + " url=" + url);
-                return;
-            }
-            if (code < 200 || code >= 300) {
-                throw new IOException("HTTP " + code + " for " + url);
-            }
-            Log.i(TAG, "HTTP " + code + " contentType=" + conn.getContentType() + " contentLen=" + conn.getContentLengthLong() + " finalUrl=" + conn.getURL());
-            Log.i(TAG, "Optional download start: " + name + " url=" + url + " -> " + out.getAbsolutePath());
-            try (BufferedInputStream in = new BufferedInputStream(conn.getInputStream());
-                 BufferedOutputStream outStream = new BufferedOutputStream(new FileOutputStream(tmp))) {
-                byte[] buf = new byte[8192];
-                int n;
-                long downloaded = 0;
-                long total = conn.getContentLengthLong();
-                long lastTime = System.currentTimeMillis();
-                long lastBytes = 0;
-                while ((n = in.read(buf)) >= 0) {
-                    outStream.write(buf, 0, n);
-                    downloaded += n;
-                    if (listener != null) {
-                        long now = System.currentTimeMillis();
-                        if (now - lastTime >= 300) {
-                            long deltaBytes = downloaded - lastBytes;
-                            long speed = (deltaBytes * 1000L) / Math.max(1L, now - lastTime);
-                            listener.onProgress(name, downloaded, total, speed);
-                            lastTime = now;
-                            lastBytes = downloaded;
-                        }
+            for (int done = 0; done < tasks.size(); done++) {
+                Future<long[]> f = ecs.take();
+                long[] result;
+                try {
+                    result = f.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
                     }
+                    throw new IOException("Download task failed: " + cause, cause);
                 }
-                if (listener != null) {
-                    listener.onProgress(name, downloaded, total, 0);
+                if (callback != null) {
+                    callback.onResult(indices.get(f), result);
                 }
             }
-
-            // For optional files, if server provides length, enforce it too.
-            long total = conn.getContentLengthLong();
-            if (total > 0 && tmp.length() != total) {
-                throw new IOException("Optional download incomplete: " + name + " downloaded=" + tmp.length() + " expected=" + total);
-            }
-
-            if (name != null && name.toLowerCase().endsWith(".bin")) {
-                String head = readHeadAsciiSafe(tmp, 256);
-                if (looksLikeHtmlOrError(head)) {
-                    throw new IOException("Optional .bin looks like HTML/text error: " + name + " head=" + head);
-                }
-            }
-
-            if (!tmp.renameTo(out)) {
-                copyFile(tmp, out);
-                //noinspection ResultOfMethodCallIgnored
-                tmp.delete();
-            }
-            Log.i(TAG, "Optional download done: " + name + " size=" + out.length());
-        } catch (IOException e) {
-            // Clean up partial optional downloads.
-            if (tmp.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                tmp.delete();
-            }
-            if (out.exists() && out.length() == 0) {
-                //noinspection ResultOfMethodCallIgnored
-                out.delete();
-            }
-            Log.w(TAG, "Optional download failed: " + name + " url=" + url + " err=" + e.getMessage());
-            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted", e);
         } finally {
-            if (conn != null) {
-                conn.disconnect();
+            for (Future<long[]> f : indices.keySet()) {
+                f.cancel(true);
             }
         }
     }
@@ -531,21 +1018,6 @@ public final class ModelDownloader {
         }
     }
 
-    private static void copyFile(File src, File dst) throws IOException {
-        if (src == null || dst == null) {
-            throw new IOException("copyFile: null");
-        }
-        try (FileInputStream in = new FileInputStream(src);
-             FileOutputStream out = new FileOutputStream(dst, false)) {
-            byte[] buf = new byte[8192];
-            int n;
-            while ((n = in.read(buf)) >= 0) {
-                out.write(buf, 0, n);
-            }
-            out.flush();
-        }
-    }
-
     private static String readAll(File file) throws IOException {
         byte[] data = new byte[(int) file.length()];
         int read = 0;
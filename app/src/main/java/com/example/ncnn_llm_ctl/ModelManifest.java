@@ -0,0 +1,212 @@
+package com.example.ncnn_llm_ctl;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Local record of every model file's size, SHA-256 and mtime, kept in
+ * {@code model.manifest.json} beside {@code model.json}.
+ *
+ * Hashes come from {@link RangedDownloader} while the file is being written, so recording
+ * costs no extra pass. Startup checks compare size and mtime only; a file whose mtime moved
+ * is re-hashed before it is trusted again. {@link #verify} with {@code deep} re-hashes
+ * everything to catch silent corruption.
+ */
+public final class ModelManifest {
+    private static final String TAG = "ModelManifest";
+    public static final String FILE_NAME = "model.manifest.json";
+    static final int VERSION = 1;
+    private static final int HASH_BUFFER = 256 * 1024;
+
+    public static final class Entry {
+        public final long size;
+        public final String sha256;
+        public final long mtime;
+
+        public Entry(long size, String sha256, long mtime) {
+            this.size = size;
+            this.sha256 = sha256;
+            this.mtime = mtime;
+        }
+    }
+
+    private final File modelDir;
+    private final File file;
+    // Guarded by this.
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+
+    private ModelManifest(File modelDir) {
+        this.modelDir = modelDir;
+        this.file = new File(modelDir, FILE_NAME);
+    }
+
+    /** Loads the manifest of {@code modelDir}; missing or unreadable yields an empty one. */
+    public static ModelManifest load(File modelDir) {
+        ModelManifest m = new ModelManifest(modelDir);
+        if (!m.file.exists() || m.file.length() <= 0) {
+            return m;
+        }
+        try {
+            byte[] data = new byte[(int) m.file.length()];
+            int read = 0;
+            try (FileInputStream in = new FileInputStream(m.file)) {
+                while (read < data.length) {
+                    int n = in.read(data, read, data.length - read);
+                    if (n < 0) break;
+                    read += n;
+                }
+            }
+            JSONObject json = new JSONObject(new String(data, 0, read, StandardCharsets.UTF_8));
+            JSONObject files = json.optJSONObject("files");
+            if (files != null) {
+                Iterator<String> it = files.keys();
+                while (it.hasNext()) {
+                    String rel = it.next();
+                    JSONObject e = files.optJSONObject(rel);
+                    if (e == null) continue;
+                    String sha = e.optString("sha256", "");
+                    long size = e.optLong("size", -1);
+                    if (size >= 0 && sha.length() == 64) {
+                        m.entries.put(rel, new Entry(size, sha, e.optLong("mtime", 0)));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Ignoring unreadable manifest: " + e.getMessage());
+            m.entries.clear();
+        }
+        return m;
+    }
+
+    public synchronized Entry get(String rel) {
+        return entries.get(rel);
+    }
+
+    public synchronized boolean contains(String rel) {
+        return entries.containsKey(rel);
+    }
+
+    /** Records {@code rel} as it is on disk now with the given hash. */
+    public synchronized void put(String rel, String sha256) {
+        File f = new File(modelDir, rel);
+        entries.put(rel, new Entry(f.length(), sha256, f.lastModified()));
+        dirty = true;
+    }
+
+    public synchronized void remove(String rel) {
+        if (entries.remove(rel) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Checks {@code rel} against its entry without touching the network. Returns null when it
+     * matches, otherwise the reason. Size mismatches fail at once; if only the mtime moved (or
+     * {@code deep} is set) the file is re-hashed, and a matching hash refreshes the mtime.
+     */
+    public String verify(String rel, boolean deep) {
+        Entry e = get(rel);
+        if (e == null) {
+            return "no manifest entry";
+        }
+        File f = new File(modelDir, rel);
+        if (!f.exists()) {
+            return "missing";
+        }
+        if (f.length() != e.size) {
+            return "size " + f.length() + " != " + e.size;
+        }
+        if (!deep && f.lastModified() == e.mtime) {
+            return null;
+        }
+        String actual;
+        try {
+            actual = sha256(f);
+        } catch (IOException ex) {
+            return "hash failed: " + ex.getMessage();
+        }
+        if (!actual.equals(e.sha256)) {
+            return "sha256 " + actual + " != " + e.sha256;
+        }
+        if (f.lastModified() != e.mtime) {
+            synchronized (this) {
+                entries.put(rel, new Entry(e.size, e.sha256, f.lastModified()));
+                dirty = true;
+            }
+        }
+        return null;
+    }
+
+    /** Writes the manifest atomically (tmp, fsync, rename) if anything changed. */
+    public synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            JSONObject files = new JSONObject();
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                JSONObject item = new JSONObject();
+                item.put("size", e.getValue().size);
+                item.put("sha256", e.getValue().sha256);
+                item.put("mtime", e.getValue().mtime);
+                files.put(e.getKey(), item);
+            }
+            JSONObject json = new JSONObject();
+            json.put("version", VERSION);
+            json.put("files", files);
+            try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+                out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed: " + tmp.getAbsolutePath());
+            }
+            dirty = false;
+        } catch (Exception e) {
+            Log.w(TAG, "save failed: " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    public static String sha256(File f) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 unavailable", e);
+        }
+        byte[] buf = new byte[HASH_BUFFER];
+        try (FileInputStream in = new FileInputStream(f)) {
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                digest.update(buf, 0, n);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = hex[(bytes[i] >> 4) & 0xf];
+            out[i * 2 + 1] = hex[bytes[i] & 0xf];
+        }
+        return new String(out);
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.ncnn_llm_ctl;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * "Model is complete" marker for the warm-start fast path, stored as {@code model.ready}.
+ *
+ * Lists every file the model needs (including the manifest) with the size and mtime seen by
+ * {@code stat} when the model last passed validation. Records are cached per model dir, so
+ * after the first load a check costs one stat per file and nothing else: no model.json
+ * parsing, no hashing, no network. Any download into the dir must {@link #invalidate} first.
+ */
+final class ModelReadyRecord {
+    private static final String TAG = "ModelReadyRecord";
+    static final String FILE_NAME = "model.ready";
+    private static final int VERSION = 1;
+
+    private static final ConcurrentHashMap<String, ModelReadyRecord> CACHE = new ConcurrentHashMap<>();
+
+    final File modelDir;
+    final long validatedAt;
+    private final String[] rels;
+    private final long[] sizes;
+    private final long[] mtimes;
+
+    private ModelReadyRecord(File modelDir, long validatedAt, String[] rels, long[] sizes, long[] mtimes) {
+        this.modelDir = modelDir;
+        this.validatedAt = validatedAt;
+        this.rels = rels;
+        this.sizes = sizes;
+        this.mtimes = mtimes;
+    }
+
+    /** Returns the cached or on-disk record for {@code modelDir}, or null when there is none. */
+    static ModelReadyRecord get(File modelDir) {
+        String key = modelDir.getAbsolutePath();
+        ModelReadyRecord r = CACHE.get(key);
+        if (r != null) {
+            return r;
+        }
+        r = load(modelDir);
+        if (r != null) {
+            CACHE.put(key, r);
+        }
+        return r;
+    }
+
+    /** True when every listed file still has the recorded size and mtime. */
+    boolean matchesDisk() {
+        long[] st = new long[2];
+        for (int i = 0; i < rels.length; i++) {
+            if (!stat(new File(modelDir, rels[i]), st) || st[0] != sizes[i] || st[1] != mtimes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Stats {@code rels} now and persists them as the ready record. */
+    static ModelReadyRecord write(File modelDir, Collection<String> rels) {
+        List<String> names = new ArrayList<>(rels);
+        long[] sizes = new long[names.size()];
+        long[] mtimes = new long[names.size()];
+        long[] st = new long[2];
+        for (int i = 0; i < names.size(); i++) {
+            if (!stat(new File(modelDir, names.get(i)), st)) {
+                Log.w(TAG, "Not writing ready record, missing " + names.get(i));
+                invalidate(modelDir);
+                return null;
+            }
+            sizes[i] = st[0];
+            mtimes[i] = st[1];
+        }
+        ModelReadyRecord r = new ModelReadyRecord(modelDir, System.currentTimeMillis(),
+                names.toArray(new String[0]), sizes, mtimes);
+        r.save();
+        CACHE.put(modelDir.getAbsolutePath(), r);
+        return r;
+    }
+
+    static void invalidate(File modelDir) {
+        CACHE.remove(modelDir.getAbsolutePath());
+        File f = new File(modelDir, FILE_NAME);
+        if (f.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            f.delete();
+        }
+    }
+
+    private static ModelReadyRecord load(File modelDir) {
+        File f = new File(modelDir, FILE_NAME);
+        if (!f.exists() || f.length() <= 0) {
+            return null;
+        }
+        try {
+            byte[] data = new byte[(int) f.length()];
+            int read = 0;
+            try (FileInputStream in = new FileInputStream(f)) {
+                while (read < data.length) {
+                    int n = in.read(data, read, data.length - read);
+                    if (n < 0) break;
+                    read += n;
+                }
+            }
+            JSONObject json = new JSONObject(new String(data, 0, read, StandardCharsets.UTF_8));
+            if (json.optInt("version") != VERSION || json.optInt("manifestVersion") != ModelManifest.VERSION) {
+                return null;
+            }
+            JSONArray files = json.getJSONArray("files");
+            String[] rels = new String[files.length()];
+            long[] sizes = new long[rels.length];
+            long[] mtimes = new long[rels.length];
+            for (int i = 0; i < rels.length; i++) {
+                JSONArray e = files.getJSONArray(i);
+                rels[i] = e.getString(0);
+                sizes[i] = e.getLong(1);
+                mtimes[i] = e.getLong(2);
+            }
+            return new ModelReadyRecord(modelDir, json.optLong("validatedAt"), rels, sizes, mtimes);
+        } catch (Exception e) {
+            Log.w(TAG, "Ignoring unreadable ready record: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void save() {
+        File file = new File(modelDir, FILE_NAME);
+        File tmp = new File(file.getAbsolutePath() + ".tmp");
+        try {
+            JSONArray files = new JSONArray();
+            for (int i = 0; i < rels.length; i++) {
+                files.put(new JSONArray().put(rels[i]).put(sizes[i]).put(mtimes[i]));
+            }
+            JSONObject json = new JSONObject();
+            json.put("version", VERSION);
+            json.put("manifestVersion", ModelManifest.VERSION);
+            json.put("validatedAt", validatedAt);
+            json.put("files", files);
+            try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+                out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed: " + tmp.getAbsolutePath());
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "save failed: " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    /** One stat(2): out = {size, mtime in ns}. */
+    private static boolean stat(File f, long[] out) {
+        try {
+            StructStat st = Os.stat(f.getAbsolutePath());
+            out[0] = st.st_size;
+            out[1] = st.st_mtim.tv_sec * 1_000_000_000L + st.st_mtim.tv_nsec;
+            return true;
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.example.ncnn_llm_ctl;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A model's tokenizer behind an LRU cache of recent encodings, since the same system prompt
+ * and history messages are counted again on every turn. Cache misses of a batch go to the
+ * model in one native call.
+ *
+ * {@link #server()} tokenizes with the model the local OpenAI server has loaded, so the app
+ * counts prompt tokens exactly without loading the model a second time; while no model is
+ * loaded it reports "unavailable" and {@link ChatHistory} estimates instead.
+ */
+public final class ModelTokenizer {
+    private static final int CACHE_ENTRIES = 256;
+    // Longer texts (UI dumps) rarely repeat verbatim and would crowd out the rest.
+    private static final int CACHE_MAX_CHARS = 16 * 1024;
+
+    /** Encodes non-empty texts; null when the tokenizer is unavailable right now. */
+    interface Backend {
+        int[][] encodeBatch(String[] texts);
+
+        /** See {@link ChatHistory.TokenCounter#tokenEnds}; null if unsupported or unavailable. */
+        default int[] tokenEnds(String text) {
+            return null;
+        }
+    }
+
+    private static final ModelTokenizer SERVER = new ModelTokenizer(new Backend() {
+        @Override
+        public int[][] encodeBatch(String[] texts) {
+            return NcnnLlmBridge.encodeWithServerModel(texts);
+        }
+
+        @Override
+        public int[] tokenEnds(String text) {
+            return NcnnLlmBridge.tokenEndsWithServerModel(text);
+        }
+    });
+
+    private final Backend backend;
+    private final Map<String, int[]> cache = new LinkedHashMap<String, int[]>(CACHE_ENTRIES, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, int[]> eldest) {
+            return size() > CACHE_ENTRIES;
+        }
+    };
+
+    ModelTokenizer(Backend backend) {
+        this.backend = backend;
+    }
+
+    /** The local server's model; call {@link #clear()} before the server loads another one. */
+    public static ModelTokenizer server() {
+        return SERVER;
+    }
+
+    /**
+     * Token ids of {@code text} (no BOS/EOS), or null when the tokenizer is unavailable.
+     * The returned array is shared; do not modify.
+     */
+    public int[] encode(String text) {
+        if (text == null || text.isEmpty()) {
+            return new int[0];
+        }
+        int[] ids = cached(text);
+        if (ids != null) {
+            return ids;
+        }
+        int[][] encoded = backend.encodeBatch(new String[] {text});
+        if (encoded == null) {
+            return null;
+        }
+        remember(text, encoded[0]);
+        return encoded[0];
+    }
+
+    /** Token count of {@code text}, or -1 when the tokenizer is unavailable. */
+    public int countTokens(String text) {
+        int[] ids = encode(text);
+        return ids == null ? -1 : ids.length;
+    }
+
+    /** Token counts for many texts with one native call for all cache misses; null when unavailable. */
+    public int[] countTokens(String[] texts) {
+        int[] counts = new int[texts.length];
+        List<Integer> missIndex = new ArrayList<>();
+        List<String> missText = new ArrayList<>();
+        for (int i = 0; i < texts.length; i++) {
+            String t = texts[i];
+            if (t == null || t.isEmpty()) {
+                continue;
+            }
+            int[] ids = cached(t);
+            if (ids != null) {
+                counts[i] = ids.length;
+            } else {
+                missIndex.add(i);
+                missText.add(t);
+            }
+        }
+        if (missText.isEmpty()) {
+            return counts;
+        }
+        int[][] encoded = backend.encodeBatch(missText.toArray(new String[0]));
+        if (encoded == null) {
+            return null;
+        }
+        for (int k = 0; k < encoded.length; k++) {
+            counts[missIndex.get(k)] = encoded[k].length;
+            remember(missText.get(k), encoded[k]);
+        }
+        return counts;
+    }
+
+    /**
+     * UTF-16 end offset of each token of {@code text}, from one encoding; null when the
+     * tokenizer is unavailable. Not cached: it is used to cut long one-off texts.
+     */
+    public int[] tokenEnds(String text) {
+        if (text == null || text.isEmpty()) {
+            return new int[0];
+        }
+        return backend.tokenEnds(text);
+    }
+
+    /** For {@link ChatHistory#setTokenCounter}; reports -1 (estimate) while unavailable. */
+    public ChatHistory.TokenCounter asTokenCounter() {
+        return new ChatHistory.TokenCounter() {
+            @Override
+            public int count(String text) {
+                return countTokens(text);
+            }
+
+            @Override
+            public int[] tokenEnds(String text) {
+                return ModelTokenizer.this.tokenEnds(text);
+            }
+        };
+    }
+
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    private int[] cached(String text) {
+        synchronized (cache) {
+            return cache.get(text);
+        }
+    }
+
+    private void remember(String text, int[] ids) {
+        if (text.length() > CACHE_MAX_CHARS) {
+            return;
+        }
+        synchronized (cache) {
+            cache.put(text, ids);
+        }
+    }
+}
@@ -22,6 +22,18 @@ public final class NcnnLlmBridge {
 
     public static native String getLastServerError();
 
+    /**
+     * Token ids of each text under the tokenizer of the model the server has loaded (null
+     * entries stay null), or null while no server model is loaded. See {@link ModelTokenizer#server()}.
+     */
+    public static native int[][] encodeWithServerModel(String[] texts);
+
+    /**
+     * UTF-16 end offset of each token of {@code text} under the server model's tokenizer, or
+     * null while no server model is loaded. See {@link ChatHistory.TokenCounter#tokenEnds}.
+     */
+    public static native int[] tokenEndsWithServerModel(String text);
+
     public static boolean startOpenAiServerAutoDownload(android.content.Context context,
                                                         String modelName,
                                                         int port,
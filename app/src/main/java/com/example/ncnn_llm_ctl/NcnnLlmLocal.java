@@ -23,5 +23,14 @@ public final class NcnnLlmLocal {
                                         float temperature,
                                         float topP,
                                         int topK);
+
+    /** Token ids of {@code text} under the model's tokenizer (no BOS/EOS). */
+    public static native int[] encode(long handle, String text);
+
+    /** {@link #encode} for many texts in one call; null entries stay null. */
+    public static native int[][] encodeBatch(long handle, String[] texts);
+
+    /** UTF-16 end offset of each token of {@code text}; see {@link ChatHistory.TokenCounter#tokenEnds}. */
+    public static native int[] tokenEnds(long handle, String text);
 }
 
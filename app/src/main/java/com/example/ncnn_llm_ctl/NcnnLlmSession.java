@@ -1,6 +1,7 @@
 package com.example.ncnn_llm_ctl;
 
 import java.io.Closeable;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Convenience wrapper for {@link NcnnLlmLocal}.
@@ -11,8 +12,29 @@ import java.io.Closeable;
  *   String out = s.generate("你好", 128, 0.3f, 0.9f, 50);
  * }
  * </pre>
+ *
+ * {@link #encode} and {@link #countTokens} use the model's own tokenizer through a
+ * {@link ModelTokenizer}, so prompts can be cut to the context by tokens rather than
+ * characters. They do not wait for a running {@link #generate}.
  */
 public final class NcnnLlmSession implements Closeable {
+    private final ReentrantReadWriteLock lifecycle = new ReentrantReadWriteLock();
+    private final ModelTokenizer tokenizer = new ModelTokenizer(new ModelTokenizer.Backend() {
+        @Override
+        public int[][] encodeBatch(String[] texts) {
+            return NcnnLlmSession.this.encodeBatch(texts);
+        }
+
+        @Override
+        public int[] tokenEnds(String text) {
+            lifecycle.readLock().lock();
+            try {
+                return NcnnLlmLocal.tokenEnds(openHandle(), text);
+            } finally {
+                lifecycle.readLock().unlock();
+            }
+        }
+    });
     private long handle;
 
     private NcnnLlmSession(long handle) {
@@ -27,23 +49,66 @@ public final class NcnnLlmSession implements Closeable {
         return new NcnnLlmSession(handle);
     }
 
-    public synchronized String generate(String prompt,
-                                        int maxNewTokens,
-                                        float temperature,
-                                        float topP,
-                                        int topK) {
+    public String generate(String prompt,
+                           int maxNewTokens,
+                           float temperature,
+                           float topP,
+                           int topK) {
+        lifecycle.readLock().lock();
+        try {
+            return NcnnLlmLocal.generate(openHandle(), prompt, maxNewTokens, temperature, topP, topK);
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+    }
+
+    /** Token ids of {@code text} (no BOS/EOS). The returned array is shared; do not modify. */
+    public int[] encode(String text) {
+        return tokenizer.encode(text);
+    }
+
+    public int countTokens(String text) {
+        return tokenizer.countTokens(text);
+    }
+
+    /** Token counts for many texts with one native call for all cache misses. */
+    public int[] countTokens(String[] texts) {
+        return tokenizer.countTokens(texts);
+    }
+
+    /** This session's tokenizer for {@link ChatHistory#setTokenCounter}. */
+    public ChatHistory.TokenCounter asTokenCounter() {
+        return tokenizer.asTokenCounter();
+    }
+
+    private int[][] encodeBatch(String[] texts) {
+        lifecycle.readLock().lock();
+        try {
+            return NcnnLlmLocal.encodeBatch(openHandle(), texts);
+        } finally {
+            lifecycle.readLock().unlock();
+        }
+    }
+
+    // Caller holds the read lock.
+    private long openHandle() {
         if (handle == 0) {
             throw new IllegalStateException("Session is closed");
         }
-        return NcnnLlmLocal.generate(handle, prompt, maxNewTokens, temperature, topP, topK);
+        return handle;
     }
 
     @Override
-    public synchronized void close() {
-        if (handle != 0) {
-            NcnnLlmLocal.destroy(handle);
-            handle = 0;
+    public void close() {
+        lifecycle.writeLock().lock();
+        try {
+            if (handle != 0) {
+                NcnnLlmLocal.destroy(handle);
+                handle = 0;
+            }
+        } finally {
+            lifecycle.writeLock().unlock();
         }
+        tokenizer.clear();
     }
 }
-
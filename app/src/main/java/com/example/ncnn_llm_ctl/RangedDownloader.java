@@ -0,0 +1,882 @@
+package com.example.ncnn_llm_ctl;
+
+import android.os.Process;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Fetches one URL into a file, splitting large files into HTTP Range segments that are
+ * downloaded concurrently and written through a {@link FileChannel} at their offsets.
+ *
+ * The first request asks for {@code Range: bytes=0-}: a 206 reply tells us the server
+ * supports ranges and the total size, and its body doubles as segment 0, so small files and
+ * servers without range support cost no extra round-trip.
+ *
+ * Ranged downloads are resumable: per-segment progress is kept next to the {@code .part}
+ * file in a small JSON sidecar together with the ETag/Last-Modified validator. A later call
+ * requests only the missing bytes with {@code Range: bytes=N-} plus {@code If-Range}; if the
+ * remote file changed the server answers 200 and the download starts over. Transient
+ * failures are retried with exponential backoff before giving up, and the sidecar survives
+ * a final failure so the next attempt picks up where this one stopped.
+ *
+ * A fetch takes the same file on several mirrors, best first. The first request falls through
+ * to the next mirror when one is unreachable, and a segment that keeps failing continues its
+ * Range on the next mirror. If-Range validators only apply to the mirror that issued them, so
+ * on a foreign mirror the Content-Range total must match instead. Outcomes feed
+ * {@link MirrorSelector}'s health scores.
+ *
+ * Every fetch also yields the SHA-256 of the file. The digest follows the contiguous prefix
+ * that is already on disk and reads those bytes back while they are still in the page cache,
+ * so segmented and resumed downloads are hashed without a separate pass afterwards.
+ *
+ * Bodies are read through a channel into a reused per-thread direct buffer and written at
+ * their offsets, and the {@code .part} file is preallocated to the full size so a full disk
+ * fails up front. Fsync policy: data is forced before every sidecar save (resumable
+ * downloads) and once when the transfer completes, before the caller renames the file into
+ * place; non-resumable streams are not synced mid-way since nothing could be resumed.
+ */
+public final class RangedDownloader {
+    private static final String TAG = "RangedDownloader";
+    static final int CONNECT_TIMEOUT_MS = 15000;
+    static final int READ_TIMEOUT_MS = 30000;
+    private static final long MIN_SEGMENT_BYTES = 8L * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 4;
+    static final int BUFFER_SIZE = 256 * 1024;
+    private static final long PROGRESS_INTERVAL_MS = 300;
+    private static final int MAX_RETRIES = 4;
+    // Retries on a mirror before failing over while other mirrors remain.
+    private static final int FAILOVER_RETRIES = 1;
+    private static final long RETRY_BASE_MS = 1000;
+    private static final long RETRY_MAX_MS = 16000;
+    private static final long STATE_SAVE_INTERVAL_MS = 2000;
+    private static final String STATE_SUFFIX = ".json";
+
+    private static final ThreadLocal<ByteBuffer> IO_BUFFER =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final AtomicInteger THREAD_SEQ = new AtomicInteger(1);
+    private static final ExecutorService SEGMENT_POOL = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(() -> {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            r.run();
+        }, "dl-segment-" + THREAD_SEQ.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private RangedDownloader() {
+    }
+
+    public static final class Result {
+        public final long downloaded;
+        /** -1 when the server did not report a length. */
+        public final long total;
+        /** Lowercase hex SHA-256 of the downloaded file. */
+        public final String sha256;
+
+        Result(long downloaded, long total, String sha256) {
+            this.downloaded = downloaded;
+            this.total = total;
+            this.sha256 = sha256;
+        }
+    }
+
+    /**
+     * Downloads one file into {@code tmp} from {@code urls} (the same file on each mirror, best
+     * first), resuming from a previous partial download when its sidecar still matches.
+     * Returns null when {@code notFoundOk} is set and no mirror has the file. On failure
+     * {@code tmp} is kept only if it can be resumed.
+     */
+    public static Result fetch(List<String> urls,
+                               File tmp,
+                               ModelDownloader.ProgressListener listener,
+                               String name,
+                               boolean notFoundOk) throws IOException {
+        if (urls == null || urls.isEmpty()) {
+            throw new IOException("No source for " + name);
+        }
+        File stateFile = stateFile(tmp);
+        State state = State.load(stateFile, urls);
+        if (state != null && tmp.exists() && tmp.length() <= state.total) {
+            Log.i(TAG, "Resuming " + name + " at " + state.doneBytes() + "/" + state.total + " from " + state.url);
+            try {
+                Progress progress = new Progress(name, state.total, listener, state.doneBytes());
+                String sha256 = fetchRanged(urls, tmp, stateFile, state, null, progress);
+                progress.finish();
+                return new Result(state.total, state.total, sha256);
+            } catch (ValidatorChangedException e) {
+                Log.i(TAG, "Remote changed since partial download, restarting: " + name + " " + e.getMessage());
+                discard(tmp);
+            }
+        } else if (state != null || stateFile.exists()) {
+            discard(tmp);
+        }
+
+        HttpURLConnection first = null;
+        String url = null;
+        int code = -1;
+        IOException lastError = null;
+        for (int i = 0; i < urls.size() && first == null; i++) {
+            url = urls.get(i);
+            boolean last = i == urls.size() - 1;
+            long startMs = System.currentTimeMillis();
+            try {
+                HttpURLConnection conn = openWithRetry(url, last ? MAX_RETRIES : FAILOVER_RETRIES);
+                code = conn.getResponseCode();
+                if (code >= 200 && code < 300) {
+                    MirrorSelector.reportLatency(url, System.currentTimeMillis() - startMs);
+                    first = conn;
+                    break;
+                }
+                conn.disconnect();
+                if (code != 404) {
+                    MirrorSelector.reportFailure(url);
+                }
+                lastError = new IOException("HTTP " + code + " for " + url);
+            } catch (IOException e) {
+                MirrorSelector.reportFailure(url);
+                lastError = e;
+            }
+            if (!last) {
+                Log.w(TAG, "Mirror unusable for " + name + ": " + lastError.getMessage() + ", trying next");
+            }
+        }
+        if (first == null) {
+            if (code == 404 && notFoundOk) {
+                return null;
+            }
+            throw lastError;
+        }
+        try {
+            long total;
+            boolean ranged = code == 206;
+            if (ranged) {
+                total = parseContentRangeTotal(first.getHeaderField("Content-Range"));
+            } else {
+                total = first.getContentLengthLong();
+            }
+            Log.i(TAG, "HTTP " + code + " contentType=" + first.getContentType() + " total=" + total
+                    + " ranged=" + ranged + " finalUrl=" + first.getURL());
+
+            if (ranged && total > 0) {
+                int segments = 1;
+                if (total >= 2 * MIN_SEGMENT_BYTES) {
+                    segments = (int) Math.min(MAX_SEGMENTS, total / MIN_SEGMENT_BYTES);
+                }
+                state = State.create(url, validatorOf(first), total, segments);
+                try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                    raf.setLength(0);
+                }
+                // Without a strong validator a later resume could splice two versions.
+                if (state.validator != null) {
+                    state.save(stateFile);
+                }
+                Progress progress = new Progress(name, total, listener, 0);
+                String sha256 = fetchRanged(urls, tmp, stateFile, state, first, progress);
+                progress.finish();
+                return new Result(total, total, sha256);
+            }
+
+            Progress progress = new Progress(name, total, listener, 0);
+            String sha256;
+            long startMs = System.currentTimeMillis();
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                raf.setLength(0);
+                if (total > 0) {
+                    preallocate(raf, total);
+                }
+                FileChannel channel = raf.getChannel();
+                Segment whole = new Segment(0, Long.MAX_VALUE - 1, 0);
+                Hasher hasher = new Hasher(channel, whole.done::get);
+                copy(first, channel, 0, -1, progress, new AtomicBoolean(false), whole, null, hasher);
+                if (channel.size() != whole.done.get()) {
+                    // Short body (or longer than announced): the file is exactly what arrived.
+                    channel.truncate(whole.done.get());
+                }
+                channel.force(false);
+                sha256 = hasher.finish();
+            } catch (IOException e) {
+                MirrorSelector.reportFailure(url);
+                // A plain 200 stream cannot be resumed.
+                discard(tmp);
+                throw e;
+            }
+            MirrorSelector.reportTransfer(url, progress.downloaded.get(), System.currentTimeMillis() - startMs);
+            progress.finish();
+            return new Result(progress.downloaded.get(), total, sha256);
+        } finally {
+            first.disconnect();
+        }
+    }
+
+    /** Deletes {@code tmp} and its resume sidecar. */
+    public static void discard(File tmp) {
+        //noinspection ResultOfMethodCallIgnored
+        tmp.delete();
+        //noinspection ResultOfMethodCallIgnored
+        stateFile(tmp).delete();
+    }
+
+    static File stateFile(File tmp) {
+        return new File(tmp.getAbsolutePath() + STATE_SUFFIX);
+    }
+
+    /**
+     * Fills every unfinished segment of {@code state}. {@code first}, when set, is the probe
+     * connection (open-ended range from 0) and serves segment 0. The sidecar is updated
+     * periodically and on exit; it is deleted on success. Returns the file's SHA-256.
+     */
+    private static String fetchRanged(List<String> urls,
+                                    File tmp,
+                                    File stateFile,
+                                    State state,
+                                    HttpURLConnection first,
+                                    Progress progress) throws IOException {
+        AtomicBoolean aborted = new AtomicBoolean(false);
+        boolean persist = state.validator != null;
+        // The mirror that issued the validator first, then the rest in preference order.
+        List<String> order = new ArrayList<>(urls.size());
+        order.add(state.url);
+        for (String u : urls) {
+            if (!u.equals(state.url)) {
+                order.add(u);
+            }
+        }
+        String sha256;
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            if (raf.length() < state.total) {
+                preallocate(raf, state.total);
+            }
+            FileChannel channel = raf.getChannel();
+            Saver saver = persist ? new Saver(state, stateFile, channel) : null;
+            Hasher hasher = new Hasher(channel, state::contiguousBytes);
+            List<Future<?>> futures = new ArrayList<>();
+            Segment inline = null;
+            for (Segment seg : state.segments) {
+                if (seg.remaining() <= 0) {
+                    continue;
+                }
+                if (inline == null) {
+                    inline = seg;
+                    continue;
+                }
+                futures.add(SEGMENT_POOL.submit(() -> {
+                    fetchSegment(order, seg, null, state, channel, progress, aborted, saver, hasher);
+                    return null;
+                }));
+            }
+            if (state.segments.size() > 1) {
+                Log.i(TAG, "Segmented download: " + progress.name + " total=" + state.total
+                        + " segments=" + state.segments.size() + " pending=" + (futures.size() + (inline != null ? 1 : 0)));
+            }
+
+            IOException failure = null;
+            if (inline != null) {
+                try {
+                    // The probe only ever covers a fresh segment 0.
+                    HttpURLConnection probe = inline.start == 0 && inline.done.get() == 0 ? first : null;
+                    fetchSegment(order, inline, probe, state, channel, progress, aborted, saver, hasher);
+                } catch (IOException e) {
+                    failure = e;
+                    aborted.set(true);
+                }
+            }
+            for (Future<?> f : futures) {
+                try {
+                    f.get();
+                } catch (ExecutionException e) {
+                    aborted.set(true);
+                    Throwable cause = e.getCause();
+                    // A validator change wins: the caller restarts instead of failing.
+                    if (failure == null || cause instanceof ValidatorChangedException) {
+                        failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                    }
+                } catch (InterruptedException e) {
+                    aborted.set(true);
+                    Thread.currentThread().interrupt();
+                    if (failure == null) {
+                        failure = new IOException("interrupted", e);
+                    }
+                }
+            }
+            if (failure != null) {
+                if (saver != null && !(failure instanceof ValidatorChangedException)) {
+                    saver.save();
+                }
+                throw failure;
+            }
+            channel.force(false);
+            sha256 = hasher.finish();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        stateFile.delete();
+        return sha256;
+    }
+
+    /**
+     * Downloads the rest of one segment, retrying transient failures with exponential
+     * backoff. Each retry re-requests from the last byte written, guarded by If-Range on the
+     * mirror that issued the validator ({@code urls[0]}). When a mirror keeps failing and
+     * another one remains, the segment fails over and continues its range there.
+     */
+    private static void fetchSegment(List<String> urls,
+                                     Segment seg,
+                                     HttpURLConnection probe,
+                                     State state,
+                                     FileChannel channel,
+                                     Progress progress,
+                                     AtomicBoolean aborted,
+                                     Saver saver,
+                                     Hasher hasher) throws IOException {
+        int mirror = 0;
+        int attempt = 0;
+        for (boolean useProbe = probe != null; ; useProbe = false) {
+            String url = urls.get(mirror);
+            boolean origin = url.equals(state.url);
+            long from = seg.start + seg.done.get();
+            long startMs = System.currentTimeMillis();
+            HttpURLConnection conn = useProbe ? probe : null;
+            try {
+                if (conn == null) {
+                    conn = open(url, from, seg.end);
+                    if (origin && state.validator != null) {
+                        conn.setRequestProperty("If-Range", state.validator);
+                    }
+                    int code = conn.getResponseCode();
+                    if (code == 200) {
+                        if (origin) {
+                            throw new ValidatorChangedException("HTTP 200 for range " + from + "-" + seg.end);
+                        }
+                        throw new HttpStatusException(code, "Mirror ignored Range: " + url);
+                    }
+                    if (code != 206) {
+                        throw new HttpStatusException(code, "HTTP " + code + " for range " + from + "-" + seg.end + " of " + url);
+                    }
+                    long remoteTotal = parseContentRangeTotal(conn.getHeaderField("Content-Range"));
+                    if (remoteTotal >= 0 && remoteTotal != state.total) {
+                        if (origin) {
+                            throw new ValidatorChangedException("total " + remoteTotal + " != " + state.total);
+                        }
+                        throw new HttpStatusException(0, "Mirror has a different file (" + remoteTotal + " bytes): " + url);
+                    }
+                }
+                copy(conn, channel, from, seg.end, progress, aborted, seg, saver, hasher);
+                MirrorSelector.reportTransfer(url, seg.start + seg.done.get() - from, System.currentTimeMillis() - startMs);
+                return;
+            } catch (ValidatorChangedException e) {
+                throw e;
+            } catch (IOException e) {
+                if (aborted.get() || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                MirrorSelector.reportFailure(url);
+                if (saver != null) {
+                    saver.save();
+                }
+                boolean hasNext = mirror + 1 < urls.size();
+                if (isRetryable(e) && attempt < (hasNext ? FAILOVER_RETRIES : MAX_RETRIES)) {
+                    long delay = Math.min(RETRY_MAX_MS, RETRY_BASE_MS << attempt);
+                    Log.w(TAG, "Segment " + seg.start + "-" + seg.end + " of " + progress.name + " failed at "
+                            + (seg.start + seg.done.get()) + " (" + e.getMessage() + "), retry " + (attempt + 1)
+                            + " in " + delay + "ms");
+                    attempt++;
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted", ie);
+                    }
+                } else if (hasNext) {
+                    mirror++;
+                    attempt = 0;
+                    Log.w(TAG, "Segment " + seg.start + "-" + seg.end + " of " + progress.name + " failing over to "
+                            + urls.get(mirror) + " at " + (seg.start + seg.done.get()) + " (" + e.getMessage() + ")");
+                } else {
+                    throw e;
+                }
+            } finally {
+                if (conn != null && conn != probe) {
+                    conn.disconnect();
+                }
+            }
+        }
+    }
+
+    /** Client errors other than timeouts/throttling will not go away by retrying. */
+    private static boolean isRetryable(IOException e) {
+        if (!(e instanceof HttpStatusException)) {
+            return true;
+        }
+        int code = ((HttpStatusException) e).code;
+        return code >= 500 || code == 408 || code == 429;
+    }
+
+    /**
+     * Picks the If-Range validator: a strong ETag, else Last-Modified. Weak ETags cannot be
+     * used with If-Range. Returns null when neither is available.
+     */
+    private static String validatorOf(HttpURLConnection conn) {
+        String etag = conn.getHeaderField("ETag");
+        if (!TextUtils.isEmpty(etag) && !etag.startsWith("W/")) {
+            return etag;
+        }
+        String lastModified = conn.getHeaderField("Last-Modified");
+        return TextUtils.isEmpty(lastModified) ? null : lastModified;
+    }
+
+    /**
+     * Reserves {@code size} bytes for {@code raf}. A full disk fails here rather than hours
+     * into the transfer; filesystems without fallocate (e.g. FUSE) just get the length set.
+     */
+    static void preallocate(RandomAccessFile raf, long size) throws IOException {
+        try {
+            Os.posix_fallocate(raf.getFD(), 0, size);
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new IOException("Not enough storage for " + size + " bytes", e);
+            }
+            raf.setLength(size);
+        }
+    }
+
+    /**
+     * Reads {@code in} into this thread's direct buffer, up to {@code max} bytes. Returns the
+     * buffer flipped for writing, or null at end of stream. Every read is accounted with
+     * {@link DownloadScheduler#onBytes}.
+     */
+    static ByteBuffer read(ReadableByteChannel in, long max) throws IOException {
+        ByteBuffer buf = IO_BUFFER.get();
+        buf.clear();
+        if (max < buf.capacity()) {
+            buf.limit((int) max);
+        }
+        int n = in.read(buf);
+        if (n < 0) {
+            return null;
+        }
+        DownloadScheduler.onBytes(n);
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Copies the response body to {@code channel} starting at {@code position}. When
+     * {@code end >= 0} copying stops after byte {@code end} even if the body continues.
+     * Written bytes are credited to {@code seg} when set.
+     */
+    private static void copy(HttpURLConnection conn,
+                             FileChannel channel,
+                             long position,
+                             long end,
+                             Progress progress,
+                             AtomicBoolean aborted,
+                             Segment seg,
+                             Saver saver,
+                             Hasher hasher) throws IOException {
+        long pos = position;
+        try (ReadableByteChannel in = Channels.newChannel(conn.getInputStream())) {
+            while (!aborted.get()) {
+                long left = end >= 0 ? end + 1 - pos : Long.MAX_VALUE;
+                if (left <= 0) break;
+                ByteBuffer buf = read(in, left);
+                if (buf == null) break;
+                int n = buf.remaining();
+                while (buf.hasRemaining()) {
+                    pos += channel.write(buf, pos);
+                }
+                if (seg != null) {
+                    seg.done.addAndGet(n);
+                }
+                progress.add(n);
+                if (saver != null) {
+                    saver.maybeSave();
+                }
+                if (hasher != null) {
+                    hasher.advance();
+                }
+            }
+        }
+        if (aborted.get()) {
+            throw new IOException("aborted");
+        }
+        if (end >= 0 && pos != end + 1) {
+            throw new IOException("Segment incomplete: " + progress.name + " at=" + pos + " expectedEnd=" + end);
+        }
+    }
+
+    /** Opens the first request, retrying connection-level failures and 5xx with backoff. */
+    private static HttpURLConnection openWithRetry(String url, int retries) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            HttpURLConnection conn = open(url, 0, -1);
+            try {
+                int code = conn.getResponseCode();
+                if ((code < 500 && code != 408 && code != 429) || attempt >= retries) {
+                    return conn;
+                }
+                conn.disconnect();
+                Log.w(TAG, "HTTP " + code + " for " + url + ", retry " + (attempt + 1) + "/" + retries);
+            } catch (IOException e) {
+                conn.disconnect();
+                if (attempt >= retries) {
+                    throw e;
+                }
+                Log.w(TAG, "Connect failed for " + url + " (" + e.getMessage() + "), retry " + (attempt + 1) + "/" + retries);
+            }
+            try {
+                Thread.sleep(Math.min(RETRY_MAX_MS, RETRY_BASE_MS << attempt));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", ie);
+            }
+        }
+    }
+
+    static HttpURLConnection open(String url, long start, long end) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        conn.setInstanceFollowRedirects(true);
+        // Byte offsets must refer to the stored bytes, not a gzip-decoded stream.
+        conn.setRequestProperty("Accept-Encoding", "identity");
+        if (start >= 0) {
+            conn.setRequestProperty("Range", "bytes=" + start + "-" + (end >= 0 ? String.valueOf(end) : ""));
+        }
+        return conn;
+    }
+
+    /** Parses the total from {@code bytes 0-99/1234}; -1 when absent or "*". */
+    static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0 || slash == contentRange.length() - 1) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Aggregates bytes from all segments and reports at most every PROGRESS_INTERVAL_MS. */
+    private static final class Progress {
+        final String name;
+        final long total;
+        final ModelDownloader.ProgressListener listener;
+        final AtomicLong downloaded = new AtomicLong();
+        private volatile long lastTime = System.currentTimeMillis();
+        private long lastBytes;
+
+        Progress(String name, long total, ModelDownloader.ProgressListener listener, long alreadyDone) {
+            this.name = name;
+            this.total = total;
+            this.listener = listener;
+            downloaded.set(alreadyDone);
+            lastBytes = alreadyDone;
+        }
+
+        void add(long n) {
+            long now = downloaded.addAndGet(n);
+            if (listener == null) {
+                return;
+            }
+            long t = System.currentTimeMillis();
+            if (t - lastTime < PROGRESS_INTERVAL_MS) {
+                return;
+            }
+            long speed;
+            synchronized (this) {
+                if (t - lastTime < PROGRESS_INTERVAL_MS) {
+                    return;
+                }
+                speed = ((now - lastBytes) * 1000L) / Math.max(1L, t - lastTime);
+                lastTime = t;
+                lastBytes = now;
+            }
+            listener.onProgress(name, now, total, speed);
+        }
+
+        void finish() {
+            if (listener != null) {
+                listener.onProgress(name, downloaded.get(), total, 0);
+            }
+        }
+    }
+
+    /** One byte range of the file and how much of it is already on disk. */
+    private static final class Segment {
+        final long start;
+        final long end;
+        final AtomicLong done;
+
+        Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = new AtomicLong(done);
+        }
+
+        long remaining() {
+            return end + 1 - start - done.get();
+        }
+    }
+
+    /** Resume sidecar: source URL, If-Range validator, total size and segment progress. */
+    private static final class State {
+        final String url;
+        final String validator;
+        final long total;
+        final List<Segment> segments;
+
+        private State(String url, String validator, long total, List<Segment> segments) {
+            this.url = url;
+            this.validator = validator;
+            this.total = total;
+            this.segments = segments;
+        }
+
+        static State create(String url, String validator, long total, int count) {
+            long segSize = (total + count - 1) / count;
+            List<Segment> list = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                long start = i * segSize;
+                list.add(new Segment(start, Math.min(total, start + segSize) - 1, 0));
+            }
+            return new State(url, validator, total, list);
+        }
+
+        /** Returns null when missing, unreadable or written for a URL not in {@code urls}. */
+        static State load(File file, List<String> urls) {
+            if (!file.exists() || file.length() <= 0 || file.length() > 64 * 1024) {
+                return null;
+            }
+            try {
+                byte[] data = new byte[(int) file.length()];
+                int read = 0;
+                try (FileInputStream in = new FileInputStream(file)) {
+                    while (read < data.length) {
+                        int n = in.read(data, read, data.length - read);
+                        if (n < 0) break;
+                        read += n;
+                    }
+                }
+                JSONObject json = new JSONObject(new String(data, 0, read, StandardCharsets.UTF_8));
+                String validator = json.optString("validator", "");
+                long total = json.optLong("total", -1);
+                JSONArray arr = json.optJSONArray("segments");
+                String url = json.optString("url", "");
+                if (!urls.contains(url) || validator.isEmpty() || total <= 0 || arr == null) {
+                    return null;
+                }
+                List<Segment> list = new ArrayList<>();
+                long expectStart = 0;
+                for (int i = 0; i < arr.length(); i++) {
+                    JSONArray s = arr.getJSONArray(i);
+                    long start = s.getLong(0);
+                    long end = s.getLong(1);
+                    long done = s.getLong(2);
+                    if (start != expectStart || end < start || done < 0 || done > end + 1 - start) {
+                        return null;
+                    }
+                    list.add(new Segment(start, end, done));
+                    expectStart = end + 1;
+                }
+                if (expectStart != total) {
+                    return null;
+                }
+                return new State(url, validator, total, list);
+            } catch (Exception e) {
+                Log.w(TAG, "Ignoring unreadable resume state " + file.getName() + ": " + e.getMessage());
+                return null;
+            }
+        }
+
+        /** Bytes from offset 0 that are on disk without a gap. */
+        long contiguousBytes() {
+            long sum = 0;
+            for (Segment s : segments) {
+                long d = s.done.get();
+                sum += d;
+                if (d < s.end + 1 - s.start) {
+                    break;
+                }
+            }
+            return sum;
+        }
+
+        long doneBytes() {
+            long sum = 0;
+            for (Segment s : segments) {
+                sum += s.done.get();
+            }
+            return sum;
+        }
+
+        void save(File file) {
+            File tmp = new File(file.getAbsolutePath() + ".tmp");
+            try {
+                JSONArray arr = new JSONArray();
+                for (Segment s : segments) {
+                    arr.put(new JSONArray().put(s.start).put(s.end).put(s.done.get()));
+                }
+                JSONObject json = new JSONObject();
+                json.put("version", 1);
+                json.put("url", url);
+                json.put("validator", validator);
+                json.put("total", total);
+                json.put("segments", arr);
+                try (FileOutputStream out = new FileOutputStream(tmp, false)) {
+                    out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+                    out.getFD().sync();
+                }
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("rename failed: " + tmp.getAbsolutePath());
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Saving resume state failed: " + e.getMessage());
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Persists {@link State} at most every STATE_SAVE_INTERVAL_MS. Data is forced to disk
+     * first, so the sidecar never claims bytes that a power loss could still drop.
+     */
+    private static final class Saver {
+        private final State state;
+        private final File file;
+        private final FileChannel channel;
+        private volatile long lastSave = System.currentTimeMillis();
+
+        Saver(State state, File file, FileChannel channel) {
+            this.state = state;
+            this.file = file;
+            this.channel = channel;
+        }
+
+        void maybeSave() {
+            if (System.currentTimeMillis() - lastSave >= STATE_SAVE_INTERVAL_MS) {
+                save();
+            }
+        }
+
+        synchronized void save() {
+            lastSave = System.currentTimeMillis();
+            try {
+                channel.force(false);
+            } catch (IOException e) {
+                // Channel already closed or broken; the counters may be ahead of the disk.
+                return;
+            }
+            state.save(file);
+        }
+    }
+
+    /**
+     * Incremental SHA-256 over the contiguous prefix reported by {@code watermark}. Any
+     * writer thread may call {@link #advance}; only one hashes at a time, the others return.
+     */
+    private static final class Hasher {
+        private final FileChannel channel;
+        private final LongSupplier watermark;
+        private final MessageDigest digest;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        private long hashed;
+
+        Hasher(FileChannel channel, LongSupplier watermark) throws IOException {
+            this.channel = channel;
+            this.watermark = watermark;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IOException("SHA-256 unavailable", e);
+            }
+        }
+
+        void advance() throws IOException {
+            if (!lock.tryLock()) {
+                return;
+            }
+            try {
+                catchUp();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        String finish() throws IOException {
+            lock.lock();
+            try {
+                catchUp();
+                return ModelManifest.toHex(digest.digest());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void catchUp() throws IOException {
+            long target = watermark.getAsLong();
+            while (hashed < target) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), target - hashed));
+                int n = channel.read(buf, hashed);
+                if (n <= 0) {
+                    throw new IOException("Short read while hashing at " + hashed);
+                }
+                digest.update(buf.array(), 0, n);
+                hashed += n;
+            }
+        }
+    }
+
+    /** The remote file no longer matches the partial download. */
+    private static final class ValidatorChangedException extends IOException {
+        ValidatorChangedException(String message) {
+            super(message);
+        }
+    }
+
+    private static final class HttpStatusException extends IOException {
+        final int code;
+
+        HttpStatusException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.example.ncnn_llm_ctl;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import java.util.Arrays;
+
+/**
+ * Structural hash of a screen: window package plus the set of (depth, class, view id)
+ * tuples in the tree. Text and bounds are ignored, and the tuples are deduplicated, so the
+ * same screen with different list contents or item counts maps to the same fingerprint.
+ * {@link #contentHash} is the opposite: it covers text and positions, so it tells whether
+ * what is on that screen changed (a list scrolled, content finished loading).
+ */
+public final class ScreenFingerprint {
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private ScreenFingerprint() {
+    }
+
+    /** Returns a 16-char hex fingerprint, or "" when {@code root} is null. */
+    public static String compute(AccessibilityNodeInfo root, AccessibilityTreeWalker<AccessibilityNodeInfo> walker) {
+        if (root == null || walker == null) {
+            return "";
+        }
+        final long[][] tuples = new long[][] {new long[256]};
+        final int[] count = new int[1];
+        walker.walk(root, (node, depth) -> {
+            long h = FNV_OFFSET;
+            h = mix(h, depth);
+            h = mix(h, node.getClassName());
+            h = mix(h, node.getViewIdResourceName());
+            if (count[0] == tuples[0].length) {
+                tuples[0] = Arrays.copyOf(tuples[0], count[0] * 2);
+            }
+            tuples[0][count[0]++] = h;
+            return AccessibilityTreeWalker.Visitor.CONTINUE;
+        });
+
+        long[] sorted = Arrays.copyOf(tuples[0], count[0]);
+        Arrays.sort(sorted);
+        long h = mix(FNV_OFFSET, root.getPackageName());
+        long prev = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i > 0 && sorted[i] == prev) {
+                continue;
+            }
+            prev = sorted[i];
+            h = mix(h, prev);
+        }
+        return String.format("%016x", h);
+    }
+
+    /**
+     * Returns a 16-char hex hash of every node's class, view id, text, description and
+     * on-screen bounds under {@code root} in document order, or "" when {@code root} is null.
+     */
+    public static String contentHash(AccessibilityNodeInfo root, AccessibilityTreeWalker<AccessibilityNodeInfo> walker) {
+        if (root == null || walker == null) {
+            return "";
+        }
+        final long[] h = new long[] {FNV_OFFSET};
+        final Rect bounds = new Rect();
+        walker.walk(root, (node, depth) -> {
+            long x = mix(h[0], depth);
+            x = mix(x, node.getClassName());
+            x = mix(x, node.getViewIdResourceName());
+            x = mix(x, node.getText());
+            x = mix(x, node.getContentDescription());
+            node.getBoundsInScreen(bounds);
+            x = mix(x, ((long) bounds.left << 48) ^ ((long) bounds.top << 32) ^ ((long) bounds.right << 16) ^ bounds.bottom);
+            h[0] = x;
+            return AccessibilityTreeWalker.Visitor.CONTINUE;
+        });
+        return String.format("%016x", h[0]);
+    }
+
+    private static long mix(long h, CharSequence s) {
+        if (s == null) {
+            return mix(h, -1L);
+        }
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return mix(h, (long) s.length());
+    }
+
+    private static long mix(long h, long v) {
+        for (int i = 0; i < 8; i++) {
+            h ^= (v >>> (i * 8)) & 0xff;
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.ncnn_llm_ctl;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Results of {@link ToolSpec#cacheable() cacheable} tool calls, keyed by tool + arguments and
+ * valid until the screen may have changed: every UI accessibility event and every mutating
+ * tool call bumps a generation counter, and only results of the current generation (and at
+ * most MAX_AGE_MS old, for changes that raise no event) are served. Identical calls that
+ * arrive while the first is still running wait for it instead of querying again.
+ */
+final class ToolResultCache {
+    private static final String TAG = "ToolResultCache";
+    private static final long MAX_AGE_MS = 3000;
+
+    private static final class Entry {
+        final long generation;
+        final long createdAt;
+        // The result serialized once it is known; callers add their own fields to copies.
+        final CompletableFuture<String> result = new CompletableFuture<>();
+
+        Entry(long generation, long createdAt) {
+            this.generation = generation;
+            this.createdAt = createdAt;
+        }
+    }
+
+    private static final AtomicLong GENERATION = new AtomicLong();
+    private static final Object LOCK = new Object();
+    // Guarded by LOCK.
+    private static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+    private ToolResultCache() {
+    }
+
+    /** Drops every cached result. Cheap enough for the accessibility event thread. */
+    static void invalidate() {
+        GENERATION.incrementAndGet();
+    }
+
+    /**
+     * A cached result for {@code tool}/{@code args} with {@code "cached": true} and its age,
+     * or else the result of {@code call}, which is cached when it succeeded and no
+     * invalidation happened meanwhile.
+     */
+    static JSONObject get(String tool, JSONObject args, Callable<JSONObject> call) throws Exception {
+        String key = tool + '\n' + args;
+        long now = System.currentTimeMillis();
+        long gen = GENERATION.get();
+        Entry entry;
+        boolean owner = false;
+        synchronized (LOCK) {
+            entry = ENTRIES.get(key);
+            if (entry == null || entry.generation != gen || now - entry.createdAt > MAX_AGE_MS
+                    || entry.result.isCompletedExceptionally()) {
+                entry = new Entry(gen, now);
+                owner = true;
+                evictStale(gen);
+                ENTRIES.put(key, entry);
+            }
+        }
+        if (owner) {
+            JSONObject out;
+            try {
+                out = call.call();
+            } catch (Exception e) {
+                entry.result.completeExceptionally(e);
+                remove(key, entry);
+                throw e;
+            }
+            entry.result.complete(out.toString());
+            if (!out.optBoolean("ok", false)) {
+                remove(key, entry);
+            }
+            return out;
+        }
+        String cached;
+        try {
+            cached = entry.result.get();
+        } catch (ExecutionException e) {
+            // The call we joined failed; it was not cached, run our own.
+            return call.call();
+        }
+        JSONObject out = new JSONObject(cached);
+        if (!out.optBoolean("ok", false)) {
+            return call.call();
+        }
+        out.put("cached", true);
+        out.put("cache_age_ms", System.currentTimeMillis() - entry.createdAt);
+        Log.d(TAG, "hit " + tool + " ageMs=" + (System.currentTimeMillis() - entry.createdAt));
+        return out;
+    }
+
+    private static void remove(String key, Entry entry) {
+        synchronized (LOCK) {
+            if (ENTRIES.get(key) == entry) {
+                ENTRIES.remove(key);
+            }
+        }
+    }
+
+    // Caller holds LOCK.
+    private static void evictStale(long gen) {
+        Iterator<Entry> it = ENTRIES.values().iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.generation != gen && e.result.isDone()) {
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.example.ncnn_llm_ctl;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * One tool in the {@link JavaMcpTools} registry: name, description, typed parameters, the
+ * handler that runs it, and its execution policy (timeout, concurrency limit). The OpenAI
+ * schema and the dispatch map are both generated from these, so adding a tool is one
+ * {@link JavaMcpTools#registerTool} call.
+ */
+public final class ToolSpec {
+    public static final long DEFAULT_TIMEOUT_MS = 20000;
+
+    /** Runs the tool; writes "ok" and any result/error fields into {@code out}. */
+    public interface Handler {
+        void run(JSONObject args, AccessibilityToolBridge bridge, JSONObject out) throws Exception;
+    }
+
+    private static final class Param {
+        final String name;
+        final JSONObject schema;
+        final boolean required;
+
+        Param(String name, JSONObject schema, boolean required) {
+            this.name = name;
+            this.schema = schema;
+            this.required = required;
+        }
+    }
+
+    public final String name;
+    public final String description;
+    private final List<Param> params = new ArrayList<>();
+    private Handler handler;
+    private long timeoutMs = DEFAULT_TIMEOUT_MS;
+    private int maxConcurrent = 1;
+    private boolean readOnly;
+    private boolean cacheable;
+    private Semaphore permits;
+    final LatencyHistogram latency = new LatencyHistogram();
+
+    public ToolSpec(String name, String description) {
+        this.name = name;
+        this.description = description;
+    }
+
+    public ToolSpec string(String param, String desc, boolean required) {
+        return param(param, typed("string", desc), required);
+    }
+
+    public ToolSpec integer(String param, String desc, boolean required) {
+        return param(param, typed("integer", desc), required);
+    }
+
+    public ToolSpec bool(String param, String desc) {
+        return param(param, typed("boolean", desc), false);
+    }
+
+    /** A parameter with a hand-written JSON schema (arrays, nested objects). */
+    public ToolSpec param(String param, JSONObject schema, boolean required) {
+        params.add(new Param(param, schema, required));
+        return this;
+    }
+
+    public ToolSpec timeoutMs(long ms) {
+        this.timeoutMs = ms;
+        return this;
+    }
+
+    /** Concurrent calls allowed; gestures and other UI mutations should keep the default 1. */
+    public ToolSpec maxConcurrent(int n) {
+        this.maxConcurrent = Math.max(1, n);
+        return this;
+    }
+
+    /**
+     * Marks the tool as only observing the screen, so calls to it in one step may run
+     * concurrently. Anything that changes the UI or waits for it to change stays ordered.
+     */
+    public ToolSpec readOnly() {
+        this.readOnly = true;
+        return this;
+    }
+
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Read-only and a pure function of its arguments and the screen: results are reused from
+     * {@link ToolResultCache} until the UI changes. Implies {@link #readOnly()}.
+     */
+    public ToolSpec cacheable() {
+        this.readOnly = true;
+        this.cacheable = true;
+        return this;
+    }
+
+    boolean isCacheable() {
+        return cacheable;
+    }
+
+    public ToolSpec handler(Handler h) {
+        this.handler = h;
+        return this;
+    }
+
+    Handler handler() {
+        return handler;
+    }
+
+    long timeoutMs() {
+        return timeoutMs;
+    }
+
+    synchronized Semaphore permits() {
+        if (permits == null) {
+            permits = new Semaphore(maxConcurrent);
+        }
+        return permits;
+    }
+
+    /** First required parameter missing from {@code args}, or null. */
+    String missingRequired(JSONObject args) {
+        for (Param p : params) {
+            if (p.required && !args.has(p.name)) {
+                return p.name;
+            }
+        }
+        return null;
+    }
+
+    /** The OpenAI function tool definition. */
+    JSONObject toOpenAi() {
+        JSONObject props = new JSONObject();
+        JSONArray required = new JSONArray();
+        for (Param p : params) {
+            put(props, p.name, p.schema);
+            if (p.required) {
+                required.put(p.name);
+            }
+        }
+        JSONObject parameters = new JSONObject();
+        put(parameters, "type", "object");
+        put(parameters, "properties", props);
+        put(parameters, "required", required);
+
+        JSONObject fn = new JSONObject();
+        put(fn, "name", name);
+        put(fn, "description", description);
+        put(fn, "parameters", parameters);
+
+        JSONObject tool = new JSONObject();
+        put(tool, "type", "function");
+        put(tool, "function", fn);
+        return tool;
+    }
+
+    static JSONObject typed(String type, String desc) {
+        JSONObject v = new JSONObject();
+        put(v, "type", type);
+        put(v, "description", desc);
+        return v;
+    }
+
+    private static void put(JSONObject obj, String key, Object value) {
+        try {
+            obj.put(key, value);
+        } catch (Exception ignore) {
+        }
+    }
+
+    /** Call latencies in fixed millisecond buckets plus count/sum/max and failures. */
+    static final class LatencyHistogram {
+        private static final long[] BOUNDS_MS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong sumMs = new AtomicLong();
+        private final AtomicLong maxMs = new AtomicLong();
+
+        void record(long ms, boolean ok) {
+            int i = 0;
+            while (i < BOUNDS_MS.length && ms > BOUNDS_MS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            sumMs.addAndGet(ms);
+            if (!ok) {
+                failures.incrementAndGet();
+            }
+            long prev;
+            while (ms > (prev = maxMs.get()) && !maxMs.compareAndSet(prev, ms)) {
+                // retry
+            }
+        }
+
+        JSONObject toJson() {
+            JSONObject out = new JSONObject();
+            long n = count.get();
+            put(out, "count", n);
+            put(out, "failures", failures.get());
+            put(out, "avg_ms", n == 0 ? 0 : sumMs.get() / n);
+            put(out, "max_ms", maxMs.get());
+            JSONObject b = new JSONObject();
+            for (int i = 0; i <= BOUNDS_MS.length; i++) {
+                put(b, i < BOUNDS_MS.length ? "le_" + BOUNDS_MS[i] : "inf", buckets.get(i));
+            }
+            put(out, "buckets", b);
+            return out;
+        }
+    }
+}
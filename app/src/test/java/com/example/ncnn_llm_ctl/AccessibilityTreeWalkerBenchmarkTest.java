@@ -0,0 +1,72 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Nodes/sec of the iterative walker against the recursive walk it replaced, over the same
+ * fake provider (a fresh handle per child, released after the subtree). Timings depend on the
+ * machine, so it is left out of the normal run and the bound on them is loose: at least
+ * MIN_NODES_PER_SEC, a few milliseconds for a large real screen.
+ */
+@Ignore("benchmark; run explicitly")
+public class AccessibilityTreeWalkerBenchmarkTest {
+    private static final int WARMUP = 5;
+    private static final int ROUNDS = 20;
+    private static final double MIN_NODES_PER_SEC = 1e6;
+
+    @Test
+    public void iterativeVersusRecursive() {
+        FakeNodes nodes = new FakeNodes();
+        FakeNodes.Node tree = FakeNodes.tree(8, 5);
+        AccessibilityTreeWalker<FakeNodes.Handle> walker =
+                new AccessibilityTreeWalker<>(nodes, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        int[] sink = new int[1];
+        AccessibilityTreeWalker.Visitor<FakeNodes.Handle> visitor = (h, d) -> {
+            sink[0] += h.node.id + d;
+            return AccessibilityTreeWalker.Visitor.CONTINUE;
+        };
+
+        int expected = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            expected = walker.walk(nodes.root(tree), visitor);
+            assertEquals(expected, recursive(nodes, nodes.root(tree), 0, visitor));
+        }
+        long iterNs = 0;
+        long recNs = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long t0 = System.nanoTime();
+            int a = walker.walk(nodes.root(tree), visitor);
+            long t1 = System.nanoTime();
+            int b = recursive(nodes, nodes.root(tree), 0, visitor);
+            long t2 = System.nanoTime();
+            assertEquals(expected, a);
+            assertEquals(expected, b);
+            iterNs += t1 - t0;
+            recNs += t2 - t1;
+        }
+        assertEquals(0, nodes.live());
+        double total = (double) expected * ROUNDS;
+        double iterRate = total * 1e9 / iterNs;
+        assertTrue(String.format("tree walk over %d nodes: iterative %.0f nodes/s, recursive %.0f nodes/s",
+                expected, iterRate, total * 1e9 / recNs), iterRate >= MIN_NODES_PER_SEC);
+    }
+
+    /** The previous dumpNode shape: visit, then recurse into each child and release it. */
+    private static int recursive(FakeNodes nodes, FakeNodes.Handle node, int depth,
+                                 AccessibilityTreeWalker.Visitor<FakeNodes.Handle> visitor) {
+        visitor.visit(node, depth);
+        int count = 1;
+        for (int i = 0; i < nodes.getChildCount(node); i++) {
+            FakeNodes.Handle child = nodes.getChild(node, i);
+            if (child != null) {
+                count += recursive(nodes, child, depth + 1, visitor);
+                nodes.release(child);
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AccessibilityTreeWalkerTest {
+    private final FakeNodes nodes = new FakeNodes();
+
+    @Test
+    public void visitsInPreOrderAndReleasesEveryChild() {
+        FakeNodes.Node tree = FakeNodes.tree(3, 4);
+        List<Integer> ids = new ArrayList<>();
+        List<Integer> depths = new ArrayList<>();
+        AccessibilityTreeWalker<FakeNodes.Handle> w = new AccessibilityTreeWalker<>(nodes);
+
+        int visited = w.walk(nodes.root(tree), (h, d) -> {
+            ids.add(h.node.id);
+            depths.add(d);
+            return AccessibilityTreeWalker.Visitor.CONTINUE;
+        });
+
+        // FakeNodes.tree numbers nodes in pre-order.
+        assertEquals(121, visited);
+        for (int i = 0; i < visited; i++) {
+            assertEquals(i, (int) ids.get(i));
+        }
+        assertEquals(0, (int) depths.get(0));
+        assertEquals(4, (int) depths.get(4));
+        assertFalse(w.wasLastWalkTruncated());
+        assertEquals(0, nodes.live());
+    }
+
+    @Test
+    public void stopAndSkipChildren() {
+        FakeNodes.Node tree = FakeNodes.tree(2, 3);
+        AccessibilityTreeWalker<FakeNodes.Handle> w = new AccessibilityTreeWalker<>(nodes);
+
+        int skipped = w.walk(nodes.root(tree), (h, d) -> d == 1
+                ? AccessibilityTreeWalker.Visitor.SKIP_CHILDREN : AccessibilityTreeWalker.Visitor.CONTINUE);
+        assertEquals(3, skipped);
+
+        int stopped = w.walk(nodes.root(tree), (h, d) -> h.node.id == 5
+                ? AccessibilityTreeWalker.Visitor.STOP : AccessibilityTreeWalker.Visitor.CONTINUE);
+        assertEquals(6, stopped);
+        assertFalse(w.wasLastWalkTruncated());
+        assertEquals("nodes still on the stack are released after STOP", 0, nodes.live());
+    }
+
+    @Test
+    public void limitsMarkTheWalkTruncated() {
+        AccessibilityTreeWalker<FakeNodes.Handle> byDepth = new AccessibilityTreeWalker<>(nodes, 10, 1000);
+        assertEquals(11, byDepth.walk(nodes.root(FakeNodes.chain(100)), (h, d) -> AccessibilityTreeWalker.Visitor.CONTINUE));
+        assertTrue(byDepth.wasLastWalkTruncated());
+
+        AccessibilityTreeWalker<FakeNodes.Handle> byCount = new AccessibilityTreeWalker<>(nodes, 64, 100);
+        assertEquals(100, byCount.walk(nodes.root(FakeNodes.tree(10, 3)), (h, d) -> AccessibilityTreeWalker.Visitor.CONTINUE));
+        assertTrue(byCount.wasLastWalkTruncated());
+        assertEquals(0, nodes.live());
+    }
+
+    @Test
+    public void deepChainDoesNotNeedTheThreadStack() {
+        int length = 200_000;
+        AccessibilityTreeWalker<FakeNodes.Handle> w =
+                new AccessibilityTreeWalker<>(nodes, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(length, w.walk(nodes.root(FakeNodes.chain(length)), (h, d) -> AccessibilityTreeWalker.Visitor.CONTINUE));
+        assertEquals(0, nodes.live());
+    }
+
+    @Test
+    public void findFirstReturnsACopyTheCallerReleases() {
+        AccessibilityTreeWalker<FakeNodes.Handle> w = new AccessibilityTreeWalker<>(nodes);
+        FakeNodes.Handle found = w.findFirst(nodes.root(FakeNodes.tree(3, 3)), h -> h.node.id == 7);
+        assertEquals(7, found.node.id);
+        assertEquals(1, nodes.live());
+        nodes.release(found);
+        assertEquals(0, nodes.live());
+        assertNull(w.findFirst(nodes.root(FakeNodes.tree(2, 2)), h -> false));
+    }
+}
@@ -0,0 +1,118 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+
+@RunWith(RobolectricTestRunner.class)
+public class ActionMemoTest {
+    private static final String FP = "00000000000000ab";
+    private static final String GOAL = "打开设置";
+    private static final String DONE = "已打开设置。";
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private ActionMemo memo;
+
+    @Before
+    public void setUp() throws Exception {
+        memo = new ActionMemo(new File(dir.getRoot(), "action_memo.json"));
+    }
+
+    private static JSONObject call(String name, String argsJson) throws Exception {
+        JSONObject fn = new JSONObject().put("name", name).put("arguments", new JSONObject(argsJson));
+        return new JSONObject().put("type", "function").put("function", fn);
+    }
+
+    private static JSONObject ok(boolean ok) throws Exception {
+        return new JSONObject().put("ok", ok);
+    }
+
+    @Test
+    public void recordsMutatingCallsAndWaitsButNotReads() throws Exception {
+        ActionMemo.Recorder rec = memo.startRecording(FP, GOAL);
+        rec.record(call("dump_ui", "{}"), ok(true));
+        rec.record(call("click_view_id", "{\"view_id\":\"a:id/settings\"}"), ok(true));
+        rec.record(call("wait_for", "{\"window_change\":true}"), ok(true));
+        rec.record(call("tap", "{\"x\":1,\"y\":2}"), ok(true));
+        rec.commit(DONE);
+
+        JSONArray stored = memo.lookup(FP, GOAL);
+        assertEquals(3, stored.length());
+        assertEquals("click_view_id", stored.getJSONObject(0).getJSONObject("function").getString("name"));
+        assertEquals("wait_for", stored.getJSONObject(1).getJSONObject("function").getString("name"));
+        assertEquals("tap", stored.getJSONObject(2).getJSONObject("function").getString("name"));
+    }
+
+    @Test
+    public void runWithAFailedCallIsNotStored() throws Exception {
+        ActionMemo.Recorder rec = memo.startRecording(FP, GOAL);
+        rec.record(call("click_view_id", "{\"view_id\":\"a:id/missing\"}"), ok(false));
+        rec.record(call("tap", "{\"x\":1,\"y\":2}"), ok(true));
+        rec.commit(DONE);
+
+        assertNull(memo.lookup(FP, GOAL));
+    }
+
+    @Test
+    public void runThatOnlyReadAfterItsLastActionIsNotStored() throws Exception {
+        ActionMemo.Recorder rec = memo.startRecording(FP, GOAL);
+        rec.record(call("tap", "{\"x\":1,\"y\":2}"), ok(true));
+        rec.record(call("dump_ui", "{}"), ok(true));
+        rec.commit(DONE);
+
+        assertNull(memo.lookup(FP, GOAL));
+    }
+
+    @Test
+    public void answerThatReportsAFailureIsNotStored() throws Exception {
+        ActionMemo.Recorder rec = memo.startRecording(FP, GOAL);
+        rec.record(call("tap", "{\"x\":1,\"y\":2}"), ok(true));
+        rec.commit("无法完成：没有找到设置入口。");
+
+        assertNull(memo.lookup(FP, GOAL));
+        assertTrue(ActionMemo.reportsFailure("Sorry, I could not open it."));
+        assertFalse(ActionMemo.reportsFailure(DONE));
+    }
+
+    @Test
+    public void failedReplayReportsTheStepsThatRanAndEvicts() throws Exception {
+        ActionMemo.Recorder rec = memo.startRecording(FP, GOAL);
+        rec.record(call("tap", "{\"x\":1,\"y\":2}"), ok(true));
+        rec.record(call("tap", "{\"x\":3,\"y\":4}"), ok(true));
+        rec.commit(DONE);
+
+        // No accessibility service in the test: the first tap fails.
+        ActionMemo.Replay replay = memo.replay(FP, GOAL, memo.lookup(FP, GOAL), new AccessibilityToolBridge());
+
+        assertFalse(replay.ok);
+        assertEquals(2, replay.total);
+        assertEquals(1, replay.calls.length());
+        assertEquals(1, replay.results.size());
+        assertFalse(replay.results.get(0).optBoolean("ok", true));
+        assertNull("a failed replay evicts its entry", memo.lookup(FP, GOAL));
+    }
+
+    @Test
+    public void entriesSurviveReload() throws Exception {
+        ActionMemo.Recorder rec = memo.startRecording(FP, "  打开   设置 ");
+        rec.record(call("global_action", "{\"action\":\"home\"}"), ok(true));
+        rec.commit(DONE);
+
+        ActionMemo reloaded = new ActionMemo(new File(dir.getRoot(), "action_memo.json"));
+        assertTrue("goal whitespace is normalized", reloaded.lookup(FP, "打开 设置") != null);
+    }
+}
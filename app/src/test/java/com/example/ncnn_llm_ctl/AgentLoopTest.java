@@ -0,0 +1,344 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class AgentLoopTest {
+    private static final String GOAL = "打开设置";
+
+    @After
+    public void tearDown() {
+        ChatHistory.setTokenCounter(null);
+    }
+
+    /** Hands out scripted turns; once they run out, repeats the last one. */
+    private static final class FakeTransport implements AgentLoop.Transport {
+        final Deque<AgentLoop.Turn> turns = new ArrayDeque<>();
+        final List<String> prompts = new ArrayList<>();
+        long sleepMs;
+        int calls;
+
+        FakeTransport then(AgentLoop.Turn turn) {
+            turns.addLast(turn);
+            return this;
+        }
+
+        @Override
+        public AgentLoop.Turn complete(List<JSONObject> messages, JSONArray tools, AgentLoop.Listener listener)
+                throws Exception {
+            calls++;
+            prompts.add(messages.toString());
+            if (sleepMs > 0) {
+                Thread.sleep(sleepMs);
+            }
+            return turns.size() > 1 ? turns.removeFirst() : turns.getFirst();
+        }
+    }
+
+    /** Answers every call with ok=true and remembers what it was asked to run. */
+    private static final class FakeExecutor implements AgentLoop.ToolExecutor {
+        final List<JSONObject> ran = new ArrayList<>();
+        long sleepMs;
+
+        @Override
+        public JSONObject[] execute(JSONArray toolCalls) throws Exception {
+            if (sleepMs > 0) {
+                Thread.sleep(sleepMs);
+            }
+            JSONObject[] out = new JSONObject[toolCalls.length()];
+            for (int i = 0; i < out.length; i++) {
+                ran.add(toolCalls.getJSONObject(i));
+                out[i] = new JSONObject().put("ok", true);
+            }
+            return out;
+        }
+    }
+
+    private static AgentLoop.Turn answer(String text) {
+        return new AgentLoop.Turn(text, null);
+    }
+
+    private static AgentLoop.Turn toolTurn(JSONObject... calls) {
+        JSONArray arr = new JSONArray();
+        for (JSONObject c : calls) {
+            arr.put(c);
+        }
+        return new AgentLoop.Turn("", arr);
+    }
+
+    private static JSONObject call(String name, Object arguments) throws Exception {
+        JSONObject fn = new JSONObject().put("name", name);
+        if (arguments != null) {
+            fn.put("arguments", arguments);
+        }
+        return new JSONObject().put("type", "function").put("function", fn);
+    }
+
+    private static AgentLoop.Builder loop(FakeTransport transport, FakeExecutor executor) {
+        return new AgentLoop.Builder(transport)
+                .tools(new JSONArray())
+                .toolExecutor(executor)
+                .loopDetection(false);
+    }
+
+    private static List<JSONObject> history() throws Exception {
+        List<JSONObject> messages = new ArrayList<>();
+        messages.add(new JSONObject().put("role", "user").put("content", GOAL));
+        return messages;
+    }
+
+    private static JSONObject last(List<JSONObject> messages) {
+        return messages.get(messages.size() - 1);
+    }
+
+    @Test
+    public void textAnswerEndsTheRun() throws Exception {
+        FakeTransport transport = new FakeTransport().then(answer("好的"));
+        FakeExecutor executor = new FakeExecutor();
+        List<JSONObject> messages = history();
+
+        AgentLoop.Outcome o = loop(transport, executor).build().run(messages, GOAL);
+
+        assertEquals(AgentLoop.Stop.DONE, o.stop);
+        assertEquals(1, o.steps);
+        assertNull(o.error);
+        assertTrue(executor.ran.isEmpty());
+        assertEquals("assistant", last(messages).getString("role"));
+        assertEquals("好的", last(messages).getString("content"));
+    }
+
+    @Test
+    public void toolResultsGoBackToTheModel() throws Exception {
+        FakeTransport transport = new FakeTransport()
+                .then(toolTurn(call("tap", new JSONObject().put("x", 1).put("y", 2))))
+                .then(answer("完成"));
+        FakeExecutor executor = new FakeExecutor();
+        List<JSONObject> messages = history();
+        List<String> results = new ArrayList<>();
+
+        AgentLoop.Outcome o = loop(transport, executor)
+                .listener(new AgentLoop.Listener() {
+                    @Override
+                    public void onToolResult(String name, JSONObject result) {
+                        results.add(name + " " + result.optBoolean("ok"));
+                    }
+                })
+                .build().run(messages, GOAL);
+
+        assertEquals(AgentLoop.Stop.DONE, o.stop);
+        assertEquals(2, o.steps);
+        assertEquals(2, transport.calls);
+        assertEquals(1, executor.ran.size());
+        assertEquals("[tap true]", results.toString());
+        // user, assistant with tool_calls, tool, assistant
+        assertEquals(4, messages.size());
+        assertTrue(messages.get(1).has("tool_calls"));
+        assertEquals("tool", messages.get(2).getString("role"));
+    }
+
+    @Test
+    public void malformedCallIsSkippedAndReportedAsFailedResult() throws Exception {
+        FakeTransport transport = new FakeTransport()
+                .then(toolTurn(call("tap", "{\"x\":1,"), call("", new JSONObject()),
+                        call("dump_ui", new JSONObject())))
+                .then(answer("完成"));
+        FakeExecutor executor = new FakeExecutor();
+        List<JSONObject> messages = history();
+
+        AgentLoop.Outcome o = loop(transport, executor).build().run(messages, GOAL);
+
+        assertEquals("the run goes on after a bad call", AgentLoop.Stop.DONE, o.stop);
+        assertEquals(1, executor.ran.size());
+        assertEquals("dump_ui", executor.ran.get(0).getJSONObject("function").getString("name"));
+        JSONObject badArgs = new JSONObject(messages.get(2).getString("content"));
+        assertFalse(badArgs.getBoolean("ok"));
+        assertEquals("tap", badArgs.getString("name"));
+        assertTrue(badArgs.getString("error"), badArgs.getString("error").startsWith("malformed tool call"));
+        JSONObject noName = new JSONObject(messages.get(3).getString("content"));
+        assertFalse(noName.getBoolean("ok"));
+        assertTrue(noName.getString("error").contains("missing function name"));
+        assertTrue("results stay in call order",
+                new JSONObject(messages.get(4).getString("content")).getBoolean("ok"));
+    }
+
+    @Test
+    public void stringArgumentsAreParsedBeforeRunning() throws Exception {
+        FakeTransport transport = new FakeTransport()
+                .then(toolTurn(call("tap", "{\"x\":3,\"y\":4}"), call("dump_ui", ""), call("home", null)))
+                .then(answer("完成"));
+        FakeExecutor executor = new FakeExecutor();
+
+        loop(transport, executor).build().run(history(), GOAL);
+
+        assertEquals(3, executor.ran.size());
+        JSONObject args = executor.ran.get(0).getJSONObject("function").getJSONObject("arguments");
+        assertEquals(3, args.getInt("x"));
+        assertEquals(0, executor.ran.get(1).getJSONObject("function").getJSONObject("arguments").length());
+    }
+
+    /** A settings screen as dump_ui renders it, repeated until it is well over the dump cap. */
+    private static String settingsDump() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; ChatHistory.countTokens(sb.toString()) < 2 * JavaMcpTools.DUMP_MAX_TOKENS; i++) {
+            sb.append("  android.widget.LinearLayout id=com.android.settings:id/item_").append(i)
+                    .append(" bounds=[0,").append(200 + i * 120).append("][1080,").append(320 + i * 120)
+                    .append("] clickable\n    android.widget.TextView text=\"蓝牙与设备连接 ").append(i)
+                    .append("\" desc=\"\" bounds=[48,").append(220 + i * 120).append("][900,")
+                    .append(300 + i * 120).append("]\n");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void earlierTurnsSurviveAFullSizeDump() throws Exception {
+        String dump = ChatHistory.headWithinTokens(settingsDump(), JavaMcpTools.DUMP_MAX_TOKENS);
+        JSONObject dumpResult = new JSONObject().put("ok", true).put("dump", dump);
+        for (int budget : new int[] {ChatHistory.DEFAULT_BUDGET_TOKENS, 3000}) {
+            FakeTransport transport = new FakeTransport()
+                    .then(toolTurn(call("dump_ui", new JSONObject())))
+                    .then(answer("完成"));
+            List<JSONObject> messages = new ArrayList<>();
+            JavaMcpTools.ensureToolSystemMessage(messages);
+            messages.add(new JSONObject().put("role", "user").put("content", "打开蓝牙"));
+            messages.add(new JSONObject().put("role", "assistant").put("content", "已打开蓝牙。"));
+            messages.add(new JSONObject().put("role", "user").put("content", GOAL));
+
+            new AgentLoop.Builder(transport)
+                    .tools(new JSONArray())
+                    .toolExecutor(calls -> new JSONObject[] {dumpResult})
+                    .loopDetection(false)
+                    .historyBudgetTokens(budget)
+                    .build().run(messages, GOAL);
+
+            assertEquals(2, transport.calls);
+            String second = transport.prompts.get(1);
+            assertTrue("the dump is sent in full", second.contains("蓝牙与设备连接 1"));
+            if (budget == ChatHistory.DEFAULT_BUDGET_TOKENS) {
+                assertTrue("the earlier turn is kept next to a capped dump", second.contains("已打开蓝牙。"));
+            } else {
+                assertFalse("a budget below the dump cap drops it", second.contains("已打开蓝牙。"));
+            }
+        }
+    }
+
+    @Test
+    public void stopsAfterMaxSteps() throws Exception {
+        FakeTransport transport = new FakeTransport().then(toolTurn(call("dump_ui", new JSONObject())));
+
+        AgentLoop.Outcome o = loop(transport, new FakeExecutor()).maxSteps(3).build().run(history(), GOAL);
+
+        assertEquals(AgentLoop.Stop.MAX_STEPS, o.stop);
+        assertEquals(3, o.steps);
+        assertEquals(3, transport.calls);
+    }
+
+    @Test
+    public void stopsWhenTheTokenBudgetIsSpent() throws Exception {
+        FakeTransport transport = new FakeTransport().then(toolTurn(call("dump_ui", new JSONObject())));
+
+        AgentLoop.Outcome o = loop(transport, new FakeExecutor()).tokenBudget(1).build().run(history(), GOAL);
+
+        assertEquals(AgentLoop.Stop.TOKEN_BUDGET, o.stop);
+        assertEquals(1, transport.calls);
+        assertTrue(o.promptTokens + o.completionTokens >= 1);
+    }
+
+    @Test
+    public void toolCallJsonCountsAsCompletion() throws Exception {
+        JSONArray calls = toolTurn(call("tap", new JSONObject().put("x", 1).put("y", 2))).toolCalls;
+        FakeTransport transport = new FakeTransport()
+                .then(new AgentLoop.Turn("", calls))
+                .then(answer(""));
+
+        AgentLoop.Outcome o = loop(transport, new FakeExecutor()).build().run(history(), GOAL);
+
+        assertEquals(AgentLoop.Stop.DONE, o.stop);
+        assertEquals(ChatHistory.countTokens(calls.toString()), o.completionTokens);
+    }
+
+    @Test
+    public void stopsWhenTheTimeBudgetIsSpent() throws Exception {
+        FakeTransport transport = new FakeTransport().then(toolTurn(call("dump_ui", new JSONObject())));
+        transport.sleepMs = 30;
+
+        AgentLoop.Outcome o = loop(transport, new FakeExecutor()).timeBudgetMs(20).build().run(history(), GOAL);
+
+        assertEquals(AgentLoop.Stop.TIME_BUDGET, o.stop);
+        assertEquals(1, transport.calls);
+    }
+
+    @Test
+    public void cancelStopsBeforeTheNextTurn() throws Exception {
+        FakeTransport transport = new FakeTransport().then(toolTurn(call("dump_ui", new JSONObject())));
+        AgentLoop[] self = new AgentLoop[1];
+        int[] finished = new int[1];
+        self[0] = loop(transport, new FakeExecutor())
+                .listener(new AgentLoop.Listener() {
+                    @Override
+                    public void onStepEnd(int step) {
+                        self[0].cancel();
+                    }
+
+                    @Override
+                    public void onFinished(AgentLoop.Outcome outcome) {
+                        finished[0]++;
+                    }
+                })
+                .build();
+
+        AgentLoop.Outcome o = self[0].run(history(), GOAL);
+
+        assertEquals(AgentLoop.Stop.CANCELLED, o.stop);
+        assertEquals(1, transport.calls);
+        assertEquals(1, finished[0]);
+    }
+
+    @Test
+    public void transportFailureEndsWithError() throws Exception {
+        AgentLoop.Transport broken = (messages, tools, listener) -> {
+            throw new IOException("connection refused");
+        };
+
+        AgentLoop.Outcome o = new AgentLoop.Builder(broken)
+                .tools(new JSONArray())
+                .toolExecutor(new FakeExecutor())
+                .loopDetection(false)
+                .build().run(history(), GOAL);
+
+        assertEquals(AgentLoop.Stop.ERROR, o.stop);
+        assertEquals("connection refused", o.error);
+    }
+
+    @Test
+    public void splitsModelTimeFromToolTime() throws Exception {
+        FakeTransport transport = new FakeTransport()
+                .then(toolTurn(call("dump_ui", new JSONObject())))
+                .then(answer("完成"));
+        transport.sleepMs = 40;
+        FakeExecutor executor = new FakeExecutor();
+        executor.sleepMs = 60;
+
+        AgentLoop.Outcome o = loop(transport, executor).build().run(history(), GOAL);
+
+        assertEquals(AgentLoop.Stop.DONE, o.stop);
+        assertTrue("two model turns: " + o, o.modelMs >= 70);
+        assertTrue("one tool step: " + o, o.toolMs >= 50 && o.toolMs < o.totalMs);
+        assertTrue(o.toString(), o.modelMs + o.toolMs <= o.totalMs);
+    }
+}
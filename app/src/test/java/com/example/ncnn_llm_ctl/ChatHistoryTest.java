@@ -0,0 +1,205 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class ChatHistoryTest {
+    @After
+    public void tearDown() {
+        ChatHistory.setTokenCounter(null);
+    }
+
+    private static JSONObject msg(String role, String content) throws Exception {
+        return new JSONObject().put("role", role).put("content", content);
+    }
+
+    private static JSONObject dumpResult(String dump) throws Exception {
+        return msg("tool", new JSONObject().put("ok", true).put("name", "dump_ui").put("dump", dump).toString());
+    }
+
+    private static String screen(String name, int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            sb.append(name).append(" android.widget.TextView id=item").append(i).append(" text=条目").append(i).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String dumpOf(JSONObject message) throws Exception {
+        return new JSONObject(message.getString("content")).getString("dump");
+    }
+
+    @Test
+    public void supersededDumpsBecomeReferencesAndTheLatestStays() throws Exception {
+        String latest = screen("B", 50);
+        List<JSONObject> h = new ArrayList<>();
+        h.add(msg("system", "sys"));
+        h.add(msg("user", "打开设置"));
+        h.add(dumpResult(screen("A", 50)));
+        h.add(msg("assistant", "点击设置"));
+        h.add(dumpResult(latest));
+
+        ChatHistory.compact(h, Integer.MAX_VALUE);
+
+        assertEquals(5, h.size());
+        assertTrue(dumpOf(h.get(2)), dumpOf(h.get(2)).startsWith("[旧屏幕"));
+        assertEquals(latest, dumpOf(h.get(4)));
+    }
+
+    @Test
+    public void dumpsInsideRunActionStepsAreStrippedToo() throws Exception {
+        JSONObject steps = new JSONObject().put("ok", true).put("name", "run_actions")
+                .put("steps", new JSONArray().put(new JSONObject().put("tool", "dump_ui").put("dump", screen("A", 20))));
+        List<JSONObject> h = new ArrayList<>();
+        h.add(msg("user", "go"));
+        h.add(msg("tool", steps.toString()));
+        h.add(dumpResult(screen("B", 20)));
+
+        ChatHistory.compact(h, Integer.MAX_VALUE);
+
+        String stripped = new JSONObject(h.get(1).getString("content")).getJSONArray("steps")
+                .getJSONObject(0).getString("dump");
+        assertTrue(stripped, stripped.startsWith("[旧屏幕"));
+    }
+
+    @Test
+    public void overBudgetShortensOldResultsThenDropsOldestTurns() throws Exception {
+        List<JSONObject> h = new ArrayList<>();
+        h.add(msg("system", "sys"));
+        h.add(msg("user", "第一个任务"));
+        h.add(msg("tool", "{\"ok\":true,\"text\":\"" + "x".repeat(4000) + "\"}"));
+        h.add(msg("assistant", "完成"));
+        h.add(msg("user", "第二个任务"));
+        h.add(msg("tool", "{\"ok\":true,\"text\":\"" + "y".repeat(4000) + "\"}"));
+        h.add(msg("assistant", "完成"));
+        h.add(msg("user", "第三个任务"));
+
+        int tokens = ChatHistory.compact(h, 200);
+
+        assertTrue("within budget: " + tokens, tokens <= 200);
+        assertEquals(tokens, ChatHistory.countTokens(h));
+        assertEquals("system", h.get(0).getString("role"));
+        assertEquals("第三个任务", h.get(h.size() - 1).getString("content"));
+        for (JSONObject m : h) {
+            assertFalse("oldest turn dropped first", m.getString("content").equals("第一个任务"));
+        }
+    }
+
+    @Test
+    public void shorteningAloneIsEnoughWhenItFits() throws Exception {
+        List<JSONObject> h = new ArrayList<>();
+        h.add(msg("user", "任务"));
+        h.add(msg("tool", "{\"ok\":true,\"text\":\"" + "z".repeat(4000) + "\"}"));
+        h.add(msg("user", "下一步"));
+
+        ChatHistory.compact(h, 300);
+
+        assertEquals("no turn dropped", 3, h.size());
+        assertTrue(h.get(1).getString("content").endsWith("...(已截断)"));
+    }
+
+    @Test
+    public void keptPartsMayExceedTheBudget() throws Exception {
+        String latest = screen("B", 200);
+        List<JSONObject> h = new ArrayList<>();
+        h.add(msg("system", "sys"));
+        h.add(msg("user", "任务"));
+        h.add(dumpResult(latest));
+
+        int tokens = ChatHistory.compact(h, 10);
+
+        assertTrue(tokens > 10);
+        assertEquals(3, h.size());
+        assertEquals(latest, dumpOf(h.get(2)));
+    }
+
+    @Test
+    public void installedCounterIsUsedAndFailuresFallBackToTheEstimate() throws Exception {
+        assertEquals("CJK chars count one each", 4 + 3, ChatHistory.countTokens("打开设置abcdefghij"));
+
+        ChatHistory.setTokenCounter(text -> 42);
+        assertEquals(42, ChatHistory.countTokens("打开设置"));
+
+        ChatHistory.setTokenCounter(text -> -1);
+        assertEquals(4, ChatHistory.countTokens("打开设置"));
+
+        ChatHistory.setTokenCounter(text -> {
+            throw new IllegalStateException("not loaded");
+        });
+        assertEquals(4, ChatHistory.countTokens("打开设置"));
+    }
+
+    @Test
+    public void headAndTailFitTheTokenBudget() {
+        // One token per char, as a tokenizer with a vocabulary of single chars would count.
+        ChatHistory.setTokenCounter(String::length);
+        String text = "0123456789".repeat(100);
+
+        assertEquals(text, ChatHistory.headWithinTokens(text, 1000));
+        String head = ChatHistory.headWithinTokens(text, 333);
+        assertTrue(head.length() <= 333 && head.length() > 300);
+        assertTrue(text.startsWith(head));
+        String tail = ChatHistory.tailWithinTokens(text, 333);
+        assertTrue(tail.length() <= 333 && tail.length() > 300);
+        assertTrue(text.endsWith(tail));
+        assertEquals("", ChatHistory.headWithinTokens(text, 0));
+    }
+
+    @Test
+    public void cutsUseTokenOffsetsFromOneEncoding() {
+        // Two chars per token; every call to the tokenizer is counted.
+        int[] encodings = new int[1];
+        ChatHistory.setTokenCounter(new ChatHistory.TokenCounter() {
+            @Override
+            public int count(String text) {
+                encodings[0]++;
+                return (text.length() + 1) / 2;
+            }
+
+            @Override
+            public int[] tokenEnds(String text) {
+                encodings[0]++;
+                int[] ends = new int[(text.length() + 1) / 2];
+                for (int i = 0; i < ends.length; i++) {
+                    ends[i] = Math.min(text.length(), 2 * (i + 1));
+                }
+                return ends;
+            }
+        });
+        String text = "ab".repeat(10_000);
+
+        assertEquals(200, ChatHistory.headWithinTokens(text, 100).length());
+        assertEquals(1, encodings[0]);
+        assertEquals(200, ChatHistory.tailWithinTokens(text, 100).length());
+        assertEquals(2, encodings[0]);
+        assertEquals(text, ChatHistory.headWithinTokens(text, 10_000));
+        assertEquals(3, encodings[0]);
+    }
+
+    @Test
+    public void cutsNeverSplitASurrogatePair() {
+        ChatHistory.setTokenCounter(String::length);
+        String emoji = "\uD83D\uDE00";
+        String text = emoji.repeat(50);
+
+        for (int max = 1; max < 40; max++) {
+            String head = ChatHistory.headWithinTokens(text, max);
+            String tail = ChatHistory.tailWithinTokens(text, max);
+            assertEquals("head of " + max, 0, head.length() % 2);
+            assertEquals("tail of " + max, 0, tail.length() % 2);
+            assertTrue(head.length() <= max && tail.length() <= max);
+        }
+    }
+}
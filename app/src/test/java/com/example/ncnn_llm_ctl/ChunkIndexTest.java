@@ -0,0 +1,182 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class ChunkIndexTest {
+    private static final int CHUNK = 64 * 1024;
+    // Six chunks, the last one short.
+    private static final int SIZE = 5 * CHUNK + 1000;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private final List<RangeHttpStub> stubs = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (RangeHttpStub s : stubs) {
+            s.close();
+        }
+    }
+
+    private RangeHttpStub serve(byte[] data, String path) throws IOException {
+        RangeHttpStub s = new RangeHttpStub(data, "\"i\"", path);
+        stubs.add(s);
+        return s;
+    }
+
+    private static String sha256(byte[] data, int off, int len) throws Exception {
+        MessageDigest d = MessageDigest.getInstance("SHA-256");
+        d.update(data, off, len);
+        return ModelManifest.toHex(d.digest());
+    }
+
+    private static ChunkIndex.FileChunks chunksOf(byte[] data) throws Exception {
+        int n = (data.length + CHUNK - 1) / CHUNK;
+        String[] chunks = new String[n];
+        for (int i = 0; i < n; i++) {
+            chunks[i] = sha256(data, i * CHUNK, Math.min(CHUNK, data.length - i * CHUNK));
+        }
+        return new ChunkIndex.FileChunks(data.length, sha256(data, 0, data.length), CHUNK, chunks);
+    }
+
+    private static JSONObject indexEntry(ChunkIndex.FileChunks c) throws Exception {
+        return new JSONObject().put("size", c.size).put("sha256", c.sha256).put("chunks", new JSONArray(Arrays.asList(c.chunks)));
+    }
+
+    @Test
+    public void onlyChunksMissingLocallyAreFetchedAsMergedRanges() throws Exception {
+        byte[] next = RangeHttpStub.randomBytes(SIZE, 20);
+        byte[] old = next.clone();
+        // Chunks 1 and 2 changed in the new version; 0, 3, 4 and 5 are still on disk.
+        byte[] changed = RangeHttpStub.randomBytes(2 * CHUNK, 21);
+        System.arraycopy(changed, 0, old, CHUNK, changed.length);
+        File basis = dir.newFile("decoder.bin");
+        Files.write(basis.toPath(), old);
+        RangeHttpStub mirror = serve(next, RangeHttpStub.PATH);
+        File tmp = dir.newFile("decoder.bin.part");
+
+        long fetched = ChunkIndex.assemble(chunksOf(next), Collections.singletonList(basis),
+                Collections.singletonList(mirror.url()), tmp, null, "decoder.bin");
+
+        assertArrayEquals(next, Files.readAllBytes(tmp.toPath()));
+        assertEquals(2L * CHUNK, fetched);
+        List<RangeHttpStub.Request> taken = mirror.requests();
+        assertEquals("consecutive missing chunks share one request", 1, taken.size());
+        assertEquals("bytes=" + CHUNK + "-" + (3 * CHUNK - 1), taken.get(0).range);
+    }
+
+    @Test
+    public void chunksAreFoundAtAnyAlignedOffsetOfAnyBasis() throws Exception {
+        byte[] next = RangeHttpStub.randomBytes(SIZE, 22);
+        // A sibling model holds the first two chunks in reverse order, another file the tail.
+        byte[] sibling = new byte[2 * CHUNK];
+        System.arraycopy(next, CHUNK, sibling, 0, CHUNK);
+        System.arraycopy(next, 0, sibling, CHUNK, CHUNK);
+        byte[] tail = Arrays.copyOfRange(next, 2 * CHUNK, SIZE);
+        File a = dir.newFile("a.bin");
+        File b = dir.newFile("b.bin");
+        Files.write(a.toPath(), sibling);
+        Files.write(b.toPath(), tail);
+        RangeHttpStub mirror = serve(next, RangeHttpStub.PATH);
+        File tmp = dir.newFile("decoder.bin.part");
+
+        long fetched = ChunkIndex.assemble(chunksOf(next), Arrays.asList(a, b),
+                Collections.singletonList(mirror.url()), tmp, null, "decoder.bin");
+
+        assertArrayEquals(next, Files.readAllBytes(tmp.toPath()));
+        assertEquals(0, fetched);
+        assertTrue(mirror.requests().isEmpty());
+    }
+
+    @Test
+    public void failedRangeFallsThroughToTheNextMirror() throws Exception {
+        byte[] next = RangeHttpStub.randomBytes(SIZE, 23);
+        RangeHttpStub broken = serve(next, RangeHttpStub.PATH);
+        broken.cutNextResponse(1000, 503);
+        RangeHttpStub good = serve(next, RangeHttpStub.PATH);
+        File tmp = dir.newFile("decoder.bin.part");
+
+        long fetched = ChunkIndex.assemble(chunksOf(next), Collections.emptyList(),
+                Arrays.asList(broken.url(), good.url()), tmp, null, "decoder.bin");
+
+        assertArrayEquals(next, Files.readAllBytes(tmp.toPath()));
+        assertEquals(SIZE, fetched);
+        assertEquals("bytes=0-" + (SIZE - 1), good.requests().get(0).range);
+    }
+
+    @Test
+    public void wrongWholeFileHashIsRejected() throws Exception {
+        byte[] next = RangeHttpStub.randomBytes(SIZE, 24);
+        ChunkIndex.FileChunks c = chunksOf(next);
+        ChunkIndex.FileChunks wrong = new ChunkIndex.FileChunks(c.size, sha256(new byte[1], 0, 1), c.chunkSize, c.chunks);
+        RangeHttpStub mirror = serve(next, RangeHttpStub.PATH);
+        File tmp = dir.newFile("decoder.bin.part");
+
+        try {
+            ChunkIndex.assemble(wrong, Collections.emptyList(), Collections.singletonList(mirror.url()), tmp, null, "decoder.bin");
+            fail("expected the sha256 check to fail");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("sha256"));
+        }
+    }
+
+    @Test
+    public void fetchParsesTheIndexAndDropsInconsistentEntries() throws Exception {
+        byte[] data = RangeHttpStub.randomBytes(SIZE, 25);
+        ChunkIndex.FileChunks c = chunksOf(data);
+        JSONObject files = new JSONObject()
+                .put("decoder.bin", indexEntry(c))
+                .put("short.bin", new JSONObject().put("size", SIZE).put("sha256", c.sha256)
+                        .put("chunks", new JSONArray().put(c.chunks[0])));
+        byte[] json = new JSONObject().put("chunk_size", CHUNK).put("files", files).toString().getBytes(StandardCharsets.UTF_8);
+        RangeHttpStub mirror = serve(json, "/" + ChunkIndex.FILE_NAME);
+        File modelDir = dir.newFolder("model");
+
+        ChunkIndex index = ChunkIndex.fetch(Collections.singletonList(mirror.base()), modelDir);
+
+        assertNotNull(index);
+        ChunkIndex.FileChunks parsed = index.get("decoder.bin");
+        assertEquals(SIZE, parsed.size);
+        assertEquals(CHUNK, parsed.chunkSize);
+        assertArrayEquals(c.chunks, parsed.chunks);
+        assertNull("chunk count does not match the size", index.get("short.bin"));
+        assertEquals("the downloaded index is not left behind", 0, modelDir.list().length);
+    }
+
+    @Test
+    public void missingOrUnusableIndexMeansFullDownloads() throws Exception {
+        RangeHttpStub none = serve(new byte[0], "/other.json");
+        assertNull(ChunkIndex.fetch(Collections.singletonList(none.base()), dir.newFolder("a")));
+
+        byte[] tiny = new JSONObject().put("chunk_size", 1024).put("files", new JSONObject())
+                .toString().getBytes(StandardCharsets.UTF_8);
+        RangeHttpStub small = serve(tiny, "/" + ChunkIndex.FILE_NAME);
+        assertNull(ChunkIndex.fetch(Collections.singletonList(small.base()), dir.newFolder("b")));
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of a loopback download with and without a bandwidth cap, and how many
+ * (coalesced) progress callbacks reach the listener. Moves 32 MiB and takes seconds, so it
+ * is left out of the normal run. Raw speed depends on the machine; only the cap, the
+ * callback bound and an uncapped run beating the cap are asserted.
+ */
+@Ignore("benchmark; run explicitly")
+@RunWith(RobolectricTestRunner.class)
+public class DownloadSchedulerBenchmarkTest {
+    private static final int SIZE = 16 * 1024 * 1024;
+    private static final long CAP = 8L * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private RangeHttpStub stub;
+
+    @After
+    public void tearDown() {
+        DownloadScheduler.setBandwidthLimit(0);
+        if (stub != null) {
+            stub.close();
+        }
+    }
+
+    @Test
+    public void uncappedVersusCapped() throws Exception {
+        byte[] data = RangeHttpStub.randomBytes(SIZE, 30);
+        stub = new RangeHttpStub(data, "\"b\"");
+
+        DownloadScheduler.setBandwidthLimit(0);
+        AtomicInteger freeCalls = new AtomicInteger();
+        double free = run(data, DownloadScheduler.coalesce((f, d, t, s) -> freeCalls.incrementAndGet()));
+
+        DownloadScheduler.setBandwidthLimit(CAP);
+        AtomicInteger cappedCalls = new AtomicInteger();
+        long t0 = System.currentTimeMillis();
+        double capped = run(data, DownloadScheduler.coalesce((f, d, t, s) -> cappedCalls.incrementAndGet()));
+        long ms = System.currentTimeMillis() - t0;
+
+        String rates = String.format("loopback %d MiB: uncapped %.1f MiB/s (%d callbacks),"
+                        + " capped at %d MiB/s %.1f MiB/s (%d callbacks)",
+                SIZE >> 20, free, freeCalls.get(), CAP >> 20, capped, cappedCalls.get());
+        assertTrue("cap exceeded: " + rates, capped <= (CAP >> 20) * 1.15);
+        assertTrue("uncapped run not faster: " + rates, free > capped);
+        // At most one callback per 250ms plus the final reports.
+        assertTrue("too many callbacks: " + cappedCalls.get(), cappedCalls.get() <= ms / 250 + 4);
+    }
+
+    private double run(byte[] data, ModelDownloader.ProgressListener listener) throws Exception {
+        File tmp = dir.newFile();
+        long t0 = System.nanoTime();
+        RangedDownloader.fetch(Collections.singletonList(stub.url()), tmp, listener, "model.bin", false);
+        double sec = (System.nanoTime() - t0) / 1e9;
+        assertArrayEquals(data, Files.readAllBytes(tmp.toPath()));
+        return SIZE / 1048576.0 / sec;
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@RunWith(RobolectricTestRunner.class)
+public class DownloadSchedulerTest {
+    private static final int PIECE = 16 * 1024;
+
+    @After
+    public void tearDown() {
+        // The scheduler is process-wide; leave it as other tests expect it.
+        DownloadScheduler.setBandwidthLimit(0);
+        DownloadScheduler.resume();
+    }
+
+    @Test
+    public void capHoldsTheRateAfterTheInitialBurst() throws Exception {
+        long cap = 1024 * 1024;
+        DownloadScheduler.setBandwidthLimit(cap);
+        long t0 = System.nanoTime();
+        for (long sent = 0; sent < cap; sent += PIECE) {
+            DownloadScheduler.onBytes(PIECE);
+        }
+        long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+
+        // 1 MiB at 1 MiB/s, with no tokens banked at the start: about one second.
+        assertTrue("too fast for the cap: " + ms + "ms", ms >= 900);
+        assertTrue("far slower than the cap: " + ms + "ms", ms < 2000);
+    }
+
+    @Test
+    public void noCapDoesNotWait() throws Exception {
+        DownloadScheduler.setBandwidthLimit(0);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            DownloadScheduler.onBytes(PIECE);
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0) < 1000);
+    }
+
+    @Test
+    public void pauseHoldsReadersUntilResume() throws Exception {
+        DownloadScheduler.pause();
+        assertTrue(DownloadScheduler.isPaused());
+        CountDownLatch entered = new CountDownLatch(1);
+        AtomicBoolean passed = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            entered.countDown();
+            try {
+                DownloadScheduler.onBytes(PIECE);
+                passed.set(true);
+            } catch (IOException ignore) {
+            }
+        });
+        reader.start();
+        entered.await();
+        reader.join(300);
+        assertFalse("a paused read must block", passed.get());
+
+        DownloadScheduler.resume();
+        reader.join(2000);
+        assertTrue(passed.get());
+        assertFalse(DownloadScheduler.isPaused());
+    }
+
+    @Test
+    public void interruptUnwindsAPausedReadWithIOException() throws Exception {
+        DownloadScheduler.pause();
+        List<Throwable> thrown = new ArrayList<>();
+        AtomicBoolean stillInterrupted = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            try {
+                DownloadScheduler.onBytes(PIECE);
+            } catch (IOException e) {
+                thrown.add(e);
+                stillInterrupted.set(Thread.currentThread().isInterrupted());
+            }
+        });
+        reader.start();
+        Thread.sleep(100);
+        reader.interrupt();
+        reader.join(2000);
+
+        assertEquals(1, thrown.size());
+        assertTrue("the interrupt stays visible to the download loop", stillInterrupted.get());
+    }
+
+    @Test
+    public void interruptedThreadFailsAnUncappedRead() {
+        Thread.currentThread().interrupt();
+        try {
+            DownloadScheduler.onBytes(PIECE);
+            fail("expected the interrupt to surface");
+        } catch (IOException expected) {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void coalesceDropsBurstsButKeepsFinalReports() throws Exception {
+        List<Long> seen = new ArrayList<>();
+        ModelDownloader.ProgressListener l = DownloadScheduler.coalesce((file, done, total, speed) -> seen.add(done));
+        for (int i = 1; i <= 1000; i++) {
+            l.onProgress("a.bin", i, 1000, 100);
+        }
+        l.onProgress("a.bin", 1000, 1000, 0);
+
+        assertEquals("first report passes, the rest of the burst is dropped", Long.valueOf(1), seen.get(0));
+        assertEquals(2, seen.size());
+        assertEquals(Long.valueOf(1000), seen.get(1));
+
+        Thread.sleep(300);
+        l.onProgress("b.bin", 5, 10, 100);
+        assertEquals("reports pass again after the interval", 3, seen.size());
+    }
+
+    @Test
+    public void metricsKeepTheMostRecentFiles() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            DownloadScheduler.recordFile("f" + i, "download", 1000, 10);
+        }
+        JSONArray m = DownloadScheduler.metrics();
+        assertEquals(64, m.length());
+        assertEquals("f99", m.getJSONObject(m.length() - 1).getString("file"));
+        assertEquals(100_000, m.getJSONObject(0).getLong("bytesPerSec"));
+    }
+}
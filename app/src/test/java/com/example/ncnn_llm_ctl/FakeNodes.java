@@ -0,0 +1,94 @@
+package com.example.ncnn_llm_ctl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory node provider for {@link AccessibilityTreeWalker}. Like AccessibilityNodeInfo,
+ * every getChild hands out a fresh handle that must be released; {@link #live()} counts the
+ * handles still out.
+ */
+final class FakeNodes implements AccessibilityTreeWalker.NodeAdapter<FakeNodes.Handle> {
+    static final class Node {
+        final int id;
+        final List<Node> children = new ArrayList<>();
+
+        Node(int id) {
+            this.id = id;
+        }
+    }
+
+    static final class Handle {
+        final Node node;
+        boolean released;
+
+        Handle(Node node) {
+            this.node = node;
+        }
+    }
+
+    private int obtained;
+    private int released;
+
+    /** A full tree with {@code fanOut} children per node down to {@code depth} (root = 0). */
+    static Node tree(int fanOut, int depth) {
+        int[] seq = new int[1];
+        return build(fanOut, depth, seq);
+    }
+
+    private static Node build(int fanOut, int depth, int[] seq) {
+        Node n = new Node(seq[0]++);
+        if (depth > 0) {
+            for (int i = 0; i < fanOut; i++) {
+                n.children.add(build(fanOut, depth - 1, seq));
+            }
+        }
+        return n;
+    }
+
+    /** A single chain of {@code length} nodes. */
+    static Node chain(int length) {
+        Node root = new Node(0);
+        Node cur = root;
+        for (int i = 1; i < length; i++) {
+            Node next = new Node(i);
+            cur.children.add(next);
+            cur = next;
+        }
+        return root;
+    }
+
+    Handle root(Node node) {
+        return new Handle(node);
+    }
+
+    int live() {
+        return obtained - released;
+    }
+
+    @Override
+    public int getChildCount(Handle h) {
+        return h.node.children.size();
+    }
+
+    @Override
+    public Handle getChild(Handle h, int index) {
+        obtained++;
+        return new Handle(h.node.children.get(index));
+    }
+
+    @Override
+    public Handle copy(Handle h) {
+        obtained++;
+        return new Handle(h.node);
+    }
+
+    @Override
+    public void release(Handle h) {
+        if (h.released) {
+            throw new IllegalStateException("released twice: " + h.node.id);
+        }
+        h.released = true;
+        released++;
+    }
+}
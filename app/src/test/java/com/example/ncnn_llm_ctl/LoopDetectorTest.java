@@ -0,0 +1,99 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class LoopDetectorTest {
+    private static final String FP = "00000000000000ab";
+    private static final String OTHER_FP = "00000000000000cd";
+
+    private LoopDetector detector;
+
+    @Before
+    public void setUp() {
+        detector = new LoopDetector();
+    }
+
+    private static JSONArray calls(String name, String argsJson) throws Exception {
+        JSONObject fn = new JSONObject().put("name", name).put("arguments", new JSONObject(argsJson));
+        return new JSONArray().put(new JSONObject().put("type", "function").put("function", fn));
+    }
+
+    private static JSONObject[] results(boolean ok) throws Exception {
+        JSONObject r = new JSONObject().put("ok", ok);
+        if (!ok) {
+            r.put("error", "view not found");
+        }
+        return new JSONObject[] {r};
+    }
+
+    private LoopDetector.Action step(String fp, String content, String name, boolean ok) throws Exception {
+        return detector.check(fp, content, calls(name, "{\"x\":1}"), results(ok)).action;
+    }
+
+    @Test
+    public void repeatedFailureOnTheSameScreenHintsThenStops() throws Exception {
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c1", "tap", false));
+        LoopDetector.Verdict v = detector.check(FP, "c1", calls("tap", "{\"x\":1}"), results(false));
+        assertEquals(LoopDetector.Action.HINT, v.action);
+        assertTrue(v.hint, v.hint.contains("view not found"));
+        assertEquals(LoopDetector.Action.STOP, step(FP, "c1", "tap", false));
+    }
+
+    @Test
+    public void sameFailureOnAnotherScreenIsNotALoop() throws Exception {
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c1", "tap", false));
+        assertEquals(LoopDetector.Action.NONE, step(OTHER_FP, "c2", "tap", false));
+    }
+
+    @Test
+    public void emptyFingerprintIsNeverJudged() throws Exception {
+        for (int i = 0; i < 4; i++) {
+            assertEquals(LoopDetector.Action.NONE, step("", "c1", "tap", false));
+            assertEquals(LoopDetector.Action.NONE, step(null, "c1", "dump_ui", true));
+        }
+    }
+
+    @Test
+    public void rereadingUnchangedContentHints() throws Exception {
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c1", "dump_ui", true));
+        assertEquals(LoopDetector.Action.HINT, step(FP, "c1", "dump_ui", true));
+    }
+
+    @Test
+    public void rereadAfterContentChangedIsAllowed() throws Exception {
+        // Same layout, but the text loaded or the list moved in between: reading again is progress.
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c1", "dump_ui", true));
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c2", "dump_ui", true));
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c3", "dump_ui", true));
+    }
+
+    @Test
+    public void unknownContentIsNotTreatedAsUnchanged() throws Exception {
+        assertEquals(LoopDetector.Action.NONE, step(FP, "", "dump_ui", true));
+        assertEquals(LoopDetector.Action.NONE, step(FP, "", "dump_ui", true));
+    }
+
+    @Test
+    public void rereadAfterAnActionIsAllowed() throws Exception {
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c1", "dump_ui", true));
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c1", "tap", true));
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c1", "dump_ui", true));
+    }
+
+    @Test
+    public void alternatingStepsAreDetected() throws Exception {
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c1", "tap", true));
+        assertEquals(LoopDetector.Action.NONE, step(OTHER_FP, "c2", "swipe", true));
+        assertEquals(LoopDetector.Action.NONE, step(FP, "c1", "tap", true));
+        assertEquals(LoopDetector.Action.HINT, step(OTHER_FP, "c2", "swipe", true));
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class MirrorFailoverTest {
+    private static final int SIZE = 3 * 1024 * 1024;
+    private static final int CUT = 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private final List<RangeHttpStub> stubs = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (RangeHttpStub s : stubs) {
+            s.close();
+        }
+    }
+
+    private RangeHttpStub mirror(byte[] data, String etag) throws IOException {
+        RangeHttpStub s = new RangeHttpStub(data, etag);
+        stubs.add(s);
+        return s;
+    }
+
+    @Test
+    public void segmentFailingMidwayContinuesOnNextMirrorFromItsOffset() throws Exception {
+        byte[] data = RangeHttpStub.randomBytes(SIZE, 10);
+        RangeHttpStub primary = mirror(data, "\"a\"");
+        RangeHttpStub secondary = mirror(data, "\"b\"");
+        primary.cutNextResponse(CUT, 503);
+        File tmp = dir.newFile("model.bin.part");
+
+        RangedDownloader.Result r = RangedDownloader.fetch(Arrays.asList(primary.url(), secondary.url()),
+                tmp, null, "model.bin", false);
+
+        assertArrayEquals(data, Files.readAllBytes(tmp.toPath()));
+        assertEquals(RangedDownloaderTest.sha256(data), r.sha256);
+        List<RangeHttpStub.Request> taken = secondary.requests();
+        assertEquals(1, taken.size());
+        assertEquals("continues where the primary stopped", CUT, taken.get(0).rangeStart());
+        assertEquals(206, taken.get(0).status);
+        assertNull("the primary's validator does not apply to another mirror", taken.get(0).ifRange);
+        assertEquals(Arrays.asList(secondary.url(), primary.url()),
+                MirrorSelector.order(Arrays.asList(primary.url(), secondary.url())));
+    }
+
+    @Test
+    public void mirrorWithDifferentTotalIsRejected() throws Exception {
+        byte[] data = RangeHttpStub.randomBytes(SIZE, 11);
+        RangeHttpStub primary = mirror(data, "\"a\"");
+        // Another version of the file: same offsets would splice two models together.
+        RangeHttpStub other = mirror(RangeHttpStub.randomBytes(SIZE, 12), "\"x\"");
+        other.reportTotal(SIZE + 1);
+        RangeHttpStub good = mirror(data, "\"c\"");
+        primary.cutNextResponse(CUT, 503);
+        File tmp = dir.newFile("model.bin.part");
+
+        RangedDownloader.fetch(Arrays.asList(primary.url(), other.url(), good.url()), tmp, null, "model.bin", false);
+
+        assertArrayEquals(data, Files.readAllBytes(tmp.toPath()));
+        assertEquals("asked once, then skipped", 1, other.requests().size());
+        assertEquals(CUT, good.requests().get(0).rangeStart());
+    }
+
+    @Test
+    public void onlyMismatchedMirrorLeftFailsAndKeepsPartial() throws Exception {
+        byte[] data = RangeHttpStub.randomBytes(SIZE, 13);
+        RangeHttpStub primary = mirror(data, "\"a\"");
+        RangeHttpStub other = mirror(data, "\"x\"");
+        other.reportTotal(SIZE * 2L);
+        primary.cutNextResponse(CUT, 503);
+        File tmp = dir.newFile("model.bin.part");
+
+        try {
+            RangedDownloader.fetch(Arrays.asList(primary.url(), other.url()), tmp, null, "model.bin", false);
+            fail("a mirror with another total must not complete the file");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("different file"));
+        }
+        assertTrue("the primary's bytes stay resumable", RangedDownloader.stateFile(tmp).exists());
+    }
+}
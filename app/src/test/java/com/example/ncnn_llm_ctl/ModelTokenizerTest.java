@@ -0,0 +1,112 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricTestRunner.class)
+public class ModelTokenizerTest {
+    /** One token per UTF-16 unit; records every native call. */
+    private final List<List<String>> calls = new ArrayList<>();
+    private boolean loaded = true;
+
+    private final ModelTokenizer tokenizer = new ModelTokenizer(texts -> {
+        calls.add(Arrays.asList(texts));
+        if (!loaded) {
+            return null;
+        }
+        int[][] out = new int[texts.length][];
+        for (int i = 0; i < texts.length; i++) {
+            out[i] = new int[texts[i].length()];
+        }
+        return out;
+    });
+
+    @After
+    public void tearDown() {
+        ChatHistory.setTokenCounter(null);
+    }
+
+    @Test
+    public void repeatedTextsComeFromTheCache() {
+        assertEquals(5, tokenizer.countTokens("hello"));
+        assertEquals(5, tokenizer.countTokens("hello"));
+        assertEquals(0, tokenizer.countTokens(""));
+        assertEquals(1, calls.size());
+    }
+
+    @Test
+    public void batchSendsOnlyMissesInOneCall() {
+        tokenizer.countTokens("cached");
+        int[] counts = tokenizer.countTokens(new String[] {"cached", "ab", null, "", "xyz"});
+
+        assertArrayEquals(new int[] {6, 2, 0, 0, 3}, counts);
+        assertEquals(2, calls.size());
+        assertEquals(Arrays.asList("ab", "xyz"), calls.get(1));
+    }
+
+    @Test
+    public void longTextsAreNotCached() {
+        String dump = "d".repeat(20 * 1024);
+        tokenizer.countTokens(dump);
+        tokenizer.countTokens(dump);
+        assertEquals(2, calls.size());
+    }
+
+    @Test
+    public void unavailableTokenizerReportsMinusOneAndChatHistoryEstimates() {
+        loaded = false;
+        assertEquals(-1, tokenizer.countTokens("打开设置"));
+        assertNull(tokenizer.countTokens(new String[] {"a"}));
+
+        ChatHistory.setTokenCounter(tokenizer.asTokenCounter());
+        assertEquals("estimate: one per CJK char", 4, ChatHistory.countTokens("打开设置"));
+
+        loaded = true;
+        assertEquals("exact once the model is loaded", 8, ChatHistory.countTokens("打开设置abcd"));
+    }
+
+    @Test
+    public void cuttingADumpEncodesItOnceAndUncached() {
+        List<String> asked = new ArrayList<>();
+        ModelTokenizer offsets = new ModelTokenizer(new ModelTokenizer.Backend() {
+            @Override
+            public int[][] encodeBatch(String[] texts) {
+                throw new AssertionError("a cut must not re-encode substrings");
+            }
+
+            @Override
+            public int[] tokenEnds(String text) {
+                asked.add(text);
+                int[] ends = new int[text.length()];
+                for (int i = 0; i < ends.length; i++) {
+                    ends[i] = i + 1;
+                }
+                return ends;
+            }
+        });
+        ChatHistory.setTokenCounter(offsets.asTokenCounter());
+        String dump = "d".repeat(20 * 1024);
+
+        assertEquals(1000, ChatHistory.headWithinTokens(dump, 1000).length());
+        assertEquals(1000, ChatHistory.headWithinTokens(dump, 1000).length());
+        assertEquals("one encoding per cut, nothing cached", 2, asked.size());
+    }
+
+    @Test
+    public void clearDropsCachedEncodings() {
+        tokenizer.countTokens("hello");
+        tokenizer.clear();
+        tokenizer.countTokens("hello");
+        assertEquals(2, calls.size());
+    }
+}
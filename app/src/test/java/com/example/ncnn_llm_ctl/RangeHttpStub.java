@@ -0,0 +1,175 @@
+package com.example.ncnn_llm_ctl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local stand-in for a model mirror: serves one file with Range, Content-Range, ETag and
+ * If-Range semantics, records every request and can break responses on purpose.
+ */
+final class RangeHttpStub implements Closeable {
+    static final String PATH = "/model.bin";
+
+    /** One request as the server saw it. */
+    static final class Request {
+        final String range;
+        final String ifRange;
+        final int status;
+
+        Request(String range, String ifRange, int status) {
+            this.range = range;
+            this.ifRange = ifRange;
+            this.status = status;
+        }
+
+        /** First byte asked for, -1 without a Range header. */
+        long rangeStart() {
+            if (range == null) {
+                return -1;
+            }
+            String spec = range.substring("bytes=".length());
+            return Long.parseLong(spec.substring(0, spec.indexOf('-')));
+        }
+    }
+
+    private final HttpServer server;
+    private final String path;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<Request> requests = new ArrayList<>();
+    private volatile byte[] body;
+    private volatile String etag;
+    private volatile long cutAt = -1;
+    private volatile int statusAfterCut;
+    private volatile long reportedTotal = -1;
+
+    RangeHttpStub(byte[] body, String etag) throws IOException {
+        this(body, etag, PATH);
+    }
+
+    /** Serves the file under {@code path}; every other path is a 404. */
+    RangeHttpStub(byte[] body, String etag, String path) throws IOException {
+        this.body = body;
+        this.etag = etag;
+        this.path = path;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(path, this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    static byte[] randomBytes(int size, long seed) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    String url() {
+        return base() + path.substring(1);
+    }
+
+    /** The mirror root, ending in '/'. */
+    String base() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /** Replaces the file, as a mirror would after a model update. */
+    void setFile(byte[] body, String etag) {
+        this.body = body;
+        this.etag = etag;
+    }
+
+    /**
+     * The next response announces its full length but drops the connection after
+     * {@code bytes} body bytes; every request after that gets {@code thenStatus} until
+     * {@link #heal()} (0 = keep serving normally).
+     */
+    void cutNextResponse(long bytes, int thenStatus) {
+        statusAfterCut = thenStatus;
+        cutAt = bytes;
+    }
+
+    void heal() {
+        cutAt = -1;
+        statusAfterCut = 0;
+    }
+
+    /** Content-Range reports {@code total} instead of the real size, as a mirror of another version would. */
+    void reportTotal(long total) {
+        reportedTotal = total;
+    }
+
+    synchronized List<Request> requests() {
+        return new ArrayList<>(requests);
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        String range = ex.getRequestHeaders().getFirst("Range");
+        String ifRange = ex.getRequestHeaders().getFirst("If-Range");
+        byte[] data = body;
+        String tag = etag;
+        try {
+            long cut;
+            int status;
+            synchronized (this) {
+                cut = cutAt;
+                if (cut < 0 && statusAfterCut != 0) {
+                    status = statusAfterCut;
+                } else {
+                    status = range != null && (ifRange == null || ifRange.equals(tag)) ? 206 : 200;
+                }
+                cutAt = -1;
+                requests.add(new Request(range, ifRange, status));
+            }
+            if (status != 200 && status != 206) {
+                ex.sendResponseHeaders(status, -1);
+                return;
+            }
+            long start = 0;
+            long end = data.length - 1;
+            ex.getResponseHeaders().set("ETag", tag);
+            ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+            if (status == 206) {
+                String spec = range.substring("bytes=".length());
+                int dash = spec.indexOf('-');
+                start = Long.parseLong(spec.substring(0, dash));
+                if (dash + 1 < spec.length()) {
+                    end = Math.min(end, Long.parseLong(spec.substring(dash + 1)));
+                }
+                long total = reportedTotal >= 0 ? reportedTotal : data.length;
+                ex.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + total);
+            }
+            long length = end + 1 - start;
+            ex.sendResponseHeaders(status, length);
+            long send = cut >= 0 ? Math.min(cut, length) : length;
+            OutputStream out = ex.getResponseBody();
+            out.write(data, (int) start, (int) send);
+            out.flush();
+            if (send < length) {
+                // Leave the announced length unfulfilled: the client sees a premature EOF.
+                throw new IOException("cut");
+            }
+            out.close();
+        } catch (IOException e) {
+            // Client went away (segment done, aborted) or the cut above.
+        } finally {
+            ex.close();
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+@RunWith(RobolectricTestRunner.class)
+public class RangedDownloaderTest {
+    // Two segments: the downloader splits files of at least 2 * 8 MiB.
+    private static final int LARGE = 20 * 1024 * 1024;
+    private static final int SMALL = 3 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder dir = new TemporaryFolder();
+
+    private RangeHttpStub stub;
+
+    @After
+    public void tearDown() {
+        if (stub != null) {
+            stub.close();
+        }
+    }
+
+    @Test
+    public void largeFileIsFetchedInConcurrentRangeSegments() throws Exception {
+        byte[] data = RangeHttpStub.randomBytes(LARGE, 1);
+        stub = new RangeHttpStub(data, "\"v1\"");
+        File tmp = dir.newFile("model.bin.part");
+        AtomicLong lastReported = new AtomicLong(-1);
+
+        RangedDownloader.Result r = RangedDownloader.fetch(Collections.singletonList(stub.url()), tmp,
+                (file, done, total, speed) -> lastReported.set(done), "model.bin", false);
+
+        assertEquals(LARGE, r.total);
+        assertEquals(LARGE, r.downloaded);
+        assertEquals(LARGE, lastReported.get());
+        assertArrayEquals(data, Files.readAllBytes(tmp.toPath()));
+        assertEquals(sha256(data), r.sha256);
+        Set<Long> starts = new HashSet<>();
+        for (RangeHttpStub.Request req : stub.requests()) {
+            assertEquals(206, req.status);
+            starts.add(req.rangeStart());
+        }
+        assertTrue("expected a probe from 0 plus at least one more segment: " + starts,
+                starts.contains(0L) && starts.size() >= 2);
+        assertFalse("sidecar is removed on success", RangedDownloader.stateFile(tmp).exists());
+    }
+
+    @Test
+    public void interruptedDownloadResumesWithIfRange() throws Exception {
+        byte[] data = RangeHttpStub.randomBytes(SMALL, 2);
+        stub = new RangeHttpStub(data, "\"v1\"");
+        File tmp = dir.newFile("model.bin.part");
+        List<String> urls = Collections.singletonList(stub.url());
+
+        // The body stops after 1 MiB and the mirror then refuses, so this attempt gives up.
+        int cut = 1024 * 1024;
+        stub.cutNextResponse(cut, 404);
+        try {
+            RangedDownloader.fetch(urls, tmp, null, "model.bin", false);
+            fail("expected the interrupted download to fail");
+        } catch (IOException expected) {
+        }
+        assertTrue("partial download is kept for resume", tmp.exists());
+        assertTrue(RangedDownloader.stateFile(tmp).exists());
+
+        stub.heal();
+        int before = stub.requests().size();
+        RangedDownloader.Result r = RangedDownloader.fetch(urls, tmp, null, "model.bin", false);
+
+        assertArrayEquals(data, Files.readAllBytes(tmp.toPath()));
+        assertEquals(sha256(data), r.sha256);
+        List<RangeHttpStub.Request> resumed = stub.requests().subList(before, stub.requests().size());
+        assertEquals(1, resumed.size());
+        assertEquals(206, resumed.get(0).status);
+        assertEquals("\"v1\"", resumed.get(0).ifRange);
+        assertTrue("resume starts at or after the bytes already on disk: " + resumed.get(0).range,
+                resumed.get(0).rangeStart() > 0 && resumed.get(0).rangeStart() <= cut);
+    }
+
+    @Test
+    public void changedValidatorRestartsFromScratch() throws Exception {
+        byte[] v1 = RangeHttpStub.randomBytes(SMALL, 3);
+        byte[] v2 = RangeHttpStub.randomBytes(SMALL + 4096, 4);
+        stub = new RangeHttpStub(v1, "\"v1\"");
+        File tmp = dir.newFile("model.bin.part");
+        List<String> urls = Collections.singletonList(stub.url());
+
+        stub.cutNextResponse(512 * 1024, 404);
+        try {
+            RangedDownloader.fetch(urls, tmp, null, "model.bin", false);
+            fail("expected the interrupted download to fail");
+        } catch (IOException expected) {
+        }
+        assertTrue(RangedDownloader.stateFile(tmp).exists());
+
+        stub.heal();
+        stub.setFile(v2, "\"v2\"");
+        int before = stub.requests().size();
+        RangedDownloader.Result r = RangedDownloader.fetch(urls, tmp, null, "model.bin", false);
+
+        assertArrayEquals(v2, Files.readAllBytes(tmp.toPath()));
+        assertEquals(v2.length, r.total);
+        assertEquals(sha256(v2), r.sha256);
+        List<RangeHttpStub.Request> after = stub.requests().subList(before, stub.requests().size());
+        assertEquals("If-Range with the old validator gets the whole new file", 200, after.get(0).status);
+        assertEquals("\"v1\"", after.get(0).ifRange);
+        RangeHttpStub.Request restart = after.get(after.size() - 1);
+        assertEquals(0L, restart.rangeStart());
+        assertNull(restart.ifRange);
+    }
+
+    static String sha256(byte[] data) throws Exception {
+        return ModelManifest.toHex(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+}
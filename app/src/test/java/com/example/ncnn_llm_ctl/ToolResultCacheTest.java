@@ -0,0 +1,178 @@
+package com.example.ncnn_llm_ctl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.view.accessibility.AccessibilityEvent;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricTestRunner.class)
+public class ToolResultCacheTest {
+    private static final String OWN_PACKAGE = "com.example.ncnn_llm_ctl";
+
+    private final AtomicInteger runs = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        // The cache is process-wide; start every test from a fresh generation.
+        ToolResultCache.invalidate();
+    }
+
+    private Callable<JSONObject> result(boolean ok) {
+        return () -> new JSONObject().put("ok", ok).put("run", runs.incrementAndGet());
+    }
+
+    private static JSONObject args(String json) throws Exception {
+        return new JSONObject(json);
+    }
+
+    @Test
+    public void identicalCallIsServedFromTheCache() throws Exception {
+        JSONObject first = ToolResultCache.get("find", args("{\"text\":\"设置\"}"), result(true));
+        JSONObject second = ToolResultCache.get("find", args("{\"text\":\"设置\"}"), result(true));
+
+        assertEquals(1, runs.get());
+        assertFalse(first.has("cached"));
+        assertTrue(second.getBoolean("cached"));
+        assertTrue(second.getLong("cache_age_ms") >= 0);
+        assertEquals(1, second.getInt("run"));
+    }
+
+    /** What AccessCtlService.onAccessibilityEvent does with the cache for one event. */
+    private static void event(int type, String pkg) {
+        if (AccessCtlService.changesToolView(type, pkg, OWN_PACKAGE)) {
+            ToolResultCache.invalidate();
+        }
+    }
+
+    @Test
+    public void overlayUpdatesKeepTheCache() throws Exception {
+        ToolResultCache.get("dump_ui", args("{}"), result(true));
+        // The overlay log after a tool result, then streamed text; the status bar clock ticks.
+        event(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED, OWN_PACKAGE);
+        event(AccessibilityEvent.TYPE_VIEW_TEXT_CHANGED, OWN_PACKAGE);
+        event(AccessibilityEvent.TYPE_VIEW_SCROLLED, OWN_PACKAGE);
+        event(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED, "com.android.systemui");
+        JSONObject again = ToolResultCache.get("dump_ui", args("{}"), result(true));
+
+        assertEquals(1, runs.get());
+        assertTrue(again.getBoolean("cached"));
+
+        event(AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED, "com.android.settings");
+        ToolResultCache.get("dump_ui", args("{}"), result(true));
+        assertEquals("a change in the app being driven flushes it", 2, runs.get());
+        event(AccessibilityEvent.TYPE_WINDOWS_CHANGED, null);
+        ToolResultCache.get("dump_ui", args("{}"), result(true));
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    public void otherArgumentsOrToolsAreSeparateEntries() throws Exception {
+        ToolResultCache.get("find", args("{\"text\":\"a\"}"), result(true));
+        ToolResultCache.get("find", args("{\"text\":\"b\"}"), result(true));
+        ToolResultCache.get("dump", args("{\"text\":\"a\"}"), result(true));
+        assertEquals(3, runs.get());
+    }
+
+    @Test
+    public void invalidateDropsEarlierResults() throws Exception {
+        ToolResultCache.get("find", args("{}"), result(true));
+        ToolResultCache.invalidate();
+        JSONObject again = ToolResultCache.get("find", args("{}"), result(true));
+
+        assertEquals(2, runs.get());
+        assertFalse(again.has("cached"));
+    }
+
+    @Test
+    public void failedResultsAreNotCached() throws Exception {
+        ToolResultCache.get("find", args("{}"), result(false));
+        JSONObject again = ToolResultCache.get("find", args("{}"), result(true));
+
+        assertEquals(2, runs.get());
+        assertFalse(again.has("cached"));
+    }
+
+    @Test
+    public void exceptionsPropagateAndAreNotCached() throws Exception {
+        try {
+            ToolResultCache.get("find", args("{}"), () -> {
+                throw new IOException("boom");
+            });
+            fail("expected the call's exception");
+        } catch (IOException expected) {
+            assertEquals("boom", expected.getMessage());
+        }
+        ToolResultCache.get("find", args("{}"), result(true));
+        assertEquals(1, runs.get());
+    }
+
+    @Test
+    public void concurrentIdenticalCallsShareOneRun() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Callable<JSONObject> slow = () -> {
+            started.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return result(true).call();
+        };
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            Future<JSONObject> a = pool.submit(() -> ToolResultCache.get("find", args("{}"), slow));
+            started.await(5, TimeUnit.SECONDS);
+            Future<JSONObject> b = pool.submit(() -> ToolResultCache.get("find", args("{}"), slow));
+            Thread.sleep(100);
+            release.countDown();
+
+            assertEquals(1, a.get(5, TimeUnit.SECONDS).getInt("run"));
+            JSONObject joined = b.get(5, TimeUnit.SECONDS);
+            assertEquals(1, joined.getInt("run"));
+            assertTrue(joined.getBoolean("cached"));
+            assertEquals(1, runs.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void resultOfACallOverlappingAnInvalidationIsNotServedLater() throws Exception {
+        ToolResultCache.get("find", args("{}"), () -> {
+            // The screen changes while the query runs.
+            ToolResultCache.invalidate();
+            return result(true).call();
+        });
+        JSONObject again = ToolResultCache.get("find", args("{}"), result(true));
+
+        assertEquals(2, runs.get());
+        assertFalse(again.has("cached"));
+    }
+
+    @Test
+    public void callersGetTheirOwnCopies() throws Exception {
+        JSONObject a = ToolResultCache.get("find", args("{}"), result(true));
+        a.put("name", "find");
+        JSONObject b = ToolResultCache.get("find", args("{}"), result(true));
+        JSONObject c = ToolResultCache.get("find", args("{}"), result(true));
+
+        assertFalse("fields added by one caller do not leak into the cache", b.has("name"));
+        assertNotSame(b, c);
+        assertTrue(c.getBoolean("cached"));
+    }
+}
@@ -1,7 +1,14 @@
 #include "android_tool_bridge.h"
 
 #include <android/log.h>
+#include <chrono>
+#include <condition_variable>
+#include <deque>
+#include <future>
+#include <memory>
 #include <mutex>
+#include <thread>
+#include <vector>
 
 namespace {
 JavaVM* g_vm = nullptr;
@@ -17,31 +24,31 @@ jmethodID g_set_text_by_view_id = nullptr;
 
 const char* kTag = "AndroidToolBridge";
 
-JNIEnv* get_env(bool* did_attach) {
-    *did_attach = false;
-    if (!g_vm) return nullptr;
-    JNIEnv* env = nullptr;
-    jint rc = g_vm->GetEnv((void**)&env, JNI_VERSION_1_6);
-    if (rc == JNI_OK) return env;
-    if (rc == JNI_EDETACHED) {
-        if (g_vm->AttachCurrentThread(&env, nullptr) == JNI_OK) {
-            *did_attach = true;
-            return env;
-        }
-    }
-    return nullptr;
-}
-
-void detach_if_needed(bool did_attach) {
-    if (did_attach && g_vm) {
-        g_vm->DetachCurrentThread();
-    }
-}
+// Tool calls run on one worker thread that attaches to the VM once and stays attached, so
+// a call costs a queue hand-off instead of an AttachCurrentThread/DetachCurrentThread pair.
+// The worker takes everything queued when it wakes up and runs it under one bridge lock.
+// The router submits one call at a time (generate() waits for each tool result before it
+// decodes on), so jobs only share a wake-up when several server requests call tools at once.
+struct Job {
+    std::vector<AndroidToolCall> calls;
+    std::vector<json> results;
+    std::chrono::steady_clock::time_point enqueued;
+    std::promise<void> done;
+};
+
+std::mutex g_queue_mu;
+std::condition_variable g_queue_cv;
+std::deque<std::shared_ptr<Job>> g_queue; // guarded by g_queue_mu
+std::once_flag g_worker_once;
 
 json err(const std::string& message) {
     return json{{"ok", false}, {"error", message}};
 }
 
+int64_t ms_between(std::chrono::steady_clock::time_point a, std::chrono::steady_clock::time_point b) {
+    return std::chrono::duration_cast<std::chrono::milliseconds>(b - a).count();
+}
+
 bool ensure_methods(JNIEnv* env) {
     if (!env) return false;
     if (!g_bridge || !g_bridge_class) return false;
@@ -54,134 +61,79 @@ bool ensure_methods(JNIEnv* env) {
     g_click_by_view_id = env->GetMethodID(g_bridge_class, "clickByViewId", "(Ljava/lang/String;)Z");
     g_click_by_text = env->GetMethodID(g_bridge_class, "clickByText", "(Ljava/lang/String;Z)Z");
     g_set_text_by_view_id = env->GetMethodID(g_bridge_class, "setTextByViewId", "(Ljava/lang/String;Ljava/lang/String;)Z");
+    if (env->ExceptionCheck()) env->ExceptionClear();
     return g_dump_ui && g_global_action_by_name && g_click_by_view_id && g_click_by_text && g_set_text_by_view_id;
 }
 
-json tool_dump_ui(const json&) {
-    std::lock_guard<std::mutex> lock(g_mu);
-    bool did_attach = false;
-    JNIEnv* env = get_env(&did_attach);
-    if (!env) return err("JNI env not available");
-    if (!ensure_methods(env)) {
-        detach_if_needed(did_attach);
-        return err("tool bridge not registered");
-    }
+// The tool_* functions run on the worker with g_mu held and methods resolved.
 
+json tool_dump_ui(JNIEnv* env, const json&) {
     __android_log_print(ANDROID_LOG_INFO, kTag, "tool dump_ui()");
     auto jstr = (jstring)env->CallObjectMethod(g_bridge, g_dump_ui);
     if (env->ExceptionCheck()) {
         env->ExceptionClear();
-        detach_if_needed(did_attach);
         return err("dumpUi exception");
     }
-    std::string out;
-    if (jstr) {
-        const char* c = env->GetStringUTFChars(jstr, nullptr);
-        if (c) out = c;
-        env->ReleaseStringUTFChars(jstr, c);
-        env->DeleteLocalRef(jstr);
-    }
-    detach_if_needed(did_attach);
+    std::string out = android_jstring_to_utf8(env, jstr);
+    if (jstr) env->DeleteLocalRef(jstr);
     __android_log_print(ANDROID_LOG_INFO, kTag, "tool dump_ui ok bytes=%d", (int)out.size());
     return json{{"ok", true}, {"dump", out}};
 }
 
-json tool_global_action(const json& args) {
+json tool_global_action(JNIEnv* env, const json& args) {
     std::string name = args.value("name", "");
     if (name.empty()) return err("missing name");
 
-    std::lock_guard<std::mutex> lock(g_mu);
-    bool did_attach = false;
-    JNIEnv* env = get_env(&did_attach);
-    if (!env) return err("JNI env not available");
-    if (!ensure_methods(env)) {
-        detach_if_needed(did_attach);
-        return err("tool bridge not registered");
-    }
-
     __android_log_print(ANDROID_LOG_INFO, kTag, "tool global_action name=%s", name.c_str());
     jstring jname = env->NewStringUTF(name.c_str());
     jboolean ok = env->CallBooleanMethod(g_bridge, g_global_action_by_name, jname);
     env->DeleteLocalRef(jname);
     if (env->ExceptionCheck()) {
         env->ExceptionClear();
-        detach_if_needed(did_attach);
         return err("globalActionByName exception");
     }
-    detach_if_needed(did_attach);
     __android_log_print(ANDROID_LOG_INFO, kTag, "tool global_action done ok=%d", ok ? 1 : 0);
     return json{{"ok", (bool)ok}, {"name", name}};
 }
 
-json tool_click_view_id(const json& args) {
+json tool_click_view_id(JNIEnv* env, const json& args) {
     std::string view_id = args.value("view_id", "");
     if (view_id.empty()) return err("missing view_id");
 
-    std::lock_guard<std::mutex> lock(g_mu);
-    bool did_attach = false;
-    JNIEnv* env = get_env(&did_attach);
-    if (!env) return err("JNI env not available");
-    if (!ensure_methods(env)) {
-        detach_if_needed(did_attach);
-        return err("tool bridge not registered");
-    }
-
     __android_log_print(ANDROID_LOG_INFO, kTag, "tool click_view_id view_id=%s", view_id.c_str());
     jstring jv = env->NewStringUTF(view_id.c_str());
     jboolean ok = env->CallBooleanMethod(g_bridge, g_click_by_view_id, jv);
     env->DeleteLocalRef(jv);
     if (env->ExceptionCheck()) {
         env->ExceptionClear();
-        detach_if_needed(did_attach);
         return err("clickByViewId exception");
     }
-    detach_if_needed(did_attach);
     __android_log_print(ANDROID_LOG_INFO, kTag, "tool click_view_id done ok=%d", ok ? 1 : 0);
     return json{{"ok", (bool)ok}, {"view_id", view_id}};
 }
 
-json tool_click_text(const json& args) {
+json tool_click_text(JNIEnv* env, const json& args) {
     std::string text = args.value("text", "");
     bool contains = args.value("contains", true);
     if (text.empty()) return err("missing text");
 
-    std::lock_guard<std::mutex> lock(g_mu);
-    bool did_attach = false;
-    JNIEnv* env = get_env(&did_attach);
-    if (!env) return err("JNI env not available");
-    if (!ensure_methods(env)) {
-        detach_if_needed(did_attach);
-        return err("tool bridge not registered");
-    }
-
     __android_log_print(ANDROID_LOG_INFO, kTag, "tool click_text text=%s contains=%d", text.c_str(), contains ? 1 : 0);
     jstring jt = env->NewStringUTF(text.c_str());
     jboolean ok = env->CallBooleanMethod(g_bridge, g_click_by_text, jt, contains ? JNI_TRUE : JNI_FALSE);
     env->DeleteLocalRef(jt);
     if (env->ExceptionCheck()) {
         env->ExceptionClear();
-        detach_if_needed(did_attach);
         return err("clickByText exception");
     }
-    detach_if_needed(did_attach);
     __android_log_print(ANDROID_LOG_INFO, kTag, "tool click_text done ok=%d", ok ? 1 : 0);
     return json{{"ok", (bool)ok}, {"text", text}, {"contains", contains}};
 }
 
-json tool_set_text_view_id(const json& args) {
+json tool_set_text_view_id(JNIEnv* env, const json& args) {
     std::string view_id = args.value("view_id", "");
     std::string text = args.value("text", "");
     if (view_id.empty()) return err("missing view_id");
 
-    std::lock_guard<std::mutex> lock(g_mu);
-    bool did_attach = false;
-    JNIEnv* env = get_env(&did_attach);
-    if (!env) return err("JNI env not available");
-    if (!ensure_methods(env)) {
-        detach_if_needed(did_attach);
-        return err("tool bridge not registered");
-    }
-
     __android_log_print(ANDROID_LOG_INFO, kTag, "tool set_text_view_id view_id=%s textBytes=%d", view_id.c_str(), (int)text.size());
     jstring jv = env->NewStringUTF(view_id.c_str());
     jstring jt = env->NewStringUTF(text.c_str());
@@ -190,19 +142,155 @@ json tool_set_text_view_id(const json& args) {
     env->DeleteLocalRef(jt);
     if (env->ExceptionCheck()) {
         env->ExceptionClear();
-        detach_if_needed(did_attach);
         return err("setTextByViewId exception");
     }
-    detach_if_needed(did_attach);
     __android_log_print(ANDROID_LOG_INFO, kTag, "tool set_text_view_id done ok=%d", ok ? 1 : 0);
     return json{{"ok", (bool)ok}, {"view_id", view_id}};
 }
+
+json run_call(JNIEnv* env, const AndroidToolCall& call) {
+    using Fn = json (*)(JNIEnv*, const json&);
+    static const std::unordered_map<std::string, Fn> kTools = {
+        {"dump_ui", tool_dump_ui},
+        {"global_action", tool_global_action},
+        {"click_view_id", tool_click_view_id},
+        {"click_text", tool_click_text},
+        {"set_text_view_id", tool_set_text_view_id},
+    };
+    auto it = kTools.find(call.name);
+    if (it == kTools.end()) return err("unknown tool: " + call.name);
+    // Bounds the local refs of one call; the worker never returns to Java to free them.
+    if (env->PushLocalFrame(8) != JNI_OK) {
+        env->ExceptionClear();
+        return err("JNI local frame unavailable");
+    }
+    json out;
+    try {
+        out = it->second(env, call.arguments.is_object() ? call.arguments : json::object());
+    } catch (const std::exception& e) {
+        // e.g. json::type_error from a non-string argument; must not escape the worker.
+        out = err(e.what());
+    } catch (...) {
+        out = err("tool failed");
+    }
+    if (env->ExceptionCheck()) env->ExceptionClear();
+    env->PopLocalFrame(nullptr);
+    return out;
+}
+
+// Attaches the worker; returns nullptr (and is retried on the next batch) if the VM refuses.
+JNIEnv* attach_worker() {
+    JNIEnv* env = nullptr;
+    JavaVMAttachArgs attach{JNI_VERSION_1_6, "tool-bridge", nullptr};
+    if (g_vm->AttachCurrentThread(&env, &attach) != JNI_OK) {
+        __android_log_print(ANDROID_LOG_ERROR, kTag, "worker attach failed");
+        return nullptr;
+    }
+    return env;
+}
+
+void worker_main() {
+    JNIEnv* env = nullptr;
+    for (;;) {
+        std::deque<std::shared_ptr<Job>> batch;
+        {
+            std::unique_lock<std::mutex> lk(g_queue_mu);
+            g_queue_cv.wait(lk, [] { return !g_queue.empty(); });
+            batch.swap(g_queue);
+        }
+        if (!env) env = attach_worker();
+        auto batch_start = std::chrono::steady_clock::now();
+        size_t calls = 0;
+        {
+            std::lock_guard<std::mutex> lock(g_mu);
+            bool ready = env && ensure_methods(env);
+            for (auto& job : batch) {
+                int64_t queue_ms = ms_between(job->enqueued, std::chrono::steady_clock::now());
+                for (const auto& call : job->calls) {
+                    auto t0 = std::chrono::steady_clock::now();
+                    json r = !env ? err("JNI env not available")
+                                  : !ready ? err("tool bridge not registered")
+                                           : run_call(env, call);
+                    // Logged, not returned: the result goes back into the prompt, and changing
+                    // numbers there would defeat prefix reuse.
+                    __android_log_print(ANDROID_LOG_INFO, kTag, "call %s queueMs=%lld execMs=%lld", call.name.c_str(),
+                                        (long long)queue_ms, (long long)ms_between(t0, std::chrono::steady_clock::now()));
+                    job->results.push_back(std::move(r));
+                    ++calls;
+                }
+            }
+        }
+        __android_log_print(ANDROID_LOG_INFO, kTag, "batch jobs=%d calls=%d execMs=%lld", (int)batch.size(), (int)calls,
+                            (long long)ms_between(batch_start, std::chrono::steady_clock::now()));
+        for (auto& job : batch) job->done.set_value();
+    }
+}
+
+json run_one(const char* name, const json& args) {
+    std::vector<json> r = android_tool_bridge_run_batch({AndroidToolCall{name, args}});
+    return r.empty() ? err("no result") : r.front();
+}
 } // namespace
 
+std::string android_jstring_to_utf8(JNIEnv* env, jstring s) {
+    if (!s) return std::string();
+    const jsize len = env->GetStringLength(s);
+    std::vector<jchar> u16((size_t)len);
+    if (len > 0) {
+        env->GetStringRegion(s, 0, len, u16.data());
+    }
+    std::string out;
+    out.reserve((size_t)len * 3);
+    for (jsize i = 0; i < len; ++i) {
+        uint32_t c = u16[i];
+        if (c >= 0xD800 && c <= 0xDBFF && i + 1 < len && u16[i + 1] >= 0xDC00 && u16[i + 1] <= 0xDFFF) {
+            c = 0x10000 + ((c - 0xD800) << 10) + (u16[i + 1] - 0xDC00);
+            ++i;
+        } else if (c >= 0xD800 && c <= 0xDFFF) {
+            c = 0xFFFD;
+        }
+        if (c < 0x80) {
+            out += (char)c;
+        } else if (c < 0x800) {
+            out += (char)(0xC0 | (c >> 6));
+            out += (char)(0x80 | (c & 0x3F));
+        } else if (c < 0x10000) {
+            out += (char)(0xE0 | (c >> 12));
+            out += (char)(0x80 | ((c >> 6) & 0x3F));
+            out += (char)(0x80 | (c & 0x3F));
+        } else {
+            out += (char)(0xF0 | (c >> 18));
+            out += (char)(0x80 | ((c >> 12) & 0x3F));
+            out += (char)(0x80 | ((c >> 6) & 0x3F));
+            out += (char)(0x80 | (c & 0x3F));
+        }
+    }
+    return out;
+}
+
 void android_tool_bridge_init(JavaVM* vm) {
     g_vm = vm;
 }
 
+std::vector<json> android_tool_bridge_run_batch(const std::vector<AndroidToolCall>& calls) {
+    if (calls.empty()) return {};
+    if (!g_vm) return std::vector<json>(calls.size(), err("JNI env not available"));
+    std::call_once(g_worker_once, [] { std::thread(worker_main).detach(); });
+
+    auto job = std::make_shared<Job>();
+    job->calls = calls;
+    job->results.reserve(calls.size());
+    std::future<void> done = job->done.get_future();
+    {
+        std::lock_guard<std::mutex> lk(g_queue_mu);
+        job->enqueued = std::chrono::steady_clock::now();
+        g_queue.push_back(job);
+    }
+    g_queue_cv.notify_one();
+    done.wait();
+    return job->results;
+}
+
 void android_tool_bridge_set(JNIEnv* env, jobject bridge) {
     if (!env) return;
     std::lock_guard<std::mutex> lock(g_mu);
@@ -293,10 +381,8 @@ std::vector<json> make_android_tools() {
 
 std::unordered_map<std::string, std::function<json(const json&)>> make_android_router() {
     std::unordered_map<std::string, std::function<json(const json&)>> r;
-    r["dump_ui"] = tool_dump_ui;
-    r["global_action"] = tool_global_action;
-    r["click_view_id"] = tool_click_view_id;
-    r["click_text"] = tool_click_text;
-    r["set_text_view_id"] = tool_set_text_view_id;
+    for (const char* name : {"dump_ui", "global_action", "click_view_id", "click_text", "set_text_view_id"}) {
+        r[name] = [name](const json& args) { return run_one(name, args); };
+    }
     return r;
 }
@@ -16,9 +16,25 @@ void android_tool_bridge_init(JavaVM* vm);
 // Set the Java bridge object (global ref is kept).
 void android_tool_bridge_set(JNIEnv* env, jobject bridge);
 
+struct AndroidToolCall {
+    std::string name;
+    json arguments;
+};
+
+// Runs the calls in order on the bridge's worker thread, which stays attached to the VM.
+// Blocks until all are done and never throws; a failing call gets {"ok": false, "error"}.
+// Time spent waiting for the worker and running each call is logged, not returned.
+std::vector<json> android_tool_bridge_run_batch(const std::vector<AndroidToolCall>& calls);
+
+// Standard UTF-8 of a Java string (empty for null). GetStringUTFChars/GetStringUTFRegion give
+// modified UTF-8, where a supplementary character (emoji, rare CJK) becomes two 3-byte
+// surrogate sequences that are invalid UTF-8 for JSON and unseen by the tokenizer; unpaired
+// surrogates become U+FFFD.
+std::string android_jstring_to_utf8(JNIEnv* env, jstring s);
+
 // OpenAI function tools exposed to the model.
 std::vector<json> make_android_tools();
 
-// Router for tool execution.
+// Router for tool execution; each call is a one-call android_tool_bridge_run_batch.
 std::unordered_map<std::string, std::function<json(const json&)>> make_android_router();
 
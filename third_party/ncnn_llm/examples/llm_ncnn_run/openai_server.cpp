@@ -158,6 +158,11 @@ int run_openai_server(const Options& opt,
             mcp_image_delivery = "file";
         }
 
+        // Tool calls are grammar constrained to the offered tools unless the client opts out.
+        if (!tools.empty() && body.value("constrain_tool_calls", true)) {
+            cfg.tool_schemas = tools;
+        }
+
         if (!tools.empty() && emit_tool_calls) {
             cfg.return_tool_calls = true;
             cfg.on_tool_call = [tool_trace, tool_calls_out](const json& call) {
@@ -5,6 +5,7 @@
 #include <fstream>
 #include <cerrno>
 #include <cstring>
+#include <deque>
 
 #ifdef __ANDROID__
 #include <android/log.h>
@@ -260,6 +261,19 @@ ncnn_llm_gpt::ncnn_llm_gpt(const std::string& model_path, bool use_vulkan) {
             }
         }
 
+        // Text of every token for the tool call grammar, decoded once here rather than per
+        // sampling step. Special tokens stay empty so the grammar never admits them.
+        if (tool_call_id >= 0 && tool_call_end_id >= 0) {
+            const int n = (int)bpe->vocab_size();
+            token_pieces.resize(n);
+            for (int i = 0; i < n; ++i) {
+                token_pieces[i] = bpe->decode({i}, false);
+            }
+            for (int id : bpe->additional_special_token_ids()) {
+                if (id >= 0 && id < n) token_pieces[id].clear();
+            }
+        }
+
         // Vision settings
         std::string vision_type = "close";
         if (config["setting"].contains("vision")) {
@@ -770,13 +784,50 @@ std::shared_ptr<ncnn_llm_gpt_ctx> ncnn_llm_gpt::generate(const std::shared_ptr<n
         bool flag_in_tool_call = false;
         std::string tool_call_content;
 
+        // Constrained tool calls: `grammar_ok` drops to false for the rest of a call if the
+        // grammar and the tokens ever disagree, so a surprise never wedges generation.
+        std::unique_ptr<ToolCallGrammar> grammar;
+        if (!cfg.tool_schemas.empty() && tool_call_id >= 0 && tool_call_end_id >= 0) {
+            grammar = std::make_unique<ToolCallGrammar>(cfg.tool_schemas);
+            if (grammar->empty() || token_pieces.empty()) grammar.reset();
+        }
+        bool grammar_ok = false;
+        std::deque<int> forced_tokens;
+        auto queue_forced = [&]() {
+            if (!grammar_ok || !forced_tokens.empty()) return;
+            if (grammar->complete()) {
+                forced_tokens.push_back(tool_call_end_id);
+                return;
+            }
+            std::string text = grammar->forced();
+            if (!text.empty()) {
+                std::vector<int> ids = bpe->encode(text, false, false);
+                forced_tokens.insert(forced_tokens.end(), ids.begin(), ids.end());
+            }
+        };
+        auto grammar_allows = [&](int id) {
+            if (id == tool_call_end_id) return grammar->complete();
+            if (id == eos || id == tool_call_id) return false;
+            if (id < 0 || id >= (int)token_pieces.size()) return false;
+            const std::string& piece = token_pieces[id];
+            return !piece.empty() && grammar->can_accept(piece);
+        };
+
         for (int step = 0; step < cfg.max_new_tokens; ++step) {
             if (ctx->cur_token == eos) break;
 
             if (ctx->cur_token == tool_call_id) {
                 flag_in_tool_call = true;
+                if (grammar) {
+                    grammar->reset();
+                    grammar_ok = true;
+                    forced_tokens.clear();
+                    queue_forced();
+                }
             } else if (ctx->cur_token == tool_call_end_id) {
                 flag_in_tool_call = false;
+                grammar_ok = false;
+                forced_tokens.clear();
                 bool should_continue = handle_tool(tool_call_content, ctx);
                 tool_call_content.clear();
                 history.clear();
@@ -784,7 +835,17 @@ std::shared_ptr<ncnn_llm_gpt_ctx> ncnn_llm_gpt::generate(const std::shared_ptr<n
                 if (!should_continue) break;
                 continue;
             } else if (flag_in_tool_call) {
-                tool_call_content += bpe->decode({ctx->cur_token}, false);
+                std::string piece = bpe->decode({ctx->cur_token}, false);
+                tool_call_content += piece;
+                if (grammar_ok) {
+                    if (grammar->accept(piece)) {
+                        queue_forced();
+                    } else {
+                        log_warn("tool call grammar out of sync, sampling the rest unconstrained");
+                        grammar_ok = false;
+                        forced_tokens.clear();
+                    }
+                }
             } else {
                 callback(bpe->decode({ctx->cur_token}, false));
             }
@@ -844,6 +905,14 @@ std::shared_ptr<ncnn_llm_gpt_ctx> ncnn_llm_gpt::generate(const std::shared_ptr<n
                 ex.extract("out0", decode_out);
             }
 
+            // The grammar already fixes the next token: skip the output projection and sampling.
+            if (!forced_tokens.empty()) {
+                ctx->cur_token = forced_tokens.front();
+                forced_tokens.pop_front();
+                history.insert(ctx->cur_token);
+                continue;
+            }
+
             ncnn::Mat logits_mat;
             {
                 ncnn::Extractor ex = proj_out_net->create_extractor();
@@ -860,14 +929,46 @@ std::shared_ptr<ncnn_llm_gpt_ctx> ncnn_llm_gpt::generate(const std::shared_ptr<n
             }
 
             softmax_vec(logits, cfg.temperature);
+            const bool constrained = flag_in_tool_call && grammar_ok;
+            std::vector<float> full_probs;
+            if (constrained) full_probs = logits;
             if (cfg.top_k > 0) apply_top_k(logits, cfg.top_k);
             if (cfg.top_p < 1.0f) apply_top_p(logits, cfg.top_p);
 
-            int next_id;
-            if (cfg.do_sample == 1) {
-                next_id = sample_from_probs(logits);
+            auto pick = [&](const std::vector<float>& probs) -> int {
+                if (cfg.do_sample == 1) return sample_from_probs(probs);
+                return std::max_element(probs.begin(), probs.end()) - probs.begin();
+            };
+
+            int next_id = -1;
+            if (!constrained) {
+                next_id = pick(logits);
             } else {
-                next_id = std::max_element(logits.begin(), logits.end()) - logits.begin();
+                // Rejection sampling from the filtered distribution is enough almost always.
+                for (int attempt = 0; attempt < 8 && next_id < 0; ++attempt) {
+                    if (std::all_of(logits.begin(), logits.end(), [](float p) { return p <= 0.f; })) break;
+                    int id = pick(logits);
+                    if (grammar_allows(id)) {
+                        next_id = id;
+                    } else {
+                        logits[id] = 0.f;
+                    }
+                }
+                // Otherwise take the most likely allowed token of the whole vocabulary.
+                if (next_id < 0) {
+                    float best = 0.f;
+                    for (int i = 0; i < vocab_size; ++i) {
+                        if (full_probs[i] > best && grammar_allows(i)) {
+                            best = full_probs[i];
+                            next_id = i;
+                        }
+                    }
+                }
+                if (next_id < 0) {
+                    log_warn("tool call grammar has no allowed token, sampling unconstrained");
+                    grammar_ok = false;
+                    next_id = pick(full_probs);
+                }
             }
 
             ctx->cur_token = next_id;
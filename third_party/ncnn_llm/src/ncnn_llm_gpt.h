@@ -26,6 +26,7 @@
 #include <nlohmann/json.hpp>
 
 #include "utils/tokenizer/bpe_tokenizer.h"
+#include "utils/tool_grammar.h"
 #include "utils/rope_embed.h"
 #include "utils/prompt.h"
 
@@ -47,6 +48,12 @@ struct GenerateConfig {
     bool return_tool_calls = false;
     std::function<void(const nlohmann::json&)> on_tool_call = nullptr;
 
+    // OpenAI style tool definitions. When set, tokens inside a tool call are sampled under
+    // ToolCallGrammar so every call names a known tool with schema-valid arguments; parts of
+    // the call that the grammar fully determines are appended without sampling.
+    // Sampling path only; beam search ignores it.
+    std::vector<nlohmann::json> tool_schemas;
+
     bool debug = false;
 };
 
@@ -114,6 +121,7 @@ protected:
 
     std::vector<int> mrope_section;
     std::vector<nlohmann::json> tools;
+    std::vector<std::string> token_pieces;
 
 public:
     ncnn_llm_gpt(const std::string& model_path, bool use_vulkan = false);
@@ -125,6 +133,8 @@ public:
 #endif
     std::shared_ptr<ncnn_llm_gpt_ctx> generate(const std::shared_ptr<ncnn_llm_gpt_ctx>& ctx_in, const GenerateConfig& cfg, std::function<void(const std::string&)> callback) const;
 
+    const BpeTokenizer& tokenizer() const { return *bpe; }
+
     std::shared_ptr<ncnn_llm_gpt_ctx> define_tools(const std::shared_ptr<ncnn_llm_gpt_ctx>& ctx, const std::vector<nlohmann::json>& tools, const std::string& system_prompt = "You are a helpful assistant.");
 
     template<typename T>
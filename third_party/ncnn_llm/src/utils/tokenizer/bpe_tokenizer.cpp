@@ -226,7 +226,13 @@ std::string BpeTokenizer::PairKey(const std::string& a, const std::string& b) {
     return key;
 }
 
-const std::vector<std::string>& BpeTokenizer::BpeForPieceCached(const std::string& piece) const {
+// Words repeat; whole texts (the byte-level mode runs BPE over an entire buffer) rarely do,
+// so only short pieces are cached, and the cache starts over once it holds too many.
+static const size_t kMaxCachedPieceBytes = 64;
+static const size_t kMaxCachedPieces = 65536;
+
+std::vector<std::string> BpeTokenizer::BpeForPieceCached(const std::string& piece) const {
+    if (piece.size() > kMaxCachedPieceBytes) return BpeForPiece(piece);
     {
         std::lock_guard<std::mutex> g(cache_mu_);
         auto it = bpe_cache_.find(piece);
@@ -235,9 +241,10 @@ const std::vector<std::string>& BpeTokenizer::BpeForPieceCached(const std::strin
     auto tokens = BpeForPiece(piece);
     {
         std::lock_guard<std::mutex> g(cache_mu_);
-        auto [it, _] = bpe_cache_.emplace(piece, std::move(tokens));
-        return it->second;
+        if (bpe_cache_.size() >= kMaxCachedPieces) bpe_cache_.clear();
+        bpe_cache_.emplace(piece, tokens);
     }
+    return tokens;
 }
 
 std::vector<std::string> BpeTokenizer::BpeForPiece(const std::string& piece) const {
@@ -80,7 +80,7 @@ private:
     void EnsureSpecialTokens(const SpecialTokensConfig& spec, bool add_if_missing);
     static std::vector<std::string> PretokenizeSentencePiece(const std::string& text);
 
-    const std::vector<std::string>& BpeForPieceCached(const std::string& piece) const;
+    std::vector<std::string> BpeForPieceCached(const std::string& piece) const;
     std::vector<std::string> BpeForPiece(const std::string& piece) const;
 
     void TokensToIds(const std::vector<std::string>& tokens, std::vector<int>& out) const;
@@ -0,0 +1,333 @@
+#include "tool_grammar.h"
+
+#include <algorithm>
+#include <cctype>
+
+namespace {
+const char* const kHead = "{\"name\": \"";
+const char* const kBetween = ", \"arguments\": ";
+// Whitespace between JSON tokens is bounded so a constrained model cannot stall by emitting
+// spaces forever, but pretty-printed JSON (a newline, then indentation) still passes: a run
+// may hold a few newlines, each followed by up to kMaxIndent spaces or tabs.
+const int kMaxWhitespaceRun = 4;
+const int kMaxNewlinesInRun = 2;
+const int kMaxIndent = 64;
+
+bool is_ws(unsigned char c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+}
+
+bool is_hex(unsigned char c) {
+    return std::isxdigit(c) != 0;
+}
+}
+
+ToolCallGrammar::ToolCallGrammar(const std::vector<nlohmann::json>& openai_tools) {
+    for (const auto& t : openai_tools) {
+        const nlohmann::json& fn = t.contains("function") ? t["function"] : t;
+        if (!fn.is_object() || !fn.contains("name") || !fn["name"].is_string()) continue;
+        ToolDef def;
+        def.name = fn["name"].get<std::string>();
+        if (def.name.empty()) continue;
+        if (fn.contains("parameters") && fn["parameters"].is_object()) {
+            const auto& params = fn["parameters"];
+            if (params.contains("properties") && params["properties"].is_object()) {
+                for (auto it = params["properties"].begin(); it != params["properties"].end(); ++it) {
+                    std::string type;
+                    if (it.value().is_object() && it.value().contains("type") && it.value()["type"].is_string()) {
+                        type = it.value()["type"].get<std::string>();
+                    }
+                    def.props[it.key()] = type;
+                }
+            }
+            if (params.contains("required") && params["required"].is_array()) {
+                for (const auto& r : params["required"]) {
+                    if (r.is_string() && def.props.count(r.get<std::string>())) {
+                        def.required.push_back(r.get<std::string>());
+                    }
+                }
+            }
+        }
+        tools_.push_back(std::move(def));
+    }
+}
+
+void ToolCallGrammar::reset() {
+    st_ = State();
+}
+
+bool ToolCallGrammar::accept(const std::string& text) {
+    State s = st_;
+    for (unsigned char c : text) {
+        if (!feed(s, c)) return false;
+    }
+    st_ = std::move(s);
+    return true;
+}
+
+bool ToolCallGrammar::can_accept(const std::string& text) const {
+    State s = st_;
+    for (unsigned char c : text) {
+        if (!feed(s, c)) return false;
+    }
+    return true;
+}
+
+std::string ToolCallGrammar::forced() const {
+    switch (st_.phase) {
+        case Phase::Start:
+            // Qwen's chat template puts a newline between <tool_call> and the body; forcing the
+            // head without it would push the model off the format it was trained on.
+            if (st_.ws_run == 0 && st_.ws_newlines == 0) return std::string("\n") + kHead;
+            return kHead;
+        case Phase::Literal:
+            return st_.literal.substr(st_.literal_pos);
+        case Phase::Name: {
+            const ToolDef* only = nullptr;
+            for (const auto& t : tools_) {
+                if (t.name.compare(0, st_.name.size(), st_.name) != 0) continue;
+                if (only) return "";
+                only = &t;
+            }
+            if (!only) return "";
+            return only->name.substr(st_.name.size()) + "\"" + kBetween + (only->props.empty() ? "{}}" : "{");
+        }
+        case Phase::Args:
+            return st_.stack.empty() ? "{" : "";
+        case Phase::Tail:
+            return "}";
+        case Phase::Done:
+            return "";
+    }
+    return "";
+}
+
+bool ToolCallGrammar::whitespace(State& s, unsigned char c) const {
+    if (c == '\n') {
+        s.ws_run = 0;
+        return ++s.ws_newlines <= kMaxNewlinesInRun;
+    }
+    return ++s.ws_run <= (s.ws_newlines > 0 ? kMaxIndent : kMaxWhitespaceRun);
+}
+
+void ToolCallGrammar::end_whitespace(State& s) {
+    s.ws_run = 0;
+    s.ws_newlines = 0;
+}
+
+bool ToolCallGrammar::feed(State& s, unsigned char c) const {
+    switch (s.phase) {
+        case Phase::Start:
+            if (is_ws(c)) return whitespace(s, c);
+            if (c != '{') return false;
+            end_whitespace(s);
+            s.phase = Phase::Literal;
+            s.literal = kHead + 1;
+            s.literal_pos = 0;
+            s.after_literal = Phase::Name;
+            return true;
+        case Phase::Literal:
+            if (c != (unsigned char)s.literal[s.literal_pos]) return false;
+            if (++s.literal_pos == s.literal.size()) s.phase = s.after_literal;
+            return true;
+        case Phase::Name:
+            if (c == '"') {
+                for (size_t i = 0; i < tools_.size(); ++i) {
+                    if (tools_[i].name == s.name) {
+                        s.tool = (int)i;
+                        s.phase = Phase::Literal;
+                        s.literal = kBetween;
+                        s.literal_pos = 0;
+                        s.after_literal = Phase::Args;
+                        return true;
+                    }
+                }
+                return false;
+            }
+            s.name.push_back((char)c);
+            for (const auto& t : tools_) {
+                if (t.name.compare(0, s.name.size(), s.name) == 0) return true;
+            }
+            return false;
+        case Phase::Args:
+            return feed_args(s, c);
+        case Phase::Tail:
+            if (is_ws(c)) return whitespace(s, c);
+            if (c != '}') return false;
+            end_whitespace(s);
+            s.phase = Phase::Done;
+            return true;
+        case Phase::Done:
+            return is_ws(c) && whitespace(s, c);
+    }
+    return false;
+}
+
+bool ToolCallGrammar::key_prefix_ok(const State& s, const std::string& key) const {
+    const ToolDef& tool = tools_[s.tool];
+    for (const auto& p : tool.props) {
+        if (p.first.compare(0, key.size(), key) != 0) continue;
+        if (std::find(s.used_keys.begin(), s.used_keys.end(), p.first) == s.used_keys.end()) return true;
+    }
+    return false;
+}
+
+bool ToolCallGrammar::feed_args(State& s, unsigned char c) const {
+    const bool top = s.stack.size() == 1;
+    switch (s.lex) {
+        case Lex::String:
+            if (s.hex_left > 0) {
+                if (!is_hex(c)) return false;
+                --s.hex_left;
+                break;
+            }
+            if (s.escape) {
+                s.escape = false;
+                if (c == 'u') {
+                    s.hex_left = 4;
+                } else if (std::string("\"\\/bfnrt").find((char)c) == std::string::npos) {
+                    return false;
+                }
+                if (s.in_key && top) s.key.push_back((char)c);
+                break;
+            }
+            if (c < 0x20) return false;
+            if (c == '\\') {
+                s.escape = true;
+                if (s.in_key && top) s.key.push_back((char)c);
+                break;
+            }
+            if (c == '"') {
+                s.lex = Lex::None;
+                if (s.in_key) {
+                    if (top) {
+                        const ToolDef& tool = tools_[s.tool];
+                        if (!tool.props.count(s.key)) return false;
+                        if (std::find(s.used_keys.begin(), s.used_keys.end(), s.key) != s.used_keys.end()) return false;
+                        s.used_keys.push_back(s.key);
+                    }
+                    s.in_key = false;
+                    s.stack.back() = Ctx::ObjColon;
+                }
+                break;
+            }
+            if (s.in_key && top) {
+                s.key.push_back((char)c);
+                if (!key_prefix_ok(s, s.key)) return false;
+            }
+            break;
+        case Lex::Number:
+            if (std::isdigit(c)) {
+                s.has_digit = true;
+                break;
+            }
+            if (!s.int_only && (c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-')) break;
+            if (!s.has_digit) return false;
+            s.lex = Lex::None;
+            return feed_args(s, c);
+        case Lex::Word:
+            if (c != (unsigned char)s.word[s.word_pos]) return false;
+            if (s.word[++s.word_pos] == '\0') s.lex = Lex::None;
+            break;
+        case Lex::None:
+            if (is_ws(c)) return whitespace(s, c);
+            end_whitespace(s);
+            if (s.stack.empty()) {
+                return value_start(s, c);
+            }
+            switch (s.stack.back()) {
+                case Ctx::ObjKeyOrEnd:
+                    if (c == '}') return close_container(s);
+                    [[fallthrough]];
+                case Ctx::ObjKey:
+                    if (c != '"') return false;
+                    if (top && !key_prefix_ok(s, "")) return false;
+                    s.lex = Lex::String;
+                    s.in_key = true;
+                    s.key.clear();
+                    return true;
+                case Ctx::ObjColon:
+                    if (c != ':') return false;
+                    s.stack.back() = Ctx::ObjValue;
+                    return true;
+                case Ctx::ObjValue:
+                    return value_start(s, c);
+                case Ctx::ObjNext:
+                    if (c == ',') {
+                        // A comma promises another key; at the top level one must be left.
+                        if (top && !key_prefix_ok(s, "")) return false;
+                        s.stack.back() = Ctx::ObjKey;
+                        return true;
+                    }
+                    return c == '}' && close_container(s);
+                case Ctx::ArrValueOrEnd:
+                    if (c == ']') return close_container(s);
+                    return value_start(s, c);
+                case Ctx::ArrValue:
+                    return value_start(s, c);
+                case Ctx::ArrNext:
+                    if (c == ',') {
+                        s.stack.back() = Ctx::ArrValue;
+                        return true;
+                    }
+                    return c == ']' && close_container(s);
+            }
+            return false;
+    }
+    return true;
+}
+
+bool ToolCallGrammar::value_start(State& s, unsigned char c) const {
+    if (s.stack.empty()) {
+        // The arguments object itself.
+        if (c != '{') return false;
+        s.stack.push_back(Ctx::ObjKeyOrEnd);
+        s.used_keys.clear();
+        return true;
+    }
+    std::string type;
+    if (s.stack.size() == 1) {
+        const ToolDef& tool = tools_[s.tool];
+        auto it = tool.props.find(s.key);
+        if (it != tool.props.end()) type = it->second;
+    }
+    const bool numeric = c == '-' || std::isdigit(c);
+    if (type == "string" && c != '"') return false;
+    if ((type == "integer" || type == "number") && !numeric) return false;
+    if (type == "boolean" && c != 't' && c != 'f') return false;
+    if (type == "array" && c != '[') return false;
+    if (type == "object" && c != '{') return false;
+
+    Ctx& parent = s.stack.back();
+    parent = (parent == Ctx::ObjValue) ? Ctx::ObjNext : Ctx::ArrNext;
+    if (c == '"') {
+        s.lex = Lex::String;
+        s.in_key = false;
+    } else if (c == '{') {
+        s.stack.push_back(Ctx::ObjKeyOrEnd);
+    } else if (c == '[') {
+        s.stack.push_back(Ctx::ArrValueOrEnd);
+    } else if (numeric) {
+        s.lex = Lex::Number;
+        s.int_only = type == "integer";
+        s.has_digit = c != '-';
+    } else if (c == 't' || c == 'f' || c == 'n') {
+        s.lex = Lex::Word;
+        s.word = c == 't' ? "true" : (c == 'f' ? "false" : "null");
+        s.word_pos = 1;
+    } else {
+        return false;
+    }
+    return true;
+}
+
+bool ToolCallGrammar::close_container(State& s) const {
+    if (s.stack.size() == 1) {
+        for (const auto& r : tools_[s.tool].required) {
+            if (std::find(s.used_keys.begin(), s.used_keys.end(), r) == s.used_keys.end()) return false;
+        }
+    }
+    s.stack.pop_back();
+    if (s.stack.empty()) s.phase = Phase::Tail;
+    return true;
+}
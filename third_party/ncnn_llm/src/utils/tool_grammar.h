@@ -0,0 +1,81 @@
+#pragma once
+
+#include <string>
+#include <unordered_map>
+#include <vector>
+
+#include <nlohmann/json.hpp>
+
+// Byte-level acceptor for the body of one ChatML tool call,
+//
+//   {"name": "<tool name>", "arguments": {<parameters>}}
+//
+// built from OpenAI style tool definitions. The name must be one of the tools, argument keys
+// must be parameters of that tool (each at most once, all required ones present) and top
+// level argument values must have the declared JSON type. Nested values are checked as plain
+// JSON. generate() uses it to reject sampled tokens that would break the call, and forced()
+// to append the parts of the call that are already determined without sampling them.
+class ToolCallGrammar {
+public:
+    explicit ToolCallGrammar(const std::vector<nlohmann::json>& openai_tools);
+
+    bool empty() const { return tools_.empty(); }
+
+    // Back to the start of a call body.
+    void reset();
+
+    // Feeds text; returns false and keeps the state unchanged if any byte is not allowed.
+    bool accept(const std::string& text);
+    bool can_accept(const std::string& text) const;
+
+    // The closing brace of the call has been read.
+    bool complete() const { return st_.phase == Phase::Done; }
+
+    // Text that is the only valid continuation from here (may be empty).
+    std::string forced() const;
+
+private:
+    struct ToolDef {
+        std::string name;
+        std::unordered_map<std::string, std::string> props; // name -> JSON type ("" = any)
+        std::vector<std::string> required;
+    };
+
+    enum class Phase { Start, Literal, Name, Args, Tail, Done };
+    enum class Lex { None, String, Number, Word };
+    enum class Ctx { ObjKeyOrEnd, ObjKey, ObjColon, ObjValue, ObjNext, ArrValueOrEnd, ArrValue, ArrNext };
+
+    struct State {
+        Phase phase = Phase::Start;
+        std::string literal;
+        size_t literal_pos = 0;
+        Phase after_literal = Phase::Name;
+        std::string name;
+        int tool = -1;
+
+        std::vector<Ctx> stack;
+        Lex lex = Lex::None;
+        bool in_key = false;
+        bool escape = false;
+        int hex_left = 0;
+        bool int_only = false;
+        bool has_digit = false;
+        const char* word = nullptr;
+        size_t word_pos = 0;
+        std::string key;
+        std::vector<std::string> used_keys;
+        int ws_run = 0;
+        int ws_newlines = 0;
+    };
+
+    bool feed(State& s, unsigned char c) const;
+    bool feed_args(State& s, unsigned char c) const;
+    bool value_start(State& s, unsigned char c) const;
+    bool close_container(State& s) const;
+    bool whitespace(State& s, unsigned char c) const;
+    static void end_whitespace(State& s);
+    bool key_prefix_ok(const State& s, const std::string& key) const;
+
+    std::vector<ToolDef> tools_;
+    State st_;
+};